@@ -0,0 +1,69 @@
+package org.cf.grapher;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Exports execution graphs as Graphviz DOT.
+ *
+ * @author cfenton
+ *
+ */
+public class DotExporter extends GraphExporter {
+
+    private static void writeQuoted(Writer writer, String text) throws IOException {
+        writer.write('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                writer.write("\\n");
+            } else {
+                if ((c == '"') || (c == '\\')) {
+                    writer.write('\\');
+                }
+                writer.write(c);
+            }
+        }
+        writer.write('"');
+    }
+
+    @Override
+    protected void writeHeader(Writer writer, String name) throws IOException {
+        writer.write("digraph {\n");
+        writer.write("label=");
+        writeQuoted(writer, name);
+        writer.write(";\nnode [shape=box];\n");
+    }
+
+    @Override
+    protected void writeNode(Writer writer, int id, int address, int visits, String label) throws IOException {
+        writer.write('n');
+        writer.write(Integer.toString(id));
+        writer.write(" [label=");
+        writeQuoted(writer, label);
+        writer.write("];\n");
+    }
+
+    @Override
+    protected void writeEdge(Writer writer, int sourceId, int targetId, int count) throws IOException {
+        writer.write('n');
+        writer.write(Integer.toString(sourceId));
+        writer.write(" -> n");
+        writer.write(Integer.toString(targetId));
+        if (count > 1) {
+            writer.write(" [label=\"");
+            writer.write(Integer.toString(count));
+            writer.write("\"]");
+        }
+        writer.write(";\n");
+    }
+
+    @Override
+    protected void writeFooter(Writer writer, boolean truncated) throws IOException {
+        if (truncated) {
+            writer.write("// truncated at node limit\n");
+        }
+        writer.write("}\n");
+    }
+
+}
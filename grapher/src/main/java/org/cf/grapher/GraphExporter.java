@@ -0,0 +1,265 @@
+package org.cf.grapher;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExecutionNode;
+
+/**
+ * Writes an {@link ExecutionGraph} to a graph file format as it's walked, so only ids for the nodes seen so far are
+ * held in memory, not the output. Subclasses only format nodes and edges.
+ *
+ * Nodes are written breadth first from the roots, either one per execution node, or one per address with the node
+ * pile collapsed into a visit count. Exports can be capped at a number of nodes, in which case edges to nodes past the
+ * cap are dropped, and labels are capped at a length.
+ *
+ * @author cfenton
+ *
+ */
+public abstract class GraphExporter {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final StringBuilder label;
+    private boolean collapsePiles;
+    private boolean includeState;
+    private int maxLabelLength;
+    private int maxNodes;
+    private boolean truncated;
+
+    protected GraphExporter() {
+        label = new StringBuilder();
+        maxLabelLength = 1000;
+        maxNodes = Integer.MAX_VALUE;
+    }
+
+    /**
+     * @param graph
+     * @param file
+     * @return number of nodes written
+     * @throws IOException
+     */
+    public int export(ExecutionGraph graph, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        Writer writer = new BufferedWriter(Channels.newWriter(channel, "UTF-8"), BUFFER_SIZE)) {
+            return export(graph, writer);
+        }
+    }
+
+    /**
+     * @param graph
+     * @param writer
+     * @return number of nodes written
+     * @throws IOException
+     */
+    public int export(ExecutionGraph graph, Writer writer) throws IOException {
+        truncated = false;
+        writeHeader(writer, graph.getMethodDescriptor());
+        int nodeCount = collapsePiles ? exportPiles(graph, writer) : exportNodes(graph, writer);
+        writeFooter(writer, truncated);
+        writer.flush();
+
+        return nodeCount;
+    }
+
+    /**
+     * @return true if the last export stopped at the node cap
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @param collapsePiles
+     *            write one node per address instead of one per execution node
+     */
+    public GraphExporter setCollapsePiles(boolean collapsePiles) {
+        this.collapsePiles = collapsePiles;
+
+        return this;
+    }
+
+    /**
+     * @param includeState
+     *            add method state to each execution node's label, ignored if collapsing piles
+     */
+    public GraphExporter setIncludeState(boolean includeState) {
+        this.includeState = includeState;
+
+        return this;
+    }
+
+    public GraphExporter setMaxLabelLength(int maxLabelLength) {
+        this.maxLabelLength = maxLabelLength;
+
+        return this;
+    }
+
+    /**
+     * @param maxNodes
+     *            at least 0
+     */
+    public GraphExporter setMaxNodes(int maxNodes) {
+        if (maxNodes < 0) {
+            throw new IllegalArgumentException("Maximum nodes must not be negative: " + maxNodes);
+        }
+        this.maxNodes = maxNodes;
+
+        return this;
+    }
+
+    protected abstract void writeHeader(Writer writer, String name) throws IOException;
+
+    /**
+     * @param writer
+     * @param id
+     *            unique within the export
+     * @param address
+     * @param visits
+     *            number of execution nodes this node stands for
+     * @param label
+     *            sanitized, but not escaped
+     * @throws IOException
+     */
+    protected abstract void writeNode(Writer writer, int id, int address, int visits, String label)
+                    throws IOException;
+
+    protected abstract void writeEdge(Writer writer, int sourceId, int targetId, int count) throws IOException;
+
+    protected abstract void writeFooter(Writer writer, boolean truncated) throws IOException;
+
+    private void appendSanitized(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (label.length() >= maxLabelLength) {
+                label.append("...");
+                return;
+            }
+
+            char c = text.charAt(i);
+            if (c == '\n') {
+                label.append(c);
+            } else if (Character.isWhitespace(c)) {
+                label.append(' ');
+            } else if (((c > ' ') && (c < 0x7F)) || ((c >= 0xA0) && (c <= 0xFF))) {
+                label.append(c);
+            } else {
+                label.append('?');
+            }
+        }
+    }
+
+    private String buildLabel(ExecutionGraph graph, int address, ExecutionNode node, int visits) {
+        label.setLength(0);
+        label.append(address).append('\n');
+        appendSanitized(graph.getOp(address).toString());
+        if (node == null) {
+            label.append("\nvisits=").append(visits);
+        } else if (includeState) {
+            label.append('\n');
+            appendSanitized(node.getContext().getMethodState().toString().trim());
+        }
+
+        return label.toString();
+    }
+
+    private int exportNodes(ExecutionGraph graph, Writer writer) throws IOException {
+        // Also the visited set
+        Map<ExecutionNode, Integer> nodeToId = new IdentityHashMap<ExecutionNode, Integer>();
+        Deque<ExecutionNode> queue = new ArrayDeque<ExecutionNode>();
+        int[] addresses = graph.getAddresses();
+        Arrays.sort(addresses);
+
+        // Roots first, then anything whose parent isn't in the graph
+        for (int pass = 0; pass < 2; pass++) {
+            for (int address : addresses) {
+                for (ExecutionNode node : graph.getNodePile(address)) {
+                    if (nodeToId.containsKey(node) || ((pass == 0) && (node.getParent() != null))) {
+                        continue;
+                    }
+                    if (nodeToId.size() >= maxNodes) {
+                        truncated = true;
+                        return nodeToId.size();
+                    }
+                    nodeToId.put(node, nodeToId.size());
+                    queue.add(node);
+                    exportReachable(graph, writer, nodeToId, queue);
+                }
+            }
+        }
+
+        return nodeToId.size();
+    }
+
+    private void exportReachable(ExecutionGraph graph, Writer writer, Map<ExecutionNode, Integer> nodeToId,
+                    Deque<ExecutionNode> queue) throws IOException {
+        ExecutionNode node;
+        while ((node = queue.poll()) != null) {
+            int id = nodeToId.get(node);
+            writeNode(writer, id, node.getAddress(), 1, buildLabel(graph, node.getAddress(), node, 1));
+            for (ExecutionNode child : node.getChildren()) {
+                Integer childId = nodeToId.get(child);
+                if (childId == null) {
+                    if (nodeToId.size() >= maxNodes) {
+                        truncated = true;
+                        continue;
+                    }
+                    childId = nodeToId.size();
+                    nodeToId.put(child, childId);
+                    queue.add(child);
+                }
+                writeEdge(writer, id, childId, 1);
+            }
+        }
+    }
+
+    private int exportPiles(ExecutionGraph graph, Writer writer) throws IOException {
+        int[] addresses = graph.getAddresses();
+        Arrays.sort(addresses);
+        int nodeCount = Math.min(addresses.length, maxNodes);
+        truncated = nodeCount < addresses.length;
+
+        TLongIntMap edgeToCount = new TLongIntHashMap();
+        for (int i = 0; i < nodeCount; i++) {
+            int address = addresses[i];
+            List<ExecutionNode> pile = graph.getNodePile(address);
+            writeNode(writer, address, address, pile.size(), buildLabel(graph, address, null, pile.size()));
+            for (ExecutionNode node : pile) {
+                for (ExecutionNode child : node.getChildren()) {
+                    long edge = ((long) address << 32) | (child.getAddress() & 0xFFFFFFFFL);
+                    edgeToCount.adjustOrPutValue(edge, 1, 1);
+                }
+            }
+        }
+
+        int lastAddress = nodeCount == 0 ? -1 : addresses[nodeCount - 1];
+        long[] edges = edgeToCount.keys();
+        Arrays.sort(edges);
+        for (long edge : edges) {
+            int source = (int) (edge >>> 32);
+            int target = (int) edge;
+            if (target > lastAddress) {
+                continue;
+            }
+            writeEdge(writer, source, target, edgeToCount.get(edge));
+        }
+
+        return nodeCount;
+    }
+
+}
@@ -0,0 +1,83 @@
+package org.cf.grapher;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Exports execution graphs as GraphML, with the label, address and visit count of each node and the count of each
+ * edge as data.
+ *
+ * @author cfenton
+ *
+ */
+public class GraphMLExporter extends GraphExporter {
+
+    private static void writeEscaped(Writer writer, String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                writer.write("&amp;");
+                break;
+            case '<':
+                writer.write("&lt;");
+                break;
+            case '>':
+                writer.write("&gt;");
+                break;
+            case '"':
+                writer.write("&quot;");
+                break;
+            default:
+                writer.write(c);
+            }
+        }
+    }
+
+    @Override
+    protected void writeHeader(Writer writer, String name) throws IOException {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        writer.write("<graphml xmlns=\"http://graphml.graphdrawing.org/xmlns\">\n");
+        writer.write("<key id=\"label\" for=\"node\" attr.name=\"label\" attr.type=\"string\"/>\n");
+        writer.write("<key id=\"address\" for=\"node\" attr.name=\"address\" attr.type=\"int\"/>\n");
+        writer.write("<key id=\"visits\" for=\"node\" attr.name=\"visits\" attr.type=\"int\"/>\n");
+        writer.write("<key id=\"count\" for=\"edge\" attr.name=\"count\" attr.type=\"int\"/>\n");
+        writer.write("<graph id=\"");
+        writeEscaped(writer, name);
+        writer.write("\" edgedefault=\"directed\">\n");
+    }
+
+    @Override
+    protected void writeNode(Writer writer, int id, int address, int visits, String label) throws IOException {
+        writer.write("<node id=\"n");
+        writer.write(Integer.toString(id));
+        writer.write("\"><data key=\"label\">");
+        writeEscaped(writer, label);
+        writer.write("</data><data key=\"address\">");
+        writer.write(Integer.toString(address));
+        writer.write("</data><data key=\"visits\">");
+        writer.write(Integer.toString(visits));
+        writer.write("</data></node>\n");
+    }
+
+    @Override
+    protected void writeEdge(Writer writer, int sourceId, int targetId, int count) throws IOException {
+        writer.write("<edge source=\"n");
+        writer.write(Integer.toString(sourceId));
+        writer.write("\" target=\"n");
+        writer.write(Integer.toString(targetId));
+        writer.write("\"><data key=\"count\">");
+        writer.write(Integer.toString(count));
+        writer.write("</data></edge>\n");
+    }
+
+    @Override
+    protected void writeFooter(Writer writer, boolean truncated) throws IOException {
+        writer.write("</graph>\n");
+        if (truncated) {
+            writer.write("<!-- truncated at node limit -->\n");
+        }
+        writer.write("</graphml>\n");
+    }
+
+}
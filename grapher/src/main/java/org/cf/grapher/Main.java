@@ -0,0 +1,63 @@
+package org.cf.grapher;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+
+/**
+ * Executes a method and exports its execution graph. Outputs ending in .graphml are written as GraphML, anything else
+ * as DOT.
+ *
+ * Usage: Main &lt;smali path&gt; &lt;method&gt; &lt;output&gt; [--collapse] [--state] [--max-nodes n]
+ *
+ * @author cfenton
+ *
+ */
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        boolean collapse = false;
+        boolean state = false;
+        int maxNodes = Integer.MAX_VALUE;
+        List<String> positional = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("--collapse".equals(args[i])) {
+                collapse = true;
+            } else if ("--state".equals(args[i])) {
+                state = true;
+            } else if ("--max-nodes".equals(args[i]) && (i + 1 < args.length)) {
+                maxNodes = Integer.parseInt(args[++i]);
+            } else {
+                positional.add(args[i]);
+            }
+        }
+        if ((positional.size() != 3) || (maxNodes < 0)) {
+            System.out.println("Usage: Main <smali path> <method> <output> [--collapse] [--state] [--max-nodes n]");
+            System.exit(-1);
+        }
+
+        SmaliClassManager classManager = new SmaliClassManager(new File(positional.get(0)),
+                        DexBuilder.makeDexBuilder());
+        VirtualMachine vm = new VirtualMachine(classManager);
+        ExecutionGraph graph = vm.execute(positional.get(1));
+        if (graph == null) {
+            System.out.println("Execution of " + positional.get(1) + " failed.");
+            System.exit(-1);
+        }
+
+        File output = new File(positional.get(2));
+        GraphExporter exporter = output.getName().endsWith(".graphml") ? new GraphMLExporter() : new DotExporter();
+        exporter.setCollapsePiles(collapse).setIncludeState(state).setMaxNodes(maxNodes);
+        long start = System.currentTimeMillis();
+        int nodeCount = exporter.export(graph, output);
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println("Wrote " + nodeCount + " nodes to " + output + " in " + elapsed + " ms"
+                        + (exporter.isTruncated() ? " (truncated)" : ""));
+    }
+
+}
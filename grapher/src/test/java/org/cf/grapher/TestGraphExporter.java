@@ -0,0 +1,148 @@
+package org.cf.grapher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.MethodState;
+import org.junit.Before;
+import org.junit.Test;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.w3c.dom.Document;
+
+public class TestGraphExporter {
+
+    private static final String TEST_DIRECTORY = "resources/test";
+    private static final String COUNT = "Lloop_test;->count(I)I";
+    private static final String BRANCH = "Lloop_test;->branch(I)Ljava/lang/String;";
+    private static final Pattern DOT_NODE = Pattern.compile("^n\\d+ \\[label=", Pattern.MULTILINE);
+    private static final Pattern DOT_EDGE = Pattern.compile("^n\\d+ -> n\\d+", Pattern.MULTILINE);
+
+    private static int count(Pattern pattern, String text) {
+        Matcher m = pattern.matcher(text);
+        int count = 0;
+        while (m.find()) {
+            count++;
+        }
+
+        return count;
+    }
+
+    private static String export(GraphExporter exporter, ExecutionGraph graph) throws IOException {
+        StringWriter writer = new StringWriter();
+        exporter.export(graph, writer);
+
+        return writer.toString();
+    }
+
+    private VirtualMachine vm;
+
+    @Before
+    public void setUp() throws IOException {
+        SmaliClassManager classManager = new SmaliClassManager(TEST_DIRECTORY, DexBuilder.makeDexBuilder());
+        vm = new VirtualMachine(classManager, 1000, 10, 10000);
+    }
+
+    @Test
+    public void testDotHasOneNodePerExecutionNode() throws IOException {
+        ExecutionGraph graph = executeCount(100);
+        String dot = export(new DotExporter(), graph);
+
+        assertTrue(dot.startsWith("digraph {\n"));
+        assertTrue(dot.endsWith("}\n"));
+        assertEquals(graph.getNodeCount(), count(DOT_NODE, dot));
+        assertEquals(graph.getNodeCount() - 1, count(DOT_EDGE, dot));
+    }
+
+    @Test
+    public void testCollapsedDotHasOneNodePerAddressWithEdgeCounts() throws IOException {
+        ExecutionGraph graph = executeCount(100);
+        String dot = export(new DotExporter().setCollapsePiles(true), graph);
+
+        assertEquals(graph.getAddresses().length, count(DOT_NODE, dot));
+        assertTrue(dot.contains("n1 [label=\"1\\nif-ge r0, r1, #6\\nvisits=101\"];"));
+        assertTrue(dot.contains("n1 -> n3 [label=\"100\"];"));
+        assertTrue(dot.contains("n1 -> n6;"));
+    }
+
+    @Test
+    public void testExportStopsAtNodeCap() throws IOException {
+        ExecutionGraph graph = executeCount(100);
+        GraphExporter exporter = new DotExporter().setMaxNodes(10);
+        String dot = export(exporter, graph);
+
+        assertTrue(exporter.isTruncated());
+        assertEquals(10, count(DOT_NODE, dot));
+        assertEquals(9, count(DOT_EDGE, dot));
+        assertTrue(dot.contains("// truncated"));
+    }
+
+    @Test
+    public void testCollapsedExportWithNodeCapOfZeroWritesNothing() throws IOException {
+        ExecutionGraph graph = vm.execute(BRANCH);
+        GraphExporter exporter = new DotExporter().setCollapsePiles(true).setMaxNodes(0);
+        String dot = export(exporter, graph);
+
+        assertTrue(exporter.isTruncated());
+        assertEquals(0, count(DOT_NODE, dot));
+        assertEquals(0, count(DOT_EDGE, dot));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeNodeCapIsRejected() {
+        new DotExporter().setMaxNodes(-1);
+    }
+
+    @Test
+    public void testLabelsAreEscapedAndCapped() throws IOException {
+        ExecutionGraph graph = vm.execute(BRANCH);
+        GraphExporter exporter = new DotExporter().setIncludeState(true);
+        String dot = export(exporter, graph);
+        assertTrue(dot.contains("\\\"zero\\\""));
+        assertFalse(exporter.isTruncated());
+
+        dot = export(exporter.setMaxLabelLength(4), graph);
+        assertEquals(graph.getNodeCount(), count(Pattern.compile("\\.\\.\\.\"\\];$", Pattern.MULTILINE), dot));
+    }
+
+    @Test
+    public void testGraphMLFileIsWellFormed() throws Exception {
+        ExecutionGraph graph = vm.execute(BRANCH);
+        File file = File.createTempFile("graph", ".graphml");
+        try {
+            int nodeCount = new GraphMLExporter().setIncludeState(true).export(graph, file);
+            assertEquals(graph.getNodeCount(), nodeCount);
+
+            Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+            assertEquals(nodeCount, document.getElementsByTagName("node").getLength());
+            assertEquals(nodeCount - 1, document.getElementsByTagName("edge").getLength());
+            String xml = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+            assertTrue(xml.contains("zero &lt;&amp;&gt;"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private ExecutionGraph executeCount(int times) {
+        ExecutionContext ectx = vm.getRootExecutionContext(COUNT);
+        MethodState mState = ectx.getMethodState();
+        mState.assignParameter(mState.getParameterStart(), times);
+
+        return vm.execute(COUNT, ectx);
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.cf.simplify;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cf.smalivm.SmaliClassManager;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+
+/**
+ * Static call graph between a set of local methods, built from the method references of every invoke instruction.
+ * Methods are scheduled bottom-up, callees before callers, with mutually recursive methods grouped together so that a
+ * method's callees have already been executed and optimized by the time it runs.
+ *
+ * @author cfenton
+ *
+ */
+public class CallGraph {
+
+    private final Map<String, Set<String>> methodToCallees;
+    private final Map<String, Set<String>> methodToCallers;
+
+    /**
+     *
+     * @param classManager
+     * @param methodDescriptors
+     *            methods to include; calls to any other method are ignored
+     */
+    public CallGraph(SmaliClassManager classManager, Collection<String> methodDescriptors) {
+        methodToCallees = new LinkedHashMap<String, Set<String>>();
+        methodToCallers = new LinkedHashMap<String, Set<String>>();
+        for (String methodDescriptor : methodDescriptors) {
+            methodToCallees.put(methodDescriptor, new LinkedHashSet<String>());
+            methodToCallers.put(methodDescriptor, new LinkedHashSet<String>());
+        }
+
+        for (String methodDescriptor : methodDescriptors) {
+            addCalls(classManager, methodDescriptor);
+        }
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return methods in this graph called by the given method
+     */
+    public Set<String> getCallees(String methodDescriptor) {
+        Set<String> callees = methodToCallees.get(methodDescriptor);
+
+        return callees == null ? Collections.<String> emptySet() : Collections.unmodifiableSet(callees);
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return methods in this graph which call the given method
+     */
+    public Set<String> getCallers(String methodDescriptor) {
+        Set<String> callers = methodToCallers.get(methodDescriptor);
+
+        return callers == null ? Collections.<String> emptySet() : Collections.unmodifiableSet(callers);
+    }
+
+    public Set<String> getMethodDescriptors() {
+        return Collections.unmodifiableSet(methodToCallees.keySet());
+    }
+
+    /**
+     * Group methods into strongly connected components and order them so every component comes after the components
+     * it calls into.
+     *
+     * @return components in reverse topological order
+     */
+    public List<List<String>> getBottomUpSchedule() {
+        // Iterative Tarjan's; recursion would overflow on long call chains. Tarjan emits components in reverse
+        // topological order, which is exactly bottom-up.
+        List<List<String>> schedule = new ArrayList<List<String>>();
+        TObjectIntMap<String> methodToIndex = new TObjectIntHashMap<String>();
+        TObjectIntMap<String> methodToLowLink = new TObjectIntHashMap<String>();
+        Set<String> onStack = new LinkedHashSet<String>();
+        Deque<String> stack = new ArrayDeque<String>();
+        Deque<String> callStack = new ArrayDeque<String>();
+        Deque<Iterator<String>> calleeIterators = new ArrayDeque<Iterator<String>>();
+        int index = 0;
+
+        for (String root : methodToCallees.keySet()) {
+            if (methodToIndex.containsKey(root)) {
+                continue;
+            }
+
+            methodToIndex.put(root, index);
+            methodToLowLink.put(root, index);
+            index++;
+            stack.push(root);
+            onStack.add(root);
+            callStack.push(root);
+            calleeIterators.push(methodToCallees.get(root).iterator());
+
+            while (!callStack.isEmpty()) {
+                String method = callStack.peek();
+                Iterator<String> callees = calleeIterators.peek();
+                if (callees.hasNext()) {
+                    String callee = callees.next();
+                    if (!methodToIndex.containsKey(callee)) {
+                        methodToIndex.put(callee, index);
+                        methodToLowLink.put(callee, index);
+                        index++;
+                        stack.push(callee);
+                        onStack.add(callee);
+                        callStack.push(callee);
+                        calleeIterators.push(methodToCallees.get(callee).iterator());
+                    } else if (onStack.contains(callee)) {
+                        int lowLink = Math.min(methodToLowLink.get(method), methodToIndex.get(callee));
+                        methodToLowLink.put(method, lowLink);
+                    }
+                    continue;
+                }
+
+                callStack.pop();
+                calleeIterators.pop();
+                if (methodToLowLink.get(method) == methodToIndex.get(method)) {
+                    List<String> component = new ArrayList<String>();
+                    String member;
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+                        component.add(member);
+                    } while (!member.equals(method));
+                    schedule.add(component);
+                }
+
+                if (!callStack.isEmpty()) {
+                    String caller = callStack.peek();
+                    int lowLink = Math.min(methodToLowLink.get(caller), methodToLowLink.get(method));
+                    methodToLowLink.put(caller, lowLink);
+                }
+            }
+        }
+
+        return schedule;
+    }
+
+    private void addCalls(SmaliClassManager classManager, String methodDescriptor) {
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        MethodImplementation implementation = method.getImplementation();
+        if (implementation == null) {
+            return;
+        }
+
+        Set<String> callees = methodToCallees.get(methodDescriptor);
+        for (Instruction instruction : implementation.getInstructions()) {
+            if (!(instruction instanceof ReferenceInstruction)) {
+                continue;
+            }
+
+            Object reference = ((ReferenceInstruction) instruction).getReference();
+            if (!(reference instanceof MethodReference)) {
+                continue;
+            }
+
+            String calleeDescriptor = ReferenceUtil.getMethodDescriptor((MethodReference) reference);
+            Set<String> callers = methodToCallers.get(calleeDescriptor);
+            if (callers == null) {
+                // Not a method in this graph
+                continue;
+            }
+            callees.add(calleeDescriptor);
+            callers.add(methodDescriptor);
+        }
+    }
+
+}
@@ -0,0 +1,229 @@
+package org.cf.simplify;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cf.simplify.RunReport.Status;
+import org.jf.baksmali.baksmaliOptions;
+import org.jf.baksmali.Adaptors.ClassDefinition;
+import org.jf.baksmali.Adaptors.MethodDefinition;
+import org.jf.dexlib2.writer.builder.BuilderClassDef;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.util.IndentingWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Journal of the methods a run has finished, so an interrupted run can be resumed. Optimized methods are recorded with
+ * their new definition as Smali, which can be put back in place of the original with
+ * {@link org.cf.smalivm.SmaliClassManager#setMethodDefinitions(Map)}. Other methods are only recorded so they aren't
+ * executed again.
+ *
+ * The file is a magic number, a version, and a record per method: an int length and a payload of the status, the
+ * method descriptor and, if simplified, the definition. Records are written straight to the file, so they survive the
+ * process being killed, and forced to disk at most every few seconds. A partial record at the end, from being killed
+ * mid-write, is dropped when resuming.
+ *
+ * @author cfenton
+ *
+ */
+public class CheckpointJournal {
+
+    private static final Logger log = LoggerFactory.getLogger(CheckpointJournal.class.getSimpleName());
+
+    private static final int MAGIC = 0x534d434b; // SMCK
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final long FORCE_INTERVAL_NANOS = 10L * 1000 * 1000 * 1000;
+
+    /**
+     * @param classDef
+     * @param method
+     * @return Smali for the whole method, from .method to .end method
+     * @throws IOException
+     */
+    public static String disassemble(BuilderClassDef classDef, BuilderMethod method) throws IOException {
+        baksmaliOptions options = new baksmaliOptions();
+        // Resolving synthetic accessors needs the whole class path
+        options.noAccessorComments = true;
+        StringWriter sw = new StringWriter();
+        IndentingWriter writer = new IndentingWriter(sw);
+        ClassDefinition classDefinition = new ClassDefinition(options, classDef);
+        new MethodDefinition(classDefinition, method, method.getImplementation()).writeTo(writer);
+        writer.close();
+
+        return sw.toString().trim();
+    }
+
+    private final FileChannel channel;
+    private final Map<String, Status> methodDescriptorToStatus;
+    private final Map<String, String> methodDescriptorToDefinition;
+    private long lastForce;
+
+    /**
+     * @param file
+     * @param resume
+     *            keep the methods already in the file and append to it, otherwise start over
+     * @throws IOException
+     */
+    public CheckpointJournal(File file, boolean resume) throws IOException {
+        methodDescriptorToStatus = new LinkedHashMap<String, Status>();
+        methodDescriptorToDefinition = new HashMap<String, String>();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        if (resume && (channel.size() >= HEADER_SIZE)) {
+            long end = readRecords(file);
+            channel.truncate(end);
+            channel.position(end);
+        } else {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            write(header);
+        }
+        lastForce = System.nanoTime();
+    }
+
+    public void close() throws IOException {
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * @return method descriptor to Smali definition of every simplified method
+     */
+    public Map<String, String> getMethodDefinitions() {
+        return Collections.unmodifiableMap(methodDescriptorToDefinition);
+    }
+
+    public int getCompletedCount() {
+        return methodDescriptorToStatus.size();
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return status the method finished with, or null if it hasn't
+     */
+    public Status getStatus(String methodDescriptor) {
+        return methodDescriptorToStatus.get(methodDescriptor);
+    }
+
+    public boolean isCompleted(String methodDescriptor) {
+        return methodDescriptorToStatus.containsKey(methodDescriptor);
+    }
+
+    /**
+     * Record a method which wasn't changed.
+     *
+     * @param methodDescriptor
+     * @param status
+     * @throws IOException
+     */
+    public void methodCompleted(String methodDescriptor, Status status) throws IOException {
+        append(methodDescriptor, status, null);
+    }
+
+    /**
+     * Record a simplified method along with its current implementation.
+     *
+     * @param methodDescriptor
+     * @param classDef
+     * @param method
+     * @throws IOException
+     */
+    public void methodSimplified(String methodDescriptor, BuilderClassDef classDef, BuilderMethod method)
+                    throws IOException {
+        append(methodDescriptor, Status.SIMPLIFIED, disassemble(classDef, method));
+    }
+
+    private void append(String methodDescriptor, Status status, String definition) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // length, filled in below
+        out.writeByte(status.ordinal());
+        out.writeUTF(methodDescriptor);
+        if (definition != null) {
+            out.write(definition.getBytes(StandardCharsets.UTF_8));
+        }
+        out.close();
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.remaining() - 4);
+        write(record);
+
+        methodDescriptorToStatus.put(methodDescriptor, status);
+        if (definition != null) {
+            methodDescriptorToDefinition.put(methodDescriptor, definition);
+        }
+
+        long now = System.nanoTime();
+        if (now - lastForce > FORCE_INTERVAL_NANOS) {
+            channel.force(false);
+            lastForce = now;
+        }
+    }
+
+    private long readRecords(File file) throws IOException {
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        if (in.readInt() != MAGIC) {
+            throw new IOException(file + " is not a checkpoint journal");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported checkpoint journal version " + version + " in " + file);
+        }
+
+        Status[] statuses = Status.values();
+        long end = HEADER_SIZE;
+        long size = channel.size();
+        while (end + 4 <= size) {
+            int length = in.readInt();
+            if ((length < 3) || (end + 4 + length > size)) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+            Status status = statuses[record.readUnsignedByte()];
+            String methodDescriptor = record.readUTF();
+            methodDescriptorToStatus.put(methodDescriptor, status);
+            int definitionLength = record.available();
+            if (definitionLength > 0) {
+                methodDescriptorToDefinition.put(methodDescriptor, new String(payload, length - definitionLength,
+                                definitionLength, StandardCharsets.UTF_8));
+            } else {
+                methodDescriptorToDefinition.remove(methodDescriptor);
+            }
+            end += 4 + length;
+        }
+        if ((end < size) && log.isWarnEnabled()) {
+            log.warn("Dropping partial record at the end of " + file);
+        }
+
+        return end;
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+}
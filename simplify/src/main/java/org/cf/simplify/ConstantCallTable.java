@@ -0,0 +1,421 @@
+package org.cf.simplify;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.type.UnknownValue;
+import org.jf.dexlib2.AccessFlags;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.NarrowLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
+import org.jf.dexlib2.iface.instruction.formats.Instruction3rc;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderClassDef;
+import org.jf.dexlib2.writer.builder.BuilderField;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Results of static calls to local methods where every argument is a constant, e.g. string decryption calls. Call sites
+ * are found by scanning for invoke-static instructions whose arguments all come from const or const-string instructions
+ * in the same block. Each unique method and argument combination is executed once, and only results of executions
+ * without side effects are kept.
+ *
+ * @author cfenton
+ *
+ */
+public class ConstantCallTable {
+
+    private static final Logger log = LoggerFactory.getLogger(ConstantCallTable.class.getSimpleName());
+
+    public static class Invocation {
+
+        private final String methodDescriptor;
+        private final Object[] arguments;
+
+        public Invocation(String methodDescriptor, Object[] arguments) {
+            this.methodDescriptor = methodDescriptor;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof Invocation)) {
+                return false;
+            }
+            Invocation rhs = (Invocation) other;
+
+            return methodDescriptor.equals(rhs.methodDescriptor) && Arrays.equals(arguments, rhs.arguments);
+        }
+
+        public Object[] getArguments() {
+            return arguments;
+        }
+
+        public String getMethodDescriptor() {
+            return methodDescriptor;
+        }
+
+        @Override
+        public int hashCode() {
+            return (31 * methodDescriptor.hashCode()) + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public String toString() {
+            return methodDescriptor + Arrays.toString(arguments);
+        }
+
+    }
+
+    /**
+     * Convert a value to the type of the parameter it's passed as. Constants are only ever ints or strings, and the
+     * same literal means different things for different parameter types.
+     *
+     * @param value
+     * @param type
+     * @return argument value, or null if the value can't be passed as the type
+     */
+    public static Object toArgument(Object value, String type) {
+        if (value instanceof String) {
+            return "Ljava/lang/String;".equals(type) ? value : null;
+        }
+        if (value instanceof Boolean) {
+            return "Z".equals(type) ? value : null;
+        }
+        if (value instanceof Character) {
+            return "C".equals(type) ? value : null;
+        }
+        if (!(value instanceof Number)) {
+            return null;
+        }
+
+        int literal = ((Number) value).intValue();
+        switch (type) {
+        case "I":
+            return literal;
+        case "Z":
+            return literal != 0;
+        case "B":
+            return (byte) literal;
+        case "S":
+            return (short) literal;
+        case "C":
+            return (char) literal;
+        case "F":
+            return value instanceof Float ? value : Float.intBitsToFloat(literal);
+        default:
+            return null;
+        }
+    }
+
+    private static int[] getArgumentRegisters(BuilderInstruction instruction) {
+        int[] result;
+        if (instruction instanceof Instruction3rc) {
+            Instruction3rc instr = (Instruction3rc) instruction;
+            result = new int[instr.getRegisterCount()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = instr.getStartRegister() + i;
+            }
+        } else {
+            Instruction35c instr = (Instruction35c) instruction;
+            int[] registers = new int[] {
+                            instr.getRegisterC(), instr.getRegisterD(), instr.getRegisterE(), instr.getRegisterF(),
+                            instr.getRegisterG() };
+            result = Arrays.copyOf(registers, instr.getRegisterCount());
+        }
+
+        return result;
+    }
+
+    private final SmaliClassManager classManager;
+    private final Set<Invocation> invocations;
+    private final Map<Invocation, Object> results;
+    private final Map<String, Boolean> methodDescriptorToReadsMutableStatics;
+    private int callSiteCount;
+
+    public ConstantCallTable(SmaliClassManager classManager) {
+        this.classManager = classManager;
+        invocations = new LinkedHashSet<Invocation>();
+        results = new ConcurrentHashMap<Invocation, Object>();
+        methodDescriptorToReadsMutableStatics = new HashMap<String, Boolean>();
+        callSiteCount = 0;
+    }
+
+    /**
+     * Execute every unique invocation found by {@link #scan(Collection)}. Virtual machines aren't thread safe, so each
+     * thread needs its own, with its own class manager.
+     *
+     * @param vms
+     *            virtual machine for the current thread
+     * @param threadCount
+     * @throws InterruptedException
+     */
+    public void evaluate(final ThreadLocal<VirtualMachine> vms, int threadCount) throws InterruptedException {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(invocations.size());
+        for (final Invocation invocation : invocations) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    try {
+                        Object result = evaluate(vms.get(), invocation);
+                        if (result != null) {
+                            results.put(invocation, result);
+                        }
+                    } catch (RuntimeException e) {
+                        if (log.isWarnEnabled()) {
+                            log.warn("Error evaluating " + invocation, e);
+                        }
+                    }
+
+                    return null;
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            executor.invokeAll(tasks);
+        } finally {
+            executor.shutdown();
+        }
+
+        if (log.isInfoEnabled()) {
+            log.info("Evaluated " + invocations.size() + " constant calls from " + callSiteCount + " call sites in "
+                            + (System.currentTimeMillis() - start) + "ms, " + results.size() + " have results");
+        }
+    }
+
+    public int getCallSiteCount() {
+        return callSiteCount;
+    }
+
+    public Set<Invocation> getInvocations() {
+        return Collections.unmodifiableSet(invocations);
+    }
+
+    /**
+     * @param methodDescriptor
+     * @param arguments
+     * @return result of calling the method with the arguments, or null if it wasn't evaluated or had side effects
+     */
+    public Object getResult(String methodDescriptor, Object[] arguments) {
+        return results.get(new Invocation(methodDescriptor, arguments));
+    }
+
+    /**
+     * Check if a method, or any local method it calls, reads a static field which isn't final. Results are evaluated
+     * from a fresh state, so if these fields are changed before a call, its result may be different. Framework methods
+     * are assumed not to, since results are only kept if every framework call is free of side effects.
+     *
+     * @param methodDescriptor
+     * @return true if the method may read a mutable static field
+     */
+    public boolean readsMutableStaticFields(String methodDescriptor) {
+        Boolean result = methodDescriptorToReadsMutableStatics.get(methodDescriptor);
+        if (result == null) {
+            result = readsMutableStaticFields(methodDescriptor, new HashSet<String>());
+            methodDescriptorToReadsMutableStatics.put(methodDescriptor, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Find calls with constant arguments in each method.
+     *
+     * @param methodDescriptors
+     */
+    public void scan(Collection<String> methodDescriptors) {
+        for (String methodDescriptor : methodDescriptors) {
+            BuilderMethod method = classManager.getMethod(methodDescriptor);
+            MutableMethodImplementation implementation = (MutableMethodImplementation) method.getImplementation();
+            if (implementation == null) {
+                continue;
+            }
+            scan(implementation);
+        }
+    }
+
+    private void addInvocation(BuilderInstruction instruction, TIntObjectMap<Object> constants) {
+        MethodReference methodReference = (MethodReference) ((ReferenceInstruction) instruction).getReference();
+        String className = methodReference.getDefiningClass();
+        if (!classManager.getClassNames().contains(className) || classManager.isFrameworkClass(className)) {
+            return;
+        }
+
+        int[] registers = getArgumentRegisters(instruction);
+        List<? extends CharSequence> parameterTypes = methodReference.getParameterTypes();
+        if (registers.length != parameterTypes.size()) {
+            // Has a wide parameter
+            return;
+        }
+
+        Object[] arguments = new Object[registers.length];
+        for (int i = 0; i < registers.length; i++) {
+            Object constant = constants.get(registers[i]);
+            if (constant == null) {
+                return;
+            }
+            arguments[i] = toArgument(constant, parameterTypes.get(i).toString());
+            if (arguments[i] == null) {
+                return;
+            }
+        }
+
+        invocations.add(new Invocation(ReferenceUtil.getMethodDescriptor(methodReference), arguments));
+        callSiteCount++;
+    }
+
+    private boolean isFinalStaticField(FieldReference fieldReference) {
+        String className = fieldReference.getDefiningClass();
+        if (!classManager.isLocalClass(className)) {
+            return false;
+        }
+
+        BuilderClassDef classDef = classManager.getClass(className);
+        for (BuilderField field : classDef.getStaticFields()) {
+            if (field.getName().equals(fieldReference.getName()) && field.getType().equals(fieldReference.getType())) {
+                return (field.getAccessFlags() & AccessFlags.FINAL.getValue()) != 0;
+            }
+        }
+
+        // Probably inherited, don't bother looking
+        return false;
+    }
+
+    private boolean readsMutableStaticFields(String methodDescriptor, Set<String> visitedMethods) {
+        if (!visitedMethods.add(methodDescriptor)) {
+            // Already being checked further up the call chain
+            return false;
+        }
+
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        if ((method == null) || (method.getImplementation() == null)) {
+            return true;
+        }
+
+        for (Instruction instruction : method.getImplementation().getInstructions()) {
+            String opName = instruction.getOpcode().name;
+            if (opName.startsWith("sget")) {
+                FieldReference fieldReference = (FieldReference) ((ReferenceInstruction) instruction).getReference();
+                if (!isFinalStaticField(fieldReference)) {
+                    return true;
+                }
+            } else if (opName.startsWith("invoke")) {
+                MethodReference methodReference = (MethodReference) ((ReferenceInstruction) instruction)
+                                .getReference();
+                String className = methodReference.getDefiningClass();
+                if (classManager.isLocalClass(className) && !classManager.isFrameworkClass(className)
+                                && readsMutableStaticFields(ReferenceUtil.getMethodDescriptor(methodReference),
+                                                visitedMethods)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    private Object evaluate(VirtualMachine vm, Invocation invocation) {
+        String methodDescriptor = invocation.getMethodDescriptor();
+        ExecutionContext ectx = vm.getRootExecutionContext(methodDescriptor);
+        MethodState mState = ectx.getMethodState();
+        Object[] arguments = invocation.getArguments();
+        for (int i = 0; i < arguments.length; i++) {
+            mState.assignParameter(mState.getParameterStart() + i, arguments[i]);
+        }
+
+        ExecutionGraph graph = vm.execute(methodDescriptor, ectx);
+        if (graph == null) {
+            return null;
+        }
+
+        if (graph.getHighestSideEffectLevel() != SideEffect.Level.NONE) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not keeping result of " + invocation + " because it has side effects");
+            }
+            return null;
+        }
+
+        Object result = graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister);
+        if ((result == null) || (result instanceof UnknownValue)) {
+            return null;
+        }
+
+        return result;
+    }
+
+    private void scan(MutableMethodImplementation implementation) {
+        // Only constants assigned in the same block are certain
+        TIntObjectMap<Object> constants = new TIntObjectHashMap<Object>();
+        for (BuilderInstruction instruction : implementation.getInstructions()) {
+            if (!instruction.getLocation().getLabels().isEmpty()) {
+                constants.clear();
+            }
+
+            Opcode opcode = instruction.getOpcode();
+            switch (opcode) {
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16:
+                int literal = ((NarrowLiteralInstruction) instruction).getNarrowLiteral();
+                constants.put(((OneRegisterInstruction) instruction).getRegisterA(), literal);
+                break;
+            case CONST_STRING:
+            case CONST_STRING_JUMBO:
+                String string = ((StringReference) ((ReferenceInstruction) instruction).getReference()).getString();
+                constants.put(((OneRegisterInstruction) instruction).getRegisterA(), string);
+                break;
+            case INVOKE_STATIC:
+            case INVOKE_STATIC_RANGE:
+                addInvocation(instruction, constants);
+                break;
+            default:
+                if (opcode.setsRegister()) {
+                    int register = ((OneRegisterInstruction) instruction).getRegisterA();
+                    constants.remove(register);
+                    if (opcode.setsWideRegister()) {
+                        constants.remove(register + 1);
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+package org.cf.simplify;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Tracks the most heap in use at once by polling total heap usage from a daemon thread. Each heap pool's own peak
+ * can't be summed for this since pools peak at different times, e.g. eden just before a collection and the old
+ * generation just after. Peaks shorter than the sampling interval may be missed.
+ *
+ * @author cfenton
+ *
+ */
+public class HeapSampler {
+
+    private static final long DEFAULT_INTERVAL_MS = 10;
+
+    private final MemoryMXBean memoryBean;
+    private final long intervalMs;
+    private Timer timer;
+    private long peakBytes;
+
+    public HeapSampler() {
+        this(DEFAULT_INTERVAL_MS);
+    }
+
+    public HeapSampler(long intervalMs) {
+        this.intervalMs = intervalMs;
+        memoryBean = ManagementFactory.getMemoryMXBean();
+    }
+
+    /**
+     * @return most heap used at once in any sample taken so far
+     */
+    public synchronized long getPeakBytes() {
+        if (timer != null) {
+            sample();
+        }
+
+        return peakBytes;
+    }
+
+    public synchronized boolean isRunning() {
+        return timer != null;
+    }
+
+    public synchronized void sample() {
+        long used = memoryBean.getHeapMemoryUsage().getUsed();
+        if (used > peakBytes) {
+            peakBytes = used;
+        }
+    }
+
+    /**
+     * Start sampling, if not already started.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+
+        sample();
+        timer = new Timer(HeapSampler.class.getSimpleName(), true);
+        timer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, intervalMs, intervalMs);
+    }
+
+    public synchronized void stop() {
+        if (timer == null) {
+            return;
+        }
+
+        sample();
+        timer.cancel();
+        timer = null;
+    }
+
+}
@@ -0,0 +1,85 @@
+package org.cf.simplify;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jf.dexlib2.builder.BuilderInstruction;
+
+/**
+ * A set of instruction removals, replacements and insertions for a method, applied all at once with
+ * {@link MethodBackedGraph#applyEdits(InstructionEdits)}. Every address refers to the method as it was before any of the
+ * edits.
+ *
+ * @author cfenton
+ *
+ */
+public class InstructionEdits {
+
+    private final TIntSet removals;
+    private final TIntObjectMap<BuilderInstruction> replacements;
+    private final TIntObjectMap<List<BuilderInstruction>> insertions;
+
+    public InstructionEdits() {
+        removals = new TIntHashSet();
+        replacements = new TIntObjectHashMap<BuilderInstruction>();
+        insertions = new TIntObjectHashMap<List<BuilderInstruction>>();
+    }
+
+    /**
+     * Insert an instruction before the one at an address. Several insertions at the same address keep their order.
+     *
+     * @param address
+     * @param instruction
+     * @return this
+     */
+    public InstructionEdits insert(int address, BuilderInstruction instruction) {
+        List<BuilderInstruction> inserted = insertions.get(address);
+        if (inserted == null) {
+            inserted = new ArrayList<BuilderInstruction>(1);
+            insertions.put(address, inserted);
+        }
+        inserted.add(instruction);
+
+        return this;
+    }
+
+    public InstructionEdits remove(int address) {
+        if (replacements.containsKey(address)) {
+            throw new IllegalArgumentException("Instruction @" + address + " is already being replaced");
+        }
+        removals.add(address);
+
+        return this;
+    }
+
+    public InstructionEdits replace(int address, BuilderInstruction replacement) {
+        if (removals.contains(address)) {
+            throw new IllegalArgumentException("Instruction @" + address + " is already being removed");
+        }
+        replacements.put(address, replacement);
+
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return removals.isEmpty() && replacements.isEmpty() && insertions.isEmpty();
+    }
+
+    TIntObjectMap<List<BuilderInstruction>> getInsertions() {
+        return insertions;
+    }
+
+    TIntSet getRemovals() {
+        return removals;
+    }
+
+    TIntObjectMap<BuilderInstruction> getReplacements() {
+        return replacements;
+    }
+
+}
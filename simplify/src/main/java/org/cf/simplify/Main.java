@@ -1,14 +1,27 @@
 package org.cf.simplify;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
 import java.util.regex.Pattern;
 
+import org.cf.simplify.RunReport.Status;
+import org.cf.smalivm.ExecutionProfiler;
+import org.cf.smalivm.ExecutionTraceWriter;
 import org.cf.smalivm.SmaliClassManager;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExecutionGraphReader;
+import org.cf.smalivm.context.ExecutionGraphWriter;
+import org.cf.util.FlightRecorderEvent;
+import org.cf.util.Tracing;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
@@ -20,6 +33,9 @@ import ch.qos.logback.classic.Level;
 
 public class Main {
 
+    private static final FlightRecorderEvent.Type WRITE_EVENT = FlightRecorderEvent.define("org.cf.simplify.DexWrite",
+                    "Dex Write", new String[] { "path", "classCount" }, new Class<?>[] { String.class, int.class });
+
     public static void main(String[] args) throws Exception {
         OptionBean bean = new OptionBean();
         CmdLineParser parser = new CmdLineParser(bean);
@@ -29,38 +45,241 @@ public class Main {
             System.exit(0);
         }
 
+        run(bean);
+    }
+
+    /**
+     * Simplify the input and write the output described by the options.
+     *
+     * @param bean
+     * @return time spent in each phase and counts of methods
+     * @throws Exception
+     */
+    public static RunStatistics run(OptionBean bean) throws Exception {
         setLogLevel(bean);
 
+        RunStatistics statistics = new RunStatistics();
+        statistics.startPhase("load");
         DexBuilder dexBuilder = DexBuilder.makeDexBuilder(bean.getOutputAPILevel());
         SmaliClassManager classManager = new SmaliClassManager(bean.getInFile(), dexBuilder);
+        CheckpointJournal journal = null;
+        if (bean.getCheckpointFile() != null) {
+            journal = new CheckpointJournal(bean.getCheckpointFile(), bean.isResume());
+            if (bean.isResume()) {
+                // Before any classes are loaded
+                classManager.setMethodDefinitions(journal.getMethodDefinitions());
+                System.out.println("Resuming after " + journal.getCompletedCount() + " finished methods");
+            }
+        }
         VirtualMachine vm = new VirtualMachine(classManager, bean.getMaxAddressVisits(), bean.getMaxCallDepth(),
                         bean.getMaxMethodVisits());
+        ExecutionProfiler profiler = null;
+        if (bean.getProfileFile() != null) {
+            profiler = new ExecutionProfiler();
+            vm.setProfiler(profiler);
+        }
+        ExecutionTraceWriter traceWriter = null;
+        if (bean.getTraceFile() != null) {
+            traceWriter = new ExecutionTraceWriter(bean.getTraceFile());
+            vm.setTraceWriter(traceWriter);
+        }
 
+        List<String> methodDescriptors = new ArrayList<String>();
         for (String className : classManager.getNonFrameworkClassNames()) {
-            Set<String> methodDescriptors = classManager.getMethodDescriptors(className);
-            filterMethods(methodDescriptors, bean.getIncludeFilter(), bean.getExcludeFilter());
+            Set<String> classMethodDescriptors = classManager.getMethodDescriptors(className);
+            filterMethods(classMethodDescriptors, bean.getIncludeFilter(), bean.getExcludeFilter());
+            methodDescriptors.addAll(classMethodDescriptors);
+        }
+
+        ConstantCallTable callTable = null;
+        if (bean.getPrepassThreads() > 0) {
+            statistics.startPhase("prepass");
+            callTable = buildConstantCallTable(bean, classManager, methodDescriptors);
+        }
+
+        ExecutionGraphReader graphReader = null;
+        if (bean.getLoadGraphsFile() != null) {
+            graphReader = new ExecutionGraphReader(bean.getLoadGraphsFile());
+        }
+        ExecutionGraphWriter graphWriter = null;
+        if (bean.getSaveGraphsFile() != null) {
+            graphWriter = new ExecutionGraphWriter(bean.getSaveGraphsFile());
+        }
 
-            for (String methodDescriptor : methodDescriptors) {
-                System.out.println("Executing: " + methodDescriptor);
-                ExecutionGraph graph = vm.execute(methodDescriptor);
+        Writer reportWriter = null;
+        RunReport report = null;
+        if (bean.getReportFile() != null) {
+            reportWriter = new FileWriter(bean.getReportFile());
+            report = new RunReport(bean.isReportLines() ? reportWriter : null);
+        }
+
+        // Execute callees before callers so callers see optimized callee bodies.
+        statistics.startPhase("callGraph");
+        CallGraph callGraph = new CallGraph(classManager, methodDescriptors);
+        for (List<String> component : callGraph.getBottomUpSchedule()) {
+            for (String methodDescriptor : component) {
+                if ((journal != null) && journal.isCompleted(methodDescriptor)) {
+                    statistics.methodResumed();
+                    if (report != null) {
+                        report.add(new RunReport.MethodResult(methodDescriptor, journal.getStatus(methodDescriptor),
+                                        "resumed", 0, 0, 0, 0, Collections.<String, Integer> emptyMap()));
+                    }
+                    continue;
+                }
+
+                statistics.startPhase("execute");
+                long executeStart = System.nanoTime();
+                ExecutionGraph graph = null;
+                boolean loaded = false;
+                if ((graphReader != null) && graphReader.contains(methodDescriptor)) {
+                    System.out.println("Loading: " + methodDescriptor);
+                    graph = loadGraph(graphReader, vm, methodDescriptor);
+                    loaded = graph != null;
+                }
+                if (!loaded) {
+                    System.out.println("Executing: " + methodDescriptor);
+                    graph = vm.execute(methodDescriptor);
+                }
+                long executeNanos = System.nanoTime() - executeStart;
                 if (graph == null) {
                     System.out.println("Skipping " + methodDescriptor);
+                    Status status;
+                    String reason;
+                    if (classManager.methodHasImplementation(methodDescriptor)) {
+                        statistics.methodFailed();
+                        status = Status.FAILED;
+                        reason = vm.getRootFailure();
+                    } else {
+                        statistics.methodSkipped();
+                        status = Status.SKIPPED;
+                        reason = "no implementation";
+                    }
+                    if (report != null) {
+                        report.add(new RunReport.MethodResult(methodDescriptor, status, reason,
+                                        vm.getRootVisitCount(), 0, executeNanos, 0,
+                                        Collections.<String, Integer> emptyMap()));
+                    }
+                    if (journal != null) {
+                        journal.methodCompleted(methodDescriptor, status);
+                    }
                     continue;
                 }
+                statistics.methodExecuted();
+                int visitCount = loaded ? 0 : vm.getRootVisitCount();
+                int nodeCount = graph.getNodeCount();
+                if (graphWriter != null) {
+                    // Before optimizing, which changes the graph
+                    graphWriter.write(graph);
+                }
 
+                statistics.startPhase("optimize");
+                long optimizeStart = System.nanoTime();
                 BuilderMethod method = classManager.getMethod(methodDescriptor);
-                Optimizer opt = new Optimizer(graph, method, vm, dexBuilder);
+                Optimizer opt = new Optimizer(graph, method, vm, dexBuilder, callTable);
                 boolean madeChanges = opt.simplify(bean.getMaxOptimizationPasses());
                 if (madeChanges) {
                     // Optimizer changed the implementation. Re-build graph based on changes.
                     vm.updateInstructionGraph(methodDescriptor);
+                    statistics.methodOptimized();
+                }
+                if (report != null) {
+                    report.add(new RunReport.MethodResult(methodDescriptor, madeChanges ? Status.SIMPLIFIED
+                                    : Status.UNCHANGED, null, visitCount, nodeCount, executeNanos, System.nanoTime()
+                                    - optimizeStart, opt.getPassManager().getOptimizationCounts()));
+                }
+                if (journal != null) {
+                    if (madeChanges) {
+                        journal.methodSimplified(methodDescriptor, classManager.getClass(method.getDefiningClass()),
+                                        method);
+                    } else {
+                        journal.methodCompleted(methodDescriptor, Status.UNCHANGED);
+                    }
                 }
             }
         }
 
+        statistics.startPhase("write");
         File outFile = bean.getOutFile();
         System.out.println("Writing result to " + outFile);
+        FlightRecorderEvent event = WRITE_EVENT.begin();
         dexBuilder.writeTo(new FileDataStore(outFile));
+        if (event.isEnabled()) {
+            event.commit(outFile.getPath(), classManager.getNonFrameworkClassNames().size());
+        }
+        statistics.finish();
+
+        if (report != null) {
+            report.finish(reportWriter, statistics, classManager.getLoadedClassNames().size());
+            reportWriter.close();
+            System.out.println("Wrote report to " + bean.getReportFile());
+        }
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        if (graphReader != null) {
+            graphReader.close();
+        }
+        if (graphWriter != null) {
+            graphWriter.close();
+            System.out.println("Wrote graphs to " + bean.getSaveGraphsFile());
+        }
+
+        if (traceWriter != null) {
+            vm.setTraceWriter(null);
+            traceWriter.close();
+            System.out.println("Wrote trace to " + bean.getTraceFile());
+        }
+
+        if (profiler != null) {
+            System.out.print(profiler.getReport(bean.getProfileTopCount()));
+            profiler.writeJson(bean.getProfileFile());
+            System.out.println("Wrote profile to " + bean.getProfileFile());
+        }
+
+        return statistics;
+    }
+
+    private static ConstantCallTable buildConstantCallTable(final OptionBean bean, SmaliClassManager classManager,
+                    List<String> methodDescriptors) throws InterruptedException {
+        ConstantCallTable callTable = new ConstantCallTable(classManager);
+        callTable.scan(methodDescriptors);
+        System.out.println("Evaluating " + callTable.getInvocations().size() + " unique calls with constant arguments");
+
+        // Each thread needs its own class manager and vm
+        ThreadLocal<VirtualMachine> vms = new ThreadLocal<VirtualMachine>() {
+            @Override
+            protected VirtualMachine initialValue() {
+                DexBuilder dexBuilder = DexBuilder.makeDexBuilder(bean.getOutputAPILevel());
+                SmaliClassManager classManager;
+                try {
+                    classManager = new SmaliClassManager(bean.getInFile(), dexBuilder);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Unable to load " + bean.getInFile(), e);
+                }
+
+                return new VirtualMachine(classManager, bean.getMaxAddressVisits(), bean.getMaxCallDepth(),
+                                bean.getMaxMethodVisits());
+            }
+        };
+        callTable.evaluate(vms, bean.getPrepassThreads());
+
+        return callTable;
+    }
+
+    private static ExecutionGraph loadGraph(ExecutionGraphReader graphReader, VirtualMachine vm,
+                    String methodDescriptor) {
+        try {
+            return graphReader.read(vm, methodDescriptor);
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to load saved graph for " + methodDescriptor + ", executing instead: "
+                                + e.getMessage());
+            }
+
+            return null;
+        }
     }
 
     private static void filterMethods(Collection<String> methodDescriptors, Pattern positive, Pattern negative) {
@@ -81,6 +300,10 @@ public class Main {
             ch.qos.logback.classic.Logger rootLogger = (ch.qos.logback.classic.Logger) LoggerFactory
                             .getLogger(ch.qos.logback.classic.Logger.ROOT_LOGGER_NAME);
             rootLogger.setLevel(Level.OFF);
+            // Nothing will be logged, so let the JIT drop hot path tracing. Only works before the VM is loaded.
+            if (System.getProperty(Tracing.PROPERTY) == null) {
+                System.setProperty(Tracing.PROPERTY, "false");
+            }
             return;
         }
 
@@ -2,27 +2,38 @@ package org.cf.simplify;
 
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import org.cf.smalivm.VirtualMachine;
-import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExecutionGraphReader;
 import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.opcode.InvokeOp;
+import org.cf.smalivm.opcode.NewInstanceOp;
 import org.cf.smalivm.opcode.Op;
 import org.cf.smalivm.opcode.OpFactory;
-import org.cf.util.Utils;
+import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.BuilderInstruction;
 import org.jf.dexlib2.builder.BuilderTryBlock;
 import org.jf.dexlib2.builder.Label;
 import org.jf.dexlib2.builder.MethodLocation;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
@@ -45,12 +56,14 @@ public class MethodBackedGraph extends ExecutionGraph {
     }
 
     private final TIntObjectMap<BuilderInstruction> addressToInstruction;
+    private final List<TIntSet> changeTrackers;
     private final DexBuilder dexBuilder;
     private final MutableMethodImplementation implementation;
     private final BuilderMethod method;
     private final String methodDescriptor;
     private final OpFactory opFactory;
     private final VirtualMachine vm;
+    private boolean isStale;
 
     public MethodBackedGraph(ExecutionGraph graph, BuilderMethod method, VirtualMachine vm, DexBuilder dexBuilder) {
         super(graph, true);
@@ -62,6 +75,32 @@ public class MethodBackedGraph extends ExecutionGraph {
         addressToInstruction = buildAddressToInstruction(implementation.getInstructions());
         this.vm = vm;
         opFactory = new OpFactory(vm, methodDescriptor);
+        changeTrackers = new ArrayList<TIntSet>();
+    }
+
+    /**
+     * Wrap a graph saved by an earlier run, e.g. to optimize again without executing.
+     *
+     * @param reader
+     * @param methodDescriptor
+     * @param vm
+     * @param dexBuilder
+     * @throws IOException
+     *             if there's no saved graph for the method or it can't be loaded
+     */
+    public MethodBackedGraph(ExecutionGraphReader reader, String methodDescriptor, VirtualMachine vm,
+                    DexBuilder dexBuilder) throws IOException {
+        this(load(reader, vm, methodDescriptor), vm.getClassManager().getMethod(methodDescriptor), vm, dexBuilder);
+    }
+
+    private static ExecutionGraph load(ExecutionGraphReader reader, VirtualMachine vm, String methodDescriptor)
+                    throws IOException {
+        ExecutionGraph graph = reader.read(vm, methodDescriptor);
+        if (graph == null) {
+            throw new IOException("No saved graph for " + methodDescriptor);
+        }
+
+        return graph;
     }
 
     public TIntObjectMap<BuilderInstruction> getAddressToInstruction() {
@@ -85,41 +124,360 @@ public class MethodBackedGraph extends ExecutionGraph {
     }
 
     public void removeInstructions(TIntList addresses) {
-        /*
-         * Implementation removes by index, not address. Collect indexes and update addressToInstruction map. Also,
-         * while looping, remove orphaned debug items, or you're gonna have a bad time.
-         */
-        TIntList indexes = new TIntArrayList();
-        addresses.sort();
-        addresses.reverse();
+        InstructionEdits edits = new InstructionEdits();
+        for (int address : addresses.toArray()) {
+            edits.remove(address);
+        }
+        applyEdits(edits);
+    }
+
+    public void replaceInstruction(int address, BuilderInstruction replacement) {
+        applyEdits(new InstructionEdits().replace(address, replacement));
+    }
+
+    public void insertInstruction(int address, BuilderInstruction instruction) {
+        applyEdits(new InstructionEdits().insert(address, instruction));
+    }
+
+    /**
+     * @return true if an edit couldn't be executed again, e.g. it hit a visit limit, so the graph is missing nodes and
+     *         can't be used for any more optimizations
+     */
+    public boolean isStale() {
+        return isStale;
+    }
+
+    /**
+     * Apply a batch of edits to the method and graph. Addresses are rebuilt once using a running shift over the original
+     * addresses. Then only the parts of the graph downstream of the edits are executed again: each execution node which
+     * could have been affected is discarded along with its descendants and re-executed from its parent's context.
+     * Everything upstream keeps its existing contexts. If re-executing fails, the graph is marked stale and later edits
+     * are ignored.
+     *
+     * @param edits
+     */
+    public void applyEdits(InstructionEdits edits) {
+        if (edits.isEmpty()) {
+            return;
+        }
+        if (isStale) {
+            if (log.isWarnEnabled()) {
+                log.warn("Ignoring edits to " + methodDescriptor + ", graph is stale");
+            }
+            return;
+        }
+
+        TIntSet removals = edits.getRemovals();
+        TIntObjectMap<BuilderInstruction> replacements = edits.getReplacements();
+        TIntObjectMap<List<BuilderInstruction>> insertions = edits.getInsertions();
         if (log.isInfoEnabled()) {
-            log.info("Remove addresses: " + addresses);
+            log.info("Edit addresses: removed=" + removals + ", replaced=" + replacements.keySet() + ", inserted="
+                            + insertions.keySet());
         }
-        for (int address : addresses.toArray()) {
-            BuilderInstruction instruction = addressToInstruction.get(address);
-            MethodLocation location = instruction.getLocation();
-            location.getDebugItems().clear();
-            if (log.isDebugEnabled()) {
-                log.debug("@" + address + " is index " + location.getIndex());
+
+        int[] oldAddresses = addressToInstruction.keys();
+        Arrays.sort(oldAddresses);
+        TIntIntMap oldToNewAddress = new TIntIntHashMap(oldAddresses.length);
+        TIntIntMap oldToInsertAddress = new TIntIntHashMap(insertions.size());
+        boolean isShifted = buildShiftedAddresses(oldAddresses, edits, oldToNewAddress, oldToInsertAddress);
+        Set<ExecutionNode> staleNodes = getStaleNodes(edits);
+
+        // Update the implementation from the end so earlier indexes stay valid
+        for (int i = oldAddresses.length - 1; i >= 0; i--) {
+            int address = oldAddresses[i];
+            BuilderInstruction original = addressToInstruction.get(address);
+            MethodLocation location = original.getLocation();
+            int index = location.getIndex();
+            if (removals.contains(address)) {
+                if (log.isDebugEnabled()) {
+                    log.debug("@" + address + " is index " + index);
+                }
+                // Remove orphaned debug items, or you're gonna have a bad time.
+                location.getDebugItems().clear();
+                tryMigrateLabels(index);
+                implementation.removeInstruction(index);
+            } else if (replacements.containsKey(address)) {
+                implementation.replaceInstruction(index, replacements.get(address));
             }
-            indexes.add(location.getIndex());
 
-            // Shifting down also removes this address key
-            int shift = -instruction.getCodeUnits();
-            Utils.shiftIntegerMapKeys(address, shift, addressToInstruction);
-            removeNodePile(address, shift);
+            List<BuilderInstruction> inserted = insertions.get(address);
+            if (inserted != null) {
+                for (int j = inserted.size() - 1; j >= 0; j--) {
+                    // addInstruction(int, instruction) will insert with reindex, but doesn't give the instruction a
+                    // location. Replacing a placeholder does.
+                    implementation.addInstruction(index, new BuilderInstruction10x(Opcode.NOP));
+                    implementation.replaceInstruction(index, inserted.get(j));
+                }
+            }
         }
 
-        // Go in reverse order because implementation reorders on removal
-        indexes.sort();
-        indexes.reverse();
-        for (int index : indexes.toArray()) {
-            tryMigrateLabels(index);
+        rebuildAddressMaps(oldAddresses, edits, oldToNewAddress, oldToInsertAddress, isShifted);
+        if (removals.size() > 0) {
+            removeEmptyTryCatchBlocks();
+        }
+        rebuildMethodTables(vm, implementation);
 
-            implementation.removeInstruction(index);
+        TIntSet changedAddresses = reexecute(staleNodes);
+        for (int address : edits.getReplacements().keys()) {
+            changedAddresses.add(oldToNewAddress.get(address));
+        }
+        for (int address : oldToInsertAddress.keys()) {
+            int insertAddress = oldToInsertAddress.get(address);
+            for (BuilderInstruction instruction : edits.getInsertions().get(address)) {
+                changedAddresses.add(insertAddress);
+                insertAddress += instruction.getCodeUnits();
+            }
+        }
+        updateChangeTrackers(oldToNewAddress, changedAddresses);
+    }
+
+    /**
+     * Get a set which collects the addresses changed by every later edit: replaced and inserted instructions, and every
+     * address which was executed again. Addresses already in the set are kept up to date as instructions move, and
+     * dropped if they're removed. The caller is free to clear the set.
+     *
+     * @return live set of changed addresses
+     */
+    public TIntSet trackChanges() {
+        TIntSet changedAddresses = new TIntHashSet();
+        changeTrackers.add(changedAddresses);
+
+        return changedAddresses;
+    }
+
+    private void updateChangeTrackers(TIntIntMap oldToNewAddress, TIntSet changedAddresses) {
+        for (TIntSet tracker : changeTrackers) {
+            int[] oldAddresses = tracker.toArray();
+            tracker.clear();
+            for (int address : oldAddresses) {
+                if (oldToNewAddress.containsKey(address)) {
+                    tracker.add(oldToNewAddress.get(address));
+                }
+            }
+            tracker.addAll(changedAddresses);
+        }
+    }
+
+    /*
+     * Walk the original addresses in order keeping a running total of how far each one moves. Every edit only changes
+     * the addresses after it, so this is a prefix sum over code unit deltas.
+     */
+    private boolean buildShiftedAddresses(int[] oldAddresses, InstructionEdits edits, TIntIntMap oldToNewAddress,
+                    TIntIntMap oldToInsertAddress) {
+        int shift = 0;
+        boolean isShifted = false;
+        for (int address : oldAddresses) {
+            List<BuilderInstruction> inserted = edits.getInsertions().get(address);
+            if (inserted != null) {
+                oldToInsertAddress.put(address, address + shift);
+                for (BuilderInstruction instruction : inserted) {
+                    shift += instruction.getCodeUnits();
+                }
+            }
+
+            int codeUnits = addressToInstruction.get(address).getCodeUnits();
+            if (edits.getRemovals().contains(address)) {
+                shift -= codeUnits;
+            } else {
+                oldToNewAddress.put(address, address + shift);
+                BuilderInstruction replacement = edits.getReplacements().get(address);
+                if (replacement != null) {
+                    shift += replacement.getCodeUnits() - codeUnits;
+                }
+            }
+            isShifted |= shift != 0;
         }
 
-        removeEmptyTryCatchBlocks();
+        return isShifted;
+    }
+
+    /*
+     * Find the execution nodes which have to be executed again. Replaced nodes are re-executed themselves. Removed and
+     * inserted instructions change where their predecessors go next, so the nearest surviving ancestor is re-executed.
+     * Without one, the whole method is.
+     */
+    private Set<ExecutionNode> getStaleNodes(InstructionEdits edits) {
+        Set<ExecutionNode> staleNodes = new LinkedHashSet<ExecutionNode>();
+        boolean isRootStale = false;
+        for (int address : edits.getReplacements().keys()) {
+            staleNodes.addAll(getNodePile(address));
+        }
+
+        TIntSet predecessorAddresses = new TIntHashSet(edits.getRemovals());
+        predecessorAddresses.addAll(edits.getInsertions().keySet());
+        for (int address : predecessorAddresses.toArray()) {
+            for (ExecutionNode node : getNodePile(address)) {
+                ExecutionNode ancestor = node.getParent();
+                while ((ancestor != null) && edits.getRemovals().contains(ancestor.getAddress())) {
+                    ancestor = ancestor.getParent();
+                }
+                if (ancestor == null) {
+                    isRootStale = true;
+                } else {
+                    staleNodes.add(ancestor);
+                }
+            }
+        }
+
+        if (isRootStale) {
+            for (ExecutionNode node : getNodePile(METHOD_ROOT_ADDRESS)) {
+                if (node.getParent() == null) {
+                    staleNodes.add(node);
+                }
+            }
+        }
+
+        return staleNodes;
+    }
+
+    private void rebuildAddressMaps(int[] oldAddresses, InstructionEdits edits, TIntIntMap oldToNewAddress,
+                    TIntIntMap oldToInsertAddress, boolean isShifted) {
+        TIntObjectMap<BuilderInstruction> newAddressToInstruction = new TIntObjectHashMap<BuilderInstruction>(
+                        oldAddresses.length);
+        TIntObjectMap<List<ExecutionNode>> newAddressToNodePile = new TIntObjectHashMap<List<ExecutionNode>>(
+                        oldAddresses.length);
+        for (int address : oldAddresses) {
+            List<BuilderInstruction> inserted = edits.getInsertions().get(address);
+            if (inserted != null) {
+                int insertAddress = oldToInsertAddress.get(address);
+                for (BuilderInstruction instruction : inserted) {
+                    newAddressToInstruction.put(insertAddress, instruction);
+                    List<ExecutionNode> nodePile = new ArrayList<ExecutionNode>();
+                    nodePile.add(new ExecutionNode(opFactory.create(instruction, insertAddress)));
+                    newAddressToNodePile.put(insertAddress, nodePile);
+                    insertAddress += instruction.getCodeUnits();
+                }
+            }
+
+            if (!oldToNewAddress.containsKey(address)) {
+                // Removed
+                continue;
+            }
+
+            int newAddress = oldToNewAddress.get(address);
+            BuilderInstruction instruction = edits.getReplacements().get(address);
+            boolean isReplaced = instruction != null;
+            if (!isReplaced) {
+                instruction = addressToInstruction.get(address);
+            }
+            newAddressToInstruction.put(newAddress, instruction);
+            List<ExecutionNode> nodePile = addressToNodePile.get(address);
+            newAddressToNodePile.put(newAddress, nodePile);
+
+            Op oldOp = nodePile.get(TEMPLATE_NODE_INDEX).getOp();
+            if (isReplaced || (isShifted && isMoved(oldOp, oldToNewAddress, oldToInsertAddress))) {
+                // Ops know their address and branch targets
+                Op op = opFactory.create(instruction, newAddress);
+                if (!isReplaced) {
+                    // Node isn't necessarily executed again, so keep what was learned executing it
+                    copyExecutedState(oldOp, op);
+                }
+                for (ExecutionNode node : nodePile) {
+                    node.setOp(op);
+                }
+            }
+        }
+
+        addressToInstruction.clear();
+        addressToInstruction.putAll(newAddressToInstruction);
+        addressToNodePile.clear();
+        addressToNodePile.putAll(newAddressToNodePile);
+    }
+
+    private static void copyExecutedState(Op from, Op to) {
+        if ((from instanceof InvokeOp) && (to instanceof InvokeOp)) {
+            ((InvokeOp) to).setSideEffectLevel(from.sideEffectLevel());
+        } else if ((from instanceof NewInstanceOp) && (to instanceof NewInstanceOp)) {
+            ((NewInstanceOp) to).setSideEffectLevel(from.sideEffectLevel());
+        }
+    }
+
+    /*
+     * An op has to be rebuilt if its own address or any of its targets moved. Targets which had instructions inserted
+     * before them are assumed to have moved.
+     */
+    private static boolean isMoved(Op op, TIntIntMap oldToNewAddress, TIntIntMap oldToInsertAddress) {
+        int address = op.getAddress();
+        if (oldToNewAddress.get(address) != address) {
+            return true;
+        }
+        for (int child : op.getPossibleChildren()) {
+            if (!oldToNewAddress.containsKey(child) || (oldToNewAddress.get(child) != child)
+                            || oldToInsertAddress.containsKey(child)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private TIntSet reexecute(Set<ExecutionNode> staleNodes) {
+        // Nodes below another stale node are handled by re-executing that one
+        List<ExecutionNode> reexecuteNodes = new ArrayList<ExecutionNode>();
+        for (ExecutionNode node : staleNodes) {
+            ExecutionNode ancestor = node.getParent();
+            while ((ancestor != null) && !staleNodes.contains(ancestor)) {
+                ancestor = ancestor.getParent();
+            }
+            if (ancestor == null) {
+                reexecuteNodes.add(node);
+            }
+        }
+        TIntSet reexecutedAddresses = new TIntHashSet();
+        if (reexecuteNodes.isEmpty()) {
+            return reexecutedAddresses;
+        }
+
+        Set<ExecutionNode> discardedNodes = new HashSet<ExecutionNode>();
+        Deque<ExecutionNode> stack = new ArrayDeque<ExecutionNode>(reexecuteNodes);
+        ExecutionNode node;
+        while ((node = stack.poll()) != null) {
+            discardedNodes.add(node);
+            stack.addAll(node.getChildren());
+        }
+        for (int address : addressToNodePile.keys()) {
+            addressToNodePile.get(address).removeAll(discardedNodes);
+        }
+
+        List<ExecutionNode> startNodes = new ArrayList<ExecutionNode>(reexecuteNodes.size());
+        boolean hasNewRoot = false;
+        for (ExecutionNode staleNode : reexecuteNodes) {
+            ExecutionNode parent = staleNode.getParent();
+            ExecutionNode newNode;
+            if (parent == null) {
+                if (hasNewRoot) {
+                    continue;
+                }
+                newNode = new ExecutionNode(getTemplateNode(METHOD_ROOT_ADDRESS).getOp());
+                newNode.setContext(vm.getRootExecutionContext(methodDescriptor));
+                hasNewRoot = true;
+            } else {
+                parent.removeChild(staleNode);
+                newNode = parent.getChild(getTemplateNode(staleNode.getAddress()).getOp());
+            }
+            addNode(newNode);
+            startNodes.add(newNode);
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("Re-executing " + methodDescriptor + " from " + startNodes.size() + " nodes, discarded "
+                            + discardedNodes.size());
+        }
+        if (vm.resume(this, startNodes) == null) {
+            // Strategies would see a partial graph, e.g. dead removal would remove code only missing nodes reach
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to re-execute " + methodDescriptor + " after editing, graph is stale");
+            }
+            isStale = true;
+        }
+
+        stack.addAll(startNodes);
+        while ((node = stack.poll()) != null) {
+            reexecutedAddresses.add(node.getAddress());
+            stack.addAll(node.getChildren());
+        }
+
+        return reexecutedAddresses;
     }
 
     private void removeEmptyTryCatchBlocks() {
@@ -182,103 +540,6 @@ public class MethodBackedGraph extends ExecutionGraph {
         }
     }
 
-    public void replaceInstruction(int address, BuilderInstruction replacement) {
-        BuilderInstruction original = getInstruction(address);
-        int index = original.getLocation().getIndex();
-        implementation.replaceInstruction(index, replacement);
-        addressToInstruction.put(address, replacement);
-
-        int codeUnits = replacement.getCodeUnits();
-        int shift = codeUnits - original.getCodeUnits();
-        Utils.shiftIntegerMapKeys(address, shift, addressToInstruction);
-
-        Op op = opFactory.create(replacement, address);
-        replaceInstruction(address, shift, op, codeUnits);
-    }
-
-    public void insertInstruction(int address, BuilderInstruction instruction) {
-        BuilderInstruction original = addressToInstruction.get(address);
-        int index = original.getLocation().getIndex();
-
-        // addInstruction(int, instruction) will insert with reindex
-        implementation.addInstruction(index, instruction);
-        int shift = instruction.getCodeUnits();
-        Utils.shiftIntegerMapKeys(address - original.getCodeUnits(), shift, addressToInstruction);
-    }
-
-    private void removeNodePile(int address, int shift) {
-        List<ExecutionNode> nodePile = addressToNodePile.get(address);
-        for (ExecutionNode removedNode : nodePile) {
-            ExecutionNode parentNode = removedNode.getParent();
-            if (parentNode != null) {
-                parentNode.removeChild(removedNode);
-            }
-            for (ExecutionNode childNode : removedNode.getChildren()) {
-                // parentNode could be null, and that's ok
-                childNode.setParent(parentNode);
-            }
-        }
-
-        // addressToNodePile.remove(address);
-        // Ops in node pile still have old addresses
-        Utils.shiftIntegerMapKeys(address, shift, addressToNodePile);
-    }
-
-    /*
-     * Need to be able to update a graph to pass around between optimization strategies. This does a shallow update, not
-     * touching any handlers or individual nodes. It just updates addressToNodePile by shifting addresses up or down,
-     * depending on delta between old and new instruction. It also executes the new instruction to build a realistic
-     * context to help optimizer, i.e. assigned registers, etc.
-     */
-    protected void replaceInstruction(int address, int addressShift, Op op, int codeUnits) {
-        List<ExecutionNode> nodePile = addressToNodePile.get(address);
-        Map<ExecutionNode, ExecutionNode> replacedToNew = new HashMap<ExecutionNode, ExecutionNode>();
-        for (int index = 0; index < nodePile.size(); index++) {
-            ExecutionNode replacedNode = nodePile.get(index);
-            ExecutionNode newNode = new ExecutionNode(op);
-            nodePile.set(index, newNode);
-
-            if (TEMPLATE_NODE_INDEX == index) {
-                assert replacedNode.getContext() == null;
-                assert replacedNode.getParent() == null;
-                assert replacedNode.getChildren().size() == 0;
-
-                continue;
-            }
-
-            for (ExecutionNode child : replacedNode.getChildren()) {
-                child.setParent(newNode);
-            }
-
-            ExecutionNode parentNode = replacedNode.getParent();
-            ExecutionContext newContext;
-            if (parentNode != null) {
-                parentNode.replaceChild(replacedNode, newNode);
-                newContext = parentNode.getContext().getChild();
-            } else {
-                assert METHOD_ROOT_ADDRESS == address;
-                newContext = vm.getRootExecutionContext(methodDescriptor);
-            }
-            newNode.setContext(newContext);
-            newNode.execute();
-
-            replacedToNew.put(replacedNode, newNode);
-        }
-
-        // Update any children's parents to the new nodes we made.
-        Utils.shiftIntegerMapKeys(address, addressShift, addressToNodePile);
-        int childAddress = address + codeUnits;
-        nodePile = getNodePile(childAddress);
-        if (nodePile != null) {
-            for (ExecutionNode node : nodePile) {
-                ExecutionNode parent = node.getParent();
-                if (replacedToNew.containsKey(parent)) {
-                    node.setParent(replacedToNew.get(parent));
-                }
-            }
-        }
-    }
-
     TIntList getReachedAddresses() {
         TIntList result = new TIntArrayList();
         for (int address : addressToInstruction.keys()) {
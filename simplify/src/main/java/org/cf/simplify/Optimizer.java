@@ -1,13 +1,9 @@
 package org.cf.simplify;
 
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 import org.cf.simplify.strategy.ConstantPropigationStrategy;
 import org.cf.simplify.strategy.DeadRemovalStrategy;
-import org.cf.simplify.strategy.OptimizationStrategy;
 import org.cf.simplify.strategy.PeepholeStrategy;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionGraph;
@@ -19,56 +15,54 @@ import org.slf4j.LoggerFactory;
 
 public class Optimizer {
 
-    @SuppressWarnings("unused")
     private static final Logger log = LoggerFactory.getLogger(Optimizer.class.getSimpleName());
 
-    private final List<OptimizationStrategy> allStrategies;
     private final MethodBackedGraph mbgraph;
     private final String methodDescriptor;
-    private final List<OptimizationStrategy> performOnceStrategies;
-    private final List<OptimizationStrategy> performRepeatedlyStrategies;
+    private final PassManager passManager;
 
     public Optimizer(ExecutionGraph graph, BuilderMethod method, VirtualMachine vm, DexBuilder dexBuilder) {
+        this(graph, method, vm, dexBuilder, null);
+    }
+
+    /**
+     * @param graph
+     * @param method
+     * @param vm
+     * @param dexBuilder
+     * @param callTable
+     *            results of calls with constant arguments, or null
+     */
+    public Optimizer(ExecutionGraph graph, BuilderMethod method, VirtualMachine vm, DexBuilder dexBuilder,
+                    ConstantCallTable callTable) {
         methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
         mbgraph = new MethodBackedGraph(graph, method, vm, dexBuilder);
-        performOnceStrategies = new LinkedList<OptimizationStrategy>();
-        performOnceStrategies.add(new ConstantPropigationStrategy(mbgraph));
-        performOnceStrategies.add(new PeepholeStrategy(mbgraph));
 
-        performRepeatedlyStrategies = new LinkedList<OptimizationStrategy>();
-        performRepeatedlyStrategies.add(new DeadRemovalStrategy(mbgraph));
+        // Edits re-execute only what they affect, so every strategy can run until nothing changes.
+        // Peepholes go first: constant propagation would otherwise fold the move-results they match on, leaving the
+        // invokes behind for dead removal instead of replacing both in one edit.
+        passManager = new PassManager(mbgraph);
+        passManager.register(new PeepholeStrategy(mbgraph));
+        passManager.register(new ConstantPropigationStrategy(mbgraph, callTable));
+        passManager.register(new DeadRemovalStrategy(mbgraph));
+    }
 
-        allStrategies = new ArrayList<OptimizationStrategy>();
-        allStrategies.addAll(performOnceStrategies);
-        allStrategies.addAll(performRepeatedlyStrategies);
+    public PassManager getPassManager() {
+        return passManager;
     }
 
     public boolean simplify(int maxSweeps) {
         System.out.println("Simplifying: " + methodDescriptor);
 
-        for (OptimizationStrategy strategy : performOnceStrategies) {
-            strategy.perform();
-        }
-
-        int sweep = 0;
-        boolean madeChanges;
-        do {
-            madeChanges = false;
-            for (OptimizationStrategy strategy : performRepeatedlyStrategies) {
-                madeChanges |= strategy.perform();
-            }
-            sweep++;
-        } while ((sweep < maxSweeps) && madeChanges);
+        passManager.run(maxSweeps);
 
         StringBuilder sb = new StringBuilder("Optimizations: ");
         int totalCount = 0;
-        for (OptimizationStrategy strategy : allStrategies) {
-            Map<String, Integer> optimizations = strategy.getOptimizationCounts();
-            for (String key : optimizations.keySet()) {
-                int count = optimizations.get(key);
-                totalCount += count;
-                sb.append(key).append("=").append(count).append(", ");
-            }
+        Map<String, Integer> optimizations = passManager.getOptimizationCounts();
+        for (String key : optimizations.keySet()) {
+            int count = optimizations.get(key);
+            totalCount += count;
+            sb.append(key).append("=").append(count).append(", ");
         }
         if (sb.length() > "Optimizations: ".length()) {
             sb.setLength(sb.length() - 2);
@@ -76,6 +70,12 @@ public class Optimizer {
 
         System.out.println(sb.toString());
 
+        if (log.isInfoEnabled()) {
+            for (Map.Entry<String, PassManager.PassStatistics> entry : passManager.getStatistics().entrySet()) {
+                log.info(entry.getKey() + ": " + entry.getValue());
+            }
+        }
+
         return totalCount > 0;
     }
 
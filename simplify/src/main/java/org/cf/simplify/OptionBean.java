@@ -34,6 +34,36 @@ public class OptionBean implements Serializable {
     @Option(name = "--max-passes", usage = "Limit optimization passes.")
     private int maxOptimizationPasses = 100;
 
+    @Option(name = "--prepass-threads", usage = "Threads for evaluating calls with constant arguments before optimizing, e.g. string decryption. 0 disables.")
+    private int prepassThreads = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--profile", metaVar = "json", handler = FileOptionHandler.class, usage = "Profile execution, print the slowest methods and ops and write all timings to a JSON file.")
+    private File profileFile;
+
+    @Option(name = "--profile-top", usage = "Number of methods and ops to print when profiling.")
+    private int profileTopCount = 20;
+
+    @Option(name = "--report", metaVar = "json", handler = FileOptionHandler.class, usage = "Write what happened to each method and run totals as JSON.")
+    private File reportFile;
+
+    @Option(name = "--report-lines", usage = "Stream the report as JSON lines, one per method as it finishes, then one of totals.")
+    private boolean reportLines;
+
+    @Option(name = "--save-graphs", metaVar = "file", handler = FileOptionHandler.class, usage = "Save each method's execution graph, before optimizing, so it can be loaded with --load-graphs.")
+    private File saveGraphsFile;
+
+    @Option(name = "--load-graphs", metaVar = "file", handler = FileOptionHandler.class, usage = "Optimize graphs saved with --save-graphs instead of executing methods again. Methods without a saved graph are executed.")
+    private File loadGraphsFile;
+
+    @Option(name = "--trace", metaVar = "file", handler = FileOptionHandler.class, usage = "Record every node visit to a binary trace which can be replayed with TraceReplay.")
+    private File traceFile;
+
+    @Option(name = "--checkpoint", metaVar = "file", handler = FileOptionHandler.class, usage = "Record each finished method, and its new implementation if simplified, so an interrupted run can be resumed.")
+    private File checkpointFile;
+
+    @Option(name = "--resume", depends = { "--checkpoint" }, usage = "Skip methods already finished in the checkpoint and restore their implementations.")
+    private boolean resume;
+
     @Option(name = "-o", aliases = { "--output" }, metaVar = "output", handler = FileOptionHandler.class, usage = "Output DEX file, default is <infile>_simple.dex")
     private File outFile;
 
@@ -82,6 +112,46 @@ public class OptionBean implements Serializable {
         return includeFilter;
     }
 
+    public int getPrepassThreads() {
+        return prepassThreads;
+    }
+
+    public File getProfileFile() {
+        return profileFile;
+    }
+
+    public int getProfileTopCount() {
+        return profileTopCount;
+    }
+
+    public File getReportFile() {
+        return reportFile;
+    }
+
+    public boolean isReportLines() {
+        return reportLines;
+    }
+
+    public File getLoadGraphsFile() {
+        return loadGraphsFile;
+    }
+
+    public File getSaveGraphsFile() {
+        return saveGraphsFile;
+    }
+
+    public File getTraceFile() {
+        return traceFile;
+    }
+
+    public File getCheckpointFile() {
+        return checkpointFile;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
     public File getOutFile() {
         return outFile;
     }
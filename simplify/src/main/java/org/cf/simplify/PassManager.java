@@ -0,0 +1,182 @@
+package org.cf.simplify;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.simplify.strategy.OptimizationStrategy;
+import org.cf.util.FlightRecorderEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs optimization strategies over a method until none of them make any more changes. Each strategy has a worklist of
+ * the addresses changed since it last ran, and a strategy which made no changes is skipped until something changes
+ * again. Time spent in and changes made by each strategy are recorded.
+ *
+ * @author cfenton
+ *
+ */
+public class PassManager {
+
+    private static final Logger log = LoggerFactory.getLogger(PassManager.class.getSimpleName());
+
+    private static final FlightRecorderEvent.Type PASS_EVENT = FlightRecorderEvent.define(
+                    "org.cf.simplify.OptimizationPass", "Optimization Pass", new String[] {
+                                    "method", "strategy", "worklistSize", "changed" }, new Class<?>[] {
+                                    String.class, String.class, int.class, boolean.class });
+
+    public static class PassStatistics {
+
+        private int runCount;
+        private int skipCount;
+        private int changeCount;
+        private long nanoseconds;
+
+        public int getChangeCount() {
+            return changeCount;
+        }
+
+        public long getMilliseconds() {
+            return nanoseconds / 1000000;
+        }
+
+        public long getNanoseconds() {
+            return nanoseconds;
+        }
+
+        public int getRunCount() {
+            return runCount;
+        }
+
+        public int getSkipCount() {
+            return skipCount;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(getMilliseconds()).append("ms, runs=").append(runCount).append(", skips=").append(skipCount);
+            sb.append(", changes=").append(changeCount);
+
+            return sb.toString();
+        }
+
+    }
+
+    private static class Pass {
+
+        private final OptimizationStrategy strategy;
+        private final TIntSet changedAddresses;
+        private final PassStatistics statistics;
+        private boolean isConverged;
+
+        private Pass(OptimizationStrategy strategy, TIntSet changedAddresses) {
+            this.strategy = strategy;
+            this.changedAddresses = changedAddresses;
+            statistics = new PassStatistics();
+            isConverged = false;
+        }
+
+    }
+
+    private final MethodBackedGraph mbgraph;
+    private final List<Pass> passes;
+
+    public PassManager(MethodBackedGraph mbgraph) {
+        this.mbgraph = mbgraph;
+        passes = new ArrayList<Pass>();
+    }
+
+    /**
+     * Add a strategy. Strategies run in the order they're registered.
+     *
+     * @param strategy
+     */
+    public void register(OptimizationStrategy strategy) {
+        TIntSet changedAddresses = mbgraph.trackChanges();
+        // Nothing has been looked at yet
+        changedAddresses.addAll(mbgraph.getAddresses());
+        passes.add(new Pass(strategy, changedAddresses));
+    }
+
+    /**
+     * Run every strategy, in sweeps, until none make changes or the sweep limit is reached.
+     *
+     * @param maxSweeps
+     * @return true if any changes were made
+     */
+    public boolean run(int maxSweeps) {
+        boolean madeAnyChanges = false;
+        int sweep = 0;
+        boolean madeChanges;
+        do {
+            madeChanges = false;
+            for (Pass pass : passes) {
+                if (mbgraph.isStale()) {
+                    // Can't trust the graph after a failed edit
+                    return madeAnyChanges | madeChanges;
+                }
+                if (pass.isConverged && pass.changedAddresses.isEmpty()) {
+                    pass.statistics.skipCount++;
+                    continue;
+                }
+
+                TIntSet worklist = new TIntHashSet(pass.changedAddresses);
+                pass.changedAddresses.clear();
+                int worklistSize = worklist.size();
+                FlightRecorderEvent event = PASS_EVENT.begin();
+                long start = System.nanoTime();
+                boolean changed = pass.strategy.perform(worklist);
+                pass.statistics.nanoseconds += System.nanoTime() - start;
+                if (event.isEnabled()) {
+                    event.commit(mbgraph.getMethodDescriptor(), pass.strategy.getClass().getSimpleName(),
+                                    worklistSize, changed);
+                }
+                pass.statistics.runCount++;
+                if (changed) {
+                    pass.statistics.changeCount++;
+                }
+                pass.isConverged = !changed;
+                madeChanges |= changed;
+            }
+            madeAnyChanges |= madeChanges;
+            sweep++;
+        } while ((sweep < maxSweeps) && madeChanges);
+
+        if (log.isDebugEnabled()) {
+            log.debug("Finished after " + sweep + " sweeps: " + getStatistics());
+        }
+
+        return madeAnyChanges;
+    }
+
+    /**
+     * @return optimization counts of every strategy, combined
+     */
+    public Map<String, Integer> getOptimizationCounts() {
+        Map<String, Integer> result = new LinkedHashMap<String, Integer>();
+        for (Pass pass : passes) {
+            result.putAll(pass.strategy.getOptimizationCounts());
+        }
+
+        return result;
+    }
+
+    /**
+     * @return statistics for each strategy, by strategy class name
+     */
+    public Map<String, PassStatistics> getStatistics() {
+        Map<String, PassStatistics> result = new LinkedHashMap<String, PassStatistics>();
+        for (Pass pass : passes) {
+            result.put(pass.strategy.getClass().getSimpleName(), pass.statistics);
+        }
+
+        return result;
+    }
+
+}
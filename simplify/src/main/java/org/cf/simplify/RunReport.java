@@ -0,0 +1,180 @@
+package org.cf.simplify;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.cf.util.Utils;
+
+/**
+ * Machine readable account of a run: what happened to each method and totals for the whole run. The report is either
+ * written as one JSON object at the end, or streamed as JSON lines with one line per method, as each finishes, followed
+ * by a line of totals.
+ *
+ * @author cfenton
+ *
+ */
+public class RunReport {
+
+    public static enum Status {
+        SIMPLIFIED, UNCHANGED, SKIPPED, FAILED
+    }
+
+    public static class MethodResult {
+
+        private final String methodDescriptor;
+        private final Status status;
+        private final String reason;
+        private final int visitCount;
+        private final int nodeCount;
+        private final long executeNanos;
+        private final long optimizeNanos;
+        private final Map<String, Integer> optimizationCounts;
+
+        public MethodResult(String methodDescriptor, Status status, String reason, int visitCount, int nodeCount,
+                        long executeNanos, long optimizeNanos, Map<String, Integer> optimizationCounts) {
+            this.methodDescriptor = methodDescriptor;
+            this.status = status;
+            this.reason = reason;
+            this.visitCount = visitCount;
+            this.nodeCount = nodeCount;
+            this.executeNanos = executeNanos;
+            this.optimizeNanos = optimizeNanos;
+            this.optimizationCounts = optimizationCounts;
+        }
+
+        public String getMethodDescriptor() {
+            return methodDescriptor;
+        }
+
+        public Map<String, Integer> getOptimizationCounts() {
+            return optimizationCounts;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public String toJson() {
+            StringBuilder sb = new StringBuilder("{");
+            sb.append("\"method\":").append(Utils.jsonString(methodDescriptor));
+            sb.append(",\"status\":\"").append(status.name().toLowerCase(Locale.ROOT)).append('"');
+            if (reason != null) {
+                sb.append(",\"reason\":").append(Utils.jsonString(reason));
+            }
+            sb.append(",\"visits\":").append(visitCount);
+            sb.append(",\"nodes\":").append(nodeCount);
+            sb.append(",\"executeMs\":").append(toMs(executeNanos));
+            sb.append(",\"optimizeMs\":").append(toMs(optimizeNanos));
+            sb.append(",\"optimizations\":");
+            appendCounts(sb, optimizationCounts);
+            sb.append('}');
+
+            return sb.toString();
+        }
+
+    }
+
+    private static <T extends Number> void appendCounts(StringBuilder sb, Map<String, T> counts) {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, T> entry : counts.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(Utils.jsonString(entry.getKey())).append(':').append(entry.getValue());
+        }
+        sb.append('}');
+    }
+
+    private static String toMs(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    private final List<MethodResult> results;
+    private final Writer lineWriter;
+
+    /**
+     * @param lineWriter
+     *            writer to stream JSON lines to as methods finish, or null to keep results for {@link #toJson}
+     */
+    public RunReport(Writer lineWriter) {
+        this.lineWriter = lineWriter;
+        results = new ArrayList<RunReport.MethodResult>();
+    }
+
+    public void add(MethodResult result) throws IOException {
+        if (lineWriter == null) {
+            results.add(result);
+            return;
+        }
+
+        lineWriter.write(result.toJson());
+        lineWriter.write('\n');
+        lineWriter.flush();
+    }
+
+    /**
+     * Write the totals. If streaming, this is the last line, otherwise it's the whole report.
+     *
+     * @param writer
+     * @param statistics
+     * @param classCount
+     *            classes loaded during the run, including framework classes
+     * @throws IOException
+     */
+    public void finish(Writer writer, RunStatistics statistics, int classCount) throws IOException {
+        writer.write(toJson(statistics, classCount));
+        writer.write('\n');
+        writer.flush();
+    }
+
+    public List<MethodResult> getResults() {
+        return Collections.unmodifiableList(results);
+    }
+
+    public String toJson(RunStatistics statistics, int classCount) {
+        long totalMs = statistics.getTotalMilliseconds();
+        double methodsPerSecond = totalMs == 0 ? 0 : (statistics.getExecutedCount() * 1000.0) / totalMs;
+        Map<String, Long> phaseMs = statistics.getPhaseMilliseconds();
+        Long parseMs = phaseMs.get("load");
+
+        StringBuilder sb = new StringBuilder("{\"totals\":{");
+        sb.append("\"classesLoaded\":").append(classCount);
+        sb.append(",\"parseMs\":").append(parseMs == null ? 0 : parseMs);
+        sb.append(",\"totalMs\":").append(totalMs);
+        sb.append(",\"peakHeapBytes\":").append(statistics.getPeakHeapBytes());
+        sb.append(",\"methodsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", methodsPerSecond));
+        sb.append(",\"executed\":").append(statistics.getExecutedCount());
+        sb.append(",\"skipped\":").append(statistics.getSkippedCount());
+        sb.append(",\"failed\":").append(statistics.getFailedCount());
+        sb.append(",\"optimized\":").append(statistics.getOptimizedCount());
+        sb.append(",\"resumed\":").append(statistics.getResumedCount());
+        sb.append(",\"phasesMs\":");
+        appendCounts(sb, phaseMs);
+        sb.append('}');
+        if (lineWriter == null) {
+            sb.append(",\"methods\":[");
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append(results.get(i).toJson());
+            }
+            sb.append(']');
+        }
+        sb.append('}');
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,133 @@
+package org.cf.simplify;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Time spent in each phase of a run, counts of methods handled, and peak heap use. Phases can be entered any number of
+ * times, e.g. execution and optimization alternate for each method, and their times add up. Heap use is sampled from
+ * when the first phase starts until {@link #finish()}.
+ *
+ * @author cfenton
+ *
+ */
+public class RunStatistics {
+
+    private final Map<String, Long> phaseToNanoseconds;
+    private final HeapSampler heapSampler;
+    private String currentPhase;
+    private long phaseStart;
+    private int executedCount;
+    private int skippedCount;
+    private int failedCount;
+    private int optimizedCount;
+    private int resumedCount;
+
+    public RunStatistics() {
+        phaseToNanoseconds = new LinkedHashMap<String, Long>();
+        heapSampler = new HeapSampler();
+    }
+
+    /**
+     * Stop timing the current phase and stop sampling heap use.
+     */
+    public void finish() {
+        stopPhase();
+        heapSampler.stop();
+    }
+
+    /**
+     * Stop timing the current phase, if any, and start timing another.
+     *
+     * @param phase
+     */
+    public void startPhase(String phase) {
+        stopPhase();
+        heapSampler.start();
+        currentPhase = phase;
+        phaseStart = System.nanoTime();
+    }
+
+    public void stopPhase() {
+        if (currentPhase == null) {
+            return;
+        }
+
+        long elapsed = System.nanoTime() - phaseStart;
+        Long total = phaseToNanoseconds.get(currentPhase);
+        phaseToNanoseconds.put(currentPhase, total == null ? elapsed : total + elapsed);
+        currentPhase = null;
+    }
+
+    public void methodExecuted() {
+        executedCount++;
+    }
+
+    public void methodFailed() {
+        failedCount++;
+    }
+
+    public void methodOptimized() {
+        optimizedCount++;
+    }
+
+    public void methodResumed() {
+        resumedCount++;
+    }
+
+    public void methodSkipped() {
+        skippedCount++;
+    }
+
+    public int getExecutedCount() {
+        return executedCount;
+    }
+
+    public int getFailedCount() {
+        return failedCount;
+    }
+
+    public int getOptimizedCount() {
+        return optimizedCount;
+    }
+
+    /**
+     * @return most heap used at once while sampling, or 0 if no phase was ever started
+     */
+    public long getPeakHeapBytes() {
+        return heapSampler.getPeakBytes();
+    }
+
+    /**
+     * @return milliseconds spent in each phase, in the order phases were first started
+     */
+    public Map<String, Long> getPhaseMilliseconds() {
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : phaseToNanoseconds.entrySet()) {
+            result.put(entry.getKey(), entry.getValue() / 1000000);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return methods finished by an earlier, interrupted run
+     */
+    public int getResumedCount() {
+        return resumedCount;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    public long getTotalMilliseconds() {
+        long total = 0;
+        for (long nanoseconds : phaseToNanoseconds.values()) {
+            total += nanoseconds;
+        }
+
+        return total / 1000000;
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.cf.simplify;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.cf.smalivm.ExecutionTraceReader;
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.MethodState;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+
+/**
+ * Inspects a trace written with <code>--trace</code>. With just a trace, lists every method execution in it. Given a
+ * method, rebuilds the graph of one of its executions, without executing anything, and prints how many nodes were
+ * visited at each address and the return value, or the whole graph in DOT format.
+ *
+ * Usage: TraceReplay &lt;smali path&gt; &lt;trace&gt; [method [occurrence]] [--dot]
+ *
+ * The smali path must be the input which was traced.
+ *
+ * @author cfenton
+ *
+ */
+public class TraceReplay {
+
+    public static void main(String[] args) throws Exception {
+        boolean dot = Arrays.asList(args).contains("--dot");
+        if (dot) {
+            args = Arrays.copyOf(args, args.length - 1);
+        }
+        if (args.length < 2) {
+            System.out.println("Usage: TraceReplay <smali path> <trace> [method [occurrence]] [--dot]");
+            System.exit(-1);
+        }
+
+        ExecutionTraceReader reader = new ExecutionTraceReader(new File(args[1]));
+        if (args.length == 2) {
+            for (ExecutionTraceReader.Execution execution : reader.getExecutions()) {
+                System.out.println(execution);
+            }
+            return;
+        }
+
+        String methodDescriptor = args[2];
+        int occurrence = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        SmaliClassManager classManager = new SmaliClassManager(new File(args[0]), DexBuilder.makeDexBuilder());
+        VirtualMachine vm = new VirtualMachine(classManager);
+        ExecutionGraph graph = reader.replay(vm, methodDescriptor, occurrence);
+        if (graph == null) {
+            System.out.println("No execution #" + occurrence + " of " + methodDescriptor + " in " + args[1]);
+            System.exit(-1);
+        }
+
+        if (dot) {
+            System.out.println(graph.toGraph());
+            return;
+        }
+
+        System.out.println(methodDescriptor + " #" + occurrence + ", nodes=" + graph.getNodeCount());
+        int[] addresses = graph.getAddresses();
+        Arrays.sort(addresses);
+        for (int address : addresses) {
+            int visits = graph.getNodePile(address).size();
+            if (visits > 0) {
+                System.out.println("  @" + address + " " + graph.getOp(address) + " x" + visits);
+            }
+        }
+        if (!graph.getConnectedTerminatingAddresses().isEmpty()) {
+            System.out.println("Returns: " + graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister));
+        }
+    }
+
+}
@@ -1,14 +1,21 @@
 package org.cf.simplify.strategy;
 
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.cf.simplify.ConstantCallTable;
+import org.cf.simplify.InstructionEdits;
 import org.cf.simplify.MethodBackedGraph;
 import org.cf.smalivm.opcode.AGetOp;
 import org.cf.smalivm.opcode.BinaryMathOp;
+import org.cf.smalivm.opcode.InvokeOp;
 import org.cf.smalivm.opcode.MoveOp;
 import org.cf.smalivm.opcode.Op;
 import org.cf.smalivm.opcode.ReturnOp;
@@ -27,6 +34,9 @@ import org.jf.dexlib2.builder.instruction.BuilderInstruction21s;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction31i;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction51l;
 import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderStringReference;
 import org.jf.dexlib2.writer.builder.BuilderTypeReference;
 import org.jf.dexlib2.writer.builder.DexBuilder;
@@ -54,13 +64,14 @@ public class ConstantPropigationStrategy implements OptimizationStrategy {
         return ConstantizableTypes.contains(type);
     }
 
+    /**
+     * @param x
+     * @return bits needed to hold x as a signed literal
+     */
     private static int getBitSize(long x) {
-        int result = 1;
-        while ((result < 64) && (x >= (1L << result))) {
-            result++;
-        }
+        long magnitude = x < 0 ? ~x : x;
 
-        return result;
+        return (Long.SIZE - Long.numberOfLeadingZeros(magnitude)) + 1;
     }
 
     private static String getUnboxedType(String type) {
@@ -121,9 +132,9 @@ public class ConstantPropigationStrategy implements OptimizationStrategy {
     static BuilderInstruction buildConstant(int value, int register) {
         BuilderInstruction result;
         int bitSize = getBitSize(value);
-        if (bitSize < 4) {
+        if (bitSize <= 4) {
             result = new BuilderInstruction11n(Opcode.CONST_4, register, value);
-        } else if (bitSize < 16) {
+        } else if (bitSize <= 16) {
             result = new BuilderInstruction21s(Opcode.CONST_16, register, value);
         } else {
             result = new BuilderInstruction31i(Opcode.CONST, register, value);
@@ -135,9 +146,9 @@ public class ConstantPropigationStrategy implements OptimizationStrategy {
     static BuilderInstruction buildConstant(long value, int register) {
         BuilderInstruction result;
         int bitSize = getBitSize(value);
-        if (bitSize < 16) {
+        if (bitSize <= 16) {
             result = new BuilderInstruction21s(Opcode.CONST_WIDE_16, register, (int) value);
-        } else if (bitSize < 32) {
+        } else if (bitSize <= 32) {
             result = new BuilderInstruction31i(Opcode.CONST_WIDE_32, register, (int) value);
         } else {
             result = new BuilderInstruction51l(Opcode.CONST_WIDE, register, value);
@@ -182,9 +193,20 @@ public class ConstantPropigationStrategy implements OptimizationStrategy {
     private int constantCount;
 
     private final MethodBackedGraph mbgraph;
+    private final ConstantCallTable callTable;
 
     public ConstantPropigationStrategy(MethodBackedGraph mbgraph) {
+        this(mbgraph, null);
+    }
+
+    /**
+     * @param mbgraph
+     * @param callTable
+     *            results of calls with constant arguments, used to replace call sites, or null
+     */
+    public ConstantPropigationStrategy(MethodBackedGraph mbgraph, ConstantCallTable callTable) {
         this.mbgraph = mbgraph;
+        this.callTable = callTable;
         constantCount = 0;
     }
 
@@ -208,21 +230,134 @@ public class ConstantPropigationStrategy implements OptimizationStrategy {
 
     @Override
     public boolean perform() {
-        for (int address : mbgraph.getAddresses()) {
+        return perform(new TIntHashSet(mbgraph.getAddresses()));
+    }
+
+    @Override
+    public boolean perform(TIntSet addresses) {
+        // Addresses in a batch all refer to the unedited method, so constants of a different size are fine
+        InstructionEdits edits = new InstructionEdits();
+        TIntSet foldedAddresses = new TIntHashSet();
+        int madeCount = 0;
+        if (callTable != null) {
+            madeCount += foldCallResults(addresses, edits, foldedAddresses);
+        }
+        for (int address : addresses.toArray()) {
             BuilderInstruction original = mbgraph.getInstruction(address);
+            if ((original == null) || foldedAddresses.contains(address)) {
+                continue;
+            }
             if (canConstantizeAddress(address)) {
-                BuilderInstruction constInstruction = buildConstant(address);
                 if (original.getOpcode().name().startsWith("RETURN")) {
                     // TODO: insert const rather than replace return op
-                    log.warn("Return op constantizing not impelemented.");
-                } else {
-                    mbgraph.replaceInstruction(address, constInstruction);
+                    if (log.isDebugEnabled()) {
+                        log.debug("Return op constantizing not impelemented.");
+                    }
+                    continue;
                 }
-                constantCount++;
+                BuilderInstruction constInstruction = buildConstant(address);
+                edits.replace(address, constInstruction);
+                madeCount++;
             }
         }
+        mbgraph.applyEdits(edits);
+        constantCount += madeCount;
+
+        return madeCount > 0;
+    }
+
+    /**
+     * Replace calls which have results in the call table, and their move-results, with constants.
+     *
+     * @return number of calls replaced
+     */
+    private int foldCallResults(TIntSet addresses, InstructionEdits edits, TIntSet foldedAddresses) {
+        int madeCount = 0;
+        for (int address : addresses.toArray()) {
+            BuilderInstruction original = mbgraph.getInstruction(address);
+            if ((original == null) || foldedAddresses.contains(address)) {
+                continue;
+            }
+
+            int nextAddress = address + original.getCodeUnits();
+            BuilderInstruction nextInstruction = mbgraph.getInstruction(nextAddress);
+            if ((nextInstruction == null) || !nextInstruction.getOpcode().name.startsWith("move-result")) {
+                continue;
+            }
+
+            Object result = getCallResult(address);
+            if (result == null) {
+                continue;
+            }
+
+            int register = ((OneRegisterInstruction) nextInstruction).getRegisterA();
+            if (!isCallResultCurrent(address, nextAddress, register, result)) {
+                continue;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Replacing call @" + address + " with its result: " + result);
+            }
+            edits.replace(address, buildConstant(result, register, mbgraph.getDexBuilder()));
+            edits.remove(nextAddress);
+            foldedAddresses.add(address);
+            foldedAddresses.add(nextAddress);
+            madeCount++;
+        }
+
+        return madeCount;
+    }
+
+    private Object getCallResult(int address) {
+        if (!mbgraph.wasAddressReached(address)) {
+            return null;
+        }
+
+        Op op = mbgraph.getOp(address);
+        if (!(op instanceof InvokeOp) || !op.getName().startsWith("invoke-static")) {
+            return null;
+        }
+
+        ReferenceInstruction instruction = (ReferenceInstruction) mbgraph.getInstruction(address);
+        MethodReference methodReference = (MethodReference) instruction.getReference();
+        List<? extends CharSequence> parameterTypes = methodReference.getParameterTypes();
+        int[] parameterRegisters = ((InvokeOp) op).getParameterRegisters();
+        Object[] arguments = new Object[parameterRegisters.length];
+        for (int i = 0; i < arguments.length; i++) {
+            Object value = mbgraph.getRegisterConsensus(address, parameterRegisters[i]);
+            arguments[i] = ConstantCallTable.toArgument(value, parameterTypes.get(i).toString());
+            if (arguments[i] == null) {
+                return null;
+            }
+        }
+
+        Object result = callTable.getResult(ReferenceUtil.getMethodDescriptor(methodReference), arguments);
+        if ((result == null) || !canConstantizeType(getUnboxedType(TypeUtil.getValueType(result)))) {
+            return null;
+        }
+
+        return result;
+    }
+
+    /*
+     * Call table results come from a fresh VM, so they can be out of date if the callee reads static fields which were
+     * changed before the call. Only trust a result the graph agrees with, or one which can't depend on static state.
+     */
+    private boolean isCallResultCurrent(int address, int moveResultAddress, int register, Object result) {
+        Object consensus = mbgraph.getRegisterConsensus(moveResultAddress, register);
+        if (result.equals(consensus)) {
+            return true;
+        }
+        if (!(consensus instanceof UnknownValue)) {
+            if (log.isDebugEnabled()) {
+                log.debug("Not replacing call @" + address + ", result " + result + " doesn't match " + consensus);
+            }
+            return false;
+        }
+
+        ReferenceInstruction instruction = (ReferenceInstruction) mbgraph.getInstruction(address);
+        String methodDescriptor = ReferenceUtil.getMethodDescriptor((MethodReference) instruction.getReference());
 
-        return constantCount > 0;
+        return !callTable.readsMutableStaticFields(methodDescriptor);
     }
 
     boolean canConstantizeAddress(int address) {
@@ -5,8 +5,6 @@ import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -32,29 +30,6 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
 
     private static final SideEffect.Level SIDE_EFFECT_THRESHOLD = SideEffect.Level.WEAK;
 
-    private static boolean areRegistersRead(int address, TIntList registerList, MethodBackedGraph graph) {
-        Deque<ExecutionNode> stack = new ArrayDeque<ExecutionNode>(graph.getChildrenAtAddress(address));
-        ExecutionNode node;
-        int[] registers = registerList.toArray();
-        while ((node = stack.poll()) != null) {
-            MethodState mState = node.getContext().getMethodState();
-            for (int register : registers) {
-                if (mState.wasRegisterRead(register)) {
-                    log.trace("r" + register + " is read after this address (" + address + ") @" + node.getAddress()
-                                    + ", " + node.getOp());
-                    return true;
-                } else if (mState.wasRegisterAssigned(register)) {
-                    log.trace("r" + register + " is reassigned without being read @" + node.getAddress() + ", "
-                                    + node.getOp());
-                    return false;
-                }
-            }
-            stack.addAll(node.getChildren());
-        }
-
-        return false;
-    }
-
     private TIntList addresses;
     private int deadAssignmentCount;
     private int deadBranchCount;
@@ -83,6 +58,12 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
         return result;
     }
 
+    @Override
+    public boolean perform(TIntSet addresses) {
+        // Liveness depends on the whole method, so a few changed addresses can make anything dead.
+        return perform();
+    }
+
     @Override
     public boolean perform() {
         // Updated addresses each time because they change outside of this method.
@@ -134,6 +115,7 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
 
     TIntList getDeadAssignmentAddresses() {
         TIntList result = new TIntArrayList();
+        RegisterLiveness liveness = new RegisterLiveness(mbgraph);
         for (int address : addresses.toArray()) {
             if (!mbgraph.wasAddressReached(address)) {
                 continue;
@@ -159,7 +141,7 @@ public class DeadRemovalStrategy implements OptimizationStrategy {
                 log.debug("Read assignments test @" + address + " for: " + op);
             }
 
-            if (areRegistersRead(address, assigned, mbgraph)) {
+            if (liveness.isAnyLiveOut(address, assigned)) {
                 continue;
             }
 
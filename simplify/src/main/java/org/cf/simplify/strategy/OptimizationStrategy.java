@@ -1,5 +1,7 @@
 package org.cf.simplify.strategy;
 
+import gnu.trove.set.TIntSet;
+
 import java.util.Map;
 
 public interface OptimizationStrategy {
@@ -8,4 +10,14 @@ public interface OptimizationStrategy {
 
     public boolean perform();
 
+    /**
+     * Perform the optimization, only looking for opportunities at the given addresses. Strategies which need to see
+     * the whole method may ignore them.
+     *
+     * @param addresses
+     *            addresses changed since this strategy last ran
+     * @return true if any changes were made
+     */
+    public boolean perform(TIntSet addresses);
+
 }
@@ -0,0 +1,254 @@
+package org.cf.simplify.strategy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cf.simplify.MethodBackedGraph;
+import org.cf.smalivm.opcode.InvokeOp;
+import org.cf.smalivm.type.UnknownValue;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+
+/**
+ * A declarative peephole rewrite of an invocation. A rule names the method it matches, the register consensus the
+ * parameters and result must have, whether a following move-result is folded into the rewrite, and a {@link Rewriter}
+ * which builds the replacement instruction.
+ *
+ * Rules are indexed by {@link #getMethodKey(String)} so each instruction only needs to be checked against the rules for
+ * the method it invokes.
+ *
+ * @author cfenton
+ *
+ */
+public class PeepholeRule {
+
+    public static interface Rewriter {
+
+        /**
+         * @param match
+         * @return replacement for the invoke, or null if no rewrite is possible
+         */
+        BuilderInstruction rewrite(Match match);
+
+    }
+
+    public static class Match {
+
+        private final MethodBackedGraph mbgraph;
+        private final int address;
+        private final InvokeOp op;
+        private final int moveResultAddress;
+
+        private Match(MethodBackedGraph mbgraph, int address, InvokeOp op, int moveResultAddress) {
+            this.mbgraph = mbgraph;
+            this.address = address;
+            this.op = op;
+            this.moveResultAddress = moveResultAddress;
+        }
+
+        public int getAddress() {
+            return address;
+        }
+
+        public MethodBackedGraph getGraph() {
+            return mbgraph;
+        }
+
+        /**
+         * @return address of the move-result after the invoke, or -1 if there isn't one
+         */
+        public int getMoveResultAddress() {
+            return moveResultAddress;
+        }
+
+        public int getMoveResultRegister() {
+            return ((OneRegisterInstruction) mbgraph.getInstruction(moveResultAddress)).getRegisterA();
+        }
+
+        public InvokeOp getOp() {
+            return op;
+        }
+
+        public int getParameterRegister(int parameter) {
+            return op.getParameterRegisters()[parameter];
+        }
+
+        public Object getParameterValue(int parameter) {
+            return mbgraph.getRegisterConsensus(address, getParameterRegister(parameter));
+        }
+
+        public Object getResultValue() {
+            return mbgraph.getRegisterConsensus(moveResultAddress, getMoveResultRegister());
+        }
+
+    }
+
+    private static class Condition {
+
+        private static final int RESULT = -1;
+
+        private final int parameter;
+        private final Class<?> type;
+
+        private Condition(int parameter, Class<?> type) {
+            this.parameter = parameter;
+            this.type = type;
+        }
+
+        private boolean isSatisfied(Match match) {
+            Object value = parameter == RESULT ? match.getResultValue() : match.getParameterValue(parameter);
+            if (type == null) {
+                return !(value instanceof UnknownValue);
+            }
+
+            return type.isInstance(value);
+        }
+
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return the defining class and name of the method, e.g. "Ljava/lang/String;->valueOf"
+     */
+    public static String getMethodKey(String methodDescriptor) {
+        int end = methodDescriptor.indexOf('(');
+
+        return end < 0 ? methodDescriptor : methodDescriptor.substring(0, end);
+    }
+
+    /**
+     * @param methodDescriptor
+     *            full method descriptor, or a descriptor ending with "(" to match any overload
+     * @param rewriter
+     * @return new rule which matches invocations of the method
+     */
+    public static PeepholeRule forInvoke(String methodDescriptor, Rewriter rewriter) {
+        return new PeepholeRule(methodDescriptor, rewriter);
+    }
+
+    private final String methodDescriptor;
+    private final Rewriter rewriter;
+    private final List<Condition> conditions;
+    private boolean removeMoveResult;
+    private boolean requireMoveResult;
+
+    private PeepholeRule(String methodDescriptor, Rewriter rewriter) {
+        this.methodDescriptor = methodDescriptor;
+        this.rewriter = rewriter;
+        conditions = new ArrayList<Condition>();
+        removeMoveResult = false;
+        requireMoveResult = false;
+    }
+
+    public String getMethodDescriptor() {
+        return methodDescriptor;
+    }
+
+    public String getMethodKey() {
+        return getMethodKey(methodDescriptor);
+    }
+
+    /**
+     * Remove the move-result after the invoke, if there is one.
+     *
+     * @return this
+     */
+    public PeepholeRule removingMoveResult() {
+        removeMoveResult = true;
+
+        return this;
+    }
+
+    /**
+     * Only match if the invoke is followed by a move-result, and remove it.
+     *
+     * @return this
+     */
+    public PeepholeRule requiringMoveResult() {
+        removeMoveResult = true;
+        requireMoveResult = true;
+
+        return this;
+    }
+
+    /**
+     * @param parameter
+     *            index of parameter register, including the instance for non-static methods
+     * @return this
+     */
+    public PeepholeRule whereKnown(int parameter) {
+        conditions.add(new Condition(parameter, null));
+
+        return this;
+    }
+
+    public PeepholeRule whereInstanceOf(int parameter, Class<?> type) {
+        conditions.add(new Condition(parameter, type));
+
+        return this;
+    }
+
+    /**
+     * Only match if the value moved by the move-result is known. Implies {@link #requiringMoveResult()}.
+     *
+     * @return this
+     */
+    public PeepholeRule whereResultKnown() {
+        requiringMoveResult();
+        conditions.add(new Condition(Condition.RESULT, null));
+
+        return this;
+    }
+
+    /**
+     * @param mbgraph
+     * @param address
+     * @param op
+     * @param descriptor
+     *            descriptor of the method invoked at the address
+     * @return match if the invoke satisfies the rule, otherwise null
+     */
+    public Match match(MethodBackedGraph mbgraph, int address, InvokeOp op, String descriptor) {
+        if (!isMethodMatch(descriptor)) {
+            return null;
+        }
+
+        int moveResultAddress = -1;
+        if (removeMoveResult) {
+            int nextAddress = address + mbgraph.getInstruction(address).getCodeUnits();
+            BuilderInstruction nextInstruction = mbgraph.getInstruction(nextAddress);
+            if ((nextInstruction != null) && nextInstruction.getOpcode().name.startsWith("move-result")) {
+                moveResultAddress = nextAddress;
+            } else if (requireMoveResult) {
+                return null;
+            }
+        }
+
+        Match match = new Match(mbgraph, address, op, moveResultAddress);
+        for (Condition condition : conditions) {
+            if (!condition.isSatisfied(match)) {
+                return null;
+            }
+        }
+
+        return match;
+    }
+
+    public BuilderInstruction rewrite(Match match) {
+        return rewriter.rewrite(match);
+    }
+
+    @Override
+    public String toString() {
+        return methodDescriptor;
+    }
+
+    private boolean isMethodMatch(String descriptor) {
+        if (methodDescriptor.endsWith("(")) {
+            return descriptor.startsWith(methodDescriptor);
+        }
+
+        return descriptor.equals(methodDescriptor);
+    }
+
+}
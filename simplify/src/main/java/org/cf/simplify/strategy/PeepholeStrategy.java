@@ -2,240 +2,172 @@ package org.cf.simplify.strategy;
 
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
-import gnu.trove.list.linked.TIntLinkedList;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.cf.simplify.InstructionEdits;
 import org.cf.simplify.MethodBackedGraph;
-import org.cf.smalivm.context.ExecutionNode;
-import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.opcode.InvokeOp;
 import org.cf.smalivm.opcode.Op;
-import org.cf.smalivm.type.UnknownValue;
 import org.cf.util.SmaliClassUtils;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.BuilderInstruction;
 import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
 import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
-import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
-import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderTypeReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * Replaces invocations with simpler instructions when enough is known about their arguments. Rewrites are declared in a
+ * table of {@link PeepholeRule}s, indexed by the method they invoke, and every rule is matched in a single pass over
+ * the instructions.
+ *
+ * @author cfenton
+ *
+ */
 public class PeepholeStrategy implements OptimizationStrategy {
 
     private static final Logger log = LoggerFactory.getLogger(PeepholeStrategy.class.getSimpleName());
 
     private static final String ClassForNameSignature = "Ljava/lang/Class;->forName(Ljava/lang/String;)Ljava/lang/Class;";
-    private static final String MethodInvokeSignature = "Ljava/lang/reflect/Method;->invoke(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;";
+    private static final String StringInitPrefix = "Ljava/lang/String;-><init>(";
+    private static final String StringValueOfPrefix = "Ljava/lang/String;->valueOf(";
 
-    private final MethodBackedGraph mbgraph;
-    private int peepCount;
-    private TIntList addresses;
-
-    public PeepholeStrategy(MethodBackedGraph mbgraph) {
-        this.mbgraph = mbgraph;
-        peepCount = 0;
-    }
+    private static final PeepholeRule.Rewriter ClassForNameRewriter = new PeepholeRule.Rewriter() {
+        @Override
+        public BuilderInstruction rewrite(PeepholeRule.Match match) {
+            int register = match.getParameterRegister(0);
+            String javaClassName = (String) match.getParameterValue(0);
+            String smaliClassName = SmaliClassUtils.javaClassToSmali(javaClassName);
+            BuilderTypeReference classRef = match.getGraph().getDexBuilder().internTypeReference(smaliClassName);
 
-    @Override
-    public Map<String, Integer> getOptimizationCounts() {
-        Map<String, Integer> result = new HashMap<String, Integer>();
-        result.put("peeps", peepCount);
-
-        return result;
-    }
-
-    void peepMethodInvoke() {
-        TIntList peepAddresses = new TIntArrayList();
-        for (int address : addresses.toArray()) {
-            if (canPeepMethodInvoke(address)) {
-                peepAddresses.add(address);
-            }
+            return new BuilderInstruction21c(Opcode.CONST_CLASS, register, classRef);
         }
+    };
 
-        peepCount += peepAddresses.size();
-        peepAddresses.sort();
-        peepAddresses.reverse();
-        for (int address : peepAddresses.toArray()) {
-            BuilderInstruction replacement = buildMethodInvokeReplacement(address);
-            mbgraph.replaceInstruction(address, replacement);
-        }
-    }
+    private static final PeepholeRule.Rewriter StringInitRewriter = new PeepholeRule.Rewriter() {
+        @Override
+        public BuilderInstruction rewrite(PeepholeRule.Match match) {
+            int instanceRegister = match.getParameterRegister(0);
+            Object value = match.getParameterValue(0);
 
-    void peepClassForName() {
-        TIntList peepAddresses = new TIntArrayList();
-        for (int address : addresses.toArray()) {
-            if (canPeepClassForName(address)) {
-                peepAddresses.add(address);
-            }
+            return ConstantPropigationStrategy.buildConstant(value, instanceRegister, match.getGraph().getDexBuilder());
         }
+    };
 
-        peepCount += peepAddresses.size();
-        peepAddresses.sort();
-        peepAddresses.reverse();
-        for (int address : peepAddresses.toArray()) {
-            BuilderInstruction original = mbgraph.getInstruction(address);
-            int nextAddress = address + original.getCodeUnits();
-            if (addresses.contains(nextAddress)) {
-                BuilderInstruction nextInstruction = mbgraph.getInstruction(nextAddress);
-                if (nextInstruction.getOpcode().name.startsWith("move-result")) {
-                    // There is a move-result after the instruction being replaced. "Deal" with it.
-                    mbgraph.removeInstruction(nextAddress);
-                }
-            }
+    private static final PeepholeRule.Rewriter ResultConstantRewriter = new PeepholeRule.Rewriter() {
+        @Override
+        public BuilderInstruction rewrite(PeepholeRule.Match match) {
+            int register = match.getMoveResultRegister();
+            Object value = match.getResultValue();
 
-            BuilderInstruction replacement = buildClassForNameReplacement(address);
-            mbgraph.replaceInstruction(address, replacement);
+            return ConstantPropigationStrategy.buildConstant(value, register, match.getGraph().getDexBuilder());
         }
-    }
+    };
 
-    void peepStringInit() {
-        TIntList peepAddresses = new TIntArrayList();
-        for (int address : addresses.toArray()) {
-            BuilderInstruction original = mbgraph.getInstruction(address);
-            if (!(original instanceof Instruction35c)) {
-                // Not an invoke direct
-                continue;
-            }
+    private static final PeepholeRule[] Rules = new PeepholeRule[] {
+        PeepholeRule.forInvoke(ClassForNameSignature, ClassForNameRewriter)
+                        .whereInstanceOf(0, String.class).removingMoveResult(),
+        PeepholeRule.forInvoke(StringInitPrefix, StringInitRewriter).whereInstanceOf(0, String.class),
+        PeepholeRule.forInvoke(StringValueOfPrefix, ResultConstantRewriter).whereResultKnown(),
+    };
 
-            Instruction35c instr = (Instruction35c) original;
-            MethodReference methodReference = (MethodReference) instr.getReference();
-            String methodDescriptor = ReferenceUtil.getMethodDescriptor(methodReference);
-            if (!methodDescriptor.startsWith("Ljava/lang/String;-><init>(")) {
-                continue;
-            }
+    private static final Map<String, List<PeepholeRule>> RulesByMethodKey = buildRuleIndex(Rules);
 
-            int instanceRegister = instr.getRegisterC();
-            Object value = mbgraph.getRegisterConsensus(address, instanceRegister);
-            if (!(value instanceof String)) {
-                // Not UnknownValue
-                continue;
+    private static Map<String, List<PeepholeRule>> buildRuleIndex(PeepholeRule[] rules) {
+        Map<String, List<PeepholeRule>> result = new HashMap<String, List<PeepholeRule>>();
+        for (PeepholeRule rule : rules) {
+            List<PeepholeRule> keyRules = result.get(rule.getMethodKey());
+            if (keyRules == null) {
+                keyRules = new ArrayList<PeepholeRule>(1);
+                result.put(rule.getMethodKey(), keyRules);
             }
-            peepAddresses.add(address);
+            keyRules.add(rule);
         }
 
-        peepCount += peepAddresses.size();
-        peepAddresses.sort();
-        peepAddresses.reverse();
-        for (int address : peepAddresses.toArray()) {
-            BuilderInstruction original = mbgraph.getInstruction(address);
-            Instruction35c instr = (Instruction35c) original;
-            int instanceRegister = instr.getRegisterC();
-            Object value = mbgraph.getRegisterConsensus(address, instanceRegister);
-            BuilderInstruction replacement = ConstantPropigationStrategy.buildConstant(value, instanceRegister,
-                            mbgraph.getDexBuilder());
-            if (log.isDebugEnabled()) {
-                log.debug("Peeping string init @" + address + " " + mbgraph.getOp(address));
-            }
-            mbgraph.replaceInstruction(address, replacement);
-        }
+        return result;
     }
 
-    public boolean perform() {
-        addresses = getValidAddresses(mbgraph);
-        peepClassForName();
+    private final MethodBackedGraph mbgraph;
+    private int peepCount;
 
-        addresses = getValidAddresses(mbgraph);
-        peepMethodInvoke();
+    public PeepholeStrategy(MethodBackedGraph mbgraph) {
+        this.mbgraph = mbgraph;
+        peepCount = 0;
+    }
 
-        addresses = getValidAddresses(mbgraph);
-        peepStringInit();
+    @Override
+    public Map<String, Integer> getOptimizationCounts() {
+        Map<String, Integer> result = new HashMap<String, Integer>();
+        result.put("peeps", peepCount);
 
-        return peepCount > 0;
+        return result;
     }
 
-    BuilderInstruction buildClassForNameReplacement(int address) {
-        InvokeOp op = (InvokeOp) mbgraph.getOp(address);
-        int[] parameterRegisters = op.getParameterRegisters();
-        int register = parameterRegisters[0];
-        String javaClassName = (String) mbgraph.getRegisterConsensus(address, register);
-        String smaliClassName = SmaliClassUtils.javaClassToSmali(javaClassName);
-        BuilderTypeReference classRef = mbgraph.getDexBuilder().internTypeReference(smaliClassName);
-        BuilderInstruction constClassInstruction = new BuilderInstruction21c(Opcode.CONST_CLASS, register, classRef);
-
-        return constClassInstruction;
+    @Override
+    public boolean perform() {
+        return perform(new TIntHashSet(mbgraph.getAddresses()));
     }
 
-    BuilderInstruction buildMethodInvokeReplacement(int address) {
-        Op op = mbgraph.getOp(address);
-        TIntSet parentAddressSet = new TIntHashSet();
-        for (ExecutionNode node : mbgraph.getNodePile(address)) {
-            parentAddressSet.add(node.getParent().getAddress());
+    @Override
+    public boolean perform(TIntSet changedAddresses) {
+        int startCount = peepCount;
+        TIntList addresses = getValidAddresses(mbgraph);
+        addresses.retainAll(changedAddresses);
+        addresses.sort();
+
+        // Rules only match invokes and may only remove the following move-result, so matches never overlap
+        InstructionEdits edits = new InstructionEdits();
+        for (int address : addresses.toArray()) {
+            peep(address, edits);
         }
-        TIntList parentAddresses = new TIntArrayList(parentAddressSet);
-        int[] parameterRegisters = ((InvokeOp) op).getParameterRegisters();
-        int methodRegister = parameterRegisters[0];
-        int targetRegister = parameterRegisters[1];
-        int parametersRegister = parameterRegisters[2];
-
-        Object methodValue = mbgraph.getRegisterConsensus(parentAddresses, methodRegister);
-        Object targetValue = mbgraph.getRegisterConsensus(parentAddresses, targetRegister);
-        Object parametersValue = mbgraph.getRegisterConsensus(parentAddresses, parametersRegister);
-
-        TIntList availableRegisters = getAvailableRegisters(address);
-        // need 0-?? available registers, then pull out the parameters with a-get into them
-        // then build a proper invoke
-        // String javaClassName = (String) mbgraph.getRegisterConsensus(address, register);
-        // String smaliClassName = SmaliClassUtils.javaClassToSmali(javaClassName);
-        // BuilderTypeReference classRef = mbgraph.getDexBuilder().internTypeReference(smaliClassName);
-        // BuilderInstruction methodInvokeInstruction = new BuilderInstruction21c(Opcode.CONST_CLASS, register,
-        // classRef);
-
-        return null;
+        mbgraph.applyEdits(edits);
+
+        return peepCount > startCount;
     }
 
-    boolean canPeepClassForName(int address) {
+    private void peep(int address, InstructionEdits edits) {
         Op op = mbgraph.getOp(address);
         if (!(op instanceof InvokeOp)) {
-            return false;
+            return;
         }
 
-        BuilderInstruction instruction = mbgraph.getInstruction(address);
-        ReferenceInstruction instr = (ReferenceInstruction) instruction;
-        String methodDescriptor = ReferenceUtil.getReferenceString(instr.getReference());
-        if (!methodDescriptor.equals(ClassForNameSignature)) {
-            return false;
+        ReferenceInstruction instruction = (ReferenceInstruction) mbgraph.getInstruction(address);
+        String methodDescriptor = ReferenceUtil.getReferenceString(instruction.getReference());
+        List<PeepholeRule> rules = RulesByMethodKey.get(PeepholeRule.getMethodKey(methodDescriptor));
+        if (rules == null) {
+            return;
         }
 
-        int[] parameterRegisters = ((InvokeOp) op).getParameterRegisters();
-        int registerA = parameterRegisters[0];
-        Object classNameValue = mbgraph.getRegisterConsensus(address, registerA);
-        if (classNameValue instanceof UnknownValue) {
-            return false;
-        }
-
-        return true;
-    }
+        for (PeepholeRule rule : rules) {
+            PeepholeRule.Match match = rule.match(mbgraph, address, (InvokeOp) op, methodDescriptor);
+            if (match == null) {
+                continue;
+            }
 
-    boolean canPeepMethodInvoke(int address) {
-        Op op = mbgraph.getOp(address);
-        if (!(op instanceof InvokeOp)) {
-            return false;
-        }
+            BuilderInstruction replacement = rule.rewrite(match);
+            if (replacement == null) {
+                continue;
+            }
 
-        BuilderInstruction instruction = mbgraph.getInstruction(address);
-        ReferenceInstruction instr = (ReferenceInstruction) instruction;
-        String methodSignature = ReferenceUtil.getReferenceString(instr.getReference());
-        if (!methodSignature.equals(MethodInvokeSignature)) {
-            return false;
-        }
+            if (log.isDebugEnabled()) {
+                log.debug("Peeping " + rule + " @" + address + " " + op);
+            }
+            if (match.getMoveResultAddress() >= 0) {
+                edits.remove(match.getMoveResultAddress());
+            }
+            edits.replace(address, replacement);
+            peepCount++;
 
-        int[] parameterRegisters = ((InvokeOp) op).getParameterRegisters();
-        int methodRegister = parameterRegisters[0];
-        Object methodValue = mbgraph.getRegisterConsensus(address, methodRegister);
-        if (methodValue instanceof UnknownValue) {
-            return false;
+            return;
         }
-
-        return true;
     }
 
     TIntList getValidAddresses(MethodBackedGraph mbgraph) {
@@ -249,43 +181,4 @@ public class PeepholeStrategy implements OptimizationStrategy {
         return result;
     }
 
-    private TIntList getAvailableRegisters(int address) {
-        Deque<ExecutionNode> stack = new ArrayDeque<ExecutionNode>(mbgraph.getChildrenAtAddress(address));
-        ExecutionNode node = stack.getFirst();
-        if (null == node) {
-            // Only return should not have children.
-            MethodState mState = mbgraph.getNodePile(address).get(0).getContext().getMethodState();
-            TIntList available = new TIntLinkedList();
-            // They're all available!
-            for (int i = 0; i < mState.getRegisterCount(); i++) {
-                available.add(i);
-            }
-
-            return available;
-        }
-
-        int[] registers = new int[node.getContext().getMethodState().getRegisterCount()];
-        for (int i = 0; i < registers.length; i++) {
-            registers[i] = i;
-        }
-        TIntSet unavailable = new TIntHashSet();
-        TIntList available = new TIntLinkedList();
-        while ((node = stack.poll()) != null) {
-            MethodState mState = node.getContext().getMethodState();
-            for (int register : registers) {
-                if (unavailable.contains(register) || available.contains(register)) {
-                    continue;
-                }
-
-                if (mState.wasRegisterRead(register)) {
-                    unavailable.add(register);
-                } else if (mState.wasRegisterAssigned(register)) {
-                    available.add(register);
-                }
-            }
-            stack.addAll(node.getChildren());
-        }
-
-        return available;
-    }
 }
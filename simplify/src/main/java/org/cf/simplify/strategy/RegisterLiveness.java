@@ -0,0 +1,214 @@
+package org.cf.simplify.strategy;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+import org.cf.simplify.MethodBackedGraph;
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.context.MethodState;
+
+/**
+ * Backward register liveness over the instructions of a method. Uses and definitions come from the execution contexts
+ * of each address, and the only edges followed are those which were actually taken during execution. Each address gets
+ * a bit set of the registers which are live after it.
+ *
+ * @author cfenton
+ *
+ */
+public class RegisterLiveness {
+
+    // Shifts special registers, e.g. MethodState.ResultRegister, to non-negative bit indexes
+    private static final int REGISTER_OFFSET = -MethodState.ReturnAddress;
+
+    private static int toBit(int register) {
+        return register + REGISTER_OFFSET;
+    }
+
+    private final int[] addresses;
+    private final TIntIntMap addressToIndex;
+    private final int[][] successors;
+    private final BitSet[] uses;
+    private final BitSet[] definitions;
+    private final BitSet[] liveIn;
+    private final BitSet[] liveOut;
+
+    public RegisterLiveness(MethodBackedGraph graph) {
+        addresses = graph.getAddresses();
+        Arrays.sort(addresses);
+        addressToIndex = new TIntIntHashMap(addresses.length);
+        for (int index = 0; index < addresses.length; index++) {
+            addressToIndex.put(addresses[index], index);
+        }
+
+        successors = new int[addresses.length][];
+        uses = new BitSet[addresses.length];
+        definitions = new BitSet[addresses.length];
+        liveIn = new BitSet[addresses.length];
+        liveOut = new BitSet[addresses.length];
+        for (int index = 0; index < addresses.length; index++) {
+            buildUsesAndDefinitions(graph, index);
+            liveIn[index] = new BitSet();
+            liveOut[index] = new BitSet();
+        }
+
+        solve();
+    }
+
+    /**
+     * @param address
+     * @param registers
+     * @return true if any of the registers may be read after the address before being reassigned
+     */
+    public boolean isAnyLiveOut(int address, TIntList registers) {
+        if (!addressToIndex.containsKey(address)) {
+            return false;
+        }
+
+        BitSet live = liveOut[addressToIndex.get(address)];
+        for (int i = 0; i < registers.size(); i++) {
+            if (live.get(toBit(registers.get(i)))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean isLiveOut(int address, int register) {
+        if (!addressToIndex.containsKey(address)) {
+            return false;
+        }
+
+        return liveOut[addressToIndex.get(address)].get(toBit(register));
+    }
+
+    private void buildUsesAndDefinitions(MethodBackedGraph graph, int index) {
+        BitSet use = new BitSet();
+        BitSet definition = null;
+        BitSet successorAddresses = new BitSet();
+        int address = addresses[index];
+        if (graph.wasAddressReached(address)) {
+            List<ExecutionNode> pile = graph.getNodePile(address);
+            for (ExecutionNode node : pile) {
+                for (ExecutionNode child : node.getChildren()) {
+                    successorAddresses.set(child.getAddress());
+                }
+
+                ExecutionContext ectx = node.getContext();
+                if (ectx == null) {
+                    continue;
+                }
+                MethodState mState = ectx.getMethodState();
+                addUses(mState, use);
+
+                // Only a register assigned along every path is certainly overwritten
+                BitSet assigned = new BitSet();
+                TIntList registersAssigned = mState.getRegistersAssigned();
+                for (int i = 0; i < registersAssigned.size(); i++) {
+                    assigned.set(toBit(registersAssigned.get(i)));
+                }
+                if (definition == null) {
+                    definition = assigned;
+                } else {
+                    definition.and(assigned);
+                }
+            }
+        }
+
+        uses[index] = use;
+        definitions[index] = definition == null ? new BitSet() : definition;
+        int[] successorIndexes = new int[successorAddresses.cardinality()];
+        int successorAddress = successorAddresses.nextSetBit(0);
+        for (int i = 0; i < successorIndexes.length; i++) {
+            successorIndexes[i] = addressToIndex.get(successorAddress);
+            successorAddress = successorAddresses.nextSetBit(successorAddress + 1);
+        }
+        successors[index] = successorIndexes;
+    }
+
+    private static void addUses(MethodState mState, BitSet use) {
+        TIntList registersRead = mState.getRegistersRead();
+        if (registersRead.size() == 0) {
+            return;
+        }
+
+        for (int i = 0; i < registersRead.size(); i++) {
+            use.set(toBit(registersRead.get(i)));
+        }
+
+        // Registers holding the same object as a read register count as read, same as MethodState#wasRegisterRead
+        for (int register = 0; register < mState.getRegisterCount(); register++) {
+            if (!use.get(toBit(register)) && mState.wasRegisterRead(register)) {
+                use.set(toBit(register));
+            }
+        }
+    }
+
+    private void solve() {
+        // Seed with every address, last first, so most addresses settle on the first visit
+        Deque<Integer> worklist = new ArrayDeque<Integer>(addresses.length);
+        boolean[] isQueued = new boolean[addresses.length];
+        for (int index = addresses.length - 1; index >= 0; index--) {
+            worklist.add(index);
+            isQueued[index] = true;
+        }
+
+        int[][] predecessors = buildPredecessors();
+        Integer next;
+        while ((next = worklist.poll()) != null) {
+            int index = next;
+            isQueued[index] = false;
+
+            BitSet out = liveOut[index];
+            for (int successor : successors[index]) {
+                out.or(liveIn[successor]);
+            }
+
+            BitSet in = (BitSet) out.clone();
+            in.andNot(definitions[index]);
+            in.or(uses[index]);
+            if (in.equals(liveIn[index])) {
+                continue;
+            }
+
+            liveIn[index] = in;
+            for (int predecessor : predecessors[index]) {
+                if (!isQueued[predecessor]) {
+                    worklist.add(predecessor);
+                    isQueued[predecessor] = true;
+                }
+            }
+        }
+    }
+
+    private int[][] buildPredecessors() {
+        int[] counts = new int[addresses.length];
+        for (int[] successorIndexes : successors) {
+            for (int successor : successorIndexes) {
+                counts[successor]++;
+            }
+        }
+
+        int[][] predecessors = new int[addresses.length][];
+        for (int index = 0; index < addresses.length; index++) {
+            predecessors[index] = new int[counts[index]];
+            counts[index] = 0;
+        }
+        for (int index = 0; index < addresses.length; index++) {
+            for (int successor : successors[index]) {
+                predecessors[successor][counts[successor]++] = index;
+            }
+        }
+
+        return predecessors;
+    }
+
+}
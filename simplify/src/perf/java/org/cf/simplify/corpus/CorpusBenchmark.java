@@ -0,0 +1,111 @@
+package org.cf.simplify.corpus;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.cf.simplify.Main;
+import org.cf.simplify.OptionBean;
+import org.cf.simplify.RunStatistics;
+import org.cf.util.Utils;
+import org.kohsuke.args4j.CmdLineParser;
+
+/**
+ * Runs {@link Main} over each corpus given and appends one JSON object per corpus to a results file, e.g.
+ *
+ * <pre>
+ * {"corpus":"corpus/small","totalMs":5120,"methodsPerSecond":39.1,"executed":200,"skipped":0,"failed":0,"optimized":180,
+ *  "peakHeapBytes":268435456,"phasesMs":{"load":310,"prepass":900,"callGraph":12,"execute":2400,...}}
+ * </pre>
+ *
+ * Usage: CorpusBenchmark &lt;results.json&gt; &lt;corpus dir&gt;... [-- simplify options]
+ *
+ * @author cfenton
+ *
+ */
+public class CorpusBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: CorpusBenchmark <results.json> <corpus dir>... [-- simplify options]");
+            System.exit(-1);
+        }
+
+        int corpusEnd = args.length;
+        String[] simplifyOptions = new String[0];
+        for (int i = 0; i < args.length; i++) {
+            if ("--".equals(args[i])) {
+                corpusEnd = i;
+                simplifyOptions = Arrays.copyOfRange(args, i + 1, args.length);
+                break;
+            }
+        }
+
+        File resultsFile = new File(args[0]);
+        try (Writer writer = new FileWriter(resultsFile, true)) {
+            for (int i = 1; i < corpusEnd; i++) {
+                String result = run(new File(args[i]), simplifyOptions);
+                System.out.println(result);
+                writer.write(result);
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static String run(File corpus, String[] simplifyOptions) throws Exception {
+        List<String> args = new ArrayList<String>();
+        args.addAll(Arrays.asList("-i", corpus.getPath(), "-o", File.createTempFile("corpus", ".dex").getPath(), "-q"));
+        args.addAll(Arrays.asList(simplifyOptions));
+        OptionBean bean = new OptionBean();
+        new CmdLineParser(bean).parseArgument(args);
+
+        System.gc();
+        RunStatistics statistics;
+        PrintStream out = System.out;
+        // Progress output would only measure the console
+        System.setOut(new PrintStream(new NullOutputStream()));
+        try {
+            statistics = Main.run(bean);
+        } finally {
+            System.setOut(out);
+        }
+        bean.getOutFile().delete();
+
+        return toJson(corpus, statistics);
+    }
+
+    private static String toJson(File corpus, RunStatistics statistics) {
+        long totalMs = statistics.getTotalMilliseconds();
+        double methodsPerSecond = totalMs == 0 ? 0 : (statistics.getExecutedCount() * 1000.0) / totalMs;
+
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"corpus\":").append(Utils.jsonString(corpus.getPath()));
+        sb.append(",\"totalMs\":").append(totalMs);
+        sb.append(",\"methodsPerSecond\":").append(String.format(Locale.ROOT, "%.1f", methodsPerSecond));
+        sb.append(",\"executed\":").append(statistics.getExecutedCount());
+        sb.append(",\"skipped\":").append(statistics.getSkippedCount());
+        sb.append(",\"failed\":").append(statistics.getFailedCount());
+        sb.append(",\"optimized\":").append(statistics.getOptimizedCount());
+        sb.append(",\"peakHeapBytes\":").append(statistics.getPeakHeapBytes());
+        sb.append(",\"phasesMs\":{");
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : statistics.getPhaseMilliseconds().entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append(Utils.jsonString(entry.getKey())).append(':').append(entry.getValue());
+        }
+        sb.append("}}");
+
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,282 @@
+package org.cf.simplify.corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.kohsuke.args4j.spi.FileOptionHandler;
+
+/**
+ * Writes a synthetic corpus of smali classes with common obfuscation features, for measuring the whole pipeline without
+ * real apps. The same options and seed always generate the same corpus.
+ *
+ * Every generated method is <code>public static m&lt;n&gt;(I)I</code> so any of them can call any other.
+ *
+ * @author cfenton
+ *
+ */
+public class CorpusGenerator {
+
+    public static class Options implements Serializable {
+
+        private static final long serialVersionUID = 4127345716598837612L;
+
+        @Option(name = "-o", aliases = { "--output" }, metaVar = "dir", handler = FileOptionHandler.class, usage = "Output directory", required = true)
+        private File outDir;
+
+        @Option(name = "--seed", usage = "Random seed")
+        private long seed = 1;
+
+        @Option(name = "--classes", usage = "Number of classes")
+        private int classCount = 20;
+
+        @Option(name = "--methods", usage = "Methods per class")
+        private int methodCount = 10;
+
+        @Option(name = "--decrypt-calls", usage = "String decryption calls per method")
+        private int decryptCalls = 3;
+
+        @Option(name = "--strings", usage = "Number of unique encrypted strings")
+        private int stringCount = 50;
+
+        @Option(name = "--opaque-predicates", usage = "Opaque predicates per method")
+        private int opaquePredicates = 1;
+
+        @Option(name = "--junk-ops", usage = "Junk arithmetic ops per method")
+        private int junkOps = 8;
+
+        @Option(name = "--clinit-table-size", usage = "Entries in each class's static initializer table, 0 for none")
+        private int clinitTableSize = 64;
+
+        @Option(name = "--call-chain-depth", usage = "Classes in each chain of calls, 1 for no calls")
+        private int callChainDepth = 5;
+
+        @Option(name = "--try-catches", usage = "Try/catch blocks per method")
+        private int tryCatches = 1;
+
+        @Option(name = "-h", aliases = { "--help" }, usage = "Be helpful", help = true)
+        private boolean help;
+
+    }
+
+    private static final String PACKAGE = "corpus/";
+    private static final String DECRYPTOR_CLASS = "L" + PACKAGE + "Decryptor;";
+    private static final String DECRYPT_METHOD = DECRYPTOR_CLASS + "->d(Ljava/lang/String;I)Ljava/lang/String;";
+    private static final String[] WORDS = {
+                    "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel", "india", "juliet", "kilo",
+                    "lima", "mike", "november", "oscar", "papa" };
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        CmdLineParser parser = new CmdLineParser(options);
+        parser.parseArgument(args);
+        if (options.help) {
+            parser.printUsage(System.out);
+            System.exit(0);
+        }
+
+        new CorpusGenerator(options).generate();
+        System.out.println("Wrote corpus to " + options.outDir);
+    }
+
+    private static String escape(String value) {
+        StringBuilder sb = new StringBuilder();
+        for (char c : value.toCharArray()) {
+            if ((c >= 0x20) && (c < 0x7f) && (c != '"') && (c != '\\')) {
+                sb.append(c);
+            } else {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+        }
+
+        return sb.toString();
+    }
+
+    private static String hex(int value) {
+        return "0x" + Integer.toHexString(value);
+    }
+
+    private static String xor(String value, int key) {
+        char[] chars = value.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) (chars[i] ^ key);
+        }
+
+        return new String(chars);
+    }
+
+    private final Options options;
+    private final Random random;
+    private final String[] encryptedStrings;
+    private final int[] keys;
+    private int labelCount;
+
+    public CorpusGenerator(Options options) {
+        this.options = options;
+        random = new Random(options.seed);
+        encryptedStrings = new String[options.stringCount];
+        keys = new int[options.stringCount];
+        for (int i = 0; i < options.stringCount; i++) {
+            String plain = WORDS[random.nextInt(WORDS.length)] + "_" + i;
+            keys[i] = 1 + random.nextInt(0x7fff);
+            encryptedStrings[i] = xor(plain, keys[i]);
+        }
+    }
+
+    public void generate() throws IOException {
+        File packageDir = new File(options.outDir, PACKAGE);
+        FileUtils.forceMkdir(packageDir);
+        FileUtils.writeStringToFile(new File(packageDir, "Decryptor.smali"), buildDecryptor());
+        for (int i = 0; i < options.classCount; i++) {
+            FileUtils.writeStringToFile(new File(packageDir, "C" + i + ".smali"), buildClass(i));
+        }
+    }
+
+    private String buildClass(int classIndex) {
+        String className = getClassName(classIndex);
+        StringBuilder sb = new StringBuilder();
+        sb.append(".class public ").append(className).append('\n');
+        sb.append(".super Ljava/lang/Object;\n\n");
+        if (options.clinitTableSize > 0) {
+            sb.append(".field public static table:[I\n\n");
+            appendClinit(sb, className);
+        }
+
+        for (int i = 0; i < options.methodCount; i++) {
+            appendMethod(sb, classIndex, i);
+        }
+
+        return sb.toString();
+    }
+
+    private String buildDecryptor() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(".class public ").append(DECRYPTOR_CLASS).append('\n');
+        sb.append(".super Ljava/lang/Object;\n\n");
+        sb.append(".method public static d(Ljava/lang/String;I)Ljava/lang/String;\n");
+        sb.append("    .locals 5\n\n");
+        sb.append("    invoke-virtual {p0}, Ljava/lang/String;->toCharArray()[C\n");
+        sb.append("    move-result-object v0\n");
+        sb.append("    array-length v1, v0\n");
+        sb.append("    const/4 v2, 0x0\n\n");
+        sb.append("    :loop\n");
+        sb.append("    if-ge v2, v1, :done\n");
+        sb.append("    aget-char v3, v0, v2\n");
+        sb.append("    xor-int/2addr v3, p1\n");
+        sb.append("    int-to-char v3, v3\n");
+        sb.append("    aput-char v3, v0, v2\n");
+        sb.append("    add-int/lit8 v2, v2, 0x1\n");
+        sb.append("    goto :loop\n\n");
+        sb.append("    :done\n");
+        sb.append("    new-instance v4, Ljava/lang/String;\n");
+        sb.append("    invoke-direct {v4, v0}, Ljava/lang/String;-><init>([C)V\n");
+        sb.append("    return-object v4\n");
+        sb.append(".end method\n");
+
+        return sb.toString();
+    }
+
+    private void appendCallChain(StringBuilder sb, int classIndex, int methodIndex) {
+        boolean isChainEnd = ((classIndex + 1) % options.callChainDepth) == 0;
+        if (isChainEnd || ((classIndex + 1) >= options.classCount)) {
+            return;
+        }
+
+        String callee = getClassName(classIndex + 1) + "->m" + methodIndex + "(I)I";
+        sb.append("    invoke-static {v5}, ").append(callee).append('\n');
+        sb.append("    move-result v5\n\n");
+    }
+
+    private void appendClinit(StringBuilder sb, String className) {
+        sb.append(".method static constructor <clinit>()V\n");
+        sb.append("    .locals 1\n\n");
+        sb.append("    const/16 v0, ").append(hex(options.clinitTableSize)).append('\n');
+        sb.append("    new-array v0, v0, [I\n");
+        sb.append("    fill-array-data v0, :table_data\n");
+        sb.append("    sput-object v0, ").append(className).append("->table:[I\n");
+        sb.append("    return-void\n\n");
+        sb.append("    :table_data\n");
+        sb.append("    .array-data 4\n");
+        for (int i = 0; i < options.clinitTableSize; i++) {
+            sb.append("        ").append(hex(random.nextInt(0x7fffffff))).append('\n');
+        }
+        sb.append("    .end array-data\n");
+        sb.append(".end method\n\n");
+    }
+
+    private void appendDecryptCall(StringBuilder sb) {
+        int index = random.nextInt(encryptedStrings.length);
+        sb.append("    const-string v0, \"").append(escape(encryptedStrings[index])).append("\"\n");
+        sb.append("    const/16 v1, ").append(hex(keys[index])).append('\n');
+        sb.append("    invoke-static {v0, v1}, ").append(DECRYPT_METHOD).append('\n');
+        sb.append("    move-result-object v0\n");
+        sb.append("    invoke-virtual {v0}, Ljava/lang/String;->length()I\n");
+        sb.append("    move-result v1\n");
+        sb.append("    add-int/2addr v5, v1\n\n");
+    }
+
+    private void appendJunkOps(StringBuilder sb) {
+        String[] ops = { "add-int/lit8", "mul-int/lit8", "xor-int/lit8", "rem-int/lit8", "shl-int/lit8" };
+        sb.append("    const/4 v2, 0x3\n");
+        for (int i = 0; i < options.junkOps; i++) {
+            String op = ops[random.nextInt(ops.length)];
+            sb.append("    ").append(op).append(" v2, v2, ").append(hex(1 + random.nextInt(0x7f))).append('\n');
+        }
+        sb.append('\n');
+    }
+
+    private void appendMethod(StringBuilder sb, int classIndex, int methodIndex) {
+        sb.append(".method public static m").append(methodIndex).append("(I)I\n");
+        sb.append("    .locals 6\n\n");
+        sb.append("    move v5, p0\n\n");
+        for (int i = 0; i < options.decryptCalls; i++) {
+            appendDecryptCall(sb);
+        }
+        for (int i = 0; i < options.opaquePredicates; i++) {
+            appendOpaquePredicate(sb);
+        }
+        if (options.junkOps > 0) {
+            appendJunkOps(sb);
+        }
+        for (int i = 0; i < options.tryCatches; i++) {
+            appendTryCatch(sb);
+        }
+        appendCallChain(sb, classIndex, methodIndex);
+        sb.append("    return v5\n");
+        sb.append(".end method\n\n");
+    }
+
+    private void appendOpaquePredicate(StringBuilder sb) {
+        // (x * x + x) is always even
+        int label = labelCount++;
+        sb.append("    mul-int v3, p0, p0\n");
+        sb.append("    add-int/2addr v3, p0\n");
+        sb.append("    rem-int/lit8 v3, v3, 0x2\n");
+        sb.append("    if-eqz v3, :opaque_").append(label).append('\n');
+        sb.append("    const/16 v5, ").append(hex(random.nextInt(0x7fff))).append('\n');
+        sb.append("    :opaque_").append(label).append("\n\n");
+    }
+
+    private void appendTryCatch(StringBuilder sb) {
+        int label = labelCount++;
+        sb.append("    :try_start_").append(label).append('\n');
+        sb.append("    div-int v4, v5, p0\n");
+        sb.append("    :try_end_").append(label).append('\n');
+        sb.append("    .catch Ljava/lang/ArithmeticException; {:try_start_").append(label).append(" .. :try_end_")
+                        .append(label).append("} :catch_").append(label).append('\n');
+        sb.append("    goto :after_").append(label).append('\n');
+        sb.append("    :catch_").append(label).append('\n');
+        sb.append("    move-exception v4\n");
+        sb.append("    const/4 v5, 0x0\n");
+        sb.append("    :after_").append(label).append("\n\n");
+    }
+
+    private String getClassName(int classIndex) {
+        return "L" + PACKAGE + "C" + classIndex + ";";
+    }
+
+}
@@ -38,4 +38,15 @@ public class OptimizerTester {
         return new MethodBackedGraph(graph, method, vm, dexBuilder);
     }
 
+    public static Optimizer getOptimizer(String className, String methodSignature, TIntObjectMap<Object> initial) {
+        VirtualMachine vm = VMTester.getTestVM();
+        String methodDescriptor = className + "->" + methodSignature;
+        BuilderMethod method = vm.getClassManager().getMethod(methodDescriptor);
+        DexBuilder dexBuilder = VMTester.getDexBuilder();
+        ExecutionGraph graph = VMTester.execute(vm, className, methodSignature, initial,
+                        new HashMap<String, Map<String, Object>>());
+
+        return new Optimizer(graph, method, vm, dexBuilder);
+    }
+
 }
@@ -0,0 +1,55 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.VMTester;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCallGraph {
+
+    private static final String CLASS_NAME = "Lcall_graph_test;";
+    private static final String CALLS_RECURSIVE = CLASS_NAME + "->callsRecursive()V";
+    private static final String RECURSIVE_A = CLASS_NAME + "->recursiveA()V";
+    private static final String RECURSIVE_B = CLASS_NAME + "->recursiveB()V";
+    private static final String LEAF = CLASS_NAME + "->leaf()V";
+
+    private CallGraph callGraph;
+
+    @Before
+    public void buildCallGraph() {
+        SmaliClassManager classManager = VMTester.getTestVM().getClassManager();
+        List<String> methodDescriptors = Arrays.asList(CALLS_RECURSIVE, RECURSIVE_A, RECURSIVE_B, LEAF);
+        callGraph = new CallGraph(classManager, methodDescriptors);
+    }
+
+    @Test
+    public void testNonLocalCallsAreIgnored() {
+        assertEquals(0, callGraph.getCallees(LEAF).size());
+    }
+
+    @Test
+    public void testCallersAreTracked() {
+        Set<String> expected = new HashSet<String>(Arrays.asList(CALLS_RECURSIVE, RECURSIVE_B));
+
+        assertEquals(expected, callGraph.getCallers(RECURSIVE_A));
+    }
+
+    @Test
+    public void testScheduleIsBottomUpWithRecursiveMethodsGrouped() {
+        List<List<String>> schedule = callGraph.getBottomUpSchedule();
+
+        assertEquals(3, schedule.size());
+        assertEquals(Arrays.asList(LEAF), schedule.get(0));
+        Set<String> recursive = new HashSet<String>(Arrays.asList(RECURSIVE_A, RECURSIVE_B));
+        assertEquals(recursive, new HashSet<String>(schedule.get(1)));
+        assertEquals(Arrays.asList(CALLS_RECURSIVE), schedule.get(2));
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.cf.simplify.RunReport.Status;
+import org.cf.smalivm.SmaliClassManager;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestCheckpointJournal {
+
+    private static final String CLASS_NAME = "Loptimizer_test;";
+    private static final String CATCH_THINGY = CLASS_NAME + "->CatchThingy()V";
+    private static final String SIMPLE_LOOP = CLASS_NAME + "->SimpleLoop()I";
+    private static final String TEST_DIRECTORY = "resources/test";
+
+    private static List<Opcode> getOpcodes(MethodImplementation implementation) {
+        List<Opcode> opcodes = new ArrayList<Opcode>();
+        for (Instruction instruction : implementation.getInstructions()) {
+            opcodes.add(instruction.getOpcode());
+        }
+
+        return opcodes;
+    }
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("checkpoint", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testResumedJournalHasFinishedMethodsAndDropsPartialRecord() throws IOException {
+        SmaliClassManager classManager = new SmaliClassManager(TEST_DIRECTORY, DexBuilder.makeDexBuilder());
+        CheckpointJournal journal = new CheckpointJournal(file, false);
+        journal.methodSimplified(CATCH_THINGY, classManager.getClass(CLASS_NAME),
+                        classManager.getMethod(CATCH_THINGY));
+        journal.methodCompleted(SIMPLE_LOOP, Status.FAILED);
+        journal.close();
+
+        // Killed while writing another record
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.writeInt(100);
+        raf.writeByte(Status.UNCHANGED.ordinal());
+        raf.close();
+
+        journal = new CheckpointJournal(file, true);
+        assertEquals(2, journal.getCompletedCount());
+        assertEquals(Status.SIMPLIFIED, journal.getStatus(CATCH_THINGY));
+        assertEquals(Status.FAILED, journal.getStatus(SIMPLE_LOOP));
+        assertEquals(1, journal.getMethodDefinitions().size());
+        assertTrue(journal.getMethodDefinitions().get(CATCH_THINGY).startsWith(".method public static CatchThingy()V"));
+
+        journal.methodCompleted("Lnew;->method()V", Status.UNCHANGED);
+        journal.close();
+        journal = new CheckpointJournal(file, true);
+        assertEquals(3, journal.getCompletedCount());
+        journal.close();
+
+        journal = new CheckpointJournal(file, false);
+        assertEquals(0, journal.getCompletedCount());
+        assertNull(journal.getStatus(CATCH_THINGY));
+        journal.close();
+    }
+
+    @Test
+    public void testRestoredDefinitionMatchesDisassembledMethod() throws IOException {
+        SmaliClassManager classManager = new SmaliClassManager(TEST_DIRECTORY, DexBuilder.makeDexBuilder());
+        BuilderMethod method = classManager.getMethod(CATCH_THINGY);
+        CheckpointJournal journal = new CheckpointJournal(file, false);
+        journal.methodSimplified(CATCH_THINGY, classManager.getClass(CLASS_NAME), method);
+        journal.close();
+
+        journal = new CheckpointJournal(file, true);
+        SmaliClassManager resumedClassManager = new SmaliClassManager(TEST_DIRECTORY, DexBuilder.makeDexBuilder());
+        resumedClassManager.setMethodDefinitions(journal.getMethodDefinitions());
+        journal.close();
+        BuilderMethod restored = resumedClassManager.getMethod(CATCH_THINGY);
+
+        assertEquals(getOpcodes(method.getImplementation()), getOpcodes(restored.getImplementation()));
+        assertEquals(1, restored.getImplementation().getTryBlocks().size());
+        assertEquals(method.getImplementation().getRegisterCount(), restored.getImplementation().getRegisterCount());
+    }
+
+}
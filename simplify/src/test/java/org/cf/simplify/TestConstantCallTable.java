@@ -0,0 +1,136 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.cf.simplify.strategy.ConstantPropigationStrategy;
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.VirtualMachine;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21c;
+import org.jf.dexlib2.iface.reference.StringReference;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestConstantCallTable {
+
+    private static final String CLASS_NAME = "Lconstant_call_table_test;";
+    private static final String DECRYPT = CLASS_NAME + "->decrypt(Ljava/lang/String;I)Ljava/lang/String;";
+    private static final String COUNT = CLASS_NAME + "->count(I)I";
+    private static final String STATIC_FIELD_CLASS_NAME = "Lconstant_call_table_static_field_test;";
+    private static final String ADD_KEY = STATIC_FIELD_CLASS_NAME + "->addKey(I)I";
+    private static final String ADD_OFFSET = STATIC_FIELD_CLASS_NAME + "->addOffset(I)I";
+    private static final String TEST_DIRECTORY = "resources/test";
+
+    private static ConstantCallTable evaluateCallTable(String className) throws InterruptedException {
+        SmaliClassManager classManager = getClassManager();
+        ConstantCallTable callTable = new ConstantCallTable(classManager);
+        callTable.scan(classManager.getMethodDescriptors(className));
+
+        ThreadLocal<VirtualMachine> vms = new ThreadLocal<VirtualMachine>() {
+            @Override
+            protected VirtualMachine initialValue() {
+                return new VirtualMachine(getClassManager());
+            }
+        };
+        callTable.evaluate(vms, 2);
+
+        return callTable;
+    }
+
+    private static SmaliClassManager getClassManager() {
+        try {
+            return new SmaliClassManager(TEST_DIRECTORY, DexBuilder.makeDexBuilder());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ConstantCallTable callTable;
+
+    @Before
+    public void setUp() throws InterruptedException {
+        callTable = evaluateCallTable(CLASS_NAME);
+    }
+
+    @Test
+    public void testDuplicateCallsAreEvaluatedOnce() {
+        ConstantCallTable.Invocation decrypt = new ConstantCallTable.Invocation(DECRYPT, new Object[] { "hello", 1 });
+        ConstantCallTable.Invocation count = new ConstantCallTable.Invocation(COUNT, new Object[] { 1 });
+
+        // The call after the branch doesn't have a constant first argument
+        assertEquals(3, callTable.getCallSiteCount());
+        assertEquals(2, callTable.getInvocations().size());
+        assertTrue(callTable.getInvocations().containsAll(Arrays.asList(decrypt, count)));
+    }
+
+    @Test
+    public void testResultsAreOnlyKeptForCallsWithoutSideEffects() {
+        assertEquals("HELLO", callTable.getResult(DECRYPT, new Object[] { "hello", 1 }));
+        assertNull(callTable.getResult(COUNT, new Object[] { 1 }));
+    }
+
+    @Test
+    public void testCallSitesAreReplacedWithResults() {
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, "CallsDecryptTwice()V");
+        ConstantPropigationStrategy strategy = new ConstantPropigationStrategy(mbgraph, callTable);
+        strategy.perform();
+
+        // const-string v0, "hello"; const/4 v1, 0x1; const-string v0, "HELLO"; const-string v0, "hello";
+        // const-string v1, "HELLO"; return-void
+        BuilderInstruction21c first = (BuilderInstruction21c) mbgraph.getInstruction(3);
+        assertEquals(Opcode.CONST_STRING, first.getOpcode());
+        assertEquals(0, first.getRegisterA());
+        assertEquals("HELLO", ((StringReference) first.getReference()).getString());
+
+        BuilderInstruction21c second = (BuilderInstruction21c) mbgraph.getInstruction(7);
+        assertEquals(Opcode.CONST_STRING, second.getOpcode());
+        assertEquals(1, second.getRegisterA());
+        assertEquals("HELLO", ((StringReference) second.getReference()).getString());
+        assertEquals(Opcode.RETURN_VOID, mbgraph.getInstruction(9).getOpcode());
+    }
+
+    @Test
+    public void testStaticFieldReadsAreFound() throws InterruptedException {
+        ConstantCallTable staticFieldCallTable = evaluateCallTable(STATIC_FIELD_CLASS_NAME);
+
+        assertTrue(staticFieldCallTable.readsMutableStaticFields(ADD_KEY));
+        assertFalse(staticFieldCallTable.readsMutableStaticFields(ADD_OFFSET));
+        assertFalse(callTable.readsMutableStaticFields(DECRYPT));
+    }
+
+    @Test
+    public void testResultsDifferentFromGraphAreNotFolded() throws InterruptedException {
+        ConstantCallTable staticFieldCallTable = evaluateCallTable(STATIC_FIELD_CLASS_NAME);
+        // Evaluated with key = 0
+        assertEquals(1, staticFieldCallTable.getResult(ADD_KEY, new Object[] { 1 }));
+
+        // const/4 v0, 0x2; sput v0, key; const/4 v1, 0x1; invoke-static {v1}, addKey(I)I; move-result v1
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(STATIC_FIELD_CLASS_NAME,
+                        "CallsAddKeyAfterSettingKey()I");
+        new ConstantPropigationStrategy(mbgraph, staticFieldCallTable).perform();
+
+        assertEquals(Opcode.INVOKE_STATIC, mbgraph.getInstruction(4).getOpcode());
+        assertEquals(3, mbgraph.getRegisterConsensus(7, 1));
+    }
+
+    @Test
+    public void testResultsDependingOnUnknownStaticFieldsAreNotFolded() throws InterruptedException {
+        ConstantCallTable staticFieldCallTable = evaluateCallTable(STATIC_FIELD_CLASS_NAME);
+
+        // sput p0, key; const/4 v1, 0x1; invoke-static {v1}, addKey(I)I; move-result v1
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(STATIC_FIELD_CLASS_NAME,
+                        "CallsAddKeyAfterSettingUnknownKey(I)I");
+        new ConstantPropigationStrategy(mbgraph, staticFieldCallTable).perform();
+
+        assertEquals(Opcode.INVOKE_STATIC, mbgraph.getInstruction(3).getOpcode());
+        assertEquals(Opcode.MOVE_RESULT, mbgraph.getInstruction(6).getOpcode());
+    }
+
+}
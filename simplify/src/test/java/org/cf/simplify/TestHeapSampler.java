@@ -0,0 +1,33 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestHeapSampler {
+
+    private static final int ALLOCATION_SIZE = 32 * 1024 * 1024;
+
+    @Test
+    public void testPeakIsZeroBeforeStarting() {
+        HeapSampler sampler = new HeapSampler();
+
+        assertEquals(0, sampler.getPeakBytes());
+        assertFalse(sampler.isRunning());
+    }
+
+    @Test
+    public void testPeakIsKeptAfterStopping() {
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        byte[] allocation = new byte[ALLOCATION_SIZE];
+        sampler.sample();
+        sampler.stop();
+
+        assertTrue(allocation.length + " allocated", sampler.getPeakBytes() >= ALLOCATION_SIZE);
+        assertFalse(sampler.isRunning());
+    }
+
+}
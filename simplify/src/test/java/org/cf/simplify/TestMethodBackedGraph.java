@@ -0,0 +1,153 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionGraphReader;
+import org.cf.smalivm.context.ExecutionGraphWriter;
+import org.cf.smalivm.context.ExecutionNode;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction10x;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11n;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction21s;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction22b;
+import org.junit.Test;
+
+public class TestMethodBackedGraph {
+
+    private static final String CLASS_NAME = "Ldead_detector_test;";
+
+    private static void assertAddressesMatchImplementation(MethodBackedGraph mbgraph, int[] expected) {
+        int[] addresses = mbgraph.getAddressToInstruction().keys();
+        Arrays.sort(addresses);
+        assertArrayEquals(expected, addresses);
+
+        int[] nodeAddresses = mbgraph.getAddresses();
+        Arrays.sort(nodeAddresses);
+        assertArrayEquals(expected, nodeAddresses);
+
+        for (int address : addresses) {
+            BuilderInstruction instruction = mbgraph.getInstruction(address);
+            assertEquals(address, instruction.getLocation().getCodeAddress());
+            assertEquals(instruction.getOpcode().name, mbgraph.getOp(address).getName());
+        }
+    }
+
+    @Test
+    public void testBatchedRemovalsShiftAddresses() {
+        // const/4 v0, 0x1; if-gtz v0, :return; const/4 v0, 0x1; :return const/4 v1, 0x1; return v0
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, "DeadOpWithLabel()I");
+        mbgraph.removeInstructions(new TIntArrayList(new int[] { 3, 4 }));
+
+        assertAddressesMatchImplementation(mbgraph, new int[] { 0, 1, 3 });
+        assertEquals(Opcode.RETURN, mbgraph.getInstruction(3).getOpcode());
+    }
+
+    @Test
+    public void testBatchedRemoveReplaceAndInsert() {
+        // const/4 v0, 0x1; const/4 v0, 0x2; return v0
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, "UnusedAssignment()I");
+        InstructionEdits edits = new InstructionEdits();
+        edits.remove(0);
+        edits.replace(1, new BuilderInstruction21s(Opcode.CONST_16, 0, 2));
+        edits.insert(2, new BuilderInstruction10x(Opcode.NOP));
+        mbgraph.applyEdits(edits);
+
+        assertAddressesMatchImplementation(mbgraph, new int[] { 0, 2, 3 });
+        assertEquals(Opcode.CONST_16, mbgraph.getInstruction(0).getOpcode());
+        assertEquals(Opcode.NOP, mbgraph.getInstruction(2).getOpcode());
+        assertEquals(Opcode.RETURN, mbgraph.getInstruction(3).getOpcode());
+
+        // Everything downstream of the edits is executed again, including the inserted instruction
+        TIntList reached = mbgraph.getReachedAddresses();
+        reached.sort();
+        assertEquals(new TIntArrayList(new int[] { 0, 2, 3 }), reached);
+    }
+
+    @Test
+    public void testReplacementReexecutesOnlyDownstreamNodes() {
+        // const/4 v0, 0x1; const/4 v0, 0x2; return v0
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, "UnusedAssignment()I");
+        ExecutionNode upstream = mbgraph.getNodePile(0).get(0);
+        ExecutionNode downstream = mbgraph.getNodePile(2).get(0);
+        mbgraph.replaceInstruction(1, new BuilderInstruction11n(Opcode.CONST_4, 0, 5));
+
+        assertSame(upstream, mbgraph.getNodePile(0).get(0));
+        assertEquals(1, mbgraph.getNodePile(2).size());
+        assertNotSame(downstream, mbgraph.getNodePile(2).get(0));
+        assertEquals(5, mbgraph.getRegisterConsensus(2, 0));
+    }
+
+    @Test
+    public void testShiftedOpsKeepSideEffectLevels() {
+        // goto :body; :tail add-int/lit8 v0, v0, 0x1; return v0;
+        // :body const/4 v0, 0x1; invoke-static {v0}, Integer;->valueOf(I); move-result-object v1; goto :tail
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, "InvokeBeforeShiftedCode()I");
+        assertEquals(SideEffect.Level.NONE, mbgraph.getOp(5).sideEffectLevel());
+
+        // Only the tail is executed again, but the invoke moves up a code unit
+        mbgraph.replaceInstruction(1, new BuilderInstruction11n(Opcode.CONST_4, 0, 2));
+
+        assertEquals(Opcode.INVOKE_STATIC, mbgraph.getInstruction(4).getOpcode());
+        assertEquals(SideEffect.Level.NONE, mbgraph.getOp(4).sideEffectLevel());
+        assertEquals(SideEffect.Level.NONE, mbgraph.getHighestSideEffectLevel());
+        assertArrayEquals(new int[] { 3 }, mbgraph.getOp(0).getPossibleChildren());
+        assertEquals(2, mbgraph.getRegisterConsensus(2, 0));
+    }
+
+    @Test
+    public void testGraphIsStaleIfReexecutingHitsVisitLimit() {
+        // const/4 v0, 0x2; :loop add-int/lit8 v0, v0, -0x1; if-gtz v0, :loop; return v0
+        String methodDescriptor = CLASS_NAME + "->CountDown()I";
+        VirtualMachine vm = new VirtualMachine(VMTester.getTestVM().getClassManager(), 3, 10, 100);
+        MethodBackedGraph mbgraph = new MethodBackedGraph(vm.execute(methodDescriptor), vm.getClassManager()
+                        .getMethod(methodDescriptor), vm, VMTester.getDexBuilder());
+        assertFalse(mbgraph.isStale());
+
+        mbgraph.replaceInstruction(0, new BuilderInstruction11n(Opcode.CONST_4, 0, 7));
+        assertTrue(mbgraph.isStale());
+
+        // Later edits would be based on a partial graph
+        mbgraph.replaceInstruction(1, new BuilderInstruction22b(Opcode.ADD_INT_LIT8, 0, 0, -2));
+        assertEquals(Opcode.ADD_INT_LIT8, mbgraph.getInstruction(1).getOpcode());
+        assertEquals(-1, ((BuilderInstruction22b) mbgraph.getInstruction(1)).getNarrowLiteral());
+    }
+
+    @Test
+    public void testGraphLoadedFromSavedGraphCanBeEdited() throws IOException {
+        // const/4 v0, 0x1; const/4 v0, 0x2; return v0
+        String methodDescriptor = CLASS_NAME + "->UnusedAssignment()I";
+        VirtualMachine vm = VMTester.getTestVM();
+        File file = File.createTempFile("graphs", ".bin");
+        try {
+            ExecutionGraphWriter writer = new ExecutionGraphWriter(file);
+            writer.write(vm.execute(methodDescriptor));
+            writer.close();
+
+            ExecutionGraphReader reader = new ExecutionGraphReader(file);
+            MethodBackedGraph mbgraph = new MethodBackedGraph(reader, methodDescriptor, vm, VMTester.getDexBuilder());
+            reader.close();
+            assertEquals(2, mbgraph.getRegisterConsensus(2, 0));
+
+            mbgraph.replaceInstruction(1, new BuilderInstruction11n(Opcode.CONST_4, 0, 5));
+            assertEquals(5, mbgraph.getRegisterConsensus(2, 0));
+        } finally {
+            file.delete();
+        }
+    }
+
+}
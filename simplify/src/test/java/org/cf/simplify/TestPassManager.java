@@ -0,0 +1,92 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.simplify.strategy.DeadRemovalStrategy;
+import org.cf.simplify.strategy.OptimizationStrategy;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestPassManager {
+
+    private static final String CLASS_NAME = "Ldead_detector_test;";
+
+    private static class RecordingStrategy implements OptimizationStrategy {
+
+        private final List<TIntSet> worklists = new ArrayList<TIntSet>();
+
+        @Override
+        public Map<String, Integer> getOptimizationCounts() {
+            return new HashMap<String, Integer>();
+        }
+
+        @Override
+        public boolean perform() {
+            return false;
+        }
+
+        @Override
+        public boolean perform(TIntSet addresses) {
+            worklists.add(new TIntHashSet(addresses));
+
+            return false;
+        }
+
+    }
+
+    private MethodBackedGraph mbgraph;
+    private PassManager passManager;
+    private RecordingStrategy recorder;
+
+    @Before
+    public void setUp() {
+        // const/4 v0, 0x1; const/4 v0, 0x2; return v0
+        mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, "UnusedAssignment()I");
+        passManager = new PassManager(mbgraph);
+        recorder = new RecordingStrategy();
+        passManager.register(recorder);
+        passManager.register(new DeadRemovalStrategy(mbgraph));
+    }
+
+    @Test
+    public void testStrategiesRunUntilConverged() {
+        boolean madeChanges = passManager.run(100);
+
+        assertTrue(madeChanges);
+        PassManager.PassStatistics statistics = passManager.getStatistics().get("DeadRemovalStrategy");
+        assertEquals(2, statistics.getRunCount());
+        assertEquals(1, statistics.getChangeCount());
+        assertEquals(1, (int) passManager.getOptimizationCounts().get("deadAssignment"));
+    }
+
+    @Test
+    public void testWorklistHoldsOnlyChangedAddresses() {
+        passManager.run(100);
+
+        assertEquals(2, recorder.worklists.size());
+        assertEquals(new TIntHashSet(new int[] { 0, 1, 2 }), recorder.worklists.get(0));
+        // Dead assignment @0 removed, everything after it re-addressed and re-executed
+        assertEquals(new TIntHashSet(new int[] { 0, 1 }), recorder.worklists.get(1));
+    }
+
+    @Test
+    public void testConvergedStrategiesAreSkipped() {
+        passManager.run(100);
+        boolean madeChanges = passManager.run(100);
+
+        assertFalse(madeChanges);
+        assertEquals(2, recorder.worklists.size());
+        assertEquals(1, passManager.getStatistics().get("RecordingStrategy").getSkipCount());
+        assertEquals(1, passManager.getStatistics().get("DeadRemovalStrategy").getSkipCount());
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.cf.simplify;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.cf.simplify.RunReport.MethodResult;
+import org.cf.simplify.RunReport.Status;
+import org.junit.Test;
+
+public class TestRunReport {
+
+    private static final String METHOD = "Lfoo;->bar(Ljava/lang/String;)V";
+
+    private static MethodResult buildSimplifiedResult() {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        counts.put("constants", 2);
+        counts.put("dead", 1);
+
+        return new MethodResult(METHOD, Status.SIMPLIFIED, null, 10, 8, 1500000, 500000, counts);
+    }
+
+    @Test
+    public void testMethodResultJson() {
+        String expected = "{\"method\":\"Lfoo;->bar(Ljava/lang/String;)V\",\"status\":\"simplified\",\"visits\":10,"
+                        + "\"nodes\":8,\"executeMs\":1.500,\"optimizeMs\":0.500,"
+                        + "\"optimizations\":{\"constants\":2,\"dead\":1}}";
+
+        assertEquals(expected, buildSimplifiedResult().toJson());
+    }
+
+    @Test
+    public void testFailedResultHasEscapedReason() {
+        MethodResult result = new MethodResult(METHOD, Status.FAILED, "gave up on \"loop\"", 501, 0, 0, 0,
+                        Collections.<String, Integer> emptyMap());
+
+        assertTrue(result.toJson().contains(",\"status\":\"failed\",\"reason\":\"gave up on \\\"loop\\\"\","));
+    }
+
+    @Test
+    public void testReportKeepsResultsUntilFinished() throws Exception {
+        RunReport report = new RunReport(null);
+        report.add(buildSimplifiedResult());
+        StringWriter writer = new StringWriter();
+        report.finish(writer, new RunStatistics(), 3);
+
+        String json = writer.toString();
+        assertTrue(json.startsWith("{\"totals\":{\"classesLoaded\":3,"));
+        assertTrue(json.endsWith(",\"methods\":[" + buildSimplifiedResult().toJson() + "]}\n"));
+    }
+
+    @Test
+    public void testStreamedReportWritesLinePerMethodThenTotals() throws Exception {
+        StringWriter writer = new StringWriter();
+        RunReport report = new RunReport(writer);
+        report.add(buildSimplifiedResult());
+        report.add(buildSimplifiedResult());
+        report.finish(writer, new RunStatistics(), 3);
+
+        String[] lines = writer.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertEquals(buildSimplifiedResult().toJson(), lines[0]);
+        assertTrue(lines[2].startsWith("{\"totals\":"));
+        assertTrue(!lines[2].contains("\"methods\""));
+        assertEquals(0, report.getResults().size());
+    }
+
+}
@@ -1,5 +1,6 @@
 package org.cf.simplify.strategy;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -12,6 +13,7 @@ import org.cf.simplify.MethodBackedGraph;
 import org.cf.simplify.OptimizerTester;
 import org.cf.smalivm.VMTester;
 import org.cf.smalivm.type.UnknownValue;
+import org.jf.dexlib2.Opcode;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
@@ -33,6 +35,15 @@ public class TestConstantPropigationStrategy {
                 fail("Exception occured while building constants : " + exception);
             }
         }
+
+        @Test
+        public void testNegativeLiteralsUseSmallestConstOp() {
+            assertEquals(Opcode.CONST_4, ConstantPropigationStrategy.buildConstant(-8, 0).getOpcode());
+            assertEquals(Opcode.CONST_16, ConstantPropigationStrategy.buildConstant(-9, 0).getOpcode());
+            assertEquals(Opcode.CONST, ConstantPropigationStrategy.buildConstant(-564294090, 0).getOpcode());
+            assertEquals(Opcode.CONST_WIDE_16, ConstantPropigationStrategy.buildConstant(-32768L, 0).getOpcode());
+            assertEquals(Opcode.CONST_WIDE, ConstantPropigationStrategy.buildConstant(Long.MIN_VALUE, 0).getOpcode());
+        }
     }
 
     public static class WithKnownValues {
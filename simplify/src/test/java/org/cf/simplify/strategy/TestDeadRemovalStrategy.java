@@ -1,6 +1,8 @@
 package org.cf.simplify.strategy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 
@@ -40,6 +42,29 @@ public class TestDeadRemovalStrategy {
         assertEquals(expected, found);
     }
 
+    @Test
+    public void testAssignmentReadOnOneBranchIsNotRemoved() {
+        String methodSignature = "AssignmentReadOnOneBranch(I)I";
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, methodSignature);
+        DeadRemovalStrategy strategy = new DeadRemovalStrategy(mbgraph);
+        TIntList found = strategy.getDeadAssignmentAddresses();
+        TIntList expected = new TIntArrayList(new int[] {});
+
+        assertEquals(expected, found);
+    }
+
+    @Test
+    public void testRegisterLivenessFollowsTakenBranches() {
+        String methodSignature = "AssignmentReadOnOneBranch(I)I";
+        MethodBackedGraph mbgraph = OptimizerTester.getMethodBackedGraph(CLASS_NAME, methodSignature);
+        RegisterLiveness liveness = new RegisterLiveness(mbgraph);
+
+        assertTrue(liveness.isLiveOut(0, 0));
+        assertTrue(liveness.isLiveOut(1, 0));
+        assertFalse(liveness.isLiveOut(3, 0));
+        assertTrue(liveness.isLiveOut(4, 0));
+    }
+
     @Test
     public void testUnusedResultNoSideEffectsRemovesInvoke() {
         String methodSignature = "UnusedResultNoSideEffects()I";
@@ -6,7 +6,9 @@ import gnu.trove.map.TIntObjectMap;
 import java.lang.reflect.Method;
 
 import org.cf.simplify.MethodBackedGraph;
+import org.cf.simplify.Optimizer;
 import org.cf.simplify.OptimizerTester;
+import org.cf.simplify.PassManager;
 import org.cf.smalivm.VMTester;
 import org.cf.smalivm.opcode.Op;
 import org.cf.smalivm.type.UninitializedInstance;
@@ -151,4 +153,39 @@ public class TestPeepholeStrategy {
         }
     }
 
+    public static class TestStringValueOf {
+        private static final String METHOD_NAME = "StringValueOf()V";
+        private static final int ADDRESS = 0;
+
+        @Test
+        public void testStringValueOfWithKnownValueIsReplaced() {
+            MethodBackedGraph mbgraph = getOptimizedGraph(METHOD_NAME, 0, 42);
+
+            BuilderInstruction21c instruction = (BuilderInstruction21c) mbgraph.getInstruction(ADDRESS);
+            assertEquals(Opcode.CONST_STRING, instruction.getOpcode());
+            assertEquals(0, instruction.getRegisterA());
+            assertEquals("42", ((StringReference) instruction.getReference()).getString());
+            // The move-result is folded into the constant
+            assertEquals(Opcode.RETURN_VOID, mbgraph.getInstruction(ADDRESS + instruction.getCodeUnits()).getOpcode());
+        }
+
+        @Test
+        public void testStringValueOfIsPeepedByOptimizer() {
+            TIntObjectMap<Object> initial = VMTester.buildRegisterState(0, 42);
+            Optimizer optimizer = OptimizerTester.getOptimizer(CLASS_NAME, METHOD_NAME, initial);
+            PassManager passManager = optimizer.getPassManager();
+            passManager.run(100);
+
+            assertEquals(1, (int) passManager.getOptimizationCounts().get("peeps"));
+            assertEquals(0, (int) passManager.getOptimizationCounts().get("constants"));
+        }
+
+        @Test
+        public void testStringValueOfWithUnknownValueIsNotReplaced() {
+            MethodBackedGraph mbgraph = getOptimizedGraph(METHOD_NAME, 0, new UnknownValue("I"));
+
+            assertEquals(Opcode.INVOKE_STATIC, mbgraph.getInstruction(ADDRESS).getOpcode());
+        }
+    }
+
 }
@@ -0,0 +1,41 @@
+package org.cf.smalivm;
+
+import gnu.trove.map.TIntObjectMap;
+
+import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.opcode.Op;
+
+/**
+ * Builds contexts and ops for benchmarks from the smali fixtures in resources/test. Benchmarks must run with the project
+ * directory as the working directory.
+ *
+ * @author cfenton
+ *
+ */
+public class BenchmarkFixtures {
+
+    /**
+     * @param vm
+     * @param methodDescriptor
+     * @param registersAndValues
+     *            register, value, register, value, ...
+     * @return root context of the method with the given register values
+     */
+    public static ExecutionContext buildContext(VirtualMachine vm, String methodDescriptor,
+                    Object... registersAndValues) {
+        ExecutionContext ectx = vm.getRootExecutionContext(methodDescriptor);
+        MethodState mState = ectx.getMethodState();
+        TIntObjectMap<Object> registerToValue = VMTester.buildRegisterState(registersAndValues);
+        for (int register : registerToValue.keys()) {
+            mState.assignRegister(register, registerToValue.get(register));
+        }
+
+        return ectx;
+    }
+
+    public static Op getOp(VirtualMachine vm, String methodDescriptor, int address) {
+        return vm.getInstructionGraphClone(methodDescriptor).getOp(address);
+    }
+
+}
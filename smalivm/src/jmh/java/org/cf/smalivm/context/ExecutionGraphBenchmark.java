@@ -0,0 +1,63 @@
+package org.cf.smalivm.context;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cloning, executing and querying graphs. The compared registers are unknown, so both branches are taken.
+ *
+ * @author cfenton
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ExecutionGraphBenchmark {
+
+    private static final String METHOD = "Lif_test;->IfEqual()V";
+
+    private VirtualMachine vm;
+    private ExecutionGraph executed;
+
+    @Setup
+    public void setUp() {
+        vm = VMTester.getTestVM();
+        executed = vm.execute(METHOD);
+    }
+
+    @Benchmark
+    public ExecutionGraph cloneTemplate() {
+        return vm.getInstructionGraphClone(METHOD);
+    }
+
+    @Benchmark
+    public ExecutionGraph cloneExecuted() {
+        return new ExecutionGraph(executed);
+    }
+
+    @Benchmark
+    public ExecutionGraph execute() {
+        return vm.execute(METHOD);
+    }
+
+    @Benchmark
+    public Object registerConsensus() {
+        return executed.getTerminatingRegisterConsensus(0);
+    }
+
+}
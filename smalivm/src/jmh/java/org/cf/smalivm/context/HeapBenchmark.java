@@ -0,0 +1,62 @@
+package org.cf.smalivm.context;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cf.smalivm.BenchmarkFixtures;
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Register reads and writes from the end of a chain of child contexts, where the value being read was only assigned in
+ * the root context. Each op gets a child context, so the depth is the number of ops executed since the assignment.
+ *
+ * @author cfenton
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HeapBenchmark {
+
+    private static final String METHOD = "Lbinary_math_test;->AddInt()V";
+
+    @Param({ "1", "10", "100", "1000" })
+    public int depth;
+
+    private MethodState leaf;
+
+    @Setup
+    public void setUp() {
+        VirtualMachine vm = VMTester.getTestVM();
+        ExecutionContext ectx = BenchmarkFixtures.buildContext(vm, METHOD, 0, 7);
+        for (int i = 0; i < depth; i++) {
+            ectx = ectx.getChild();
+        }
+        leaf = ectx.getMethodState();
+    }
+
+    @Benchmark
+    public Object getFromRoot() {
+        return leaf.peekRegister(0);
+    }
+
+    @Benchmark
+    public void setAtLeaf() {
+        leaf.pokeRegister(1, 11);
+    }
+
+}
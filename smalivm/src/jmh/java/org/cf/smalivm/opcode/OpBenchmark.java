@@ -0,0 +1,102 @@
+package org.cf.smalivm.opcode;
+
+import java.util.concurrent.TimeUnit;
+
+import org.cf.smalivm.BenchmarkFixtures;
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to execute a single op. Every op is executed in a fresh child context, the same as during method execution, so
+ * {@link #spawnContext()} is the baseline to subtract.
+ *
+ * @author cfenton
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OpBenchmark {
+
+    private static final String BINARY_MATH = "Lbinary_math_test;->AddInt()V";
+    private static final String INVOKE = "Linvoke_static_test;->InvokeReturnParameter()V";
+    private static final String AGET = "Laget_test;->TestArrayGet()V";
+    private static final String APUT = "Laput_test;->TestArrayPut()V";
+    private static final String IF = "Lif_test;->IfEqual()V";
+
+    private ExecutionContext binaryMathContext;
+    private MethodStateOp binaryMathOp;
+    private ExecutionContext invokeContext;
+    private ExecutionContextOp invokeOp;
+    private ExecutionContext agetContext;
+    private MethodStateOp agetOp;
+    private ExecutionContext aputContext;
+    private MethodStateOp aputOp;
+    private ExecutionContext ifContext;
+    private MethodStateOp ifOp;
+
+    @Setup
+    public void setUp() {
+        VirtualMachine vm = VMTester.getTestVM();
+
+        binaryMathContext = BenchmarkFixtures.buildContext(vm, BINARY_MATH, 0, 7, 1, 11);
+        binaryMathOp = (MethodStateOp) BenchmarkFixtures.getOp(vm, BINARY_MATH, 0);
+
+        invokeContext = BenchmarkFixtures.buildContext(vm, INVOKE, 0, 42);
+        invokeOp = (ExecutionContextOp) BenchmarkFixtures.getOp(vm, INVOKE, 0);
+
+        agetContext = BenchmarkFixtures.buildContext(vm, AGET, 0, new int[] { 1, 2, 3 }, 1, 2);
+        agetOp = (MethodStateOp) BenchmarkFixtures.getOp(vm, AGET, 0);
+
+        aputContext = BenchmarkFixtures.buildContext(vm, APUT, 0, new int[] { 1, 2, 3 }, 1, 2, 2, 4);
+        aputOp = (MethodStateOp) BenchmarkFixtures.getOp(vm, APUT, 0);
+
+        ifContext = BenchmarkFixtures.buildContext(vm, IF, 0, 3, 1, 3);
+        ifOp = (MethodStateOp) BenchmarkFixtures.getOp(vm, IF, 0);
+    }
+
+    @Benchmark
+    public ExecutionContext spawnContext() {
+        return binaryMathContext.getChild();
+    }
+
+    @Benchmark
+    public int[] binaryMath() {
+        return binaryMathOp.execute(binaryMathContext.getChild().getMethodState());
+    }
+
+    @Benchmark
+    public int[] invoke() {
+        return invokeOp.execute(invokeContext.getChild());
+    }
+
+    @Benchmark
+    public int[] arrayGet() {
+        return agetOp.execute(agetContext.getChild().getMethodState());
+    }
+
+    @Benchmark
+    public int[] arrayPut() {
+        return aputOp.execute(aputContext.getChild().getMethodState());
+    }
+
+    @Benchmark
+    public int[] ifCompare() {
+        return ifOp.execute(ifContext.getChild().getMethodState());
+    }
+
+}
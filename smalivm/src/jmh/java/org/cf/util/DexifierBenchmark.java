@@ -0,0 +1,43 @@
+package org.cf.util;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.jf.dexlib2.writer.builder.BuilderClassDef;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parsing smali fixtures into class definitions.
+ *
+ * @author cfenton
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DexifierBenchmark {
+
+    private static final String FIXTURE_DIRECTORY = "resources/test/smalivm/";
+
+    @Param({ "ops/binary_math_test.smali", "ops/invoke_static_test.smali", "side_effects_test.smali" })
+    public String fixture;
+
+    @Benchmark
+    public BuilderClassDef dexify() throws Exception {
+        return Dexifier.dexifySmaliFile(new File(FIXTURE_DIRECTORY + fixture), DexBuilder.makeDexBuilder());
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.cf.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of Flight Recorder events when nothing is recording, which is every run without -XX:StartFlightRecording. Run
+ * with the GC profiler, e.g. gradle :smalivm:jmh -Pjmh.include=FlightRecorderEventBenchmark -Pjmh.args="-prof gc".
+ * {@link #begin()} should show a gc.alloc.rate.norm of 0 B/op, the same as {@link #notDefined()}.
+ *
+ * @author cfenton
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FlightRecorderEventBenchmark {
+
+    private static final FlightRecorderEvent.Type EVENT = FlightRecorderEvent.define(
+                    "org.cf.util.BenchmarkEvent", "Benchmark Event", new String[] { "methodDescriptor", "callDepth" },
+                    new Class<?>[] { String.class, int.class });
+
+    private int callDepth;
+
+    @Benchmark
+    public boolean begin() {
+        FlightRecorderEvent event = EVENT.begin();
+        if (event.isEnabled()) {
+            event.commit("Lbenchmark;->method()V", callDepth);
+        }
+
+        return event.isEnabled();
+    }
+
+    @Benchmark
+    public int notDefined() {
+        return callDepth;
+    }
+
+}
@@ -0,0 +1,79 @@
+package org.cf.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cost of trace statements when trace logging is off, as with simplify -q. Run with the GC profiler to see allocations,
+ * e.g. gradle :smalivm:jmh -Pjmh.include=TracingBenchmark -Pjmh.args="-prof gc". Every guarded form should show a
+ * gc.alloc.rate.norm of 0 B/op; {@link #unguarded()} is how messages were built before they were guarded.
+ *
+ * Fork with -Dsimplify.tracing=false to compare against the static gate being off.
+ *
+ * @author cfenton
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TracingBenchmark {
+
+    private static final Logger log = LoggerFactory.getLogger(TracingBenchmark.class.getSimpleName());
+
+    private int register;
+    private Object value;
+
+    @Setup
+    public void setUp() {
+        register = 3;
+        value = new int[] { 1, 2, 3 };
+    }
+
+    @Benchmark
+    public int gated() {
+        if (Tracing.ENABLED && log.isTraceEnabled()) {
+            log.trace("Setting " + register + " = " + value);
+        }
+
+        return register;
+    }
+
+    @Benchmark
+    public int levelChecked() {
+        if (log.isTraceEnabled()) {
+            log.trace("Setting " + register + " = " + value);
+        }
+
+        return register;
+    }
+
+    @Benchmark
+    public int parameterized() {
+        log.trace("Setting {} = {}", register, value);
+
+        return register;
+    }
+
+    @Benchmark
+    public int unguarded() {
+        log.trace("Setting " + register + " = " + value);
+
+        return register;
+    }
+
+}
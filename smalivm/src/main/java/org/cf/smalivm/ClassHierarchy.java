@@ -0,0 +1,237 @@
+package org.cf.smalivm;
+
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.cf.smalivm.symbol.TypeSymbol;
+import org.cf.util.SmaliClassUtils;
+import org.jf.dexlib2.writer.builder.BuilderClassDef;
+
+/**
+ * Index of the class hierarchy seen by a class manager. The supertype closure of each type is computed once, the first
+ * time it's needed, and stored as a bit set of type symbol IDs so subtype checks are a single bit test. Virtual method
+ * dispatch candidates are likewise computed once per receiver type and method signature.
+ *
+ * @author cfenton
+ *
+ */
+public class ClassHierarchy {
+
+    private static final TypeSymbol[] NO_PARENTS = new TypeSymbol[0];
+
+    private static class Supertypes {
+
+        private final BitSet ids;
+        private final String unknownAncestor;
+
+        private Supertypes(BitSet ids, String unknownAncestor) {
+            this.ids = ids;
+            this.unknownAncestor = unknownAncestor;
+        }
+
+    }
+
+    private final SmaliClassManager classManager;
+    private final SymbolTable symbolTable;
+    private final TIntObjectMap<TypeSymbol[]> typeIdToParents;
+    private final TIntObjectMap<Supertypes> typeIdToSupertypes;
+    private final TIntObjectMap<Map<String, MethodSymbol[]>> typeIdToDispatchTable;
+
+    ClassHierarchy(SmaliClassManager classManager) {
+        this.classManager = classManager;
+        symbolTable = classManager.getSymbolTable();
+        typeIdToParents = new TIntObjectHashMap<TypeSymbol[]>();
+        typeIdToSupertypes = new TIntObjectHashMap<Supertypes>();
+        typeIdToDispatchTable = new TIntObjectHashMap<Map<String, MethodSymbol[]>>();
+    }
+
+    /**
+     * Get every method which could be the target of a virtual call, in the order they should be tried. Dispatch walks
+     * up from the receiver type through local classes, superclass first, and stops at the first local method with an
+     * implementation. Non-local classes can't be walked any further, so their methods are included as candidates which
+     * must be confirmed by the caller, e.g. with reflection.
+     *
+     * @param receiverType
+     * @param methodSignature
+     *            e.g. method(I)V
+     * @return dispatch candidates, most specific first
+     */
+    public MethodSymbol[] getDispatchCandidates(TypeSymbol receiverType, String methodSignature) {
+        Map<String, MethodSymbol[]> dispatchTable = typeIdToDispatchTable.get(receiverType.getId());
+        if (dispatchTable == null) {
+            dispatchTable = new HashMap<String, MethodSymbol[]>();
+            typeIdToDispatchTable.put(receiverType.getId(), dispatchTable);
+        }
+
+        MethodSymbol[] candidates = dispatchTable.get(methodSignature);
+        if (candidates == null) {
+            candidates = buildDispatchCandidates(receiverType, methodSignature);
+            dispatchTable.put(methodSignature, candidates);
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Get the direct supertypes of a type: the superclass, if any, followed by the interfaces.
+     *
+     * @param type
+     * @return direct supertypes, or null if the type isn't local and can't be found with reflection
+     */
+    public TypeSymbol[] getParents(TypeSymbol type) {
+        if (typeIdToParents.containsKey(type.getId())) {
+            return typeIdToParents.get(type.getId());
+        }
+
+        TypeSymbol[] parents = buildParents(type);
+        typeIdToParents.put(type.getId(), parents);
+
+        return parents;
+    }
+
+    /**
+     * Array types and primitives are compared by their base (wrapper) types.
+     *
+     * @param childType
+     * @param targetType
+     * @return true if childType is targetType or any of its subtypes
+     * @throws UnknownAncestors
+     *             if targetType wasn't found and the ancestry of childType is incomplete
+     */
+    public boolean isInstance(TypeSymbol childType, TypeSymbol targetType) throws UnknownAncestors {
+        TypeSymbol baseChild = getBaseObjectType(childType);
+        TypeSymbol baseTarget = getBaseObjectType(targetType);
+        Supertypes supertypes = getSupertypes(baseChild);
+        if (supertypes.ids.get(baseTarget.getId())) {
+            return true;
+        }
+
+        if (supertypes.unknownAncestor != null) {
+            throw new UnknownAncestors(supertypes.unknownAncestor);
+        }
+
+        return false;
+    }
+
+    private MethodSymbol[] buildDispatchCandidates(TypeSymbol receiverType, String methodSignature) {
+        List<MethodSymbol> candidates = new ArrayList<MethodSymbol>();
+        addDispatchCandidates(receiverType, methodSignature, candidates, new HashSet<TypeSymbol>());
+
+        return candidates.toArray(new MethodSymbol[candidates.size()]);
+    }
+
+    private boolean addDispatchCandidates(TypeSymbol type, String methodSignature, List<MethodSymbol> candidates,
+                    Set<TypeSymbol> visited) {
+        visited.add(type);
+        MethodSymbol candidate = symbolTable.getMethod(type.getName(), methodSignature);
+        candidates.add(candidate);
+        if (classManager.isLocalMethod(candidate) && classManager.methodHasImplementation(candidate)) {
+            // Nothing above this can be reached.
+            return true;
+        }
+
+        if (!classManager.isLocalClass(type)) {
+            // Can't trace any further up.
+            return false;
+        }
+
+        for (TypeSymbol parent : getParents(type)) {
+            if (visited.contains(parent)) {
+                continue;
+            }
+            if (addDispatchCandidates(parent, methodSignature, candidates, visited)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private TypeSymbol[] buildParents(TypeSymbol type) {
+        List<String> parentNames = new ArrayList<String>();
+        if (classManager.isLocalClass(type)) {
+            BuilderClassDef classDef = classManager.getClass(type.getName());
+            if (null != classDef.getSuperclass()) {
+                parentNames.add(classDef.getSuperclass());
+            }
+            parentNames.addAll(classDef.getInterfaces());
+        } else {
+            String javaClass = SmaliClassUtils.smaliClassToJava(type.getName());
+            try {
+                Class<?> klazz = Class.forName(javaClass);
+                Class<?> superklazz = klazz.getSuperclass();
+                if (null != superklazz) {
+                    parentNames.add(SmaliClassUtils.javaClassToSmali(superklazz));
+                }
+                for (Class<?> interFace : klazz.getInterfaces()) {
+                    parentNames.add(SmaliClassUtils.javaClassToSmali(interFace));
+                }
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+
+        if (parentNames.size() == 0) {
+            return NO_PARENTS;
+        }
+
+        TypeSymbol[] parents = new TypeSymbol[parentNames.size()];
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = symbolTable.getType(parentNames.get(i));
+        }
+
+        return parents;
+    }
+
+    private TypeSymbol getBaseObjectType(TypeSymbol type) {
+        String baseName = type.getBaseName();
+        if (SmaliClassUtils.isPrimitiveType(baseName)) {
+            baseName = SmaliClassUtils.javaClassToSmali(SmaliClassUtils.smaliPrimitiveToJavaWrapper(baseName));
+        }
+
+        return symbolTable.getType(baseName);
+    }
+
+    private Supertypes getSupertypes(TypeSymbol type) {
+        Supertypes supertypes = typeIdToSupertypes.get(type.getId());
+        if (supertypes != null) {
+            return supertypes;
+        }
+
+        // Placeholder guards against malformed, circular hierarchies
+        BitSet ids = new BitSet();
+        ids.set(type.getId());
+        typeIdToSupertypes.put(type.getId(), new Supertypes(ids, null));
+
+        String unknownAncestor = null;
+        TypeSymbol[] parents = getParents(type);
+        if (parents == null) {
+            unknownAncestor = type.getName();
+        } else {
+            for (TypeSymbol parent : parents) {
+                Supertypes parentSupertypes = getSupertypes(parent);
+                ids.or(parentSupertypes.ids);
+                if ((unknownAncestor == null) && (parentSupertypes.unknownAncestor != null)) {
+                    unknownAncestor = parentSupertypes.unknownAncestor;
+                }
+            }
+        }
+
+        supertypes = new Supertypes(ids, unknownAncestor);
+        typeIdToSupertypes.put(type.getId(), supertypes);
+
+        return supertypes;
+    }
+
+}
@@ -0,0 +1,249 @@
+package org.cf.smalivm;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.opcode.Op;
+import org.cf.util.Utils;
+
+/**
+ * Collects where execution time goes, per method and per op class. Only used when set on a {@link VirtualMachine},
+ * otherwise the executor skips every hook with a single null check.
+ *
+ * Calls nest through invoke ops, so a method's self time excludes time spent in its callees, and an op's time excludes
+ * any method it called. Like the VM, a profiler isn't thread safe.
+ *
+ * @author cfenton
+ *
+ */
+public class ExecutionProfiler {
+
+    public static class Entry {
+
+        private final String name;
+        private long selfNanos;
+        private long totalNanos;
+        private long visits;
+        private int calls;
+        private int maxNodePile;
+        private int maxCallDepth;
+        private int limitsExceeded;
+
+        Entry(String name) {
+            this.name = name;
+        }
+
+        public int getCalls() {
+            return calls;
+        }
+
+        public int getLimitsExceeded() {
+            return limitsExceeded;
+        }
+
+        public int getMaxCallDepth() {
+            return maxCallDepth;
+        }
+
+        public int getMaxNodePile() {
+            return maxNodePile;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSelfNanos() {
+            return selfNanos;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getVisits() {
+            return visits;
+        }
+
+    }
+
+    private static class Frame {
+
+        private final Entry entry;
+        private final long start;
+        private long calleeNanos;
+
+        Frame(Entry entry, long start) {
+            this.entry = entry;
+            this.start = start;
+        }
+
+    }
+
+    private static final Comparator<Entry> BY_SELF_TIME = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Long.compare(e2.selfNanos, e1.selfNanos);
+        }
+    };
+
+    private static String toMs(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1000000.0);
+    }
+
+    private final Map<String, Entry> methodToEntry;
+    private final Map<Class<?>, Entry> opClassToEntry;
+    private final Deque<Frame> frames;
+    private long opStart;
+    private long opCalleeNanos;
+
+    public ExecutionProfiler() {
+        methodToEntry = new HashMap<String, Entry>();
+        opClassToEntry = new HashMap<Class<?>, Entry>();
+        frames = new ArrayDeque<Frame>();
+    }
+
+    public Collection<Entry> getMethodEntries() {
+        return Collections.unmodifiableCollection(methodToEntry.values());
+    }
+
+    public Collection<Entry> getOpEntries() {
+        return Collections.unmodifiableCollection(opClassToEntry.values());
+    }
+
+    /**
+     * @param topCount
+     *            number of methods and ops to list
+     * @return methods and ops with the most self time
+     */
+    public String getReport(int topCount) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Top methods by self time:\n");
+        sb.append(String.format(Locale.ROOT, "%12s %12s %8s %10s %8s %6s %7s  %s%n", "self ms", "total ms", "calls",
+                        "visits", "max pile", "depth", "limits", "method"));
+        for (Entry entry : getTop(methodToEntry.values(), topCount)) {
+            sb.append(String.format(Locale.ROOT, "%12s %12s %8d %10d %8d %6d %7d  %s%n", toMs(entry.selfNanos),
+                            toMs(entry.totalNanos), entry.calls, entry.visits, entry.maxNodePile, entry.maxCallDepth,
+                            entry.limitsExceeded, entry.name));
+        }
+
+        sb.append("Top ops by self time:\n");
+        sb.append(String.format(Locale.ROOT, "%12s %10s  %s%n", "self ms", "visits", "op"));
+        for (Entry entry : getTop(opClassToEntry.values(), topCount)) {
+            sb.append(String.format(Locale.ROOT, "%12s %10d  %s%n", toMs(entry.selfNanos), entry.visits, entry.name));
+        }
+
+        return sb.toString();
+    }
+
+    public String toJson() {
+        StringBuilder sb = new StringBuilder("{\"methods\":[");
+        appendJson(sb, getTop(methodToEntry.values(), methodToEntry.size()), true);
+        sb.append("],\"ops\":[");
+        appendJson(sb, getTop(opClassToEntry.values(), opClassToEntry.size()), false);
+        sb.append("]}");
+
+        return sb.toString();
+    }
+
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = new FileWriter(file)) {
+            writer.write(toJson());
+        }
+    }
+
+    void enterMethod(String methodDescriptor, int callDepth) {
+        Entry entry = methodToEntry.get(methodDescriptor);
+        if (entry == null) {
+            entry = new Entry(methodDescriptor);
+            methodToEntry.put(methodDescriptor, entry);
+        }
+        entry.calls++;
+        entry.maxCallDepth = Math.max(entry.maxCallDepth, callDepth);
+        frames.push(new Frame(entry, System.nanoTime()));
+    }
+
+    void exitMethod(ExecutionGraph graph) {
+        Frame frame = frames.pop();
+        long elapsed = System.nanoTime() - frame.start;
+        Entry entry = frame.entry;
+        entry.totalNanos += elapsed;
+        entry.selfNanos += elapsed - frame.calleeNanos;
+        for (int address : graph.getAddresses()) {
+            entry.maxNodePile = Math.max(entry.maxNodePile, graph.getNodePile(address).size());
+        }
+
+        Frame caller = frames.peek();
+        if (caller != null) {
+            caller.calleeNanos += elapsed;
+        }
+    }
+
+    void limitExceeded() {
+        frames.peek().entry.limitsExceeded++;
+    }
+
+    void startOp() {
+        opCalleeNanos = frames.peek().calleeNanos;
+        opStart = System.nanoTime();
+    }
+
+    void stopOp(Op op) {
+        long elapsed = System.nanoTime() - opStart;
+        Frame frame = frames.peek();
+        frame.entry.visits++;
+
+        Class<?> opClass = op.getClass();
+        Entry entry = opClassToEntry.get(opClass);
+        if (entry == null) {
+            entry = new Entry(opClass.getSimpleName());
+            opClassToEntry.put(opClass, entry);
+        }
+        entry.visits++;
+        // Ops like invoke count the time of any method they executed, which has its own entry
+        long opNanos = elapsed - (frame.calleeNanos - opCalleeNanos);
+        entry.selfNanos += opNanos;
+        entry.totalNanos += elapsed;
+    }
+
+    private void appendJson(StringBuilder sb, List<Entry> entries, boolean isMethod) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"name\":").append(Utils.jsonString(entry.name));
+            sb.append(",\"selfMs\":").append(toMs(entry.selfNanos));
+            sb.append(",\"totalMs\":").append(toMs(entry.totalNanos));
+            sb.append(",\"visits\":").append(entry.visits);
+            if (isMethod) {
+                sb.append(",\"calls\":").append(entry.calls);
+                sb.append(",\"maxNodePile\":").append(entry.maxNodePile);
+                sb.append(",\"maxCallDepth\":").append(entry.maxCallDepth);
+                sb.append(",\"limitsExceeded\":").append(entry.limitsExceeded);
+            }
+            sb.append('}');
+        }
+    }
+
+    private List<Entry> getTop(Collection<Entry> entries, int count) {
+        List<Entry> sorted = new ArrayList<Entry>(entries);
+        Collections.sort(sorted, BY_SELF_TIME);
+
+        return sorted.subList(0, Math.min(count, sorted.size()));
+    }
+
+}
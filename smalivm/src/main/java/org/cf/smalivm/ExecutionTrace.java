@@ -0,0 +1,51 @@
+package org.cf.smalivm;
+
+/**
+ * Binary execution trace format shared by {@link ExecutionTraceWriter} and {@link ExecutionTraceReader}.
+ *
+ * A trace is a header followed by records. Every execution of a method, including callees and static initializers, is
+ * an enter record, a visit record for each node executed, and an exit record. Callee executions are nested between the
+ * caller's visit records. Each visit has the index of its parent visit within the same execution, the children that
+ * were chosen and the registers the op assigned, which is enough to rebuild the execution graph.
+ *
+ * Integers are unsigned LEB128 varints, or zigzag encoded first if they can be negative. Strings are interned: a
+ * reference is a varint id, and an id one past the last one seen is followed by the length and UTF-8 bytes of a new
+ * string.
+ *
+ * @author cfenton
+ *
+ */
+final class ExecutionTrace {
+
+    static final int MAGIC = 0x534d5452; // SMTR
+    static final int VERSION = 1;
+
+    // Record types
+    static final byte ENTER = 1; // method, call depth
+    static final byte VISIT = 2; // parent visit, address, children, register count, (register, value)...
+    static final byte EXIT = 3; // 1 if execution finished, 0 if it gave up
+
+    // Value tags
+    static final byte NULL = 0;
+    static final byte INT = 1;
+    static final byte LONG = 2;
+    static final byte FLOAT = 3;
+    static final byte DOUBLE = 4;
+    static final byte BOOLEAN = 5;
+    static final byte BYTE = 6;
+    static final byte SHORT = 7;
+    static final byte CHAR = 8;
+    static final byte STRING = 9;
+    static final byte UNKNOWN = 10; // type
+    static final byte LOCAL_INSTANCE = 11; // type
+    static final byte UNINITIALIZED_INSTANCE = 12; // type
+    static final byte ARRAY = 13; // java class name, length, elements
+    static final byte OTHER = 14; // type, replayed as unknown
+
+    // Nested arrays deeper than this are recorded as unknown
+    static final int MAX_ARRAY_DEPTH = 4;
+
+    private ExecutionTrace() {
+    }
+
+}
@@ -0,0 +1,445 @@
+package org.cf.smalivm;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.type.LocalInstance;
+import org.cf.smalivm.type.UninitializedInstance;
+import org.cf.smalivm.type.UnknownValue;
+import org.cf.util.SmaliClassUtils;
+
+/**
+ * Reads traces written by {@link ExecutionTraceWriter}. Traces are read sequentially, start to finish, each time
+ * they're listed or replayed.
+ *
+ * Replaying rebuilds the execution graph of one method execution from the recorded visits, without executing any ops,
+ * so it can be inspected the same way as a graph the VM returned. Only method registers are recorded, so field and class
+ * state in replayed contexts is just what the root context starts with, and values which couldn't be recorded are
+ * replayed as unknown.
+ *
+ * @author cfenton
+ *
+ */
+public class ExecutionTraceReader {
+
+    public static class Execution {
+
+        private final String methodDescriptor;
+        private final int callDepth;
+        private final int occurrence;
+        private int visitCount;
+        private boolean finished;
+
+        Execution(String methodDescriptor, int callDepth, int occurrence) {
+            this.methodDescriptor = methodDescriptor;
+            this.callDepth = callDepth;
+            this.occurrence = occurrence;
+        }
+
+        public int getCallDepth() {
+            return callDepth;
+        }
+
+        public String getMethodDescriptor() {
+            return methodDescriptor;
+        }
+
+        /**
+         * @return how many earlier executions of the same method are in the trace
+         */
+        public int getOccurrence() {
+            return occurrence;
+        }
+
+        public int getVisitCount() {
+            return visitCount;
+        }
+
+        public boolean isFinished() {
+            return finished;
+        }
+
+        @Override
+        public String toString() {
+            return methodDescriptor + " #" + occurrence + ", depth=" + callDepth + ", visits=" + visitCount
+                            + (finished ? "" : ", gave up");
+        }
+
+    }
+
+    /*
+     * A visit which is being replayed, and the children it created which haven't been visited yet.
+     */
+    private static class ReplayedVisit {
+
+        private final List<ExecutionNode> unvisitedChildren;
+
+        ReplayedVisit(ExecutionNode node) {
+            unvisitedChildren = new ArrayList<ExecutionNode>(node.getChildren());
+        }
+
+        ExecutionNode takeChild(int address) {
+            for (int i = 0; i < unvisitedChildren.size(); i++) {
+                if (unvisitedChildren.get(i).getAddress() == address) {
+                    return unvisitedChildren.remove(i);
+                }
+            }
+
+            return null;
+        }
+
+    }
+
+    private static class Visit {
+
+        private int parentVisit;
+        private int address;
+        private int[] childAddresses;
+        private int[] registers;
+        private Object[] values;
+
+    }
+
+    private final File traceFile;
+
+    public ExecutionTraceReader(File traceFile) {
+        this.traceFile = traceFile;
+    }
+
+    /**
+     * @return every method execution in the trace, in the order they started
+     * @throws IOException
+     */
+    public List<Execution> getExecutions() throws IOException {
+        List<Execution> executions = new ArrayList<Execution>();
+        List<Execution> open = new ArrayList<Execution>();
+        Map<String, Integer> methodToCount = new HashMap<String, Integer>();
+        try (Input in = new Input(traceFile)) {
+            byte type;
+            while ((type = in.readType()) != -1) {
+                switch (type) {
+                case ExecutionTrace.ENTER:
+                    String methodDescriptor = in.readString();
+                    int callDepth = (int) in.readVarint();
+                    Integer count = methodToCount.get(methodDescriptor);
+                    int occurrence = count == null ? 0 : count;
+                    methodToCount.put(methodDescriptor, occurrence + 1);
+                    Execution execution = new Execution(methodDescriptor, callDepth, occurrence);
+                    executions.add(execution);
+                    open.add(execution);
+                    break;
+                case ExecutionTrace.VISIT:
+                    in.readVisit(null);
+                    open.get(open.size() - 1).visitCount++;
+                    break;
+                case ExecutionTrace.EXIT:
+                    open.remove(open.size() - 1).finished = in.readByte() == 1;
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " in " + traceFile);
+                }
+            }
+        }
+
+        return executions;
+    }
+
+    /**
+     * Rebuild the graph of an execution. Nodes are created from the VM's instruction graph for the method, so the
+     * method must be loaded and unchanged since the trace was written.
+     *
+     * @param vm
+     * @param methodDescriptor
+     * @param occurrence
+     *            which execution of the method to replay, starting at 0
+     * @return the rebuilt graph, or null if the trace has no such execution
+     * @throws IOException
+     */
+    public ExecutionGraph replay(VirtualMachine vm, String methodDescriptor, int occurrence) throws IOException {
+        int seen = 0;
+        try (Input in = new Input(traceFile)) {
+            byte type;
+            while ((type = in.readType()) != -1) {
+                switch (type) {
+                case ExecutionTrace.ENTER:
+                    String descriptor = in.readString();
+                    in.readVarint();
+                    if (descriptor.equals(methodDescriptor) && (seen++ == occurrence)) {
+                        return replay(vm, methodDescriptor, in);
+                    }
+                    break;
+                case ExecutionTrace.VISIT:
+                    in.readVisit(null);
+                    break;
+                case ExecutionTrace.EXIT:
+                    in.readByte();
+                    break;
+                default:
+                    throw new IOException("Unknown record type " + type + " in " + traceFile);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private ExecutionGraph replay(VirtualMachine vm, String methodDescriptor, Input in) throws IOException {
+        ExecutionGraph graph = vm.getInstructionGraphClone(methodDescriptor);
+        List<ReplayedVisit> replayed = new ArrayList<ReplayedVisit>();
+        Visit visit = new Visit();
+        int nesting = 0;
+        byte type;
+        while ((type = in.readType()) != -1) {
+            switch (type) {
+            case ExecutionTrace.ENTER:
+                // Callee executions are nested in the caller's, skip them
+                in.readString();
+                in.readVarint();
+                nesting++;
+                break;
+            case ExecutionTrace.VISIT:
+                if (nesting > 0) {
+                    in.readVisit(null);
+                } else {
+                    in.readVisit(visit);
+                    replayed.add(replayVisit(vm, graph, replayed, visit));
+                }
+                break;
+            case ExecutionTrace.EXIT:
+                in.readByte();
+                if (nesting == 0) {
+                    return graph;
+                }
+                nesting--;
+                break;
+            default:
+                throw new IOException("Unknown record type " + type + " in " + traceFile);
+            }
+        }
+
+        // Trace ended early, e.g. the writer wasn't closed after an error. Return what there is.
+        return graph;
+    }
+
+    private ReplayedVisit replayVisit(VirtualMachine vm, ExecutionGraph graph, List<ReplayedVisit> replayed,
+                    Visit visit) throws IOException {
+        ExecutionNode node;
+        if (visit.parentVisit < 0) {
+            node = new ExecutionNode(graph.getTemplateNode(visit.address));
+            node.setContext(vm.getRootExecutionContext(graph.getMethodDescriptor()));
+            graph.addNode(node);
+        } else {
+            node = replayed.get(visit.parentVisit).takeChild(visit.address);
+            if (node == null) {
+                throw new IOException("Visit to " + visit.address + " isn't a child of visit " + visit.parentVisit
+                                + " in " + traceFile);
+            }
+        }
+
+        MethodState mState = node.getContext().getMethodState();
+        for (int i = 0; i < visit.registers.length; i++) {
+            int register = visit.registers[i];
+            if ((register >= 0) || (register == MethodState.ResultRegister)) {
+                mState.assignRegister(register, visit.values[i]);
+            } else {
+                mState.pokeRegister(register, visit.values[i]);
+            }
+        }
+
+        for (int address : visit.childAddresses) {
+            ExecutionNode child = node.getChild(graph.getTemplateNode(address).getOp());
+            graph.addNode(child);
+        }
+
+        return new ReplayedVisit(node);
+    }
+
+    private static class Input implements AutoCloseable {
+
+        private final DataInputStream in;
+        private final List<String> strings;
+
+        Input(File traceFile) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile), 64 * 1024));
+            strings = new ArrayList<String>();
+            try {
+                if (in.readInt() != ExecutionTrace.MAGIC) {
+                    throw new IOException(traceFile + " isn't an execution trace");
+                }
+                int version = in.readInt();
+                if (version != ExecutionTrace.VERSION) {
+                    throw new IOException("Unsupported execution trace version " + version + " in " + traceFile);
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        byte readByte() throws IOException {
+            return in.readByte();
+        }
+
+        /*
+         * @return record type, or -1 at the end of the trace
+         */
+        byte readType() throws IOException {
+            int type = in.read();
+
+            return (byte) type;
+        }
+
+        long readSignedVarint() throws IOException {
+            long value = readVarint();
+
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() throws IOException {
+            int id = (int) readVarint();
+            if (id < strings.size()) {
+                return strings.get(id);
+            }
+
+            String value = readUtf8();
+            strings.add(value);
+
+            return value;
+        }
+
+        long readVarint() throws IOException {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+
+            throw new IOException("Malformed varint");
+        }
+
+        /*
+         * Read a visit into the given one, or just skip past it if null.
+         */
+        void readVisit(Visit visit) throws IOException {
+            int parentVisit = (int) readSignedVarint();
+            int address = (int) readVarint();
+            int[] childAddresses = new int[(int) readVarint()];
+            for (int i = 0; i < childAddresses.length; i++) {
+                childAddresses[i] = (int) readVarint();
+            }
+            int registerCount = (int) readVarint();
+            int[] registers = new int[registerCount];
+            Object[] values = new Object[registerCount];
+            for (int i = 0; i < registerCount; i++) {
+                registers[i] = (int) readSignedVarint();
+                values[i] = readValue();
+            }
+
+            if (visit != null) {
+                visit.parentVisit = parentVisit;
+                visit.address = address;
+                visit.childAddresses = childAddresses;
+                visit.registers = registers;
+                visit.values = values;
+            }
+        }
+
+        private String readUtf8() throws IOException {
+            byte[] bytes = new byte[(int) readVarint()];
+            in.readFully(bytes);
+
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private Object readValue() throws IOException {
+            byte tag = in.readByte();
+            switch (tag) {
+            case ExecutionTrace.NULL:
+                return null;
+            case ExecutionTrace.INT:
+                return (int) readSignedVarint();
+            case ExecutionTrace.LONG:
+                return readSignedVarint();
+            case ExecutionTrace.FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case ExecutionTrace.DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case ExecutionTrace.BOOLEAN:
+                return in.readByte() == 1;
+            case ExecutionTrace.BYTE:
+                return in.readByte();
+            case ExecutionTrace.SHORT:
+                return (short) readSignedVarint();
+            case ExecutionTrace.CHAR:
+                return (char) readVarint();
+            case ExecutionTrace.STRING:
+                return readUtf8();
+            case ExecutionTrace.UNKNOWN:
+            case ExecutionTrace.OTHER:
+                return new UnknownValue(readString());
+            case ExecutionTrace.LOCAL_INSTANCE:
+                return new LocalInstance(readString());
+            case ExecutionTrace.UNINITIALIZED_INSTANCE:
+                return new UninitializedInstance(readString());
+            case ExecutionTrace.ARRAY:
+                return readArray();
+            default:
+                throw new IOException("Unknown value tag " + tag);
+            }
+        }
+
+        private Object readArray() throws IOException {
+            String className = readString();
+            int length = (int) readVarint();
+            Object[] elements = new Object[length];
+            for (int i = 0; i < length; i++) {
+                elements[i] = readValue();
+            }
+
+            Class<?> arrayClass;
+            try {
+                arrayClass = Class.forName(className);
+            } catch (ClassNotFoundException e) {
+                // Arrays of local classes are instantiated by the VM's class loader
+                return new UnknownValue(SmaliClassUtils.javaClassToSmali(className));
+            }
+            Object array = Array.newInstance(arrayClass.getComponentType(), length);
+            try {
+                for (int i = 0; i < length; i++) {
+                    Array.set(array, i, elements[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                // An element was replayed as unknown
+                return new UnknownValue(SmaliClassUtils.javaClassToSmali(className));
+            }
+
+            return array;
+        }
+
+    }
+
+}
@@ -0,0 +1,279 @@
+package org.cf.smalivm;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.opcode.ReturnOp;
+import org.cf.smalivm.type.LocalInstance;
+import org.cf.smalivm.type.TypeUtil;
+import org.cf.smalivm.type.UninitializedInstance;
+import org.cf.smalivm.type.UnknownValue;
+import org.cf.util.SmaliClassUtils;
+
+/**
+ * Writes a compact binary trace of every node visit to a memory-mapped file, so a method's execution graph can be
+ * rebuilt later by {@link ExecutionTraceReader} without executing anything. Only used when set on a
+ * {@link VirtualMachine}. Like the VM, a writer isn't thread safe.
+ *
+ * The file is mapped in segments as it grows and truncated to the written size when closed. Traces aren't readable
+ * until then.
+ *
+ * @author cfenton
+ *
+ */
+public class ExecutionTraceWriter {
+
+    private static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static class Frame {
+
+        private final Map<ExecutionNode, Integer> nodeToVisit;
+
+        Frame() {
+            nodeToVisit = new IdentityHashMap<ExecutionNode, Integer>();
+        }
+
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, Integer> stringToId;
+    private final Deque<Frame> frames;
+    private final TIntSet registers;
+    private MappedByteBuffer segment;
+    private long segmentStart;
+    private byte[] record;
+    private int recordLength;
+
+    public ExecutionTraceWriter(File traceFile) throws IOException {
+        file = new RandomAccessFile(traceFile, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+        stringToId = new HashMap<String, Integer>();
+        frames = new ArrayDeque<Frame>();
+        registers = new TIntHashSet();
+        segmentStart = 0;
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+        record = new byte[256];
+
+        writeFixedInt(ExecutionTrace.MAGIC);
+        writeFixedInt(ExecutionTrace.VERSION);
+        flushRecord();
+    }
+
+    /**
+     * Flush the trace and trim the file to what was written.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        long size = segmentStart + segment.position();
+        segment.force();
+        segment = null;
+        channel.truncate(size);
+        file.close();
+    }
+
+    void enterMethod(String methodDescriptor, int callDepth) {
+        frames.push(new Frame());
+        writeByte(ExecutionTrace.ENTER);
+        writeString(methodDescriptor);
+        writeVarint(callDepth);
+        flushRecord();
+    }
+
+    void exitMethod(boolean finished) {
+        frames.pop();
+        writeByte(ExecutionTrace.EXIT);
+        writeByte(finished ? 1 : 0);
+        flushRecord();
+    }
+
+    /**
+     * Record a node after it's executed and its children have been added.
+     *
+     * @param node
+     */
+    void visit(ExecutionNode node) {
+        Frame frame = frames.peek();
+        Integer parentVisit = node.getParent() == null ? null : frame.nodeToVisit.get(node.getParent());
+        frame.nodeToVisit.put(node, frame.nodeToVisit.size());
+
+        writeByte(ExecutionTrace.VISIT);
+        writeSignedVarint(parentVisit == null ? -1 : parentVisit);
+        writeVarint(node.getAddress());
+        List<ExecutionNode> children = node.getChildren();
+        writeVarint(children.size());
+        for (ExecutionNode child : children) {
+            writeVarint(child.getAddress());
+        }
+
+        MethodState mState = node.getContext().getMethodState();
+        registers.clear();
+        TIntList assigned = mState.getRegistersAssigned();
+        for (int i = 0; i < assigned.size(); i++) {
+            registers.add(assigned.get(i));
+        }
+        Object returnValue = null;
+        if (node.getOp() instanceof ReturnOp) {
+            // Return register is poked, not assigned
+            returnValue = mState.readReturnRegister();
+            registers.add(MethodState.ReturnRegister);
+        }
+        writeVarint(registers.size());
+        for (int register : registers.toArray()) {
+            writeSignedVarint(register);
+            Object value = register == MethodState.ReturnRegister ? returnValue : mState.peekRegister(register);
+            writeValue(value, 0);
+        }
+        flushRecord();
+    }
+
+    private void ensureCapacity(int extra) {
+        if (recordLength + extra > record.length) {
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + extra));
+        }
+    }
+
+    private void flushRecord() {
+        int offset = 0;
+        while (offset < recordLength) {
+            if (!segment.hasRemaining()) {
+                mapNextSegment();
+            }
+            int length = Math.min(segment.remaining(), recordLength - offset);
+            segment.put(record, offset, length);
+            offset += length;
+        }
+        recordLength = 0;
+    }
+
+    private void mapNextSegment() {
+        segmentStart += segment.capacity();
+        try {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, segmentStart, SEGMENT_SIZE);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to grow execution trace", e);
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        record[recordLength++] = (byte) value;
+    }
+
+    private void writeFixedInt(int value) {
+        writeByte(value >>> 24);
+        writeByte(value >>> 16);
+        writeByte(value >>> 8);
+        writeByte(value);
+    }
+
+    private void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeString(String value) {
+        Integer id = stringToId.get(value);
+        if (id != null) {
+            writeVarint(id);
+            return;
+        }
+
+        id = stringToId.size();
+        stringToId.put(value, id);
+        writeVarint(id);
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+        recordLength += bytes.length;
+    }
+
+    private void writeValue(Object value, int depth) {
+        if (value == null) {
+            writeByte(ExecutionTrace.NULL);
+        } else if (value instanceof Integer) {
+            writeByte(ExecutionTrace.INT);
+            writeSignedVarint((Integer) value);
+        } else if (value instanceof Long) {
+            writeByte(ExecutionTrace.LONG);
+            writeSignedVarint((Long) value);
+        } else if (value instanceof Float) {
+            writeByte(ExecutionTrace.FLOAT);
+            writeFixedInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Double) {
+            long bits = Double.doubleToRawLongBits((Double) value);
+            writeByte(ExecutionTrace.DOUBLE);
+            writeFixedInt((int) (bits >>> 32));
+            writeFixedInt((int) bits);
+        } else if (value instanceof Boolean) {
+            writeByte(ExecutionTrace.BOOLEAN);
+            writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof Byte) {
+            writeByte(ExecutionTrace.BYTE);
+            writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            writeByte(ExecutionTrace.SHORT);
+            writeSignedVarint((Short) value);
+        } else if (value instanceof Character) {
+            writeByte(ExecutionTrace.CHAR);
+            writeVarint((Character) value);
+        } else if (value instanceof String) {
+            // Not interned, most strings are only seen a few times
+            byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+            writeByte(ExecutionTrace.STRING);
+            writeVarint(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+            recordLength += bytes.length;
+        } else if (value instanceof UnknownValue) {
+            writeByte(ExecutionTrace.UNKNOWN);
+            writeString(((UnknownValue) value).getName());
+        } else if (value instanceof LocalInstance) {
+            writeByte(ExecutionTrace.LOCAL_INSTANCE);
+            writeString(((LocalInstance) value).getName());
+        } else if (value instanceof UninitializedInstance) {
+            writeByte(ExecutionTrace.UNINITIALIZED_INSTANCE);
+            writeString(((UninitializedInstance) value).getName());
+        } else if (value.getClass().isArray() && (depth < ExecutionTrace.MAX_ARRAY_DEPTH)) {
+            int length = Array.getLength(value);
+            writeByte(ExecutionTrace.ARRAY);
+            writeString(value.getClass().getName());
+            writeVarint(length);
+            for (int i = 0; i < length; i++) {
+                writeValue(Array.get(value, i), depth + 1);
+            }
+        } else {
+            writeByte(ExecutionTrace.OTHER);
+            writeString(SmaliClassUtils.javaClassToSmali(TypeUtil.getValueType(value)));
+        }
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+}
@@ -1,23 +1,23 @@
 package org.cf.smalivm;
 
-import gnu.trove.list.TIntList;
-import gnu.trove.list.linked.TIntLinkedList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.hash.TIntIntHashMap;
 
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.List;
 
 import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExceptionHandlerTable;
 import org.cf.smalivm.context.ExecutionNode;
 import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
 import org.cf.smalivm.exception.MaxCallDepthExceeded;
 import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
 import org.cf.smalivm.opcode.Op;
+import org.cf.smalivm.symbol.TypeSymbol;
 import org.cf.util.SmaliClassUtils;
-import org.jf.dexlib2.iface.ExceptionHandler;
-import org.jf.dexlib2.iface.TryBlock;
+import org.cf.util.Tracing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,21 +33,74 @@ public class MethodExecutor {
         totalVisits = 0;
     }
 
+    /**
+     * @return node visits since the last execution at call depth 0 started, including visits in callees
+     */
+    int getTotalVisits() {
+        return totalVisits;
+    }
+
     private void resetTotalVisits() {
         totalVisits = 0;
     }
 
     ExecutionGraph execute(ExecutionGraph graph) throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
                     MaxMethodVisitsExceeded {
+        return execute(graph, Collections.singletonList(graph.getRoot()));
+    }
+
+    /*
+     * Execute from each of the start nodes until every path terminates. Start nodes must already be in the graph and
+     * have contexts.
+     */
+    ExecutionGraph execute(ExecutionGraph graph, List<ExecutionNode> startNodes) throws MaxAddressVisitsExceeded,
+                    MaxCallDepthExceeded, MaxMethodVisitsExceeded {
+        ExecutionProfiler profiler = vm.getProfiler();
+        ExecutionTraceWriter tracer = vm.getTraceWriter();
+        if ((profiler == null) && (tracer == null)) {
+            return execute(graph, startNodes, null, null);
+        }
+
+        String methodDescriptor = graph.getMethodDescriptor();
+        int callDepth = startNodes.get(0).getCallDepth();
+        if (profiler != null) {
+            profiler.enterMethod(methodDescriptor, callDepth);
+        }
+        if (tracer != null) {
+            tracer.enterMethod(methodDescriptor, callDepth);
+        }
+        boolean finished = false;
+        try {
+            ExecutionGraph result = execute(graph, startNodes, profiler, tracer);
+            finished = true;
+
+            return result;
+        } catch (MaxAddressVisitsExceeded | MaxCallDepthExceeded | MaxMethodVisitsExceeded e) {
+            if (profiler != null) {
+                profiler.limitExceeded();
+            }
+            throw e;
+        } finally {
+            if (profiler != null) {
+                profiler.exitMethod(graph);
+            }
+            if (tracer != null) {
+                tracer.exitMethod(finished);
+            }
+        }
+    }
+
+    private ExecutionGraph execute(ExecutionGraph graph, List<ExecutionNode> startNodes, ExecutionProfiler profiler,
+                    ExecutionTraceWriter tracer) throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+                    MaxMethodVisitsExceeded {
         TIntIntMap addressToVisitCount = new TIntIntHashMap();
         String methodDescriptor = graph.getMethodDescriptor();
-        List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks = vm.getClassManager().getTryBlocks(
-                        methodDescriptor);
+        ExceptionHandlerTable exceptionHandlers = graph.getExceptionHandlers();
 
-        ExecutionNode currentNode = graph.getRoot();
+        ExecutionNode currentNode = startNodes.get(0);
         int callDepth = currentNode.getCallDepth();
-        if (log.isInfoEnabled()) {
-            log.info("Executing " + methodDescriptor + ", depth=" + callDepth);
+        if (Tracing.ENABLED && log.isDebugEnabled()) {
+            log.debug("Executing " + methodDescriptor + ", depth=" + callDepth);
         }
         if (currentNode.getCallDepth() > vm.getMaxCallDepth()) {
             throw new MaxCallDepthExceeded(methodDescriptor);
@@ -58,12 +111,14 @@ public class MethodExecutor {
             resetTotalVisits();
         }
 
-        Deque<ExecutionNode> executeStack = new ArrayDeque<ExecutionNode>();
-        executeStack.push(currentNode);
+        Deque<ExecutionNode> executeStack = new ArrayDeque<ExecutionNode>(startNodes);
         while ((currentNode = executeStack.poll()) != null) {
             totalVisits += 1;
             checkMaxVisits(currentNode, methodDescriptor, addressToVisitCount);
 
+            if (profiler != null) {
+                profiler.startOp();
+            }
             int[] childAddresses = new int[0];
             try {
                 childAddresses = currentNode.execute();
@@ -72,10 +127,16 @@ public class MethodExecutor {
                     log.warn(currentNode + " generated an exception:", ex);
                 }
                 childAddresses = currentNode.getOp().getPossibleChildren();
-                int[] catchAddresses = getCatchAddresses(ex, currentNode.getAddress(), tryBlocks);
+                int[] catchAddresses = getCatchAddresses(ex, currentNode.getAddress(), exceptionHandlers);
                 addChildrenToGraph(graph, catchAddresses, currentNode);
             }
+            if (profiler != null) {
+                profiler.stopOp(currentNode.getOp());
+            }
             addChildrenToGraph(graph, childAddresses, currentNode);
+            if (tracer != null) {
+                tracer.visit(currentNode);
+            }
 
             executeStack.addAll(currentNode.getChildren());
         }
@@ -93,30 +154,15 @@ public class MethodExecutor {
         }
     }
 
-    private int[] getCatchAddresses(Exception exception, int address,
-                    List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks) {
-        String exceptionType = exception.getClass().getName();
-        exceptionType = SmaliClassUtils.javaClassToSmali(exceptionType);
-        TIntList addresses = new TIntLinkedList();
-        for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
-            if ((address < tryBlock.getStartCodeAddress())
-                            || (address > (tryBlock.getStartCodeAddress() + tryBlock.getCodeUnitCount()))) {
-                // address is not inside of this try/catch
-                continue;
-            }
-
-            for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
-                String handlerType = handler.getExceptionType();
-                if (!exceptionType.equals(handlerType)) {
-                    continue;
-                }
-
-                int handlerAddress = handler.getHandlerCodeAddress();
-                addresses.add(handlerAddress);
-            }
+    private int[] getCatchAddresses(Exception exception, int address, ExceptionHandlerTable exceptionHandlers) {
+        if (exceptionHandlers.isEmpty()) {
+            return new int[0];
         }
 
-        return addresses.toArray();
+        String exceptionClassName = SmaliClassUtils.javaClassToSmali(exception.getClass().getName());
+        TypeSymbol exceptionType = vm.getSymbolTable().getType(exceptionClassName);
+
+        return exceptionHandlers.getCatchAddresses(exceptionType, address, vm.getClassManager().getHierarchy());
     }
 
     private void checkMaxVisits(ExecutionNode node, String methodDescriptor, TIntIntMap addressToVisitCount)
@@ -10,8 +10,11 @@ import java.util.Set;
 import org.apache.commons.beanutils.ConstructorUtils;
 import org.apache.commons.beanutils.MethodUtils;
 import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.TypeSymbol;
 import org.cf.smalivm.type.UnknownValue;
 import org.cf.util.ConfigLoader;
+import org.cf.util.SmaliClassUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,7 +26,10 @@ public class MethodReflector {
     private static final String SAFE_METHODS_PATH = "safe_methods.cfg";
     private static final String UNSAFE_METHODS_PATH = "unsafe_methods.cfg";
 
+    private static final String PACKAGE_WILDCARD = "*";
+
     private static Set<String> SafeClasses;
+    private static Set<String> SafePackages;
     private static Set<String> SafeMethods;
     private static Set<String> UnsafeMethods;
 
@@ -41,17 +47,66 @@ public class MethodReflector {
         return isSafe(typeDescriptor);
     }
 
+    public static boolean canReflect(MethodSymbol method) {
+        return isSafe(method);
+    }
+
+    /**
+     * The verdict is computed once and cached on the symbol.
+     *
+     * @param method
+     * @return true if the method is from a safe class and isn't explicitly unsafe, or if the method is explicitly safe
+     */
+    public static boolean isSafe(MethodSymbol method) {
+        Boolean isSafe = method.getSafeVerdict();
+        if (isSafe == null) {
+            isSafe = isSafeMethod(method.getDefiningClass().getName(), method.getDescriptor());
+            method.setSafeVerdict(isSafe);
+        }
+
+        return isSafe;
+    }
+
+    /**
+     * The verdict is computed once and cached on the symbol.
+     *
+     * @param type
+     * @return true if the class is safe, either by name or by package
+     */
+    public static boolean isSafe(TypeSymbol type) {
+        Boolean isSafe = type.getSafeVerdict();
+        if (isSafe == null) {
+            isSafe = isSafeClass(type.getName());
+            type.setSafeVerdict(isSafe);
+        }
+
+        return isSafe;
+    }
+
+    /**
+     * Prefer the symbol versions on hot paths since this can't cache the verdict.
+     *
+     * @param typeDescriptor
+     *            class name or method descriptor
+     * @return true if safe
+     */
     public static boolean isSafe(String typeDescriptor) {
-        String[] parts = typeDescriptor.split("->");
-        String className = parts[0];
+        int separator = typeDescriptor.indexOf("->");
+        if (separator < 0) {
+            return isSafeClass(typeDescriptor);
+        }
 
-        if (SafeClasses.contains(className) && !UnsafeMethods.contains(typeDescriptor)) {
+        return isSafeMethod(typeDescriptor.substring(0, separator), typeDescriptor);
+    }
+
+    private static boolean isSafeClass(String className) {
+        if (SafeClasses.contains(className)) {
             return true;
         }
 
-        if (parts.length > 1) {
-            // It's a method name
-            if (SafeMethods.contains(typeDescriptor)) {
+        // Check each enclosing package, e.g. Ljava/, Ljava/util/, ...
+        for (int i = className.indexOf('/'); i >= 0; i = className.indexOf('/', i + 1)) {
+            if (SafePackages.contains(className.substring(0, i + 1))) {
                 return true;
             }
         }
@@ -59,10 +114,89 @@ public class MethodReflector {
         return false;
     }
 
+    private static boolean isSafeMethod(String className, String methodDescriptor) {
+        if (isSafeClass(className) && !UnsafeMethods.contains(methodDescriptor)) {
+            return true;
+        }
+
+        return SafeMethods.contains(methodDescriptor);
+    }
+
+    /**
+     * Check if a non-local method can be found with reflection.
+     *
+     * @param method
+     * @return true if the method's class and all parameter types can be loaded and the method exists
+     */
+    public static boolean methodExists(MethodSymbol method) {
+        Class<?> klazz = null;
+        try {
+            klazz = Class.forName(SmaliClassUtils.smaliClassToJava(method.getDefiningClass().getName()));
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+
+        List<String> paramList = method.getParameterTypes();
+        Class<?>[] params = new Class<?>[paramList.size()];
+        for (int i = 0; i < paramList.size(); i++) {
+            String paramName = paramList.get(i);
+            try {
+                if (SmaliClassUtils.isPrimitiveType(paramName)) {
+                    params[i] = SmaliClassUtils.getPrimitiveType(SmaliClassUtils.smaliClassToJava(paramName));
+                } else {
+                    params[i] = Class.forName(SmaliClassUtils.smaliClassToJava(paramName));
+                }
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+
+        try {
+            klazz.getMethod(method.getName(), params);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+
+        return true;
+    }
+
     private static void loadSafeClasses() throws IOException {
         // Methods from safe classes must not have any side effects, e.g. any IO.
+        // Entries ending with "*" are package prefixes, e.g. Ljava/lang/* matches all classes in java.lang and below.
         List<String> lines = ConfigLoader.loadConfig(SAFE_CLASSES_PATH);
-        SafeClasses = new HashSet<String>(lines);
+        SafeClasses = new HashSet<String>();
+        SafePackages = new HashSet<String>();
+        for (String line : lines) {
+            addSafeClass(line);
+        }
+    }
+
+    /**
+     * @param entry
+     *            class name, or package prefix ending with "*"
+     */
+    static void addSafeClass(String entry) {
+        if (entry.endsWith(PACKAGE_WILDCARD)) {
+            SafePackages.add(entry.substring(0, entry.length() - PACKAGE_WILDCARD.length()));
+        } else {
+            SafeClasses.add(entry);
+        }
+    }
+
+    /**
+     * Undo {@link #addSafeClass(String)}.
+     *
+     * @param entry
+     *            class name, or package prefix ending with "*"
+     */
+    static void removeSafeClass(String entry) {
+        if (entry.endsWith(PACKAGE_WILDCARD)) {
+            SafePackages.remove(entry.substring(0, entry.length() - PACKAGE_WILDCARD.length()));
+        } else {
+            SafeClasses.remove(entry);
+        }
     }
 
     private static void loadSafeMethods() throws IOException {
@@ -94,6 +228,24 @@ public class MethodReflector {
         methodName = parts[1].substring(0, parts[1].indexOf("("));
     }
 
+    /**
+     *
+     * @param method
+     * @param parameterTypes
+     *            parameter types including the instance reference for non-static methods
+     * @param isStatic
+     */
+    public MethodReflector(MethodSymbol method, List<String> parameterTypes, boolean isStatic) {
+        methodDescriptor = method.getDescriptor();
+        returnType = method.getReturnType();
+        this.parameterTypes = parameterTypes;
+        this.isStatic = isStatic;
+
+        // ClassUtils expects "Ljava.lang.Class;"
+        className = method.getDefiningClass().getName().replace('/', '.');
+        methodName = method.getName();
+    }
+
     public void reflect(MethodState calleeContext) {
         if (log.isDebugEnabled()) {
             log.debug("Reflecting " + methodDescriptor + " with context:\n" + calleeContext);
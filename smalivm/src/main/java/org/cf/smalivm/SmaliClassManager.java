@@ -1,7 +1,13 @@
 package org.cf.smalivm;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -11,7 +17,12 @@ import java.util.Map;
 import java.util.Set;
 
 import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.smalivm.symbol.FieldSymbol;
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.cf.smalivm.symbol.TypeSymbol;
 import org.cf.util.Dexifier;
+import org.cf.util.FlightRecorderEvent;
 import org.cf.util.SmaliClassUtils;
 import org.cf.util.SmaliFileFactory;
 import org.jf.dexlib2.AccessFlags;
@@ -40,6 +51,10 @@ public class SmaliClassManager {
     // Use separate dex builder to intern framework classes so they're not included in output dex
     private static final DexBuilder frameworkDexBuilder = DexBuilder.makeDexBuilder();
 
+    private static final FlightRecorderEvent.Type LOAD_EVENT = FlightRecorderEvent.define("org.cf.smalivm.ClassLoad",
+                    "Class Load", new String[] { "className", "framework", "methodCount" }, new Class<?>[] {
+                                    String.class, boolean.class, int.class });
+
     private final Map<String, SmaliFile> classNameToSmaliFile;
     private final DexBuilder dexBuilder;
     private final Map<String, BuilderClassDef> classNameToClassDef;
@@ -47,7 +62,11 @@ public class SmaliClassManager {
     private final Map<String, List<String>> methodDescriptorToParameterTypes;
     private final Map<String, List<? extends TryBlock<? extends ExceptionHandler>>> methodDescriptorToTryBlocks;
     private final Map<String, List<String>> classNameToFieldNameAndType;
+    private final Map<String, List<FieldSymbol>> classNameToFields;
+    private final Map<String, Map<String, String>> classNameToMethodDefinitions;
     private final SmaliFileFactory smaliFileFactory;
+    private final SymbolTable symbolTable;
+    private final ClassHierarchy hierarchy;
 
     /**
      *
@@ -69,6 +88,10 @@ public class SmaliClassManager {
         methodDescriptorToParameterTypes = new HashMap<String, List<String>>();
         methodDescriptorToTryBlocks = new HashMap<String, List<? extends TryBlock<? extends ExceptionHandler>>>();
         classNameToFieldNameAndType = new HashMap<String, List<String>>();
+        classNameToFields = new HashMap<String, List<FieldSymbol>>();
+        classNameToMethodDefinitions = new HashMap<String, Map<String, String>>();
+        symbolTable = new SymbolTable();
+        hierarchy = new ClassHierarchy(this);
     }
 
     /**
@@ -149,15 +172,37 @@ public class SmaliClassManager {
         return classNameToFieldNameAndType.get(className);
     }
 
+    /**
+     *
+     * @param className
+     * @return interned symbols for each field declared by the class
+     */
+    public List<FieldSymbol> getFields(String className) {
+        loadClassIfNecessary(className);
+
+        return classNameToFields.get(className);
+    }
+
+    /**
+     * @return index of the class hierarchy, for fast subtype checks and virtual method dispatch
+     */
+    public ClassHierarchy getHierarchy() {
+        return hierarchy;
+    }
+
     /**
      *
      * @param methodDescriptor
      * @return
      */
     public BuilderMethod getMethod(String methodDescriptor) {
-        loadClassIfNecessary(methodDescriptor);
+        return getMethod(symbolTable.getMethod(methodDescriptor));
+    }
 
-        return methodDescriptorToMethod.get(methodDescriptor);
+    public BuilderMethod getMethod(MethodSymbol method) {
+        loadClassIfNecessary(method.getDefiningClass().getName());
+
+        return methodDescriptorToMethod.get(method.getDescriptor());
     }
 
     /**
@@ -184,9 +229,25 @@ public class SmaliClassManager {
      * @return
      */
     public List<String> getParameterTypes(String methodDescriptor) {
-        loadClassIfNecessary(methodDescriptor);
+        return getParameterTypes(symbolTable.getMethod(methodDescriptor));
+    }
 
-        return methodDescriptorToParameterTypes.get(methodDescriptor);
+    /**
+     *
+     * @param method
+     * @return parameter types, including the instance reference for non-static methods
+     */
+    public List<String> getParameterTypes(MethodSymbol method) {
+        loadClassIfNecessary(method.getDefiningClass().getName());
+
+        return methodDescriptorToParameterTypes.get(method.getDescriptor());
+    }
+
+    /**
+     * @return the symbol table used to intern every type, method and field descriptor seen by this class manager
+     */
+    public SymbolTable getSymbolTable() {
+        return symbolTable;
     }
 
     /**
@@ -195,9 +256,13 @@ public class SmaliClassManager {
      * @return
      */
     public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks(String methodDescriptor) {
-        loadClassIfNecessary(methodDescriptor);
+        return getTryBlocks(symbolTable.getMethod(methodDescriptor));
+    }
 
-        return methodDescriptorToTryBlocks.get(methodDescriptor);
+    public List<? extends TryBlock<? extends ExceptionHandler>> getTryBlocks(MethodSymbol method) {
+        loadClassIfNecessary(method.getDefiningClass().getName());
+
+        return methodDescriptorToTryBlocks.get(method.getDescriptor());
     }
 
     /**
@@ -209,19 +274,25 @@ public class SmaliClassManager {
         return classNameToSmaliFile.containsKey(className);
     }
 
+    public boolean isLocalClass(TypeSymbol type) {
+        return classNameToSmaliFile.containsKey(type.getName());
+    }
+
     /**
      *
      * @param methodDescriptor
      * @return true if {@link=isLocalClass} is true, and method is defined for class
      */
     public boolean isLocalMethod(String methodDescriptor) {
-        String[] parts = methodDescriptor.split("->");
-        String className = parts[0];
-        if (!isLocalClass(className)) {
+        return isLocalMethod(symbolTable.getMethod(methodDescriptor));
+    }
+
+    public boolean isLocalMethod(MethodSymbol method) {
+        if (!isLocalClass(method.getDefiningClass())) {
             return false;
         }
 
-        return getMethod(methodDescriptor) != null;
+        return getMethod(method) != null;
     }
 
     /**
@@ -230,21 +301,79 @@ public class SmaliClassManager {
      * @return
      */
     public boolean methodHasImplementation(String methodDescriptor) {
-        BuilderMethod method = getMethod(methodDescriptor);
+        return methodHasImplementation(symbolTable.getMethod(methodDescriptor));
+    }
 
-        return null != method.getImplementation();
+    public boolean methodHasImplementation(MethodSymbol method) {
+        BuilderMethod builderMethod = getMethod(method);
+
+        return null != builderMethod.getImplementation();
+    }
+
+    /**
+     * Use these method definitions instead of the ones in the input when their classes are loaded, e.g. to restore
+     * methods optimized by an earlier run. Classes which are already loaded aren't changed.
+     *
+     * @param methodDescriptorToDefinition
+     *            method descriptor to Smali for the whole method, from .method to .end method
+     */
+    public void setMethodDefinitions(Map<String, String> methodDescriptorToDefinition) {
+        classNameToMethodDefinitions.clear();
+        for (Map.Entry<String, String> entry : methodDescriptorToDefinition.entrySet()) {
+            String[] parts = entry.getKey().split("->");
+            Map<String, String> signatureToDefinition = classNameToMethodDefinitions.get(parts[0]);
+            if (signatureToDefinition == null) {
+                signatureToDefinition = new HashMap<String, String>();
+                classNameToMethodDefinitions.put(parts[0], signatureToDefinition);
+            }
+            signatureToDefinition.put(parts[1], entry.getValue());
+        }
+    }
+
+    private static InputStream replaceMethodDefinitions(InputStream is, Map<String, String> signatureToDefinition)
+                    throws IOException {
+        StringBuilder sb = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                String definition = null;
+                if (trimmed.startsWith(".method ")) {
+                    // Signature is the last token, e.g. .method public static foo(I)V
+                    definition = signatureToDefinition.get(trimmed.substring(trimmed.lastIndexOf(' ') + 1));
+                }
+                if (definition == null) {
+                    sb.append(line).append('\n');
+                    continue;
+                }
+
+                sb.append(definition).append('\n');
+                // Skip the original
+                do {
+                    line = reader.readLine();
+                } while ((line != null) && !line.trim().equals(".end method"));
+            }
+        } finally {
+            reader.close();
+        }
+
+        return new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.UTF_8));
     }
 
     private void addFieldNameAndTypes(BuilderClassDef classDef) {
         String className = ReferenceUtil.getReferenceString(classDef);
         Collection<BuilderField> fields = classDef.getFields();
         List<String> fieldNameAndTypes = new LinkedList<String>();
+        List<FieldSymbol> fieldSymbols = new ArrayList<FieldSymbol>(fields.size());
         for (BuilderField field : fields) {
             String fieldDescriptor = ReferenceUtil.getFieldDescriptor(field);
-            String fieldNameAndType = fieldDescriptor.split("->")[1];
-            fieldNameAndTypes.add(fieldNameAndType);
+            FieldSymbol fieldSymbol = symbolTable.getField(fieldDescriptor);
+            fieldNameAndTypes.add(fieldSymbol.getNameAndType());
+            fieldSymbols.add(fieldSymbol);
         }
         classNameToFieldNameAndType.put(className, fieldNameAndTypes);
+        classNameToFields.put(className, fieldSymbols);
     }
 
     private void addMethods(BuilderClassDef classDef) {
@@ -283,24 +412,32 @@ public class SmaliClassManager {
         methodDescriptorToTryBlocks.put(methodDescriptor, implementation.getTryBlocks());
     }
 
-    private void loadClassIfNecessary(String typeDescriptor) {
-        String[] parts = typeDescriptor.split("->");
-        String className = parts[0];
-        if (getLoadedClassNames().contains(className)) {
+    private void loadClassIfNecessary(String className) {
+        if (classNameToClassDef.containsKey(className)) {
             return;
         }
 
+        FlightRecorderEvent event = LOAD_EVENT.begin();
         SmaliFile smaliFile = classNameToSmaliFile.get(className);
+        boolean isFramework = smaliFileFactory.isFrameworkClass(className);
         BuilderClassDef classDef;
         try {
-            if (smaliFileFactory.isFrameworkClass(className)) {
-                classDef = Dexifier.dexifySmaliFile(smaliFile.getPath(), smaliFile.open(), frameworkDexBuilder);
+            if (isFramework) {
+                // Shared by every class manager, which may be on different threads
+                synchronized (frameworkDexBuilder) {
+                    classDef = Dexifier.dexifySmaliFile(smaliFile.getPath(), smaliFile.open(), frameworkDexBuilder);
+                }
             } else {
-                classDef = Dexifier.dexifySmaliFile(smaliFile.getPath(), smaliFile.open(), dexBuilder);
+                InputStream is = smaliFile.open();
+                Map<String, String> signatureToDefinition = classNameToMethodDefinitions.get(className);
+                if (signatureToDefinition != null) {
+                    is = replaceMethodDefinitions(is, signatureToDefinition);
+                }
+                classDef = Dexifier.dexifySmaliFile(smaliFile.getPath(), is, dexBuilder);
             }
         } catch (Exception e) {
             if (log.isErrorEnabled()) {
-                log.error("Error while loading class necessary for " + typeDescriptor, e);
+                log.error("Error while loading class " + className, e);
             }
             System.exit(-1);
             return;
@@ -309,6 +446,9 @@ public class SmaliClassManager {
         classNameToClassDef.put(className, classDef);
         addMethods(classDef);
         addFieldNameAndTypes(classDef);
+        if (event.isEnabled()) {
+            event.commit(className, isFramework, classDef.getMethods().size());
+        }
     }
 
     public boolean isInstance(Class childClass, Class targetClass) throws UnknownAncestors {
@@ -327,65 +467,10 @@ public class SmaliClassManager {
          * Note: not 100% sure how java's instanceof works with arrays, but some poking shows it compares the base
          * classes, and will not compile if types are incompatible, e.g. Integer[][] vs Object[].
          */
-        String baseChild = SmaliClassUtils.getBaseClass(childType);
-        if (SmaliClassUtils.isPrimitiveType(baseChild)) {
-            baseChild = SmaliClassUtils.javaClassToSmali(SmaliClassUtils.smaliPrimitiveToJavaWrapper(baseChild));
-        }
-        String baseTarget = SmaliClassUtils.getBaseClass(targetType);
-        if (SmaliClassUtils.isPrimitiveType(baseTarget)) {
-            baseTarget = SmaliClassUtils.javaClassToSmali(SmaliClassUtils.smaliPrimitiveToJavaWrapper(baseTarget));
-        }
-
-        return isInstance(baseChild, baseTarget, new HashSet<String>());
+        return hierarchy.isInstance(symbolTable.getType(childType), symbolTable.getType(targetType));
     }
 
-    private boolean isInstance(String childType, String targetType, Set<String> visited) throws UnknownAncestors {
-        if (childType.equals(targetType)) {
-            return true;
-        }
-
-        Set<String> parents = getAncestors(childType);
-        for (String parent : parents) {
-            if (visited.contains(parent)) {
-                continue;
-            }
-            visited.add(parent);
-
-            if (parent.equals(targetType)) {
-                return true;
-            } else if (isInstance(parent, targetType, visited)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
-    private Set<String> getAncestors(String className) throws UnknownAncestors {
-        Set<String> parents = new HashSet<String>();
-        if (isLocalClass(className)) {
-            BuilderClassDef classDef = getClass(className);
-            parents.addAll(classDef.getInterfaces());
-            if (null != classDef.getSuperclass()) {
-                parents.add(classDef.getSuperclass());
-            }
-        } else {
-            String javaClass = SmaliClassUtils.smaliClassToJava(className);
-            try {
-                Class<?> klazz = Class.forName(javaClass);
-                Class<?>[] interfaces = klazz.getInterfaces();
-                for (Class<?> interFace : interfaces) {
-                    parents.add(SmaliClassUtils.javaClassToSmali(interFace));
-                }
-                Class<?> superklazz = klazz.getSuperclass();
-                if (null != superklazz) {
-                    parents.add(SmaliClassUtils.javaClassToSmali(superklazz));
-                }
-            } catch (ClassNotFoundException e) {
-                throw new UnknownAncestors(className);
-            }
-        }
-
-        return parents;
+    public boolean isInstance(TypeSymbol childType, TypeSymbol targetType) throws UnknownAncestors {
+        return hierarchy.isInstance(childType, targetType);
     }
 }
@@ -5,6 +5,7 @@ import java.lang.reflect.Field;
 import org.apache.commons.lang3.reflect.FieldUtils;
 import org.cf.smalivm.context.ClassState;
 import org.cf.smalivm.context.ExecutionContext;
+import org.cf.smalivm.symbol.FieldSymbol;
 import org.cf.smalivm.type.UnknownValue;
 import org.cf.util.SmaliClassUtils;
 import org.slf4j.Logger;
@@ -15,28 +16,30 @@ public class StaticFieldAccessor {
     private static Logger log = LoggerFactory.getLogger(StaticFieldAccessor.class.getSimpleName());
 
     public static Object getField(VirtualMachine vm, ExecutionContext ectx, String fieldDescriptor) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
-        parts = fieldNameAndType.split(":");
-        String fieldName = parts[0];
-        String fieldType = parts[1];
+        return getField(vm, ectx, vm.getSymbolTable().getField(fieldDescriptor));
+    }
+
+    public static Object getField(VirtualMachine vm, ExecutionContext ectx, FieldSymbol field) {
+        String className = field.getDefiningClass().getName();
+        String fieldNameAndType = field.getNameAndType();
+        String fieldName = field.getName();
+        String fieldType = field.getType();
 
         Object result;
-        if (vm.isLocalClass(className)) {
+        if (vm.isLocalClass(field.getDefiningClass())) {
             ClassState cState = ectx.readClassState(className);
             result = cState.peekField(fieldNameAndType);
-        } else if (MethodReflector.isSafe(className)) {
+        } else if (MethodReflector.isSafe(field.getDefiningClass())) {
             // Use reflection
             try {
                 String javaClassName = SmaliClassUtils.smaliClassToJava(className);
                 Class<?> klazz = Class.forName(javaClassName);
-                Field field = FieldUtils.getField(klazz, fieldName);
-                result = field.get(null);
+                Field javaField = FieldUtils.getField(klazz, fieldName);
+                result = javaField.get(null);
             } catch (ClassNotFoundException | IllegalArgumentException | IllegalAccessException e) {
                 result = new UnknownValue(fieldType);
                 if (log.isWarnEnabled()) {
-                    log.warn("Couldn't access field: " + fieldDescriptor);
+                    log.warn("Couldn't access field: " + field);
                 }
                 if (log.isDebugEnabled()) {
                     log.debug("Stack trace:", e);
@@ -51,16 +54,19 @@ public class StaticFieldAccessor {
     }
 
     public static void putField(VirtualMachine vm, ExecutionContext ectx, String fieldDescriptor, Object value) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
+        putField(vm, ectx, vm.getSymbolTable().getField(fieldDescriptor), value);
+    }
+
+    public static void putField(VirtualMachine vm, ExecutionContext ectx, FieldSymbol field, Object value) {
+        String className = field.getDefiningClass().getName();
+        String fieldNameAndType = field.getNameAndType();
 
-        if (vm.isLocalClass(className)) {
+        if (vm.isLocalClass(field.getDefiningClass())) {
             ClassState cState = ectx.readClassState(className);
             cState.assignField(fieldNameAndType, value);
         } else {
             if (log.isWarnEnabled()) {
-                log.warn("Ignoring non-local static assignment: " + fieldDescriptor + " = " + value);
+                log.warn("Ignoring non-local static assignment: " + field + " = " + value);
             }
         }
     }
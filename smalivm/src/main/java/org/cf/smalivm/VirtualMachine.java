@@ -1,11 +1,14 @@
 package org.cf.smalivm;
 
 import gnu.trove.list.TIntList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.cf.smalivm.context.ClassInitializationCache;
 import org.cf.smalivm.context.ClassState;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.ExecutionGraph;
@@ -14,10 +17,16 @@ import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
 import org.cf.smalivm.exception.MaxCallDepthExceeded;
 import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.symbol.FieldSymbol;
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.cf.smalivm.symbol.TypeSymbol;
 import org.cf.smalivm.type.LocalInstance;
 import org.cf.smalivm.type.TypeUtil;
 import org.cf.smalivm.type.UnknownValue;
+import org.cf.util.FlightRecorderEvent;
 import org.cf.util.ImmutableUtils;
+import org.cf.util.Tracing;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
@@ -35,10 +44,6 @@ public class VirtualMachine {
         return result;
     }
 
-    private static String getClassNameFromMethodDescriptor(String methodDescriptor) {
-        return methodDescriptor.split("->", 2)[0];
-    }
-
     private static Object getMutableParameterConsensus(TIntList addressList, ExecutionGraph graph, int parameterRegister) {
         ExecutionNode firstNode = graph.getNodePile(addressList.get(0)).get(0);
         Object value = firstNode.getContext().getMethodState().peekParameter(parameterRegister);
@@ -48,7 +53,7 @@ public class VirtualMachine {
             for (ExecutionNode node : nodes) {
                 Object otherValue = node.getContext().getMethodState().peekParameter(parameterRegister);
                 if (value != otherValue) {
-                    if (log.isTraceEnabled()) {
+                    if (Tracing.ENABLED && log.isTraceEnabled()) {
                         log.trace("No conensus value for r" + parameterRegister + ". Returning unknown.");
                     }
 
@@ -67,12 +72,26 @@ public class VirtualMachine {
     private static final int DEFAULT_MAX_CALL_DEPTH = 20;
     private static final int DEFAULT_MAX_METHOD_VISITS = DEFAULT_MAX_ADDRESS_VISITS * 500;
 
+    private static final FlightRecorderEvent.Type EXECUTE_EVENT = FlightRecorderEvent.define(
+                    "org.cf.smalivm.MethodExecution", "Method Execution", new String[] {
+                                    "method", "callDepth", "nodeCount", "completed" }, new Class<?>[] {
+                                    String.class, int.class, int.class, boolean.class });
+    private static final FlightRecorderEvent.Type LIMIT_EVENT = FlightRecorderEvent.define(
+                    "org.cf.smalivm.LimitExceeded", "Execution Limit Exceeded", new String[] {
+                                    "method", "limit", "callDepth" }, new Class<?>[] { String.class, String.class,
+                                    int.class });
+
     private final int maxCallDepth;
     private final int maxAddressVisits;
     private final int maxMethodVisits;
     private final MethodExecutor methodExecutor;
     private final SmaliClassManager classManager;
+    private final ClassInitializationCache classInitializationCache;
     private final Map<BuilderMethod, ExecutionGraph> methodToTemplateContextGraph;
+    private final TIntObjectMap<Map<String, MethodSymbol>> receiverTypeIdToVirtualTargets;
+    private ExecutionProfiler profiler;
+    private ExecutionTraceWriter traceWriter;
+    private String rootFailure;
 
     public VirtualMachine(SmaliClassManager manager) {
         this(manager, DEFAULT_MAX_ADDRESS_VISITS, DEFAULT_MAX_CALL_DEPTH, DEFAULT_MAX_METHOD_VISITS);
@@ -84,32 +103,53 @@ public class VirtualMachine {
         this.maxMethodVisits = maxMethodVisits;
         this.maxCallDepth = maxCallDepth;
         methodExecutor = new MethodExecutor(this);
+        classInitializationCache = new ClassInitializationCache(manager);
         methodToTemplateContextGraph = new HashMap<BuilderMethod, ExecutionGraph>();
+        receiverTypeIdToVirtualTargets = new TIntObjectHashMap<Map<String, MethodSymbol>>();
     }
 
     public ExecutionGraph execute(String methodDescriptor) {
-        if (!classManager.methodHasImplementation(methodDescriptor)) {
+        return execute(getSymbolTable().getMethod(methodDescriptor));
+    }
+
+    public ExecutionGraph execute(MethodSymbol method) {
+        if (!classManager.methodHasImplementation(method)) {
             return null;
         }
-        ExecutionContext ectx = getRootExecutionContext(methodDescriptor);
+        ExecutionContext ectx = getRootExecutionContext(method);
 
-        return execute(methodDescriptor, ectx);
+        return execute(method, ectx);
     }
 
     public ExecutionGraph execute(String methodDescriptor, ExecutionContext ectx) {
-        return execute(methodDescriptor, ectx, null, null);
+        return execute(getSymbolTable().getMethod(methodDescriptor), ectx);
+    }
+
+    public ExecutionGraph execute(MethodSymbol method, ExecutionContext ectx) {
+        return execute(method, ectx, null, null);
     }
 
     public ExecutionGraph execute(String methodDescriptor, ExecutionContext calleeContext,
                     ExecutionContext callerContext, int[] parameterRegisters) {
+        MethodSymbol method = getSymbolTable().getMethod(methodDescriptor);
+
+        return execute(method, calleeContext, callerContext, parameterRegisters);
+    }
+
+    public ExecutionGraph execute(MethodSymbol method, ExecutionContext calleeContext,
+                    ExecutionContext callerContext, int[] parameterRegisters) {
         if (callerContext != null) {
-            inheritClassStates(callerContext, calleeContext);
+            calleeContext.setCallerContext(callerContext);
         }
 
-        String className = getClassNameFromMethodDescriptor(methodDescriptor);
+        String className = method.getDefiningClass().getName();
         calleeContext.staticallyInitializeClassIfNecessary(className);
 
-        ExecutionGraph graph = getInstructionGraphClone(methodDescriptor);
+        FlightRecorderEvent event = EXECUTE_EVENT.begin();
+        if (calleeContext.getCallDepth() == 0) {
+            rootFailure = null;
+        }
+        ExecutionGraph graph = getInstructionGraphClone(method);
         ExecutionNode rootNode = new ExecutionNode(graph.getRoot());
         rootNode.setContext(calleeContext);
         graph.addNode(rootNode);
@@ -118,9 +158,7 @@ public class VirtualMachine {
         try {
             result = methodExecutor.execute(graph);
         } catch (MaxCallDepthExceeded | MaxAddressVisitsExceeded | MaxMethodVisitsExceeded e) {
-            if (log.isWarnEnabled()) {
-                log.warn(e.toString());
-            }
+            limitExceeded(method.getDescriptor(), e, calleeContext.getCallDepth());
         }
         // catch (Exception e) {
         // if (log.isWarnEnabled()) {
@@ -132,27 +170,94 @@ public class VirtualMachine {
         // }
 
         if ((result != null) && (callerContext != null)) {
-            collapseMultiverse(methodDescriptor, graph, calleeContext, callerContext, parameterRegisters);
+            collapseMultiverse(method, graph, calleeContext, callerContext, parameterRegisters);
+        }
+        if (event.isEnabled()) {
+            event.commit(method.getDescriptor(), calleeContext.getCallDepth(), graph.getNodeCount(), result != null);
+        }
+
+        return result;
+    }
+
+    /**
+     * Continue executing part of a graph, e.g. after the instructions below some nodes were changed and their old
+     * descendants were discarded. Nodes upstream of the start nodes, and their contexts, are left as they are.
+     *
+     * @param graph
+     * @param startNodes
+     *            nodes already in the graph, with contexts, to execute from
+     * @return the graph, or null if execution gave up
+     */
+    public ExecutionGraph resume(ExecutionGraph graph, List<ExecutionNode> startNodes) {
+        if (startNodes.isEmpty()) {
+            return graph;
+        }
+
+        ExecutionGraph result = null;
+        try {
+            result = methodExecutor.execute(graph, startNodes);
+        } catch (MaxCallDepthExceeded | MaxAddressVisitsExceeded | MaxMethodVisitsExceeded e) {
+            limitExceeded(graph.getMethodDescriptor(), e, startNodes.get(0).getCallDepth());
         }
 
         return result;
     }
 
+    /**
+     * @return run-wide cache of static initializer results
+     */
+    public ClassInitializationCache getClassInitializationCache() {
+        return classInitializationCache;
+    }
+
     public SmaliClassManager getClassManager() {
         return classManager;
     }
 
     public ExecutionGraph getInstructionGraphClone(String methodDescriptor) {
-        BuilderMethod method = classManager.getMethod(methodDescriptor);
-        if (!methodToTemplateContextGraph.containsKey(method)) {
-            updateInstructionGraph(methodDescriptor);
-        }
+        return getInstructionGraphClone(getSymbolTable().getMethod(methodDescriptor));
+    }
+
+    public ExecutionGraph getInstructionGraphClone(MethodSymbol methodSymbol) {
+        BuilderMethod method = classManager.getMethod(methodSymbol);
         ExecutionGraph graph = methodToTemplateContextGraph.get(method);
+        if (graph == null) {
+            updateInstructionGraph(methodSymbol.getDescriptor());
+            graph = methodToTemplateContextGraph.get(method);
+        }
         ExecutionGraph clone = new ExecutionGraph(graph);
 
         return clone;
     }
 
+    /**
+     * @return profiler collecting execution times, or null if profiling is off
+     */
+    public ExecutionProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @return why the most recent execution at call depth 0 gave up, or null if it finished
+     */
+    public String getRootFailure() {
+        return rootFailure;
+    }
+
+    /**
+     * @return node visits of the most recent execution at call depth 0, including visits in callees
+     */
+    public int getRootVisitCount() {
+        return methodExecutor.getTotalVisits();
+    }
+
+    /**
+     * @return writer recording node visits, or null if tracing is off
+     */
+    public ExecutionTraceWriter getTraceWriter() {
+        return traceWriter;
+    }
+
     public int getMaxAddressVisits() {
         return maxAddressVisits;
     }
@@ -166,21 +271,25 @@ public class VirtualMachine {
     }
 
     public ExecutionContext getRootExecutionContext(String methodDescriptor) {
-        if (!classManager.methodHasImplementation(methodDescriptor)) {
+        return getRootExecutionContext(getSymbolTable().getMethod(methodDescriptor));
+    }
+
+    public ExecutionContext getRootExecutionContext(MethodSymbol methodSymbol) {
+        if (!classManager.methodHasImplementation(methodSymbol)) {
             // Native or abstract methods have no implementation. Shouldn't be executing them.
-            throw new IllegalArgumentException("No implementation for " + methodDescriptor);
+            throw new IllegalArgumentException("No implementation for " + methodSymbol);
         }
 
-        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        BuilderMethod method = classManager.getMethod(methodSymbol);
         MethodImplementation impl = method.getImplementation();
         int registerCount = impl.getRegisterCount();
-        List<String> parameterTypes = classManager.getParameterTypes(methodDescriptor);
+        List<String> parameterTypes = classManager.getParameterTypes(methodSymbol);
         int parameterSize = getParameterSize(parameterTypes);
         int accessFlags = method.getAccessFlags();
         boolean isStatic = ((accessFlags & AccessFlags.STATIC.getValue()) != 0);
 
         ExecutionContext rootContext = new ExecutionContext(this);
-        String className = getClassNameFromMethodDescriptor(methodDescriptor);
+        String className = methodSymbol.getDefiningClass().getName();
         addTemplateClassState(rootContext, className);
 
         // Assume all input values are unknown.
@@ -202,36 +311,120 @@ public class VirtualMachine {
         return rootContext;
     }
 
+    public SymbolTable getSymbolTable() {
+        return classManager.getSymbolTable();
+    }
+
     public boolean isLocalClass(String classDescriptor) {
+        return isLocalClass(getSymbolTable().getType(classDescriptor));
+    }
+
+    public boolean isLocalClass(TypeSymbol type) {
         // If it's local but reflected, should be treated as non-local.
-        return classManager.isLocalClass(classDescriptor) && !MethodReflector.isSafe(classDescriptor);
+        return classManager.isLocalClass(type) && !MethodReflector.isSafe(type);
+    }
+
+    /**
+     * Resolve the target of a virtual call for a receiver's runtime type. Results are cached for the life of the VM,
+     * including failures, so the reflection needed to confirm non-local targets happens at most once per receiver type
+     * and signature.
+     *
+     * @param receiverType
+     * @param methodSignature
+     *            e.g. method(I)V
+     * @return resolved target, or null if no local implementation or safe non-local method could be found
+     */
+    public MethodSymbol resolveVirtualMethod(TypeSymbol receiverType, String methodSignature) {
+        Map<String, MethodSymbol> targets = receiverTypeIdToVirtualTargets.get(receiverType.getId());
+        if (targets == null) {
+            targets = new HashMap<String, MethodSymbol>();
+            receiverTypeIdToVirtualTargets.put(receiverType.getId(), targets);
+        } else if (targets.containsKey(methodSignature)) {
+            return targets.get(methodSignature);
+        }
+
+        MethodSymbol target = null;
+        MethodSymbol[] candidates = classManager.getHierarchy().getDispatchCandidates(receiverType, methodSignature);
+        for (MethodSymbol candidate : candidates) {
+            if (classManager.isLocalMethod(candidate) && classManager.methodHasImplementation(candidate)) {
+                target = candidate;
+                break;
+            }
+
+            if (MethodReflector.isSafe(candidate) && MethodReflector.methodExists(candidate)) {
+                target = candidate;
+                break;
+            }
+        }
+        targets.put(methodSignature, target);
+
+        return target;
+    }
+
+    /**
+     * Start or stop profiling execution. Profiling is off by default.
+     *
+     * @param profiler
+     *            profiler to collect into, or null to stop
+     */
+    public void setProfiler(ExecutionProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Start or stop writing an execution trace. Tracing is off by default. The caller owns the writer and must close
+     * it.
+     *
+     * @param traceWriter
+     *            writer to record into, or null to stop
+     */
+    public void setTraceWriter(ExecutionTraceWriter traceWriter) {
+        this.traceWriter = traceWriter;
     }
 
     public void updateInstructionGraph(String methodDescriptor) {
-        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        MethodSymbol methodSymbol = getSymbolTable().getMethod(methodDescriptor);
+        BuilderMethod method = classManager.getMethod(methodSymbol);
         ExecutionGraph graph = new ExecutionGraph(this, method);
         methodToTemplateContextGraph.put(method, graph);
+        if ("<clinit>".equals(methodSymbol.getName())) {
+            classInitializationCache.invalidate(methodSymbol.getDefiningClass().getName());
+        }
     }
 
     public void addTemplateClassState(ExecutionContext ectx, String className) {
-        List<String> fieldNameAndTypes = classManager.getFieldNameAndTypes(className);
-        ClassState cState = new ClassState(ectx, className, fieldNameAndTypes.size());
+        List<FieldSymbol> fields = classManager.getFields(className);
+        ClassState cState = new ClassState(ectx, className, fields.size());
         ectx.setClassState(className, cState, SideEffect.Level.NONE);
-        for (String fieldNameAndType : fieldNameAndTypes) {
-            String type = fieldNameAndType.split(":")[1];
-            cState.pokeField(fieldNameAndType, new UnknownValue(type));
+        for (FieldSymbol field : fields) {
+            cState.pokeField(field.getNameAndType(), new UnknownValue(field.getType()));
+        }
+    }
+
+    private void limitExceeded(String methodDescriptor, Exception exception, int callDepth) {
+        if (callDepth == 0) {
+            rootFailure = exception.toString();
+        }
+
+        if (log.isWarnEnabled()) {
+            log.warn(exception.toString());
+        }
+
+        FlightRecorderEvent event = LIMIT_EVENT.begin();
+        if (event.isEnabled()) {
+            event.commit(methodDescriptor, exception.getClass().getSimpleName(), callDepth);
         }
     }
 
     /*
      * Get consensus for method and class states for all execution paths and merge them into callerContext.
      */
-    private void collapseMultiverse(String methodDescriptor, ExecutionGraph graph, ExecutionContext calleeContext,
+    private void collapseMultiverse(MethodSymbol method, ExecutionGraph graph, ExecutionContext calleeContext,
                     ExecutionContext callerContext, int[] parameterRegisters) {
         TIntList terminatingAddresses = graph.getConnectedTerminatingAddresses();
         if (parameterRegisters != null) {
             MethodState mState = callerContext.getMethodState();
-            List<String> parameterTypes = classManager.getParameterTypes(methodDescriptor);
+            List<String> parameterTypes = classManager.getParameterTypes(method);
             int parameterRegister = calleeContext.getMethodState().getParameterStart();
             for (int parameterIndex = 0; parameterIndex < parameterTypes.size(); parameterIndex++) {
                 String type = parameterTypes.get(parameterIndex);
@@ -247,43 +440,37 @@ public class VirtualMachine {
             }
         }
 
-        for (String currentClassName : classManager.getClassNames()) {
+        // Only classes the callee touched can differ from the caller. Compute every consensus before changing the
+        // caller since callee contexts may still lazily inherit from it.
+        String[] dirtyClassNames = calleeContext.getDirtyClasses().toArray(new String[0]);
+        Map<String, Object[]> classNameToFieldValues = new HashMap<String, Object[]>();
+        for (String currentClassName : dirtyClassNames) {
             if (!callerContext.isClassInitialized(currentClassName)
                             && !calleeContext.isClassInitialized(currentClassName)) {
                 continue;
             }
 
-            List<String> fieldNameAndTypes = classManager.getFieldNameAndTypes(currentClassName);
+            List<FieldSymbol> fields = classManager.getFields(currentClassName);
+            Object[] fieldValues = graph.getFieldConsensus(terminatingAddresses, currentClassName, fields);
+            classNameToFieldValues.put(currentClassName, fieldValues);
+        }
+
+        for (Map.Entry<String, Object[]> entry : classNameToFieldValues.entrySet()) {
+            String currentClassName = entry.getKey();
+            List<FieldSymbol> fields = classManager.getFields(currentClassName);
+            Object[] fieldValues = entry.getValue();
             ClassState currentClassState;
             if (callerContext.isClassInitialized(currentClassName)) {
                 currentClassState = callerContext.peekClassState(currentClassName);
             } else {
-                currentClassState = new ClassState(callerContext, currentClassName, fieldNameAndTypes.size());
+                currentClassState = new ClassState(callerContext, currentClassName, fields.size());
                 SideEffect.Level level = graph.getHighestClassSideEffectLevel(currentClassName);
                 callerContext.initializeClass(currentClassName, currentClassState, level);
             }
 
-            for (String fieldNameAndType : fieldNameAndTypes) {
-                Object value = graph.getFieldConsensus(terminatingAddresses, currentClassName, fieldNameAndType);
-                currentClassState.pokeField(fieldNameAndType, value);
-            }
-        }
-    }
-
-    private void inheritClassStates(ExecutionContext parent, ExecutionContext child) {
-        for (String className : classManager.getLoadedClassNames()) {
-            if (!parent.isClassInitialized(className)) {
-                continue;
-            }
-
-            ClassState fromClassState = parent.peekClassState(className);
-            ClassState toClassState = new ClassState(fromClassState, child);
-            for (String fieldNameAndType : classManager.getFieldNameAndTypes(className)) {
-                Object value = fromClassState.peekField(fieldNameAndType);
-                toClassState.pokeField(fieldNameAndType, value);
+            for (int i = 0; i < fieldValues.length; i++) {
+                currentClassState.pokeField(fields.get(i).getNameAndType(), fieldValues[i]);
             }
-            SideEffect.Level level = parent.getClassStateSideEffectLevel(className);
-            child.initializeClass(className, toClassState, level);
         }
     }
 
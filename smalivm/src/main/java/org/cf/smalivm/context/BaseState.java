@@ -5,6 +5,7 @@ import gnu.trove.list.array.TIntArrayList;
 
 import org.apache.commons.lang3.ClassUtils;
 import org.cf.smalivm.type.TypeUtil;
+import org.cf.util.Tracing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -88,7 +89,7 @@ class BaseState {
     }
 
     public void pokeRegister(int register, Object value, String heapId) {
-        if (log.isTraceEnabled()) {
+        if (Tracing.ENABLED && log.isTraceEnabled()) {
             StringBuilder sb = new StringBuilder();
             sb.append("Setting ").append(heapId).append(":").append(register).append(" = ")
             .append(registerValueToString(value));
@@ -0,0 +1,109 @@
+package org.cf.smalivm.context;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.SmaliClassManager;
+
+/**
+ * Run-wide cache of static initializer results. When a class is initialized in a root context which doesn't have any
+ * classes initialized yet, the result of its &lt;clinit&gt; can't depend on any outside state, so it's the same for
+ * every such context. The resulting class states are snapshotted and copied into later root contexts instead of
+ * executing &lt;clinit&gt; again.
+ *
+ * @author cfenton
+ *
+ */
+public class ClassInitializationCache {
+
+    private static class Snapshot {
+
+        private final Map<String, Map<String, Object>> classNameToFieldValues;
+        private final Map<String, SideEffect.Level> classNameToSideEffectLevel;
+
+        private Snapshot() {
+            classNameToFieldValues = new HashMap<String, Map<String, Object>>();
+            classNameToSideEffectLevel = new HashMap<String, SideEffect.Level>();
+        }
+
+    }
+
+    private final SmaliClassManager classManager;
+    private final Map<String, Snapshot> classNameToSnapshot;
+
+    public ClassInitializationCache(SmaliClassManager classManager) {
+        this.classManager = classManager;
+        classNameToSnapshot = new HashMap<String, Snapshot>();
+    }
+
+    public void clear() {
+        classNameToSnapshot.clear();
+    }
+
+    public int size() {
+        return classNameToSnapshot.size();
+    }
+
+    /**
+     * Forget the result for a class, e.g. because its &lt;clinit&gt; was modified.
+     *
+     * @param className
+     */
+    public void invalidate(String className) {
+        classNameToSnapshot.remove(className);
+    }
+
+    /**
+     * Copy the cached result of initializing a class into a context.
+     *
+     * @param className
+     * @param ectx
+     * @return true if there was a cached result
+     */
+    boolean restore(String className, ExecutionContext ectx) {
+        Snapshot snapshot = classNameToSnapshot.get(className);
+        if (snapshot == null) {
+            return false;
+        }
+
+        for (Map.Entry<String, Map<String, Object>> entry : snapshot.classNameToFieldValues.entrySet()) {
+            String currentClassName = entry.getKey();
+            Map<String, Object> fieldValues = entry.getValue();
+            ClassState cState = new ClassState(ectx, currentClassName, fieldValues.size());
+            for (Map.Entry<String, Object> fieldValue : fieldValues.entrySet()) {
+                // Clone so executions can't mutate the cached value
+                cState.pokeField(fieldValue.getKey(), Heap.cloneRegisterValue(fieldValue.getValue()));
+            }
+            SideEffect.Level level = snapshot.classNameToSideEffectLevel.get(currentClassName);
+            ectx.initializeClass(currentClassName, cState, level);
+        }
+
+        return true;
+    }
+
+    /**
+     * Snapshot every class initialized in a context after initializing a class.
+     *
+     * @param className
+     * @param ectx
+     */
+    void store(String className, ExecutionContext ectx) {
+        Snapshot snapshot = new Snapshot();
+        for (String currentClassName : ectx.getInitializedClasses()) {
+            ClassState cState = ectx.peekClassState(currentClassName);
+            List<String> fieldNameAndTypes = classManager.getFieldNameAndTypes(currentClassName);
+            Map<String, Object> fieldValues = new HashMap<String, Object>(fieldNameAndTypes.size());
+            for (String fieldNameAndType : fieldNameAndTypes) {
+                Object value = cState.peekField(fieldNameAndType);
+                fieldValues.put(fieldNameAndType, Heap.cloneRegisterValue(value));
+            }
+            snapshot.classNameToFieldValues.put(currentClassName, fieldValues);
+            snapshot.classNameToSideEffectLevel.put(currentClassName,
+                            ectx.getClassStateSideEffectLevel(currentClassName));
+        }
+        classNameToSnapshot.put(className, snapshot);
+    }
+
+}
@@ -2,6 +2,8 @@ package org.cf.smalivm.context;
 
 import gnu.trove.set.hash.THashSet;
 
+import java.util.Set;
+
 public class ClassState extends BaseState {
 
     private final String className;
@@ -71,6 +73,10 @@ public class ClassState extends BaseState {
         return sb.toString();
     }
 
+    Set<String> getFieldNameAndTypes() {
+        return fieldNameAndTypes;
+    }
+
     ClassState getChild(ExecutionContext childContext) {
         ClassState child = new ClassState(this, childContext, fieldNameAndTypes);
 
@@ -0,0 +1,169 @@
+package org.cf.smalivm.context;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.cf.smalivm.ClassHierarchy;
+import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.cf.smalivm.symbol.TypeSymbol;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.TryBlock;
+
+/**
+ * Precomputed exception handler lookup for a method. Try block ranges are flattened into sorted, disjoint address
+ * segments, each holding the handlers which apply to it with the innermost try block's handlers first. Finding the
+ * handlers for an address is a binary search.
+ *
+ * @author cfenton
+ *
+ */
+public class ExceptionHandlerTable {
+
+    private static final int[] NO_ADDRESSES = new int[0];
+
+    private static class Handler {
+
+        // Null type means catch-all
+        private final TypeSymbol type;
+        private final int address;
+
+        private Handler(TypeSymbol type, int address) {
+            this.type = type;
+            this.address = address;
+        }
+
+    }
+
+    private final int[] segmentStarts;
+    private final int[] segmentEnds;
+    private final Handler[][] segmentHandlers;
+
+    public ExceptionHandlerTable(List<? extends TryBlock<? extends ExceptionHandler>> tryBlocks,
+                    SymbolTable symbolTable) {
+        // Each distinct boundary starts a new segment
+        TIntSet boundarySet = new TIntHashSet();
+        for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
+            boundarySet.add(tryBlock.getStartCodeAddress());
+            boundarySet.add(tryBlock.getStartCodeAddress() + tryBlock.getCodeUnitCount());
+        }
+        int[] boundaries = boundarySet.toArray();
+        Arrays.sort(boundaries);
+
+        List<TryBlock<? extends ExceptionHandler>> innermostFirst = new ArrayList<TryBlock<? extends ExceptionHandler>>(
+                        tryBlocks);
+        Collections.sort(innermostFirst, new Comparator<TryBlock<? extends ExceptionHandler>>() {
+            @Override
+            public int compare(TryBlock<? extends ExceptionHandler> tryBlock1,
+                            TryBlock<? extends ExceptionHandler> tryBlock2) {
+                return Integer.compare(tryBlock1.getCodeUnitCount(), tryBlock2.getCodeUnitCount());
+            }
+        });
+
+        TIntList starts = new TIntArrayList();
+        TIntList ends = new TIntArrayList();
+        List<Handler[]> handlers = new ArrayList<Handler[]>();
+        for (int i = 0; i < (boundaries.length - 1); i++) {
+            int start = boundaries[i];
+            int end = boundaries[i + 1];
+            List<Handler> segment = new ArrayList<Handler>();
+            for (TryBlock<? extends ExceptionHandler> tryBlock : innermostFirst) {
+                int tryStart = tryBlock.getStartCodeAddress();
+                int tryEnd = tryStart + tryBlock.getCodeUnitCount();
+                if ((start < tryStart) || (end > tryEnd)) {
+                    continue;
+                }
+
+                for (ExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                    String handlerType = handler.getExceptionType();
+                    TypeSymbol type = handlerType == null ? null : symbolTable.getType(handlerType);
+                    segment.add(new Handler(type, handler.getHandlerCodeAddress()));
+                }
+            }
+            if (segment.size() == 0) {
+                // Gap between try blocks
+                continue;
+            }
+
+            starts.add(start);
+            ends.add(end);
+            handlers.add(segment.toArray(new Handler[segment.size()]));
+        }
+
+        segmentStarts = starts.toArray();
+        segmentEnds = ends.toArray();
+        segmentHandlers = handlers.toArray(new Handler[handlers.size()][]);
+    }
+
+    /**
+     * Find the handlers which could catch an exception. The first handler which catches the exception type or any of
+     * its supertypes wins. If the ancestry of the exception isn't known, every handler which might match is included.
+     *
+     * @param exceptionType
+     * @param address
+     *            address of the throwing instruction
+     * @param hierarchy
+     * @return handler addresses
+     */
+    public int[] getCatchAddresses(TypeSymbol exceptionType, int address, ClassHierarchy hierarchy) {
+        int segment = findSegment(address);
+        if (segment < 0) {
+            return NO_ADDRESSES;
+        }
+
+        TIntList addresses = new TIntArrayList(1);
+        for (Handler handler : segmentHandlers[segment]) {
+            boolean isCaught;
+            boolean isCertain = true;
+            if (handler.type == null) {
+                isCaught = true;
+            } else {
+                try {
+                    isCaught = hierarchy.isInstance(exceptionType, handler.type);
+                } catch (UnknownAncestors e) {
+                    isCaught = true;
+                    isCertain = false;
+                }
+            }
+
+            if (!isCaught) {
+                continue;
+            }
+
+            if (!addresses.contains(handler.address)) {
+                addresses.add(handler.address);
+            }
+            if (isCertain) {
+                break;
+            }
+        }
+
+        return addresses.toArray();
+    }
+
+    public boolean isEmpty() {
+        return segmentStarts.length == 0;
+    }
+
+    private int findSegment(int address) {
+        int index = Arrays.binarySearch(segmentStarts, address);
+        if (index < 0) {
+            // Insertion point is one past the segment which may contain the address
+            index = -index - 2;
+        }
+        if ((index < 0) || (address >= segmentEnds[index])) {
+            return -1;
+        }
+
+        return index;
+    }
+
+}
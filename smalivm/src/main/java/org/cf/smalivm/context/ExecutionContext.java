@@ -8,6 +8,7 @@ import java.util.Set;
 
 import org.cf.smalivm.SideEffect;
 import org.cf.smalivm.VirtualMachine;
+import org.cf.util.FlightRecorderEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -15,12 +16,20 @@ public class ExecutionContext {
 
     private static final Logger log = LoggerFactory.getLogger(ExecutionContext.class.getSimpleName());
 
+    private static final FlightRecorderEvent.Type INITIALIZE_EVENT = FlightRecorderEvent.define(
+                    "org.cf.smalivm.ClassInitialization", "Class Initialization", new String[] {
+                                    "className", "callDepth", "sideEffectLevel" }, new Class<?>[] { String.class,
+                                    int.class, String.class });
+
     private int callDepth;
     private final TMap<String, SideEffect.Level> classNameToSideEffectLevel;
     private final TMap<String, ClassState> classNameToState;
     private final Heap heap;
     private final Set<String> initializedClasses;
 
+    // Classes accessed by this context or any context in the same method execution
+    private Set<String> dirtyClasses;
+    private ExecutionContext callerContext;
     private MethodState mState;
     private ExecutionContext parent;
     private final VirtualMachine vm;
@@ -41,6 +50,8 @@ public class ExecutionContext {
         initializedClasses = new THashSet<String>(other.initializedClasses);
         heap = new Heap(other.getHeap());
         callDepth = other.getCallDepth();
+        callerContext = other.callerContext;
+        dirtyClasses = other.dirtyClasses;
     }
 
     public ExecutionContext(VirtualMachine vm) {
@@ -48,6 +59,7 @@ public class ExecutionContext {
         classNameToState = new THashMap<String, ClassState>(0);
         classNameToSideEffectLevel = new THashMap<String, SideEffect.Level>(0);
         initializedClasses = new THashSet<String>(0);
+        dirtyClasses = new THashSet<String>(0);
         heap = new Heap();
         callDepth = 0;
     }
@@ -61,6 +73,7 @@ public class ExecutionContext {
         child.setCallDepth(callDepth);
         child.setParent(this);
         child.getHeap().setParent(this.getHeap());
+        child.dirtyClasses = dirtyClasses;
 
         // Almost every op access the method state
         MethodState childMethodState = getMethodState().getChild(child);
@@ -69,6 +82,13 @@ public class ExecutionContext {
         return child;
     }
 
+    /**
+     * @return classes whose state was accessed or initialized by any context in this method execution
+     */
+    public Set<String> getDirtyClasses() {
+        return dirtyClasses;
+    }
+
     public Set<String> getInitializedClasses() {
         return initializedClasses;
     }
@@ -114,7 +134,25 @@ public class ExecutionContext {
         this.callDepth = callDepth;
     }
 
+    /**
+     * Class states of the caller are inherited lazily, the first time each class is used. The caller must not change
+     * until this method execution is collapsed back into it.
+     *
+     * @param callerContext
+     */
+    public void setCallerContext(ExecutionContext callerContext) {
+        this.callerContext = callerContext;
+
+        // Any uninitialized template states here would hide the caller's, so inherit those now.
+        for (String className : classNameToState.keySet().toArray(new String[classNameToState.size()])) {
+            if (!initializedClasses.contains(className) && callerContext.isClassInitialized(className)) {
+                inheritClassState(className);
+            }
+        }
+    }
+
     public void setClassState(String className, ClassState cState, SideEffect.Level level) {
+        dirtyClasses.add(className);
         classNameToState.put(className, cState);
         classNameToSideEffectLevel.put(className, level);
     }
@@ -133,6 +171,14 @@ public class ExecutionContext {
             return;
         }
 
+        // With nothing initialized, <clinit> can't depend on outside state, so its result can be shared.
+        ClassInitializationCache initializationCache = vm.getClassInitializationCache();
+        boolean isCacheable = (parent == null) && (callerContext == null) && initializedClasses.isEmpty();
+        if (isCacheable && initializationCache.restore(className, this)) {
+            return;
+        }
+
+        FlightRecorderEvent event = INITIALIZE_EVENT.begin();
         SideEffect.Level sideEffectLevel = SideEffect.Level.NONE;
         String clinitDescriptor = className + "-><clinit>()V";
         if (vm.getClassManager().isLocalMethod(clinitDescriptor)) {
@@ -146,6 +192,7 @@ public class ExecutionContext {
             if (graph == null) {
                 // Error executing. Assume the worst.
                 sideEffectLevel = SideEffect.Level.STRONG;
+                isCacheable = false;
             } else {
                 sideEffectLevel = graph.getHighestSideEffectLevel();
             }
@@ -154,6 +201,13 @@ public class ExecutionContext {
             setClassInitialized(className);
         }
         setClassSideEffectType(className, sideEffectLevel);
+
+        if (isCacheable) {
+            initializationCache.store(className, this);
+        }
+        if (event.isEnabled()) {
+            event.commit(className, getCallDepth(), sideEffectLevel.toString());
+        }
     }
 
     public boolean isClassInitialized(String className) {
@@ -179,20 +233,51 @@ public class ExecutionContext {
         return parent;
     }
 
+    /*
+     * Class states and side effect levels held by this context, not inherited from ancestors.
+     */
+    TMap<String, ClassState> getLocalClassStates() {
+        return classNameToState;
+    }
+
+    TMap<String, SideEffect.Level> getLocalClassSideEffectLevels() {
+        return classNameToSideEffectLevel;
+    }
+
     private ExecutionContext getAncestorWithClassName(String className) {
         ExecutionContext ancestor = this;
+        ExecutionContext root;
         do {
             if (ancestor.classNameToState.containsKey(className)) {
                 return ancestor;
             }
 
+            root = ancestor;
             ancestor = ancestor.getParent();
         } while (ancestor != null);
 
-        return ancestor;
+        if ((root.callerContext != null) && root.callerContext.isClassInitialized(className)) {
+            root.inheritClassState(className);
+
+            return root;
+        }
+
+        return null;
+    }
+
+    private void inheritClassState(String className) {
+        ClassState fromClassState = callerContext.peekClassState(className);
+        ClassState toClassState = new ClassState(fromClassState, this);
+        for (String fieldNameAndType : vm.getClassManager().getFieldNameAndTypes(className)) {
+            Object value = fromClassState.peekField(fieldNameAndType);
+            toClassState.pokeField(fieldNameAndType, value);
+        }
+        SideEffect.Level level = callerContext.getClassStateSideEffectLevel(className);
+        initializeClass(className, toClassState, level);
     }
 
     public ClassState peekClassState(String className) {
+        dirtyClasses.add(className);
         ExecutionContext ancestor = getAncestorWithClassName(className);
         if (ancestor == null) {
             vm.addTemplateClassState(this, className);
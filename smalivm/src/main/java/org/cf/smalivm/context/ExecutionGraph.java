@@ -6,6 +6,7 @@ import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -17,9 +18,11 @@ import org.cf.smalivm.SideEffect;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.opcode.Op;
 import org.cf.smalivm.opcode.OpFactory;
+import org.cf.smalivm.symbol.FieldSymbol;
 import org.cf.smalivm.type.TypeUtil;
 import org.cf.smalivm.type.UnknownValue;
 import org.cf.util.SmaliClassUtils;
+import org.cf.util.Tracing;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.BuilderInstruction;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
@@ -53,6 +56,24 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return result;
     }
 
+    private static Object[] buildUnknownFieldValues(Object[] values, boolean[] isAmbiguous,
+                    String[] fieldNameAndTypes) {
+        for (int i = 0; i < values.length; i++) {
+            if (isAmbiguous[i]) {
+                String fieldNameAndType = fieldNameAndTypes[i];
+                String type = fieldNameAndType.substring(fieldNameAndType.indexOf(':') + 1);
+                values[i] = new UnknownValue(type);
+            }
+        }
+
+        return values;
+    }
+
+    private static boolean isEqual(Object value, Object other) {
+        // Same test a HashSet would use to collapse values
+        return (value == other) || ((value != null) && value.equals(other));
+    }
+
     private static TIntList buildTerminatingAddresses(List<BuilderInstruction> instructions) {
         TIntList result = new TIntArrayList(1);
         for (BuilderInstruction instruction : instructions) {
@@ -73,7 +94,8 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     private final String methodDescriptor;
-    private final TIntList terminatingAddresses;
+    private TIntList terminatingAddresses;
+    private ExceptionHandlerTable exceptionHandlers;
     protected final TIntObjectMap<List<ExecutionNode>> addressToNodePile;
 
     public ExecutionGraph(ExecutionGraph other) {
@@ -88,12 +110,14 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
             addressToNodePile.put(address, nodePile);
         }
         terminatingAddresses = other.terminatingAddresses;
+        exceptionHandlers = other.exceptionHandlers;
     }
 
     public ExecutionGraph(ExecutionGraph other, boolean wrap) {
         this.addressToNodePile = other.addressToNodePile;
         this.methodDescriptor = other.methodDescriptor;
         this.terminatingAddresses = other.terminatingAddresses;
+        this.exceptionHandlers = other.exceptionHandlers;
     }
 
     public ExecutionGraph(VirtualMachine vm, BuilderMethod method) {
@@ -102,6 +126,8 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         List<BuilderInstruction> instructions = implementation.getInstructions();
         addressToNodePile = buildAddressToNodePile(vm, methodDescriptor, instructions);
         terminatingAddresses = buildTerminatingAddresses(instructions);
+        exceptionHandlers = new ExceptionHandlerTable(implementation.getTryBlocks(), vm.getClassManager()
+                        .getSymbolTable());
     }
 
     public void addNode(ExecutionNode node) {
@@ -125,33 +151,74 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public Object getFieldConsensus(TIntList addressList, String fieldDescriptor) {
-        String[] parts = fieldDescriptor.split("->");
+        int separator = fieldDescriptor.indexOf("->");
+        String className = fieldDescriptor.substring(0, separator);
+        String fieldNameAndType = fieldDescriptor.substring(separator + 2);
 
-        return getFieldConsensus(addressList, parts[0], parts[1]);
+        return getFieldConsensus(addressList, className, fieldNameAndType);
     }
 
     public Object getFieldConsensus(TIntList addressList, String className, String fieldNameAndType) {
-        Object value = null;
-        String[] parts = fieldNameAndType.split(":");
-        String type = parts[1];
+        Object[] values = getFieldConsensus(addressList, className, new String[] { fieldNameAndType });
+
+        return values[0];
+    }
 
+    /**
+     * Get the consensus of several fields of a class in a single pass over each node pile.
+     *
+     * @param addressList
+     * @param className
+     * @param fields
+     * @return consensus value of each field, in the same order as fields
+     */
+    public Object[] getFieldConsensus(TIntList addressList, String className, List<FieldSymbol> fields) {
+        String[] fieldNameAndTypes = new String[fields.size()];
+        for (int i = 0; i < fieldNameAndTypes.length; i++) {
+            fieldNameAndTypes[i] = fields.get(i).getNameAndType();
+        }
+
+        return getFieldConsensus(addressList, className, fieldNameAndTypes);
+    }
+
+    private Object[] getFieldConsensus(TIntList addressList, String className, String[] fieldNameAndTypes) {
+        int fieldCount = fieldNameAndTypes.length;
+        Object[] result = new Object[fieldCount];
+        boolean[] isAmbiguous = new boolean[fieldCount];
         for (int address : addressList.toArray()) {
+            List<ExecutionNode> nodePile = getNodePile(address);
             // If the class wasn't initialized in one path, it's unknown
-            for (ExecutionNode node : getNodePile(address)) {
+            for (ExecutionNode node : nodePile) {
                 if (!node.getContext().isClassInitialized(className)) {
-                    return new UnknownValue(type);
+                    Arrays.fill(isAmbiguous, true);
+                    return buildUnknownFieldValues(result, isAmbiguous, fieldNameAndTypes);
                 }
             }
 
-            Set<Object> values = getFieldValues(address, className, fieldNameAndType);
-            value = values.toArray()[0]; // since set, size == 1 -> consensus
-            if (1 != values.size()) {
-                log.trace("No conensus for " + className + "->" + fieldNameAndType + ", returning unknown");
-                return new UnknownValue(type);
+            boolean isFirstNode = true;
+            for (ExecutionNode node : nodePile) {
+                ClassState cState = node.getContext().peekClassState(className);
+                for (int i = 0; i < fieldCount; i++) {
+                    if (isAmbiguous[i]) {
+                        continue;
+                    }
+
+                    Object value = cState.peekField(fieldNameAndTypes[i]);
+                    if (isFirstNode) {
+                        result[i] = value;
+                    } else if (!isEqual(result[i], value)) {
+                        if (Tracing.ENABLED && log.isTraceEnabled()) {
+                            log.trace("No conensus for " + className + "->" + fieldNameAndTypes[i]
+                                            + ", returning unknown");
+                        }
+                        isAmbiguous[i] = true;
+                    }
+                }
+                isFirstNode = false;
             }
         }
 
-        return value;
+        return buildUnknownFieldValues(result, isAmbiguous, fieldNameAndTypes);
     }
 
     public Set<String> getAllPossiblyInitializedClasses(TIntList addressList) {
@@ -178,15 +245,39 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return result;
     }
 
+    /**
+     * Rebuild the parts of the graph derived from the method's instructions and try blocks, which are otherwise built
+     * once for the template. Needed if the implementation is edited in place.
+     *
+     * @param vm
+     * @param implementation
+     */
+    protected void rebuildMethodTables(VirtualMachine vm, MutableMethodImplementation implementation) {
+        terminatingAddresses = buildTerminatingAddresses(implementation.getInstructions());
+        exceptionHandlers = new ExceptionHandlerTable(implementation.getTryBlocks(), vm.getSymbolTable());
+    }
+
+    /**
+     * @return exception handlers of the method, shared by every graph cloned from the same template
+     */
+    public ExceptionHandlerTable getExceptionHandlers() {
+        return exceptionHandlers;
+    }
+
     public String getMethodDescriptor() {
         return methodDescriptor;
     }
 
+    /**
+     * @return nodes created by executing, not counting the template node at each address
+     */
     public int getNodeCount() {
-        int totalSize = addressToNodePile.size();
-        int templateCount = addressToNodePile.keys().length;
+        int result = 0;
+        for (List<ExecutionNode> pile : addressToNodePile.valueCollection()) {
+            result += pile.size() - 1;
+        }
 
-        return totalSize - templateCount;
+        return result;
     }
 
     public List<ExecutionNode> getNodePile(int address) {
@@ -205,10 +296,9 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public Object getRegisterConsensus(int address, int register) {
-        TIntList addresses = new TIntArrayList(1);
-        addresses.add(address);
+        Object[] values = getRegisterConsensus(new int[] { address }, new int[] { register });
 
-        return getRegisterConsensus(addresses, register);
+        return values[0];
     }
 
     public SideEffect.Level getHighestClassSideEffectLevel(String className) {
@@ -238,19 +328,57 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public Object getRegisterConsensus(TIntList addressList, int register) {
-        Object value = null;
-        for (int address : addressList.toArray()) {
-            Set<Object> values = getRegisterValues(address, register);
-            value = values.toArray()[0];
-            if (values.size() != 1) {
-                log.trace("No conensus for register #" + register + ", returning unknown");
-                String type = SmaliClassUtils.javaClassToSmali(TypeUtil.getValueType(value));
+        Object[] values = getRegisterConsensus(addressList.toArray(), new int[] { register });
+
+        return values[0];
+    }
+
+    /**
+     * Get the consensus of several registers in a single pass over each node pile.
+     *
+     * @param addressList
+     * @param registers
+     * @return consensus value of each register, in the same order as registers
+     */
+    public Object[] getRegisterConsensus(TIntList addressList, int[] registers) {
+        return getRegisterConsensus(addressList.toArray(), registers);
+    }
+
+    private Object[] getRegisterConsensus(int[] addresses, int[] registers) {
+        int registerCount = registers.length;
+        Object[] result = new Object[registerCount];
+        boolean[] isAmbiguous = new boolean[registerCount];
+        for (int address : addresses) {
+            boolean isFirstNode = true;
+            for (ExecutionNode node : getNodePile(address)) {
+                MethodState mState = node.getContext().getMethodState();
+                for (int i = 0; i < registerCount; i++) {
+                    if (isAmbiguous[i]) {
+                        continue;
+                    }
+
+                    Object value = mState.peekRegister(registers[i]);
+                    if (isFirstNode) {
+                        result[i] = value;
+                    } else if (!isEqual(result[i], value)) {
+                        if (Tracing.ENABLED && log.isTraceEnabled()) {
+                            log.trace("No conensus for register #" + registers[i] + ", returning unknown");
+                        }
+                        isAmbiguous[i] = true;
+                    }
+                }
+                isFirstNode = false;
+            }
+        }
 
-                return new UnknownValue(type);
+        for (int i = 0; i < registerCount; i++) {
+            if (isAmbiguous[i]) {
+                String type = SmaliClassUtils.javaClassToSmali(TypeUtil.getValueType(result[i]));
+                result[i] = new UnknownValue(type);
             }
         }
 
-        return value;
+        return result;
     }
 
     public Set<Object> getRegisterValues(int address, int register) {
@@ -347,10 +475,10 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
 
     public Map<Integer, Object> getTerminatingRegisterConsensus(int[] registers) {
         TIntList addresses = getConnectedTerminatingAddresses();
+        Object[] values = getRegisterConsensus(addresses, registers);
         Map<Integer, Object> result = new HashMap<Integer, Object>(registers.length);
-        for (int register : registers) {
-            Object value = getRegisterConsensus(addresses, register);
-            result.put(register, value);
+        for (int i = 0; i < registers.length; i++) {
+            result.put(registers[i], values[i]);
         }
 
         return result;
@@ -374,7 +502,9 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         // If this address was reached during execution there will be clones in the pile.
         List<ExecutionNode> nodePile = addressToNodePile.get(address);
         if (1 > nodePile.size()) {
-            log.warn("Node pile @" + address + " has no template node.");
+            if (log.isWarnEnabled()) {
+                log.warn("Node pile @" + address + " has no template node.");
+            }
         }
 
         return nodePile.size() > 1;
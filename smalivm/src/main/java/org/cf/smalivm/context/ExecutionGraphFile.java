@@ -0,0 +1,55 @@
+package org.cf.smalivm.context;
+
+/**
+ * Binary format for saved execution graphs, shared by {@link ExecutionGraphWriter} and {@link ExecutionGraphReader}.
+ *
+ * A file is a header, one record per graph, and an index which is only written when the file is closed. Each record is
+ * an int length and a payload which can be decoded on its own. The payload is the method descriptor, the op name at
+ * each address to check the method hasn't changed, each op's side-effect level, the node piles, each node's children,
+ * and each node's context.
+ * Contexts are in breadth first order from the roots, so a parent context is always decoded before its children, and
+ * only hold what's local to that context, e.g. the heap entries it set, not what it inherits.
+ *
+ * The index is a marker, the number of graphs, each method descriptor and record offset, and a trailer with the index
+ * offset and the magic number again. Without a trailer, e.g. after a crash, records are found by scanning lengths.
+ *
+ * Within a payload, integers are unsigned LEB128 varints, or zigzag encoded first if they can be negative. Strings and
+ * values are interned: a reference is a varint id, and an id one past the last one defined is followed by the
+ * definition. Value id 0 is null.
+ *
+ * @author cfenton
+ *
+ */
+final class ExecutionGraphFile {
+
+    static final int MAGIC = 0x534d4547; // SMEG
+    static final int VERSION = 3;
+    static final int INDEX_MARKER = -1;
+    static final int HEADER_SIZE = 8;
+    static final int TRAILER_SIZE = 12;
+
+    // Context kinds
+    static final byte ROOT_CONTEXT = 0; // new context, followed by method state shape and dirty classes
+    static final byte CHILD_CONTEXT = 1; // child of the parent node's context
+
+    // Value tags
+    static final byte INT = 1;
+    static final byte LONG = 2;
+    static final byte FLOAT = 3;
+    static final byte DOUBLE = 4;
+    static final byte BOOLEAN = 5;
+    static final byte BYTE = 6;
+    static final byte SHORT = 7;
+    static final byte CHAR = 8;
+    static final byte STRING = 9;
+    static final byte UNKNOWN = 10; // type
+    static final byte LOCAL_INSTANCE = 11; // type
+    static final byte UNINITIALIZED_INSTANCE = 12; // type
+    static final byte ARRAY = 13; // java class name, length, element values
+    // 14 was java serialized values, dropped in version 3 since files aren't trusted
+    static final byte OTHER = 15; // type, loaded as unknown
+
+    private ExecutionGraphFile() {
+    }
+
+}
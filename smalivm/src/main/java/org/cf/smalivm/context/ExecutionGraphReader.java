@@ -0,0 +1,468 @@
+package org.cf.smalivm.context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Array;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.opcode.InvokeOp;
+import org.cf.smalivm.opcode.NewInstanceOp;
+import org.cf.smalivm.opcode.Op;
+import org.cf.smalivm.type.LocalInstance;
+import org.cf.smalivm.type.UninitializedInstance;
+import org.cf.smalivm.type.UnknownValue;
+import org.cf.util.SmaliClassUtils;
+
+/**
+ * Loads execution graphs saved by {@link ExecutionGraphWriter}. Only the index is read when opened. Each graph is
+ * memory-mapped and decoded when it's asked for, so a file with many graphs is cheap to open.
+ *
+ * Loaded graphs are built on the VM's instruction graph for the method, so the method must be the same as when the
+ * graph was written. Like the VM, a reader isn't thread safe.
+ *
+ * @author cfenton
+ *
+ */
+public class ExecutionGraphReader {
+
+    private static final SideEffect.Level[] LEVELS = SideEffect.Level.values();
+
+    // Array component types which are safe to load by name from a file, anything else is loaded as unknown
+    private static final Set<String> ARRAY_COMPONENT_CLASSES = new HashSet<String>(Arrays.asList("Z", "B", "S", "C",
+                    "I", "J", "F", "D", "Ljava.lang.Object;", "Ljava.lang.String;", "Ljava.lang.Boolean;",
+                    "Ljava.lang.Byte;", "Ljava.lang.Short;", "Ljava.lang.Character;", "Ljava.lang.Integer;",
+                    "Ljava.lang.Long;", "Ljava.lang.Float;", "Ljava.lang.Double;"));
+
+    private final File file;
+    private final RandomAccessFile input;
+    private final FileChannel channel;
+    private final Map<String, Long> methodToOffset;
+
+    public ExecutionGraphReader(File file) throws IOException {
+        this.file = file;
+        input = new RandomAccessFile(file, "r");
+        channel = input.getChannel();
+        methodToOffset = new LinkedHashMap<String, Long>();
+        try {
+            if ((input.length() < ExecutionGraphFile.HEADER_SIZE) || (input.readInt() != ExecutionGraphFile.MAGIC)) {
+                throw new IOException(file + " isn't an execution graph file");
+            }
+            int version = input.readInt();
+            if (version != ExecutionGraphFile.VERSION) {
+                throw new IOException("Unsupported execution graph file version " + version + " in " + file);
+            }
+            if (!readIndex()) {
+                scanRecords();
+            }
+        } catch (IOException e) {
+            input.close();
+            throw e;
+        }
+    }
+
+    public void close() throws IOException {
+        input.close();
+    }
+
+    public boolean contains(String methodDescriptor) {
+        return methodToOffset.containsKey(methodDescriptor);
+    }
+
+    public Set<String> getMethodDescriptors() {
+        return Collections.unmodifiableSet(methodToOffset.keySet());
+    }
+
+    /**
+     * @param vm
+     * @param methodDescriptor
+     * @return the saved graph, or null if there isn't one for the method
+     * @throws IOException
+     *             if the file is corrupt or the method has changed since the graph was saved
+     */
+    public ExecutionGraph read(VirtualMachine vm, String methodDescriptor) throws IOException {
+        Long offset = methodToOffset.get(methodDescriptor);
+        if (offset == null) {
+            return null;
+        }
+
+        input.seek(offset);
+        int length = input.readInt();
+        try {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4, length);
+
+            return new Decoder(buffer).decode(vm, methodDescriptor);
+        } catch (RuntimeException e) {
+            // E.g. buffer underflow, a malformed varint, or a bad id
+            throw new IOException("Corrupt graph for " + methodDescriptor + " in " + file, e);
+        }
+    }
+
+    private boolean readIndex() throws IOException {
+        long length = input.length();
+        if (length < ExecutionGraphFile.HEADER_SIZE + ExecutionGraphFile.TRAILER_SIZE) {
+            return false;
+        }
+
+        input.seek(length - ExecutionGraphFile.TRAILER_SIZE);
+        long indexOffset = input.readLong();
+        if ((input.readInt() != ExecutionGraphFile.MAGIC) || (indexOffset < ExecutionGraphFile.HEADER_SIZE)
+                        || (indexOffset >= length)) {
+            return false;
+        }
+
+        input.seek(indexOffset);
+        if (input.readInt() != ExecutionGraphFile.INDEX_MARKER) {
+            return false;
+        }
+        int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            String methodDescriptor = input.readUTF();
+            methodToOffset.put(methodDescriptor, input.readLong());
+        }
+
+        return true;
+    }
+
+    /*
+     * The file wasn't closed, so find whichever records were written completely.
+     */
+    private void scanRecords() throws IOException {
+        long fileLength = input.length();
+        long offset = ExecutionGraphFile.HEADER_SIZE;
+        while (offset + 4 <= fileLength) {
+            input.seek(offset);
+            int length = input.readInt();
+            if ((length <= 0) || (offset + 4 + length > fileLength)) {
+                break;
+            }
+
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4, length);
+            methodToOffset.put(new Decoder(buffer).readString(), offset);
+            offset += 4 + length;
+        }
+    }
+
+    private static boolean isSafeArrayClass(String className) {
+        int dimensions = 0;
+        while ((dimensions < className.length()) && (className.charAt(dimensions) == '[')) {
+            dimensions++;
+        }
+
+        return (dimensions > 0) && ARRAY_COMPONENT_CLASSES.contains(className.substring(dimensions));
+    }
+
+    private static class Decoder {
+
+        private final ByteBuffer buffer;
+        private final List<String> strings;
+        private final List<Object> values;
+
+        Decoder(ByteBuffer buffer) {
+            this.buffer = buffer;
+            strings = new ArrayList<String>();
+            values = new ArrayList<Object>();
+            // Id 0 is null
+            values.add(null);
+        }
+
+        ExecutionGraph decode(VirtualMachine vm, String methodDescriptor) throws IOException {
+            String recordDescriptor = readString();
+            if (!recordDescriptor.equals(methodDescriptor)) {
+                throw new IOException("Expected graph for " + methodDescriptor + " but found " + recordDescriptor);
+            }
+
+            ExecutionGraph graph = vm.getInstructionGraphClone(methodDescriptor);
+            int addressCount = readLength();
+            int[] addresses = new int[addressCount];
+            SideEffect.Level[] levels = new SideEffect.Level[addressCount];
+            for (int i = 0; i < addressCount; i++) {
+                addresses[i] = readInt();
+                String opName = readString();
+                levels[i] = LEVELS[readInt()];
+                boolean matches = graph.addressToNodePile.containsKey(addresses[i])
+                                && graph.getTemplateNode(addresses[i]).getOp().getName().equals(opName);
+                if (!matches) {
+                    throw new IOException(methodDescriptor + " has changed since its graph was saved");
+                }
+            }
+            if (addressCount != graph.getAddresses().length) {
+                throw new IOException(methodDescriptor + " has changed since its graph was saved");
+            }
+            // Ops are shared with the VM's instruction graph, so only change them once the method is known to match
+            for (int i = 0; i < addressCount; i++) {
+                Op op = graph.getTemplateNode(addresses[i]).getOp();
+                if (op instanceof InvokeOp) {
+                    ((InvokeOp) op).setSideEffectLevel(levels[i]);
+                } else if (op instanceof NewInstanceOp) {
+                    ((NewInstanceOp) op).setSideEffectLevel(levels[i]);
+                }
+            }
+
+            List<ExecutionNode> nodes = new ArrayList<ExecutionNode>();
+            for (int address : addresses) {
+                int pileSize = readLength();
+                for (int i = 0; i < pileSize; i++) {
+                    nodes.add(new ExecutionNode(graph.getTemplateNode(address).getOp()));
+                }
+            }
+
+            int nodeCount = nodes.size();
+            int[][] children = new int[nodeCount][];
+            boolean[] hasParent = new boolean[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                children[i] = new int[readLength()];
+                for (int j = 0; j < children[i].length; j++) {
+                    children[i][j] = readInt();
+                    hasParent[children[i][j]] = true;
+                }
+            }
+
+            // Same order as written: breadth first from the roots
+            int[] parents = new int[nodeCount];
+            Deque<Integer> queue = new ArrayDeque<Integer>();
+            for (int i = 0; i < nodeCount; i++) {
+                if (!hasParent[i]) {
+                    parents[i] = -1;
+                    queue.add(i);
+                }
+            }
+            Integer index;
+            while ((index = queue.poll()) != null) {
+                ExecutionContext parentContext = parents[index] < 0 ? null : nodes.get(parents[index]).getContext();
+                nodes.get(index).setContext(readContext(vm, parentContext));
+                for (int child : children[index]) {
+                    parents[child] = index;
+                    queue.add(child);
+                }
+            }
+
+            for (int i = 0; i < nodeCount; i++) {
+                for (int child : children[i]) {
+                    nodes.get(child).setParent(nodes.get(i));
+                }
+                graph.addNode(nodes.get(i));
+            }
+
+            return graph;
+        }
+
+        private ExecutionContext readContext(VirtualMachine vm, ExecutionContext parentContext) throws IOException {
+            byte kind = buffer.get();
+            ExecutionContext ectx;
+            if (kind == ExecutionGraphFile.CHILD_CONTEXT) {
+                if (parentContext == null) {
+                    throw new IOException("Child context without a parent");
+                }
+                ectx = parentContext.getChild();
+            } else {
+                ectx = new ExecutionContext(vm);
+                int registerCount = readInt();
+                int parameterCount = readInt();
+                int parameterSize = readInt();
+                MethodState mState = new MethodState(ectx, registerCount, parameterCount, parameterSize);
+                mState.getMutableParameters().addAll(readIntList());
+                ectx.setMethodState(mState);
+                readStrings(ectx.getDirtyClasses());
+            }
+            ectx.setCallDepth(readInt());
+
+            Map<String, Object> keyToValue = ectx.getHeap().getKeyToValue();
+            int entryCount = readInt();
+            for (int i = 0; i < entryCount; i++) {
+                String key = readString();
+                keyToValue.put(key, readValue());
+            }
+
+            readStrings(ectx.getInitializedClasses());
+            int classCount = readInt();
+            for (int i = 0; i < classCount; i++) {
+                String className = readString();
+                ClassState cState = new ClassState(ectx, className, readInt());
+                readStrings(cState.getFieldNameAndTypes());
+                cState.getRegistersAssigned().addAll(readIntList());
+                cState.getRegistersRead().addAll(readIntList());
+                ectx.setClassState(className, cState, null);
+            }
+            int levelCount = readInt();
+            for (int i = 0; i < levelCount; i++) {
+                String className = readString();
+                int level = readInt();
+                ectx.setClassSideEffectType(className, level == 0 ? null : LEVELS[level - 1]);
+            }
+
+            MethodState mState = ectx.getMethodState();
+            mState.getRegistersAssigned().addAll(readIntList());
+            mState.getRegistersRead().addAll(readIntList());
+
+            return ectx;
+        }
+
+        private byte[] readBytes() {
+            byte[] bytes = new byte[readLength()];
+            buffer.get(bytes);
+
+            return bytes;
+        }
+
+        private int readInt() {
+            return (int) readVarint();
+        }
+
+        /*
+         * Everything counted takes at least a byte, so a count past the end of the record is corrupt.
+         */
+        private int readLength() {
+            long length = readVarint();
+            if (length > buffer.remaining()) {
+                throw new BufferUnderflowException();
+            }
+
+            return (int) length;
+        }
+
+        private int[] readIntList() {
+            int[] result = new int[readLength()];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = (int) readSignedVarint();
+            }
+
+            return result;
+        }
+
+        private long readSignedVarint() {
+            long value = readVarint();
+
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        String readString() {
+            int id = readInt();
+            if (id < strings.size()) {
+                return strings.get(id);
+            }
+
+            String value = new String(readBytes(), StandardCharsets.UTF_8);
+            strings.add(value);
+
+            return value;
+        }
+
+        private void readStrings(Set<String> result) {
+            int count = readInt();
+            for (int i = 0; i < count; i++) {
+                result.add(readString());
+            }
+        }
+
+        private Object readValue() throws IOException {
+            int id = readInt();
+            if (id < values.size()) {
+                return values.get(id);
+            }
+
+            byte tag = buffer.get();
+            switch (tag) {
+            case ExecutionGraphFile.INT:
+                return define((int) readSignedVarint());
+            case ExecutionGraphFile.LONG:
+                return define(readSignedVarint());
+            case ExecutionGraphFile.FLOAT:
+                return define(Float.intBitsToFloat((int) readVarint()));
+            case ExecutionGraphFile.DOUBLE:
+                return define(Double.longBitsToDouble(buffer.getLong()));
+            case ExecutionGraphFile.BOOLEAN:
+                return define(buffer.get() == 1);
+            case ExecutionGraphFile.BYTE:
+                return define(buffer.get());
+            case ExecutionGraphFile.SHORT:
+                return define((short) readSignedVarint());
+            case ExecutionGraphFile.CHAR:
+                return define((char) readVarint());
+            case ExecutionGraphFile.STRING:
+                return define(new String(readBytes(), StandardCharsets.UTF_8));
+            case ExecutionGraphFile.UNKNOWN:
+            case ExecutionGraphFile.OTHER:
+                return define(new UnknownValue(readString()));
+            case ExecutionGraphFile.LOCAL_INSTANCE:
+                return define(new LocalInstance(readString()));
+            case ExecutionGraphFile.UNINITIALIZED_INSTANCE:
+                return define(new UninitializedInstance(readString()));
+            case ExecutionGraphFile.ARRAY:
+                return readArray();
+            default:
+                throw new IOException("Unknown value tag " + tag);
+            }
+        }
+
+        private Object readArray() throws IOException {
+            String className = readString();
+            int length = readLength();
+            Object array;
+            if (isSafeArrayClass(className)) {
+                try {
+                    array = Array.newInstance(Class.forName(className).getComponentType(), length);
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unable to load array class " + className, e);
+                }
+            } else {
+                // Don't load classes named by the file, e.g. arrays of local classes are from the VM's class loader
+                array = new UnknownValue(SmaliClassUtils.javaClassToSmali(className));
+            }
+            // Defined before the elements in case an element refers to the array
+            int id = values.size();
+            define(array);
+            for (int i = 0; i < length; i++) {
+                Object element = readValue();
+                if (array instanceof UnknownValue) {
+                    continue;
+                }
+                try {
+                    Array.set(array, i, element);
+                } catch (IllegalArgumentException e) {
+                    // An element was loaded as unknown
+                    array = new UnknownValue(SmaliClassUtils.javaClassToSmali(className));
+                    values.set(id, array);
+                }
+            }
+
+            return array;
+        }
+
+        private long readVarint() {
+            long result = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                byte b = buffer.get();
+                result |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return result;
+                }
+            }
+
+            throw new IllegalStateException("Malformed varint");
+        }
+
+        private Object define(Object value) {
+            values.add(value);
+
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,354 @@
+package org.cf.smalivm.context;
+
+import gnu.trove.list.TIntList;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.ClassUtils;
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.opcode.Op;
+import org.cf.smalivm.type.LocalInstance;
+import org.cf.smalivm.type.TypeUtil;
+import org.cf.smalivm.type.UninitializedInstance;
+import org.cf.smalivm.type.UnknownValue;
+import org.cf.util.SmaliClassUtils;
+
+/**
+ * Saves execution graphs to a file, one at a time, so they can be loaded by {@link ExecutionGraphReader} in another run
+ * without executing again. Each graph is flushed as soon as it's written, so graphs written before a crash can still
+ * be read.
+ *
+ * Primitives, strings, arrays of them, and the VM's own value types are saved. Anything else, e.g. an emulated object,
+ * is loaded as an unknown value of the same type.
+ *
+ * @author cfenton
+ *
+ */
+public class ExecutionGraphWriter {
+
+    private final DataOutputStream out;
+    private final List<String> methodDescriptors;
+    private final List<Long> offsets;
+    private final Map<String, Integer> stringToId;
+    private final Map<Object, Integer> valueToId;
+    private final Map<Object, Integer> immutableValueToId;
+    private long position;
+    private byte[] record;
+    private int recordLength;
+
+    public ExecutionGraphWriter(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+        methodDescriptors = new ArrayList<String>();
+        offsets = new ArrayList<Long>();
+        stringToId = new HashMap<String, Integer>();
+        valueToId = new IdentityHashMap<Object, Integer>();
+        immutableValueToId = new HashMap<Object, Integer>();
+        record = new byte[4096];
+
+        out.writeInt(ExecutionGraphFile.MAGIC);
+        out.writeInt(ExecutionGraphFile.VERSION);
+        position = ExecutionGraphFile.HEADER_SIZE;
+    }
+
+    /**
+     * Write the index and close the file.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        long indexOffset = position;
+        out.writeInt(ExecutionGraphFile.INDEX_MARKER);
+        out.writeInt(methodDescriptors.size());
+        for (int i = 0; i < methodDescriptors.size(); i++) {
+            out.writeUTF(methodDescriptors.get(i));
+            out.writeLong(offsets.get(i));
+        }
+        out.writeLong(indexOffset);
+        out.writeInt(ExecutionGraphFile.MAGIC);
+        out.close();
+    }
+
+    /**
+     * Append a graph. If a graph for the same method was already written, this one replaces it.
+     *
+     * @param graph
+     * @throws IOException
+     */
+    public void write(ExecutionGraph graph) throws IOException {
+        recordLength = 0;
+        stringToId.clear();
+        valueToId.clear();
+        immutableValueToId.clear();
+        encode(graph);
+
+        methodDescriptors.add(graph.getMethodDescriptor());
+        offsets.add(position);
+        out.writeInt(recordLength);
+        out.write(record, 0, recordLength);
+        out.flush();
+        position += 4 + recordLength;
+    }
+
+    private void encode(ExecutionGraph graph) throws IOException {
+        writeString(graph.getMethodDescriptor());
+        int[] addresses = graph.getAddresses();
+        Arrays.sort(addresses);
+        writeVarint(addresses.length);
+        for (int address : addresses) {
+            writeVarint(address);
+            Op op = graph.getTemplateNode(address).getOp();
+            writeString(op.getName());
+            // Invoke and new-instance levels are only known after executing
+            writeVarint(op.sideEffectLevel().ordinal());
+        }
+
+        Map<ExecutionNode, Integer> nodeToIndex = new IdentityHashMap<ExecutionNode, Integer>();
+        List<ExecutionNode> nodes = new ArrayList<ExecutionNode>();
+        for (int address : addresses) {
+            List<ExecutionNode> pile = graph.getNodePile(address);
+            writeVarint(pile.size());
+            for (ExecutionNode node : pile) {
+                nodeToIndex.put(node, nodes.size());
+                nodes.add(node);
+            }
+        }
+
+        List<ExecutionNode> roots = new ArrayList<ExecutionNode>();
+        for (ExecutionNode node : nodes) {
+            if ((node.getParent() == null) || !nodeToIndex.containsKey(node.getParent())) {
+                roots.add(node);
+            }
+            int childCount = 0;
+            for (ExecutionNode child : node.getChildren()) {
+                if (nodeToIndex.containsKey(child)) {
+                    childCount++;
+                }
+            }
+            writeVarint(childCount);
+            for (ExecutionNode child : node.getChildren()) {
+                Integer index = nodeToIndex.get(child);
+                if (index != null) {
+                    writeVarint(index);
+                }
+            }
+        }
+
+        // Breadth first, so parent contexts are decoded before their children
+        Deque<ExecutionNode> queue = new ArrayDeque<ExecutionNode>(roots);
+        ExecutionNode node;
+        while ((node = queue.poll()) != null) {
+            ExecutionNode parent = node.getParent();
+            ExecutionContext ectx = node.getContext();
+            boolean isChild = (parent != null) && nodeToIndex.containsKey(parent)
+                            && (ectx.getParent() == parent.getContext());
+            writeContext(ectx, isChild);
+            for (ExecutionNode child : node.getChildren()) {
+                if (nodeToIndex.containsKey(child)) {
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    private void writeContext(ExecutionContext ectx, boolean isChild) throws IOException {
+        MethodState mState = ectx.getMethodState();
+        if (isChild) {
+            writeByte(ExecutionGraphFile.CHILD_CONTEXT);
+        } else {
+            writeByte(ExecutionGraphFile.ROOT_CONTEXT);
+            writeVarint(mState.getRegisterCount());
+            writeVarint(mState.getParameterCount());
+            writeVarint(mState.getRegisterCount() - mState.getParameterStart());
+            writeIntList(mState.getMutableParameters().toArray());
+            writeStrings(ectx.getDirtyClasses());
+        }
+        writeVarint(ectx.getCallDepth());
+
+        Map<String, Object> keyToValue = ectx.getHeap().getKeyToValue();
+        writeVarint(keyToValue.size());
+        for (Map.Entry<String, Object> entry : keyToValue.entrySet()) {
+            writeString(entry.getKey());
+            writeValue(entry.getValue());
+        }
+
+        writeStrings(ectx.getInitializedClasses());
+        Map<String, ClassState> classNameToState = ectx.getLocalClassStates();
+        writeVarint(classNameToState.size());
+        for (Map.Entry<String, ClassState> entry : classNameToState.entrySet()) {
+            ClassState cState = entry.getValue();
+            writeString(entry.getKey());
+            writeVarint(cState.getRegisterCount());
+            writeStrings(cState.getFieldNameAndTypes());
+            writeIntList(cState.getRegistersAssigned());
+            writeIntList(cState.getRegistersRead());
+        }
+        Map<String, SideEffect.Level> classNameToLevel = ectx.getLocalClassSideEffectLevels();
+        writeVarint(classNameToLevel.size());
+        for (Map.Entry<String, SideEffect.Level> entry : classNameToLevel.entrySet()) {
+            writeString(entry.getKey());
+            writeVarint(entry.getValue() == null ? 0 : entry.getValue().ordinal() + 1);
+        }
+
+        writeIntList(mState.getRegistersAssigned());
+        writeIntList(mState.getRegistersRead());
+    }
+
+    private void ensureCapacity(int extra) {
+        if (recordLength + extra > record.length) {
+            record = Arrays.copyOf(record, Math.max(record.length * 2, recordLength + extra));
+        }
+    }
+
+    private void writeByte(int value) {
+        ensureCapacity(1);
+        record[recordLength++] = (byte) value;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, record, recordLength, bytes.length);
+        recordLength += bytes.length;
+    }
+
+    private void writeFixedLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            writeByte((int) (value >>> shift));
+        }
+    }
+
+    private void writeIntList(int[] values) {
+        writeVarint(values.length);
+        for (int value : values) {
+            writeSignedVarint(value);
+        }
+    }
+
+    private void writeIntList(TIntList values) {
+        writeVarint(values.size());
+        for (int i = 0; i < values.size(); i++) {
+            writeSignedVarint(values.get(i));
+        }
+    }
+
+    private void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    private void writeString(String value) {
+        Integer id = stringToId.get(value);
+        if (id != null) {
+            writeVarint(id);
+            return;
+        }
+
+        id = stringToId.size();
+        stringToId.put(value, id);
+        writeVarint(id);
+        writeBytes(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void writeStrings(Collection<String> values) {
+        writeVarint(values.size());
+        for (String value : values) {
+            writeString(value);
+        }
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            writeVarint(0);
+            return;
+        }
+
+        // Boxed primitives and strings are interned by value, everything else by identity to keep aliasing
+        boolean isImmutable = ClassUtils.isPrimitiveWrapper(value.getClass()) || (value instanceof String);
+        Map<Object, Integer> table = isImmutable ? immutableValueToId : valueToId;
+        Integer id = table.get(value);
+        if (id != null) {
+            writeVarint(id);
+            return;
+        }
+
+        id = valueToId.size() + immutableValueToId.size() + 1;
+        table.put(value, id);
+        writeVarint(id);
+        writeValueDefinition(value);
+    }
+
+    private void writeValueDefinition(Object value) throws IOException {
+        if (value instanceof Integer) {
+            writeByte(ExecutionGraphFile.INT);
+            writeSignedVarint((Integer) value);
+        } else if (value instanceof Long) {
+            writeByte(ExecutionGraphFile.LONG);
+            writeSignedVarint((Long) value);
+        } else if (value instanceof Float) {
+            writeByte(ExecutionGraphFile.FLOAT);
+            writeVarint(Float.floatToRawIntBits((Float) value) & 0xFFFFFFFFL);
+        } else if (value instanceof Double) {
+            writeByte(ExecutionGraphFile.DOUBLE);
+            writeFixedLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Boolean) {
+            writeByte(ExecutionGraphFile.BOOLEAN);
+            writeByte((Boolean) value ? 1 : 0);
+        } else if (value instanceof Byte) {
+            writeByte(ExecutionGraphFile.BYTE);
+            writeByte((Byte) value);
+        } else if (value instanceof Short) {
+            writeByte(ExecutionGraphFile.SHORT);
+            writeSignedVarint((Short) value);
+        } else if (value instanceof Character) {
+            writeByte(ExecutionGraphFile.CHAR);
+            writeVarint((Character) value);
+        } else if (value instanceof String) {
+            writeByte(ExecutionGraphFile.STRING);
+            writeBytes(((String) value).getBytes(StandardCharsets.UTF_8));
+        } else if (value instanceof UnknownValue) {
+            writeByte(ExecutionGraphFile.UNKNOWN);
+            writeString(((UnknownValue) value).getName());
+        } else if (value instanceof LocalInstance) {
+            writeByte(ExecutionGraphFile.LOCAL_INSTANCE);
+            writeString(((LocalInstance) value).getName());
+        } else if (value instanceof UninitializedInstance) {
+            writeByte(ExecutionGraphFile.UNINITIALIZED_INSTANCE);
+            writeString(((UninitializedInstance) value).getName());
+        } else if (value.getClass().isArray()) {
+            int length = Array.getLength(value);
+            writeByte(ExecutionGraphFile.ARRAY);
+            writeString(value.getClass().getName());
+            writeVarint(length);
+            for (int i = 0; i < length; i++) {
+                writeValue(Array.get(value, i));
+            }
+        } else {
+            // Only the type, loading arbitrary objects from a file isn't safe
+            writeByte(ExecutionGraphFile.OTHER);
+            writeString(SmaliClassUtils.javaClassToSmali(TypeUtil.getValueType(value)));
+        }
+    }
+
+    private void writeVarint(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        writeByte((int) value);
+    }
+
+}
@@ -6,6 +6,7 @@ import java.util.List;
 import org.cf.smalivm.opcode.ExecutionContextOp;
 import org.cf.smalivm.opcode.MethodStateOp;
 import org.cf.smalivm.opcode.Op;
+import org.cf.util.Tracing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,7 +18,7 @@ public class ExecutionNode {
 
     private final List<ExecutionNode> children;
     private ExecutionContext ectx;
-    private final Op op;
+    private Op op;
     private ExecutionNode parent;
 
     public ExecutionNode(Op op) {
@@ -32,7 +33,7 @@ public class ExecutionNode {
 
     public int[] execute() {
         ExecutionContext ectx = getContext();
-        if (log.isDebugEnabled()) {
+        if (Tracing.ENABLED && log.isDebugEnabled()) {
             StringBuilder sb = new StringBuilder();
             sb.append("HANDLING @").append(op.getAddress()).append(": ").append(op);
             sb.append("\nContext before:\n").append(ectx);
@@ -47,7 +48,7 @@ public class ExecutionNode {
             result = ((ExecutionContextOp) op).execute(ectx);
         }
 
-        if (log.isDebugEnabled()) {
+        if (Tracing.ENABLED && log.isDebugEnabled()) {
             log.debug("Context after:\n" + ectx);
         }
 
@@ -106,6 +107,15 @@ public class ExecutionNode {
         ectx.setMethodState(mState);
     }
 
+    /**
+     * Swap in a rebuilt op for the same instruction, e.g. after the method was edited and its address changed.
+     *
+     * @param op
+     */
+    public void setOp(Op op) {
+        this.op = op;
+    }
+
     public void setParent(ExecutionNode parent) {
         // All nodes will have [0,1] parents since a node represents both an instruction and a context, or vm state.
         // Each execution of an instruction will have a new state.
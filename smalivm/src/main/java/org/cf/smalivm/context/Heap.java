@@ -7,6 +7,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import org.cf.util.Tracing;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -31,7 +32,7 @@ class Heap {
         keyToValue = new HashMap<String, Object>(other.keyToValue);
     }
 
-    private static Object cloneRegisterValue(Object value) {
+    static Object cloneRegisterValue(Object value) {
         Object result = cloner.deepClone(value);
 
         return result;
@@ -91,7 +92,7 @@ class Heap {
          */
         Heap ancestor = getAncestorWithKey(key);
         if (ancestor == null) {
-            if (log.isTraceEnabled()) {
+            if (Tracing.ENABLED && log.isTraceEnabled()) {
                 log.trace("Undefined value for " + key + " Possibly a mistake!", new Exception());
             }
 
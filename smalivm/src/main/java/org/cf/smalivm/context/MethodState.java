@@ -192,6 +192,10 @@ public class MethodState extends BaseState {
         assignRegisterAndUpdateIdentities(register, value, METHOD_HEAP);
     }
 
+    TIntSet getMutableParameters() {
+        return mutableParameters;
+    }
+
     MethodState getChild(ExecutionContext childContext) {
         MethodState child = new MethodState(this, childContext, mutableParameters);
 
@@ -44,10 +44,12 @@ public class ArrayLengthOp extends MethodStateOp {
         } else if (array.getClass().isArray()) {
             value = Array.getLength(array);
         } else {
-            if (array == null) {
-                log.warn("Unexpected null array for array-length");
-            } else {
-                log.warn("Unexpected non-array class: " + array.getClass() + ", " + array);
+            if (log.isWarnEnabled()) {
+                if (array == null) {
+                    log.warn("Unexpected null array for array-length");
+                } else {
+                    log.warn("Unexpected non-array class: " + array.getClass() + ", " + array);
+                }
             }
         }
         mState.assignRegister(destRegister, value);
@@ -293,7 +293,9 @@ public class BinaryMathOp extends MethodStateOp {
         } else {
             result = getResult(lhs, rhs);
             if (result == null) {
-                log.warn("Null result in binary math. Not possibruuu!");
+                if (log.isWarnEnabled()) {
+                    log.warn("Null result in binary math. Not possibruuu!");
+                }
             }
         }
         mState.assignRegister(destRegister, result);
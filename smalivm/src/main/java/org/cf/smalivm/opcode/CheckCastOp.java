@@ -3,8 +3,10 @@ package org.cf.smalivm.opcode;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.smalivm.symbol.TypeSymbol;
 import org.cf.smalivm.type.LocalType;
 import org.cf.util.SmaliClassUtils;
+import org.cf.util.Tracing;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
 import org.jf.dexlib2.iface.reference.TypeReference;
@@ -22,40 +24,48 @@ public class CheckCastOp extends MethodStateOp {
         Instruction21c instr = (Instruction21c) instruction;
         int targetRegister = instr.getRegisterA();
         TypeReference typeRef = (TypeReference) instr.getReference();
-        String className = typeRef.getType();
+        TypeSymbol castType = vm.getSymbolTable().getType(typeRef.getType());
 
-        return new CheckCastOp(address, opName, childAddress, targetRegister, className, vm);
+        return new CheckCastOp(address, opName, childAddress, targetRegister, castType, vm);
     }
 
-    private final String className;
+    private final TypeSymbol castType;
     private final int targetRegister;
     private final VirtualMachine vm;
 
-    CheckCastOp(int address, String opName, int childAddress, int targetRegister, String className, VirtualMachine vm) {
+    CheckCastOp(int address, String opName, int childAddress, int targetRegister, TypeSymbol castType,
+                    VirtualMachine vm) {
         super(address, opName, childAddress);
 
         this.targetRegister = targetRegister;
-        this.className = className;
+        this.castType = castType;
         this.vm = vm;
     }
 
     @Override
     public int[] execute(MethodState mState) {
         Object value = mState.readRegister(targetRegister);
-        String type;
+        String typeName;
         if (value instanceof LocalType) {
-            type = ((LocalType) value).getName();
+            typeName = ((LocalType) value).getName();
         } else {
-            type = SmaliClassUtils.javaClassToSmali(value.getClass());
+            typeName = SmaliClassUtils.javaClassToSmali(value.getClass());
         }
+        TypeSymbol type = vm.getSymbolTable().getType(typeName);
 
         try {
-            if (!vm.getClassManager().isInstance(type, className)) {
+            if (!vm.getClassManager().isInstance(type, castType)) {
                 // TODO: exception should be filled with spoofed stack trace
                 // throw new ClassCastException("Class - " + className);
             }
         } catch (UnknownAncestors e) {
-            log.warn("Unable to determine ancestory for class", e);
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to determine ancestory for " + typeName + ", assuming cast to " + castType
+                                + " is valid");
+            }
+            if (Tracing.ENABLED && log.isDebugEnabled()) {
+                log.debug("Stack trace:", e);
+            }
             // Could be framework class that's just not part of the VM (yet)
         }
 
@@ -65,7 +75,7 @@ public class CheckCastOp extends MethodStateOp {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
-        sb.append(" r").append(targetRegister).append(", ").append(className);
+        sb.append(" r").append(targetRegister).append(", ").append(castType);
 
         return sb.toString();
     }
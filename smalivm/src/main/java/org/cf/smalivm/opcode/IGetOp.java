@@ -3,6 +3,7 @@ package org.cf.smalivm.opcode;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.symbol.FieldSymbol;
 import org.cf.smalivm.type.UnknownValue;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction22c;
@@ -25,22 +26,23 @@ public class IGetOp extends ExecutionContextOp {
         int instanceRegister = instr.getRegisterB();
         FieldReference reference = (FieldReference) instr.getReference();
         String fieldDescriptor = ReferenceUtil.getFieldDescriptor(reference);
+        FieldSymbol field = vm.getSymbolTable().getField(fieldDescriptor);
 
-        return new IGetOp(address, opName, childAddress, destRegister, instanceRegister, fieldDescriptor, vm);
+        return new IGetOp(address, opName, childAddress, destRegister, instanceRegister, field, vm);
     }
 
     private final int destRegister;
     private final int instanceRegister;
-    private final String fieldDescriptor;
+    private final FieldSymbol field;
     private final VirtualMachine vm;
 
     public IGetOp(int address, String opName, int childAddress, int destRegister, int instanceRegister,
-                    String fieldDescriptor, VirtualMachine vm) {
+                    FieldSymbol field, VirtualMachine vm) {
         super(address, opName, childAddress);
 
         this.destRegister = destRegister;
         this.instanceRegister = instanceRegister;
-        this.fieldDescriptor = fieldDescriptor;
+        this.field = field;
         this.vm = vm;
     }
 
@@ -50,8 +52,7 @@ public class IGetOp extends ExecutionContextOp {
         // disabled because fidelity concerns, i.e. they may have been modified by another thread
         MethodState mState = ectx.getMethodState();
         mState.readRegister(instanceRegister);
-        String type = fieldDescriptor.split(":")[1];
-        mState.assignRegister(destRegister, new UnknownValue(type));
+        mState.assignRegister(destRegister, new UnknownValue(field.getType()));
 
         return getPossibleChildren();
     }
@@ -59,7 +60,7 @@ public class IGetOp extends ExecutionContextOp {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
-        sb.append(" r").append(destRegister).append(", ").append(fieldDescriptor);
+        sb.append(" r").append(destRegister).append(", ").append(field);
 
         return sb.toString();
     }
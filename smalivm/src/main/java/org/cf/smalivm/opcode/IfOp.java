@@ -5,6 +5,7 @@ import java.util.Comparator;
 
 import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.type.UnknownValue;
+import org.cf.util.Tracing;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.OffsetInstruction;
 import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
@@ -166,7 +167,9 @@ public class IfOp extends MethodStateOp {
             cmp = A == B ? 0 : 1;
         }
 
-        log.trace("IF compare: " + A + " vs " + B + " = " + cmp);
+        if (Tracing.ENABLED && log.isTraceEnabled()) {
+            log.trace("IF compare: " + A + " vs " + B + " = " + cmp);
+        }
 
         int result = getPossibleChildren()[0];
         if (isTrue(ifType, cmp)) {
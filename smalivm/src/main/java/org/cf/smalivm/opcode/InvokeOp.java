@@ -3,9 +3,8 @@ package org.cf.smalivm.opcode;
 import gnu.trove.list.TIntList;
 import gnu.trove.list.linked.TIntLinkedList;
 
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 import org.cf.smalivm.MethodReflector;
 import org.cf.smalivm.SideEffect;
@@ -15,19 +14,20 @@ import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.emulate.MethodEmulator;
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.TypeSymbol;
 import org.cf.smalivm.type.LocalType;
 import org.cf.smalivm.type.TypeUtil;
 import org.cf.smalivm.type.UnknownValue;
 import org.cf.util.ImmutableUtils;
 import org.cf.util.SmaliClassUtils;
-import org.cf.util.Utils;
+import org.cf.util.Tracing;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
 import org.jf.dexlib2.iface.instruction.formats.Instruction3rc;
 import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.util.ReferenceUtil;
-import org.jf.dexlib2.writer.builder.BuilderClassDef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -70,16 +70,16 @@ public class InvokeOp extends ExecutionContextOp {
             }
         }
 
-        String returnType = methodReference.getReturnType();
+        MethodSymbol method = vm.getSymbolTable().getMethod(methodDescriptor);
         List<String> parameterTypes;
         boolean isStatic = opName.contains("-static");
         SmaliClassManager classManager = vm.getClassManager();
-        if (classManager.isLocalMethod(methodDescriptor)) {
-            parameterTypes = classManager.getParameterTypes(methodDescriptor);
+        if (classManager.isLocalMethod(method)) {
+            parameterTypes = classManager.getParameterTypes(method);
         } else {
-            parameterTypes = Utils.getParameterTypes(methodDescriptor);
+            parameterTypes = new ArrayList<String>(method.getParameterTypes());
             if (!isStatic) {
-                parameterTypes.add(0, methodReference.getDefiningClass());
+                parameterTypes.add(0, method.getDefiningClass().getName());
             }
         }
 
@@ -93,26 +93,26 @@ public class InvokeOp extends ExecutionContextOp {
             }
         }
 
-        return new InvokeOp(address, opName, childAddress, methodDescriptor, returnType, parameterRegisters.toArray(),
-                        parameterTypes, vm, isStatic);
+        return new InvokeOp(address, opName, childAddress, method, parameterRegisters.toArray(), parameterTypes, vm,
+                        isStatic);
     }
 
     private static final Logger log = LoggerFactory.getLogger(InvokeOp.class.getSimpleName());
 
     private final boolean isStatic;
-    private final String methodDescriptor;
+    private final MethodSymbol method;
     private final int[] parameterRegisters;
     private final List<String> parameterTypes;
     private final String returnType;
     private SideEffect.Level sideEffectLevel;
     private final VirtualMachine vm;
 
-    private InvokeOp(int address, String opName, int childAddress, String methodDescriptor, String returnType,
-                    int[] parameterRegisters, List<String> parameterTypes, VirtualMachine vm, boolean isStatic) {
+    private InvokeOp(int address, String opName, int childAddress, MethodSymbol method, int[] parameterRegisters,
+                    List<String> parameterTypes, VirtualMachine vm, boolean isStatic) {
         super(address, opName, childAddress);
 
-        this.methodDescriptor = methodDescriptor;
-        this.returnType = returnType;
+        this.method = method;
+        returnType = method.getReturnType();
         this.parameterRegisters = parameterRegisters;
         this.parameterTypes = parameterTypes;
         this.vm = vm;
@@ -122,7 +122,7 @@ public class InvokeOp extends ExecutionContextOp {
 
     @Override
     public int[] execute(ExecutionContext ectx) {
-        String targetMethod = methodDescriptor;
+        MethodSymbol targetMethod = method;
         if (getName().contains("-virtual")) { // -virtual/range
             // Method call might be to interface or abstract class.
             // Try and resolve what the actual virtual target is.
@@ -132,7 +132,7 @@ public class InvokeOp extends ExecutionContextOp {
         }
 
         MethodState callerContext = ectx.getMethodState();
-        if (MethodReflector.canReflect(targetMethod) || MethodEmulator.canEmulate(targetMethod)) {
+        if (MethodReflector.canReflect(targetMethod) || MethodEmulator.canEmulate(targetMethod.getDescriptor())) {
             MethodState calleeContext = buildNonLocalCalleeContext(callerContext);
             boolean allArgumentsKnown = allArgumentsKnown(calleeContext);
             if (allArgumentsKnown) {
@@ -140,7 +140,7 @@ public class InvokeOp extends ExecutionContextOp {
 
                 return getPossibleChildren();
             } else {
-                if (log.isTraceEnabled()) {
+                if (Tracing.ENABLED && log.isTraceEnabled()) {
                     log.trace("Not emulating / reflecting " + targetMethod + " because all args not known.");
                 }
                 assumeMaximumUnknown(callerContext);
@@ -186,6 +186,15 @@ public class InvokeOp extends ExecutionContextOp {
         return sideEffectLevel;
     }
 
+    /**
+     * Restore the level found by an earlier execution, e.g. when loading a saved graph.
+     *
+     * @param sideEffectLevel
+     */
+    public void setSideEffectLevel(SideEffect.Level sideEffectLevel) {
+        this.sideEffectLevel = sideEffectLevel;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
@@ -201,7 +210,7 @@ public class InvokeOp extends ExecutionContextOp {
                 sb.setLength(sb.length() - 2);
             }
         }
-        sb.append("}, ").append(methodDescriptor);
+        sb.append("}, ").append(method);
 
         return sb.toString();
     }
@@ -240,7 +249,7 @@ public class InvokeOp extends ExecutionContextOp {
         for (int i = 0; i < parameterTypes.size(); i++) {
             String type = parameterTypes.get(i);
             if (ImmutableUtils.isImmutableClass(type)) {
-                if (log.isTraceEnabled()) {
+                if (Tracing.ENABLED && log.isTraceEnabled()) {
                     log.trace(type + " is immutable");
                 }
                 continue;
@@ -256,7 +265,7 @@ public class InvokeOp extends ExecutionContextOp {
                 String actualType = SmaliClassUtils.javaClassToSmali(value.getClass());
                 if (ImmutableUtils.isImmutableClass(actualType)) {
                     // I.e. parameter type might be Ljava/lang/Object;, but actual type is Ljava/lang/String;
-                    if (log.isTraceEnabled()) {
+                    if (Tracing.ENABLED && log.isTraceEnabled()) {
                         log.trace(type + " is immutable");
                     }
                     continue;
@@ -264,7 +273,7 @@ public class InvokeOp extends ExecutionContextOp {
             }
 
             value = new UnknownValue(type);
-            if (log.isDebugEnabled()) {
+            if (Tracing.ENABLED && log.isDebugEnabled()) {
                 log.debug(type + " is mutable and passed into unresolvable method execution, making Unknown");
             }
 
@@ -277,8 +286,8 @@ public class InvokeOp extends ExecutionContextOp {
         }
     }
 
-    private ExecutionContext buildLocalCalleeContext(String methodDescriptor, ExecutionContext callerContext) {
-        ExecutionContext calleeContext = vm.getRootExecutionContext(methodDescriptor);
+    private ExecutionContext buildLocalCalleeContext(MethodSymbol method, ExecutionContext callerContext) {
+        ExecutionContext calleeContext = vm.getRootExecutionContext(method);
         calleeContext.setCallDepth(callerContext.getCallDepth() + 1);
         MethodState callerMethodState = callerContext.getMethodState();
         MethodState calleeMethodState = calleeContext.getMethodState();
@@ -299,12 +308,14 @@ public class InvokeOp extends ExecutionContextOp {
         return calleeMethodState;
     }
 
-    private void executeLocalMethod(String methodDescriptor, ExecutionContext callerContext,
+    private void executeLocalMethod(MethodSymbol method, ExecutionContext callerContext,
                     ExecutionContext calleeContext) {
-        ExecutionGraph graph = vm.execute(methodDescriptor, calleeContext, callerContext, parameterRegisters);
+        ExecutionGraph graph = vm.execute(method, calleeContext, callerContext, parameterRegisters);
         if (graph == null) {
             // Problem executing the method. Maybe node visits or call depth exceeded?
-            log.info("Problem executing " + methodDescriptor + ", propagating ambiguity.");
+            if (log.isInfoEnabled()) {
+                log.info("Problem executing " + method + ", propagating ambiguity.");
+            }
             assumeMaximumUnknown(callerContext.getMethodState());
 
             return;
@@ -318,12 +329,13 @@ public class InvokeOp extends ExecutionContextOp {
         sideEffectLevel = graph.getHighestSideEffectLevel();
     }
 
-    private void executeNonLocalMethod(String methodDescriptor, MethodState callerContext, MethodState calleeContext) {
+    private void executeNonLocalMethod(MethodSymbol method, MethodState callerContext, MethodState calleeContext) {
         assert allArgumentsKnown(calleeContext);
+        String methodDescriptor = method.getDescriptor();
         if (MethodEmulator.canEmulate(methodDescriptor)) {
             sideEffectLevel = MethodEmulator.emulate(vm, calleeContext, methodDescriptor, getParameterRegisters());
-        } else if (MethodReflector.canReflect(methodDescriptor)) {
-            MethodReflector reflector = new MethodReflector(methodDescriptor, returnType, parameterTypes, isStatic);
+        } else if (MethodReflector.canReflect(method)) {
+            MethodReflector reflector = new MethodReflector(method, parameterTypes, isStatic);
             reflector.reflect(calleeContext); // playa play
 
             // Only safe, non-side-effect methods are allowed to be reflected.
@@ -350,7 +362,7 @@ public class InvokeOp extends ExecutionContextOp {
         }
     }
 
-    private String getLocalTargetForVirtualMethod(Object value) {
+    private MethodSymbol getLocalTargetForVirtualMethod(Object value) {
         String actualType;
         if (value instanceof LocalType) {
             actualType = ((LocalType) value).getName();
@@ -361,90 +373,10 @@ public class InvokeOp extends ExecutionContextOp {
         if (SmaliClassUtils.isPrimitiveType(actualType)) {
             actualType = SmaliClassUtils.smaliPrimitiveToJavaWrapper(actualType);
         }
-        String methodSignature = methodDescriptor.split("->")[1];
-        SmaliClassManager classManager = vm.getClassManager();
-        String targetMethod = getLocalTargetForVirtualMethod(actualType, methodSignature, classManager,
-                        new HashSet<String>());
-
-        return targetMethod != null ? targetMethod : methodDescriptor;
-    }
-
-    private static boolean doesNonLocalMethodExist(String className, String methodSignature) {
-        Class<?> klazz = null;
-        try {
-            klazz = Class.forName(SmaliClassUtils.smaliClassToJava(className));
-        } catch (ClassNotFoundException e) {
-            return false;
-        }
-
-        StringBuilder sb = new StringBuilder(className);
-        sb.append("->").append(methodSignature);
-        List<String> paramList = Utils.getParameterTypes(sb.toString());
-        Class<?>[] params = new Class<?>[paramList.size()];
-        for (int i = 0; i < paramList.size(); i++) {
-            String paramName = paramList.get(i);
-            try {
-                if (SmaliClassUtils.isPrimitiveType(paramName)) {
-                    params[i] = SmaliClassUtils.getPrimitiveType(SmaliClassUtils.smaliClassToJava(paramName));
-                } else {
-                    params[i] = Class.forName(SmaliClassUtils.smaliClassToJava(paramName));
-                }
-            } catch (ClassNotFoundException e) {
-                return false;
-            }
-        }
-
-        String methodName = methodSignature.split("\\(")[0];
-        try {
-            klazz.getMethod(methodName, params);
-        } catch (NoSuchMethodException e) {
-            return false;
-        } catch (SecurityException e) {
-            return false;
-        }
+        TypeSymbol receiverType = vm.getSymbolTable().getType(actualType);
+        MethodSymbol targetMethod = vm.resolveVirtualMethod(receiverType, method.getSignature());
 
-        return true;
+        return targetMethod != null ? targetMethod : method;
     }
 
-    private String getLocalTargetForVirtualMethod(String className, String methodSignature,
-                    SmaliClassManager classManager, Set<String> visited) {
-        visited.add(className);
-        StringBuilder sb = new StringBuilder(className);
-        sb.append("->").append(methodSignature);
-        String methodDescriptor = sb.toString();
-
-        boolean isLocalMethod = classManager.isLocalMethod(methodDescriptor);
-        if ((isLocalMethod && classManager.methodHasImplementation(methodDescriptor))) {
-            return methodDescriptor;
-        }
-
-        if (MethodReflector.isSafe(methodDescriptor) && doesNonLocalMethodExist(className, methodSignature)) {
-            return methodDescriptor;
-        }
-
-        if (!classManager.isLocalClass(className)) {
-            // Can't trace any further up.
-            // Note, also checked if this is white-listed Java API
-            return null;
-        }
-
-        BuilderClassDef classDef = classManager.getClass(className);
-        Set<String> parents = new HashSet<String>();
-        parents.addAll(classDef.getInterfaces());
-        if (null != classDef.getSuperclass()) {
-            parents.add(classDef.getSuperclass());
-        }
-
-        for (String parent : parents) {
-            if (visited.contains(parent)) {
-                continue;
-            }
-            String target = getLocalTargetForVirtualMethod(parent, methodSignature, classManager, visited);
-            if (null != target) {
-                return target;
-            }
-        }
-
-        return null;
-    }
 }
@@ -65,6 +65,15 @@ public class NewInstanceOp extends ExecutionContextOp {
         return sideEffectLevel;
     }
 
+    /**
+     * Restore the level found by an earlier execution, e.g. when loading a saved graph.
+     *
+     * @param sideEffectLevel
+     */
+    public void setSideEffectLevel(SideEffect.Level sideEffectLevel) {
+        this.sideEffectLevel = sideEffectLevel;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
@@ -4,6 +4,7 @@ import org.cf.smalivm.StaticFieldAccessor;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.symbol.FieldSymbol;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
 import org.jf.dexlib2.iface.reference.FieldReference;
@@ -24,26 +25,27 @@ public class SGetOp extends ExecutionContextOp {
         int destRegister = instr.getRegisterA();
         FieldReference reference = (FieldReference) instr.getReference();
         String fieldDescriptor = ReferenceUtil.getFieldDescriptor(reference);
+        FieldSymbol field = vm.getSymbolTable().getField(fieldDescriptor);
 
-        return new SGetOp(address, opName, childAddress, destRegister, fieldDescriptor, vm);
+        return new SGetOp(address, opName, childAddress, destRegister, field, vm);
     }
 
     private final int destRegister;
-    private final String fieldDescriptor;
+    private final FieldSymbol field;
     private final VirtualMachine vm;
 
-    public SGetOp(int address, String opName, int childAddress, int destRegister, String fieldDescriptor,
+    public SGetOp(int address, String opName, int childAddress, int destRegister, FieldSymbol field,
                     VirtualMachine vm) {
         super(address, opName, childAddress);
 
         this.destRegister = destRegister;
-        this.fieldDescriptor = fieldDescriptor;
+        this.field = field;
         this.vm = vm;
     }
 
     @Override
     public int[] execute(ExecutionContext ectx) {
-        Object value = StaticFieldAccessor.getField(vm, ectx, fieldDescriptor);
+        Object value = StaticFieldAccessor.getField(vm, ectx, field);
         MethodState mState = ectx.getMethodState();
         mState.assignRegister(destRegister, value);
 
@@ -53,7 +55,7 @@ public class SGetOp extends ExecutionContextOp {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
-        sb.append(" r").append(destRegister).append(", ").append(fieldDescriptor);
+        sb.append(" r").append(destRegister).append(", ").append(field);
 
         return sb.toString();
     }
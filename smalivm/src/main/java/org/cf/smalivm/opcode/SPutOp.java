@@ -5,6 +5,7 @@ import org.cf.smalivm.StaticFieldAccessor;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.symbol.FieldSymbol;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.formats.Instruction21c;
 import org.jf.dexlib2.iface.reference.FieldReference;
@@ -25,20 +26,21 @@ public class SPutOp extends ExecutionContextOp {
         int destRegister = instr.getRegisterA();
         FieldReference reference = (FieldReference) instr.getReference();
         String fieldDescriptor = ReferenceUtil.getFieldDescriptor(reference);
+        FieldSymbol field = vm.getSymbolTable().getField(fieldDescriptor);
 
-        return new SPutOp(address, opName, childAddress, destRegister, fieldDescriptor, vm);
+        return new SPutOp(address, opName, childAddress, destRegister, field, vm);
     }
 
-    private final String fieldDescriptor;
+    private final FieldSymbol field;
     private final int valueRegister;
     private final VirtualMachine vm;
 
-    public SPutOp(int address, String opName, int childAddress, int valueRegister, String fieldDescriptor,
+    public SPutOp(int address, String opName, int childAddress, int valueRegister, FieldSymbol field,
                     VirtualMachine vm) {
         super(address, opName, childAddress);
 
         this.valueRegister = valueRegister;
-        this.fieldDescriptor = fieldDescriptor;
+        this.field = field;
         this.vm = vm;
     }
 
@@ -47,7 +49,7 @@ public class SPutOp extends ExecutionContextOp {
         MethodState mState = ectx.getMethodState();
         Object value = mState.readRegister(valueRegister);
         // TODO: check if this is <clinit> and only allow static final fields to be initialized here
-        StaticFieldAccessor.putField(vm, ectx, fieldDescriptor, value);
+        StaticFieldAccessor.putField(vm, ectx, field, value);
 
         return getPossibleChildren();
     }
@@ -60,7 +62,7 @@ public class SPutOp extends ExecutionContextOp {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
-        sb.append(" r").append(valueRegister).append(", ").append(fieldDescriptor);
+        sb.append(" r").append(valueRegister).append(", ").append(field);
 
         return sb.toString();
     }
@@ -0,0 +1,59 @@
+package org.cf.smalivm.symbol;
+
+/**
+ * Canonical, interned form of a field descriptor, e.g. Lsome/Class;->field:I
+ *
+ * @author cfenton
+ *
+ */
+public class FieldSymbol {
+
+    private final int id;
+    private final String descriptor;
+    private final TypeSymbol definingClass;
+    private final String name;
+    private final String nameAndType;
+    private final String type;
+
+    FieldSymbol(int id, String descriptor, TypeSymbol definingClass, String name, String nameAndType, String type) {
+        this.id = id;
+        this.descriptor = descriptor;
+        this.definingClass = definingClass;
+        this.name = name;
+        this.nameAndType = nameAndType;
+        this.type = type;
+    }
+
+    public TypeSymbol getDefiningClass() {
+        return definingClass;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the part of the descriptor after the class name, e.g. field:I
+     */
+    public String getNameAndType() {
+        return nameAndType;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public String toString() {
+        return descriptor;
+    }
+
+}
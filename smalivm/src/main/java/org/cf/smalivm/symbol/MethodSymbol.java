@@ -0,0 +1,104 @@
+package org.cf.smalivm.symbol;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Canonical, interned form of a method descriptor, e.g. Lsome/Class;->method(ILjava/lang/String;)V. All parts of the
+ * descriptor are split out once when interned so they can be used on hot paths without any string parsing.
+ *
+ * @author cfenton
+ *
+ */
+public class MethodSymbol {
+
+    private final int id;
+    private final String descriptor;
+    private final TypeSymbol definingClass;
+    private final String name;
+    private final String signature;
+    private final List<String> parameterTypes;
+    private final String returnType;
+    private final int parameterSize;
+
+    // Cached safety verdict from MethodReflector, null until first checked
+    private Boolean isSafe;
+
+    MethodSymbol(int id, String descriptor, TypeSymbol definingClass, String name, String signature,
+                    List<String> parameterTypes, String returnType) {
+        this.id = id;
+        this.descriptor = descriptor;
+        this.definingClass = definingClass;
+        this.name = name;
+        this.signature = signature;
+        this.parameterTypes = Collections.unmodifiableList(parameterTypes);
+        this.returnType = returnType;
+
+        int size = 0;
+        for (String type : parameterTypes) {
+            size += "J".equals(type) || "D".equals(type) ? 2 : 1;
+        }
+        parameterSize = size;
+    }
+
+    public TypeSymbol getDefiningClass() {
+        return definingClass;
+    }
+
+    public String getDescriptor() {
+        return descriptor;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Declared parameter types. This does not include the instance reference for non-static methods.
+     *
+     * @return unmodifiable list of parameter types
+     */
+    public List<String> getParameterTypes() {
+        return parameterTypes;
+    }
+
+    /**
+     * @return number of registers needed for declared parameters
+     */
+    public int getParameterSize() {
+        return parameterSize;
+    }
+
+    public String getReturnType() {
+        return returnType;
+    }
+
+    /**
+     * @return the part of the descriptor after the class name, e.g. method(I)V
+     */
+    public String getSignature() {
+        return signature;
+    }
+
+    public boolean returnsVoid() {
+        return "V".equals(returnType);
+    }
+
+    public Boolean getSafeVerdict() {
+        return isSafe;
+    }
+
+    public void setSafeVerdict(boolean isSafe) {
+        this.isSafe = isSafe;
+    }
+
+    @Override
+    public String toString() {
+        return descriptor;
+    }
+
+}
@@ -0,0 +1,178 @@
+package org.cf.smalivm.symbol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.cf.util.Utils;
+
+/**
+ * Interns type, method and field descriptors so each is parsed exactly once. Every symbol gets a compact integer ID
+ * which can be used to look it up again, and there is only ever one symbol instance per descriptor.
+ *
+ * @author cfenton
+ *
+ */
+public class SymbolTable {
+
+    private static final String CLASS_MEMBER_SEPARATOR = "->";
+
+    private final Map<String, TypeSymbol> nameToType;
+    private final Map<String, MethodSymbol> descriptorToMethod;
+    private final Map<String, FieldSymbol> descriptorToField;
+    private final List<TypeSymbol> types;
+    private final List<MethodSymbol> methods;
+    private final List<FieldSymbol> fields;
+
+    public SymbolTable() {
+        nameToType = new HashMap<String, TypeSymbol>();
+        descriptorToMethod = new HashMap<String, MethodSymbol>();
+        descriptorToField = new HashMap<String, FieldSymbol>();
+        types = new ArrayList<TypeSymbol>();
+        methods = new ArrayList<MethodSymbol>();
+        fields = new ArrayList<FieldSymbol>();
+    }
+
+    /**
+     *
+     * @param fieldDescriptor
+     *            e.g. Lsome/Class;->field:I
+     * @return interned field symbol
+     */
+    public FieldSymbol getField(String fieldDescriptor) {
+        FieldSymbol field = descriptorToField.get(fieldDescriptor);
+        if (field == null) {
+            field = buildField(fieldDescriptor);
+            descriptorToField.put(fieldDescriptor, field);
+            fields.add(field);
+        }
+
+        return field;
+    }
+
+    public FieldSymbol getField(String className, String fieldNameAndType) {
+        StringBuilder sb = new StringBuilder(className);
+        sb.append(CLASS_MEMBER_SEPARATOR).append(fieldNameAndType);
+
+        return getField(sb.toString());
+    }
+
+    public FieldSymbol getField(int id) {
+        return fields.get(id);
+    }
+
+    public int getFieldCount() {
+        return fields.size();
+    }
+
+    /**
+     *
+     * @param methodDescriptor
+     *            e.g. Lsome/Class;->method(I)V
+     * @return interned method symbol
+     */
+    public MethodSymbol getMethod(String methodDescriptor) {
+        MethodSymbol method = descriptorToMethod.get(methodDescriptor);
+        if (method == null) {
+            method = buildMethod(methodDescriptor);
+            descriptorToMethod.put(methodDescriptor, method);
+            methods.add(method);
+        }
+
+        return method;
+    }
+
+    public MethodSymbol getMethod(String className, String methodSignature) {
+        StringBuilder sb = new StringBuilder(className);
+        sb.append(CLASS_MEMBER_SEPARATOR).append(methodSignature);
+
+        return getMethod(sb.toString());
+    }
+
+    public MethodSymbol getMethod(int id) {
+        return methods.get(id);
+    }
+
+    public int getMethodCount() {
+        return methods.size();
+    }
+
+    /**
+     *
+     * @param typeName
+     *            Smali type descriptor, e.g. Ljava/lang/Object; or [I
+     * @return interned type symbol
+     */
+    public TypeSymbol getType(String typeName) {
+        TypeSymbol type = nameToType.get(typeName);
+        if (type == null) {
+            type = new TypeSymbol(types.size(), typeName);
+            nameToType.put(typeName, type);
+            types.add(type);
+        }
+
+        return type;
+    }
+
+    public TypeSymbol getType(int id) {
+        return types.get(id);
+    }
+
+    public int getTypeCount() {
+        return types.size();
+    }
+
+    /**
+     * Intern the class part of any descriptor. Works for class names as well as method and field descriptors.
+     *
+     * @param descriptor
+     * @return interned type symbol of the class
+     */
+    public TypeSymbol getDefiningClass(String descriptor) {
+        MethodSymbol method = descriptorToMethod.get(descriptor);
+        if (method != null) {
+            return method.getDefiningClass();
+        }
+
+        int separator = descriptor.indexOf(CLASS_MEMBER_SEPARATOR);
+        if (separator < 0) {
+            return getType(descriptor);
+        }
+
+        return getType(descriptor.substring(0, separator));
+    }
+
+    private FieldSymbol buildField(String fieldDescriptor) {
+        int separator = fieldDescriptor.indexOf(CLASS_MEMBER_SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException("Malformed field descriptor: " + fieldDescriptor);
+        }
+        TypeSymbol definingClass = getType(fieldDescriptor.substring(0, separator));
+        String nameAndType = fieldDescriptor.substring(separator + CLASS_MEMBER_SEPARATOR.length());
+        int colon = nameAndType.indexOf(':');
+        String name = nameAndType.substring(0, colon);
+        String type = nameAndType.substring(colon + 1);
+
+        return new FieldSymbol(fields.size(), fieldDescriptor, definingClass, name, nameAndType, type);
+    }
+
+    private MethodSymbol buildMethod(String methodDescriptor) {
+        int separator = methodDescriptor.indexOf(CLASS_MEMBER_SEPARATOR);
+        int openParen = methodDescriptor.indexOf('(', separator);
+        int closeParen = methodDescriptor.indexOf(')', openParen);
+        if ((separator < 0) || (openParen < 0) || (closeParen < 0)) {
+            throw new IllegalArgumentException("Malformed method descriptor: " + methodDescriptor);
+        }
+        TypeSymbol definingClass = getType(methodDescriptor.substring(0, separator));
+        int signatureStart = separator + CLASS_MEMBER_SEPARATOR.length();
+        String signature = methodDescriptor.substring(signatureStart);
+        String name = methodDescriptor.substring(signatureStart, openParen);
+        String returnType = methodDescriptor.substring(closeParen + 1);
+        List<String> parameterTypes = Utils.getParameterTypes(methodDescriptor);
+
+        return new MethodSymbol(methods.size(), methodDescriptor, definingClass, name, signature, parameterTypes,
+                        returnType);
+    }
+
+}
@@ -0,0 +1,76 @@
+package org.cf.smalivm.symbol;
+
+import org.cf.util.SmaliClassUtils;
+
+/**
+ * Canonical, interned form of a Smali type descriptor, e.g. Ljava/lang/String; or [I. There is exactly one instance
+ * per type name in a {@link SymbolTable}, so instances may be compared by reference.
+ *
+ * @author cfenton
+ *
+ */
+public class TypeSymbol {
+
+    private final int id;
+    private final String name;
+    private final String baseName;
+    private final boolean isArray;
+    private final boolean isPrimitive;
+    private final int width;
+
+    // Cached safety verdict from MethodReflector, null until first checked
+    private Boolean isSafe;
+
+    TypeSymbol(int id, String name) {
+        this.id = id;
+        this.name = name;
+        baseName = SmaliClassUtils.getBaseClass(name);
+        isArray = name.startsWith("[");
+        isPrimitive = !isArray && SmaliClassUtils.isPrimitiveType(name);
+        width = "J".equals(name) || "D".equals(name) ? 2 : 1;
+    }
+
+    /**
+     * @return type name with any array dimensions removed, e.g. [[I becomes I
+     */
+    public String getBaseName() {
+        return baseName;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of registers needed to hold a value of this type
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public boolean isArray() {
+        return isArray;
+    }
+
+    public boolean isPrimitive() {
+        return isPrimitive;
+    }
+
+    public Boolean getSafeVerdict() {
+        return isSafe;
+    }
+
+    public void setSafeVerdict(boolean isSafe) {
+        this.isSafe = isSafe;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+}
@@ -0,0 +1,188 @@
+package org.cf.util;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Custom Flight Recorder event, shown alongside GC and allocation events in recordings. Event types are created with
+ * jdk.jfr.EventFactory through reflection so this still compiles and runs on JVMs without Flight Recorder, where every
+ * event is disabled.
+ *
+ * Like log statements, guard building values with {@link #isEnabled()}:
+ *
+ * <pre>
+ * FlightRecorderEvent event = EXECUTE_EVENT.begin();
+ * ...
+ * if (event.isEnabled()) {
+ *     event.commit(methodDescriptor, callDepth);
+ * }
+ * </pre>
+ *
+ * @author cfenton
+ *
+ */
+public class FlightRecorderEvent {
+
+    public static class Type {
+
+        private final Object factory;
+        private final Object eventType;
+
+        private Type(Object factory, Object eventType) {
+            this.factory = factory;
+            this.eventType = eventType;
+        }
+
+        /**
+         * Start timing an event. If this type isn't being recorded, a shared disabled event is returned without
+         * allocating anything.
+         *
+         * @return event to commit when the timed work is done
+         */
+        public FlightRecorderEvent begin() {
+            if (eventType == null) {
+                return DISABLED;
+            }
+
+            try {
+                // Checked on the type so nothing is created when not recording, which is almost always
+                if (!(Boolean) isTypeEnabled.invoke(eventType, NO_ARGUMENTS)) {
+                    return DISABLED;
+                }
+                Object event = newEvent.invoke(factory, NO_ARGUMENTS);
+                begin.invoke(event, NO_ARGUMENTS);
+
+                return new FlightRecorderEvent(event);
+            } catch (ReflectiveOperationException e) {
+                return DISABLED;
+            }
+        }
+
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(FlightRecorderEvent.class.getSimpleName());
+
+    private static final String CATEGORY = "Simplify";
+    private static final FlightRecorderEvent DISABLED = new FlightRecorderEvent(null);
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+
+    private static Method create;
+    private static Method getEventType;
+    private static Method newEvent;
+    private static Method isTypeEnabled;
+    private static Method begin;
+    private static Method set;
+    private static Method commit;
+    private static Constructor<?> annotationElement;
+    private static Constructor<?> valueDescriptor;
+    private static Class<?> nameAnnotation;
+    private static Class<?> labelAnnotation;
+    private static Class<?> categoryAnnotation;
+
+    static {
+        try {
+            Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            Class<?> eventTypeClass = Class.forName("jdk.jfr.EventType");
+            Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+            Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+            nameAnnotation = Class.forName("jdk.jfr.Name");
+            labelAnnotation = Class.forName("jdk.jfr.Label");
+            categoryAnnotation = Class.forName("jdk.jfr.Category");
+            annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class);
+            create = eventFactoryClass.getMethod("create", List.class, List.class);
+            getEventType = eventFactoryClass.getMethod("getEventType");
+            newEvent = eventFactoryClass.getMethod("newEvent");
+            isTypeEnabled = eventTypeClass.getMethod("isEnabled");
+            begin = eventClass.getMethod("begin");
+            set = eventClass.getMethod("set", int.class, Object.class);
+            commit = eventClass.getMethod("commit");
+        } catch (ReflectiveOperationException | LinkageError e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Flight Recorder not available, events are disabled");
+            }
+            create = null;
+        }
+    }
+
+    /**
+     * Define an event type. Field types must be primitives or String.
+     *
+     * @param name
+     *            unique event name, e.g. org.cf.smalivm.MethodExecution
+     * @param label
+     *            human readable name
+     * @param fieldNames
+     * @param fieldTypes
+     * @return event type, which is always disabled if Flight Recorder isn't available
+     */
+    public static Type define(String name, String label, String[] fieldNames, Class<?>[] fieldTypes) {
+        if (create == null) {
+            return new Type(null, null);
+        }
+
+        try {
+            List<Object> annotations = new ArrayList<Object>();
+            annotations.add(annotationElement.newInstance(nameAnnotation, name));
+            annotations.add(annotationElement.newInstance(labelAnnotation, label));
+            annotations.add(annotationElement.newInstance(categoryAnnotation, new String[] { CATEGORY }));
+            List<Object> fields = new ArrayList<Object>();
+            for (int i = 0; i < fieldNames.length; i++) {
+                fields.add(valueDescriptor.newInstance(fieldTypes[i], fieldNames[i]));
+            }
+
+            Object factory = create.invoke(null, annotations, fields);
+
+            return new Type(factory, getEventType.invoke(factory));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to define event " + name + " with fields " + Arrays.toString(fieldNames), e);
+            }
+
+            return new Type(null, null);
+        }
+    }
+
+    private final Object event;
+
+    private FlightRecorderEvent(Object event) {
+        this.event = event;
+    }
+
+    /**
+     * Set the field values, in the order they were defined, and record the event with the time since it began.
+     *
+     * @param values
+     */
+    public void commit(Object... values) {
+        if (event == null) {
+            return;
+        }
+
+        try {
+            for (int i = 0; i < values.length; i++) {
+                set.invoke(event, i, values[i]);
+            }
+            commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to commit event", e);
+            }
+        }
+    }
+
+    /**
+     * @return true if this event is being recorded
+     */
+    public boolean isEnabled() {
+        return event != null;
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.cf.util;
+
+/**
+ * Switch for debug and trace logging in execution hot paths. Guards are written as
+ *
+ * <pre>
+ * if (Tracing.ENABLED &amp;&amp; log.isTraceEnabled()) {
+ *     log.trace(&quot;Setting &quot; + register + &quot; = &quot; + value);
+ * }
+ * </pre>
+ *
+ * Since {@link #ENABLED} is static final, the JIT treats it as a constant and removes the whole block when tracing is
+ * off, including the level check. Messages should only be built inside the guard, or passed as slf4j parameters so
+ * toString() is deferred until a message is actually written.
+ *
+ * Tracing is on unless the system property <code>simplify.tracing</code> is <code>false</code>. The property is read
+ * once, when this class is loaded, so it must be set before executing anything.
+ *
+ * @author cfenton
+ *
+ */
+public final class Tracing {
+
+    public static final String PROPERTY = "simplify.tracing";
+
+    public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty(PROPERTY));
+
+    private Tracing() {
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.cf.smalivm.ExecutionProfiler.Entry;
+import org.cf.smalivm.opcode.InvokeOp;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutionProfiler {
+
+    private static final String CLASS_NAME = "Linvoke_static_test;";
+    private static final String CALLER = CLASS_NAME + "->InvokeReturnInt()V";
+    private static final String CALLEE = CLASS_NAME + "->ReturnInt()I";
+
+    private static Entry getEntry(Iterable<Entry> entries, String name) {
+        for (Entry entry : entries) {
+            if (entry.getName().equals(name)) {
+                return entry;
+            }
+        }
+
+        return null;
+    }
+
+    private ExecutionProfiler profiler;
+
+    @Before
+    public void setUp() {
+        profiler = new ExecutionProfiler();
+    }
+
+    @Test
+    public void testProfilingIsOffByDefault() {
+        assertNull(VMTester.getTestVM().getProfiler());
+    }
+
+    @Test
+    public void testCalleeTimeIsExcludedFromCallerSelfTime() {
+        VirtualMachine vm = VMTester.getTestVM();
+        vm.setProfiler(profiler);
+        vm.execute(CALLER);
+
+        Entry caller = getEntry(profiler.getMethodEntries(), CALLER);
+        Entry callee = getEntry(profiler.getMethodEntries(), CALLEE);
+        assertNotNull(caller);
+        assertNotNull(callee);
+        assertEquals(1, caller.getCalls());
+        assertEquals(1, callee.getCalls());
+        assertEquals(0, caller.getMaxCallDepth());
+        assertEquals(1, callee.getMaxCallDepth());
+        assertEquals(2, caller.getVisits());
+        assertEquals(2, callee.getVisits());
+        assertTrue(caller.getTotalNanos() >= callee.getTotalNanos());
+        assertEquals(caller.getTotalNanos() - callee.getTotalNanos(), caller.getSelfNanos());
+
+        Entry invoke = getEntry(profiler.getOpEntries(), InvokeOp.class.getSimpleName());
+        assertNotNull(invoke);
+        assertEquals(1, invoke.getVisits());
+        assertTrue(invoke.getSelfNanos() <= invoke.getTotalNanos());
+    }
+
+    @Test
+    public void testExceededLimitIsCountedForMethod() {
+        VirtualMachine vm = new VirtualMachine(VMTester.getTestVM().getClassManager(), 500, 0, 500);
+        vm.setProfiler(profiler);
+        vm.execute(CALLER);
+
+        assertEquals(0, getEntry(profiler.getMethodEntries(), CALLER).getLimitsExceeded());
+        assertEquals(1, getEntry(profiler.getMethodEntries(), CALLEE).getLimitsExceeded());
+    }
+
+    @Test
+    public void testReportAndJsonListMethods() {
+        VirtualMachine vm = VMTester.getTestVM();
+        vm.setProfiler(profiler);
+        vm.execute(CALLER);
+
+        assertTrue(profiler.getReport(10).contains(CALLEE));
+        String json = profiler.toJson();
+        assertTrue(json.startsWith("{\"methods\":[{\"name\":"));
+        assertTrue(json.contains("\"name\":\"" + CALLER + "\""));
+        assertTrue(json.contains("\"name\":\"InvokeOp\""));
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.cf.smalivm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.MethodState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutionTrace {
+
+    private static final String CLASS_NAME = "Linvoke_static_test;";
+    private static final String CALLER = CLASS_NAME + "->InvokeReturnInt()V";
+    private static final String CALLEE = CLASS_NAME + "->ReturnInt()I";
+    private static final String BRANCHING = CLASS_NAME + "->Set0thElementOfFirstParameterTo0IfSecondParameterIs0([II)V";
+
+    private static ExecutionTraceReader trace(VirtualMachine vm, File traceFile, String methodDescriptor)
+                    throws IOException {
+        ExecutionTraceWriter writer = new ExecutionTraceWriter(traceFile);
+        vm.setTraceWriter(writer);
+        try {
+            vm.execute(methodDescriptor);
+        } finally {
+            vm.setTraceWriter(null);
+            writer.close();
+        }
+
+        return new ExecutionTraceReader(traceFile);
+    }
+
+    private File traceFile;
+
+    @Before
+    public void setUp() throws IOException {
+        traceFile = File.createTempFile("trace", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        traceFile.delete();
+    }
+
+    @Test
+    public void testTracingIsOffByDefault() {
+        assertNull(VMTester.getTestVM().getTraceWriter());
+    }
+
+    @Test
+    public void testCalleeExecutionsAreListed() throws IOException {
+        ExecutionTraceReader reader = trace(VMTester.getTestVM(), traceFile, CALLER);
+
+        ExecutionTraceReader.Execution caller = null;
+        ExecutionTraceReader.Execution callee = null;
+        List<ExecutionTraceReader.Execution> executions = reader.getExecutions();
+        for (ExecutionTraceReader.Execution execution : executions) {
+            if (execution.getMethodDescriptor().equals(CALLER)) {
+                caller = execution;
+            } else if (execution.getMethodDescriptor().equals(CALLEE)) {
+                callee = execution;
+            }
+        }
+        assertNotNull(caller);
+        assertNotNull(callee);
+        assertEquals(0, caller.getCallDepth());
+        assertEquals(1, callee.getCallDepth());
+        assertEquals(2, caller.getVisitCount());
+        assertEquals(2, callee.getVisitCount());
+        assertTrue(caller.isFinished());
+        assertTrue(callee.isFinished());
+    }
+
+    @Test
+    public void testReplayedCalleeHasReturnValue() throws IOException {
+        VirtualMachine vm = VMTester.getTestVM();
+        ExecutionTraceReader reader = trace(vm, traceFile, CALLER);
+
+        ExecutionGraph graph = reader.replay(vm, CALLEE, 0);
+        assertNotNull(graph);
+        assertEquals(2, graph.getNodeCount());
+        assertEquals(7, graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister));
+        assertNull(reader.replay(vm, CALLEE, 1));
+    }
+
+    @Test
+    public void testReplayedGraphMatchesExecutedGraph() throws IOException {
+        VirtualMachine vm = VMTester.getTestVM();
+        ExecutionGraph expected = vm.execute(BRANCHING);
+        ExecutionTraceReader reader = trace(vm, traceFile, BRANCHING);
+        ExecutionGraph graph = reader.replay(vm, BRANCHING, 0);
+
+        assertNotNull(graph);
+        assertEquals(expected.getNodeCount(), graph.getNodeCount());
+        for (int address : expected.getAddresses()) {
+            assertEquals(expected.getNodePile(address).size(), graph.getNodePile(address).size());
+            if (expected.wasAddressReached(address)) {
+                for (int register = 0; register < 3; register++) {
+                    assertEquals(String.valueOf(expected.getRegisterConsensus(address, register)),
+                                    String.valueOf(graph.getRegisterConsensus(address, register)));
+                }
+            }
+        }
+    }
+
+}
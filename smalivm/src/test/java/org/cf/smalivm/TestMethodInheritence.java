@@ -1,9 +1,14 @@
 package org.cf.smalivm;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 
 import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.MethodState;
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.cf.smalivm.symbol.TypeSymbol;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
@@ -48,6 +53,24 @@ public class TestMethodInheritence {
 
             assertEquals("parentMethod", value);
         }
+
+        @Test
+        public void testVirtualMethodResolvesToParentImplementation() {
+            SymbolTable symbolTable = vm.getSymbolTable();
+            TypeSymbol childType = symbolTable.getType(CLASS_NAME);
+            MethodSymbol target = vm.resolveVirtualMethod(childType, "parentMethod()Ljava/lang/String;");
+
+            assertSame(symbolTable.getMethod("Lparent_class;->parentMethod()Ljava/lang/String;"), target);
+            assertSame(target, vm.resolveVirtualMethod(childType, "parentMethod()Ljava/lang/String;"));
+        }
+
+        @Test
+        public void testUnresolvableVirtualMethodReturnsNull() {
+            TypeSymbol childType = vm.getSymbolTable().getType(CLASS_NAME);
+
+            assertNull(vm.resolveVirtualMethod(childType, "doesNotExist()V"));
+            assertNull(vm.resolveVirtualMethod(childType, "doesNotExist()V"));
+        }
     }
 
     public static class ParentClass {
@@ -1,7 +1,12 @@
 package org.cf.smalivm;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import gnu.trove.map.TIntObjectMap;
 
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.junit.After;
 import org.junit.Test;
 
 public class TestMethodReflector {
@@ -13,6 +18,13 @@ public class TestMethodReflector {
      */
 
     private static final String CLASS_NAME = "Lmethod_reflector_test;";
+    private static final String SAFE_PACKAGE = "Lorg/cf/safe_package_test/*";
+
+    @After
+    public void tearDown() {
+        // Safe classes are global, don't let them leak into other tests
+        MethodReflector.removeSafeClass(SAFE_PACKAGE);
+    }
 
     @Test
     public void testCastsIntegerToCharacter() {
@@ -54,4 +66,43 @@ public class TestMethodReflector {
         VMTester.testMethodState(CLASS_NAME, "GetByteWithByte()V", initial, expected);
     }
 
+    @Test
+    public void testMethodOfSafeClassIsSafe() {
+        SymbolTable symbolTable = new SymbolTable();
+        MethodSymbol method = symbolTable.getMethod("Ljava/lang/Integer;->valueOf(I)Ljava/lang/Integer;");
+
+        assertTrue(MethodReflector.isSafe(method));
+        assertTrue(MethodReflector.isSafe(method.getDefiningClass()));
+    }
+
+    @Test
+    public void testMethodOfUnknownClassIsNotSafe() {
+        SymbolTable symbolTable = new SymbolTable();
+        MethodSymbol method = symbolTable.getMethod("Lsome/unknown/Class;->method()V");
+
+        assertFalse(MethodReflector.isSafe(method));
+        assertFalse(MethodReflector.isSafe(method.getDefiningClass()));
+    }
+
+    @Test
+    public void testClassesInSafePackageAreSafe() {
+        MethodReflector.addSafeClass(SAFE_PACKAGE);
+        SymbolTable symbolTable = new SymbolTable();
+
+        assertTrue(MethodReflector.isSafe(symbolTable.getType("Lorg/cf/safe_package_test/Foo;")));
+        assertTrue(MethodReflector.isSafe(symbolTable.getType("Lorg/cf/safe_package_test/inner/Bar;")));
+        assertTrue(MethodReflector.isSafe("Lorg/cf/safe_package_test/Foo;->method()V"));
+    }
+
+    @Test
+    public void testClassesOutsideSafePackageAreNotSafe() {
+        MethodReflector.addSafeClass(SAFE_PACKAGE);
+        SymbolTable symbolTable = new SymbolTable();
+
+        assertFalse(MethodReflector.isSafe(symbolTable.getType("Lorg/cf/safe_package_test_other/Foo;")));
+        assertFalse(MethodReflector.isSafe(symbolTable.getType("Lorg/cf/safe_package_testFoo;")));
+        assertFalse(MethodReflector.isSafe(symbolTable.getType("Lorg/cf/Foo;")));
+        assertFalse(MethodReflector.isSafe("Lorg/cf/safe_package_test_other/Foo;->method()V"));
+    }
+
 }
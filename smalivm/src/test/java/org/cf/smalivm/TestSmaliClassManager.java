@@ -1,11 +1,20 @@
 package org.cf.smalivm;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.cf.smalivm.exception.UnknownAncestors;
+import org.cf.smalivm.symbol.MethodSymbol;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.cf.smalivm.symbol.TypeSymbol;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.iface.instruction.Instruction;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -34,6 +43,13 @@ public class TestSmaliClassManager {
         assertTrue(isInstance);
     }
 
+    @Test
+    public void testChildIsInstanceOfGrandParentInterface() throws UnknownAncestors {
+        boolean isInstance = manager.isInstance("Lchild_class;", "Lgrandparent_interface;");
+
+        assertTrue(isInstance);
+    }
+
     @Test
     public void testParentIsNotInstanceOfChild() throws UnknownAncestors {
         boolean isInstance = manager.isInstance("Lparent_class;", "Lchild_class;");
@@ -86,4 +102,33 @@ public class TestSmaliClassManager {
         manager.isInstance("Lchild_class;", "Lthis_certainly_wont_exists;");
     }
 
+    @Test
+    public void testDispatchCandidatesStopAtFirstImplementation() {
+        SymbolTable symbolTable = manager.getSymbolTable();
+        TypeSymbol childType = symbolTable.getType("Lchild_class;");
+        MethodSymbol[] candidates = manager.getHierarchy().getDispatchCandidates(childType,
+                        "parentMethod()Ljava/lang/String;");
+
+        assertEquals(2, candidates.length);
+        assertSame(symbolTable.getMethod("Lchild_class;->parentMethod()Ljava/lang/String;"), candidates[0]);
+        assertSame(symbolTable.getMethod("Lparent_class;->parentMethod()Ljava/lang/String;"), candidates[1]);
+    }
+
+    @Test
+    public void testMethodDefinitionsReplaceInputMethodsWhenLoaded() {
+        Map<String, String> methodDescriptorToDefinition = new HashMap<String, String>();
+        methodDescriptorToDefinition.put("Lconst_test;->TestConst4()V", ".method public static TestConst4()V\n"
+                        + "    .registers 1\n    const/16 v0, 0x5\n    return-void\n.end method");
+        manager.setMethodDefinitions(methodDescriptorToDefinition);
+
+        Instruction replaced = manager.getMethod("Lconst_test;->TestConst4()V").getImplementation()
+                        .getInstructions().iterator().next();
+        Instruction unchanged = manager.getMethod("Lconst_test;->TestConst16()V").getImplementation()
+                        .getInstructions().iterator().next();
+
+        assertEquals(Opcode.CONST_16, replaced.getOpcode());
+        assertEquals(Opcode.CONST_16, unchanged.getOpcode());
+        assertEquals(14, manager.getMethodDescriptors("Lconst_test;").size());
+    }
+
 }
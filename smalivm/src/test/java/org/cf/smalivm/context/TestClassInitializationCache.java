@@ -0,0 +1,46 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertEquals;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestClassInitializationCache {
+
+    private static final String CLASS_NAME = "Lclass_with_static_init;";
+    private static final String EXPECTED_VALUE = "Uhhh, about 11, sir.";
+
+    private VirtualMachine vm;
+
+    @Before
+    public void setupVM() {
+        vm = VMTester.getTestVM();
+    }
+
+    @Test
+    public void testStaticInitializerResultIsCachedForRootContexts() {
+        ExecutionGraph graph = vm.execute(CLASS_NAME + "->getString()Ljava/lang/String;");
+
+        assertEquals(EXPECTED_VALUE, graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister));
+        assertEquals(1, vm.getClassInitializationCache().size());
+    }
+
+    @Test
+    public void testCachedStaticInitializerResultIsRestored() {
+        vm.execute(CLASS_NAME + "->getString()Ljava/lang/String;");
+        ExecutionGraph graph = vm.execute(CLASS_NAME + "->getString()Ljava/lang/String;");
+
+        assertEquals(EXPECTED_VALUE, graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister));
+    }
+
+    @Test
+    public void testModifyingStaticInitializerInvalidatesCache() {
+        vm.execute(CLASS_NAME + "->getString()Ljava/lang/String;");
+        vm.updateInstructionGraph(CLASS_NAME + "-><clinit>()V");
+
+        assertEquals(0, vm.getClassInitializationCache().size());
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cf.smalivm.ClassHierarchy;
+import org.cf.smalivm.SmaliClassManager;
+import org.cf.smalivm.symbol.SymbolTable;
+import org.cf.smalivm.symbol.TypeSymbol;
+import org.jf.dexlib2.iface.ExceptionHandler;
+import org.jf.dexlib2.iface.TryBlock;
+import org.jf.dexlib2.immutable.ImmutableExceptionHandler;
+import org.jf.dexlib2.immutable.ImmutableTryBlock;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExceptionHandlerTable {
+
+    private static final String TEST_DIRECTORY = "resources/test";
+
+    private SymbolTable symbolTable;
+    private ClassHierarchy hierarchy;
+    private List<TryBlock<? extends ExceptionHandler>> tryBlocks;
+
+    @Before
+    public void setUp() throws IOException {
+        SmaliClassManager classManager = new SmaliClassManager(TEST_DIRECTORY);
+        symbolTable = classManager.getSymbolTable();
+        hierarchy = classManager.getHierarchy();
+        tryBlocks = new ArrayList<TryBlock<? extends ExceptionHandler>>();
+    }
+
+    @Test
+    public void testAddressOutsideOfTryBlockHasNoHandlers() {
+        addTryBlock(2, 4, new ImmutableExceptionHandler(null, 20));
+        ExceptionHandlerTable table = new ExceptionHandlerTable(tryBlocks, symbolTable);
+
+        assertArrayEquals(new int[0], getCatchAddresses(table, "Ljava/lang/Exception;", 1));
+        assertArrayEquals(new int[0], getCatchAddresses(table, "Ljava/lang/Exception;", 6));
+    }
+
+    @Test
+    public void testExactTypeIsCaught() {
+        addTryBlock(0, 4, new ImmutableExceptionHandler("Ljava/lang/NullPointerException;", 20));
+        ExceptionHandlerTable table = new ExceptionHandlerTable(tryBlocks, symbolTable);
+
+        assertArrayEquals(new int[] { 20 }, getCatchAddresses(table, "Ljava/lang/NullPointerException;", 3));
+    }
+
+    @Test
+    public void testSubtypeIsCaughtBySupertypeHandler() {
+        addTryBlock(0, 4, new ImmutableExceptionHandler("Ljava/lang/ArithmeticException;", 10),
+                        new ImmutableExceptionHandler("Ljava/lang/RuntimeException;", 20));
+        ExceptionHandlerTable table = new ExceptionHandlerTable(tryBlocks, symbolTable);
+
+        assertArrayEquals(new int[] { 20 }, getCatchAddresses(table, "Ljava/lang/NullPointerException;", 0));
+    }
+
+    @Test
+    public void testCatchAllCatchesEverything() {
+        addTryBlock(0, 4, new ImmutableExceptionHandler("Ljava/lang/ArithmeticException;", 10),
+                        new ImmutableExceptionHandler(null, 20));
+        ExceptionHandlerTable table = new ExceptionHandlerTable(tryBlocks, symbolTable);
+
+        assertArrayEquals(new int[] { 20 }, getCatchAddresses(table, "Ljava/lang/NullPointerException;", 0));
+    }
+
+    @Test
+    public void testInnermostTryBlockIsCheckedFirst() {
+        addTryBlock(0, 10, new ImmutableExceptionHandler("Ljava/lang/Exception;", 30));
+        addTryBlock(4, 2, new ImmutableExceptionHandler("Ljava/lang/RuntimeException;", 20));
+        ExceptionHandlerTable table = new ExceptionHandlerTable(tryBlocks, symbolTable);
+
+        assertArrayEquals(new int[] { 20 }, getCatchAddresses(table, "Ljava/lang/NullPointerException;", 5));
+        assertArrayEquals(new int[] { 30 }, getCatchAddresses(table, "Ljava/lang/NullPointerException;", 6));
+        assertArrayEquals(new int[] { 30 }, getCatchAddresses(table, "Ljava/lang/NullPointerException;", 0));
+    }
+
+    @Test
+    public void testUnrelatedTypeIsNotCaught() {
+        addTryBlock(0, 4, new ImmutableExceptionHandler("Ljava/lang/ArithmeticException;", 10));
+        ExceptionHandlerTable table = new ExceptionHandlerTable(tryBlocks, symbolTable);
+
+        assertArrayEquals(new int[0], getCatchAddresses(table, "Ljava/lang/NullPointerException;", 0));
+    }
+
+    @Test
+    public void testNoTryBlocksIsEmpty() {
+        ExceptionHandlerTable table = new ExceptionHandlerTable(tryBlocks, symbolTable);
+
+        assertTrue(table.isEmpty());
+    }
+
+    private void addTryBlock(int start, int codeUnitCount, ExceptionHandler... handlers) {
+        tryBlocks.add(new ImmutableTryBlock(start, codeUnitCount, Arrays.asList(handlers)));
+    }
+
+    private int[] getCatchAddresses(ExceptionHandlerTable table, String exceptionClassName, int address) {
+        TypeSymbol exceptionType = symbolTable.getType(exceptionClassName);
+
+        return table.getCatchAddresses(exceptionType, address, hierarchy);
+    }
+
+}
@@ -0,0 +1,65 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutionContext {
+
+    private static final String STATIC_INIT_CLASS = "Lclass_with_static_init;";
+    private static final String STATIC_INIT_FIELD = "string:Ljava/lang/String;";
+    private static final String SPUT_CLASS = "Lsput_test;";
+    private static final String SPUT_FIELD = "myInt:I";
+
+    private VirtualMachine vm;
+    private ExecutionContext caller;
+    private ClassState callerStaticInitState;
+
+    @Before
+    public void setUp() {
+        vm = VMTester.getTestVM();
+        caller = new ExecutionContext(vm);
+        callerStaticInitState = new ClassState(caller, STATIC_INIT_CLASS, 1);
+        callerStaticInitState.pokeField(STATIC_INIT_FIELD, "from caller");
+        caller.initializeClass(STATIC_INIT_CLASS, callerStaticInitState, SideEffect.Level.NONE);
+    }
+
+    @Test
+    public void testCalleeInheritsCallerClassStateOnlyWhenUsed() {
+        ExecutionContext callee = vm.getRootExecutionContext(SPUT_CLASS + "->TestStaticPutInt()V");
+        callee.setCallerContext(caller);
+        assertFalse(callee.getLocalClassStates().containsKey(STATIC_INIT_CLASS));
+
+        ExecutionContext child = callee.getChild();
+        assertTrue(child.isClassInitialized(STATIC_INIT_CLASS));
+        assertEquals("from caller", child.peekClassState(STATIC_INIT_CLASS).peekField(STATIC_INIT_FIELD));
+        assertTrue(callee.getLocalClassStates().containsKey(STATIC_INIT_CLASS));
+
+        child.peekClassState(STATIC_INIT_CLASS).pokeField(STATIC_INIT_FIELD, "from callee");
+        assertEquals("from caller", caller.peekClassState(STATIC_INIT_CLASS).peekField(STATIC_INIT_FIELD));
+    }
+
+    @Test
+    public void testCollapseOnlyMergesClassesCalleeUsed() {
+        String methodDescriptor = SPUT_CLASS + "->TestStaticPutInt()V";
+        ExecutionContext callee = vm.getRootExecutionContext(methodDescriptor);
+        callee.getMethodState().assignRegister(0, 5);
+        ExecutionGraph graph = vm.execute(methodDescriptor, callee, caller, null);
+
+        assertTrue(graph != null);
+        assertTrue(callee.getDirtyClasses().contains(SPUT_CLASS));
+        assertFalse(callee.getDirtyClasses().contains(STATIC_INIT_CLASS));
+        assertFalse(callee.getLocalClassStates().containsKey(STATIC_INIT_CLASS));
+        assertEquals(5, caller.peekClassState(SPUT_CLASS).peekField(SPUT_FIELD));
+        assertSame(callerStaticInitState, caller.getLocalClassStates().get(STATIC_INIT_CLASS));
+        assertEquals("from caller", callerStaticInitState.peekField(STATIC_INIT_FIELD));
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gnu.trove.list.TIntList;
+
+import java.util.List;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.symbol.FieldSymbol;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutionGraph {
+
+    private static final String CLASS_NAME = "Lclass_with_static_init;";
+    private static final String EXPECTED_VALUE = "Uhhh, about 11, sir.";
+
+    private VirtualMachine vm;
+    private ExecutionGraph graph;
+
+    @Before
+    public void executeMethod() {
+        vm = VMTester.getTestVM();
+        graph = vm.execute(CLASS_NAME + "->getString()Ljava/lang/String;");
+    }
+
+    @Test
+    public void testBatchRegisterConsensusMatchesSingleRegisterConsensus() {
+        TIntList addresses = graph.getConnectedTerminatingAddresses();
+        int[] registers = new int[] { 0, MethodState.ReturnRegister };
+        Object[] expected = new Object[] { graph.getRegisterConsensus(addresses, 0),
+                        graph.getRegisterConsensus(addresses, MethodState.ReturnRegister) };
+
+        assertArrayEquals(expected, graph.getRegisterConsensus(addresses, registers));
+    }
+
+    @Test
+    public void testBatchFieldConsensusReturnsValueForEachField() {
+        TIntList addresses = graph.getConnectedTerminatingAddresses();
+        List<FieldSymbol> fields = vm.getClassManager().getFields(CLASS_NAME);
+        Object[] values = graph.getFieldConsensus(addresses, CLASS_NAME, fields);
+
+        assertEquals(1, values.length);
+        assertEquals(EXPECTED_VALUE, values[0]);
+    }
+
+    @Test
+    public void testNodeCountIsNodesInEveryPileWithoutTemplates() {
+        int expected = 0;
+        for (int address : graph.getAddresses()) {
+            expected += graph.getNodePile(address).size();
+        }
+
+        assertEquals(expected, graph.getNodeCount());
+        assertTrue(graph.getNodeCount() > 0);
+    }
+
+}
@@ -0,0 +1,171 @@
+package org.cf.smalivm.context;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestExecutionGraphReader {
+
+    private static final String STATIC_INIT = "Lclass_with_static_init;->getString()Ljava/lang/String;";
+    private static final String STATIC_FIELD = "Lclass_with_static_init;->string:Ljava/lang/String;";
+    private static final String INVOKE = "Linvoke_static_test;->InvokeReturnInt()V";
+    private static final String BRANCHING = "Linvoke_static_test;"
+                    + "->Set0thElementOfFirstParameterTo0IfSecondParameterIs0([II)V";
+
+    private static void assertGraphsEqual(ExecutionGraph expected, ExecutionGraph actual) {
+        assertEquals(expected.getMethodDescriptor(), actual.getMethodDescriptor());
+        assertEquals(expected.getNodeCount(), actual.getNodeCount());
+        for (int address : expected.getAddresses()) {
+            List<ExecutionNode> expectedPile = expected.getNodePile(address);
+            List<ExecutionNode> actualPile = actual.getNodePile(address);
+            assertEquals(expectedPile.size(), actualPile.size());
+            for (int i = 0; i < expectedPile.size(); i++) {
+                ExecutionNode expectedNode = expectedPile.get(i);
+                ExecutionNode actualNode = actualPile.get(i);
+                assertEquals(expectedNode.getChildren().size(), actualNode.getChildren().size());
+                assertEquals(expectedNode.getCallDepth(), actualNode.getCallDepth());
+                if (expectedNode.getParent() == null) {
+                    assertNull(actualNode.getParent());
+                } else {
+                    assertEquals(expectedNode.getParent().getAddress(), actualNode.getParent().getAddress());
+                    assertSame(actualNode.getParent().getContext(), actualNode.getContext().getParent());
+                }
+                MethodState expectedState = expectedNode.getContext().getMethodState();
+                MethodState actualState = actualNode.getContext().getMethodState();
+                assertEquals(expectedState.getRegistersAssigned(), actualState.getRegistersAssigned());
+                assertEquals(expectedState.getRegistersRead(), actualState.getRegistersRead());
+                for (int register = 0; register < expectedState.getRegisterCount(); register++) {
+                    assertEquals(String.valueOf(expectedState.peekRegister(register)),
+                                    String.valueOf(actualState.peekRegister(register)));
+                }
+            }
+        }
+    }
+
+    private File file;
+    private VirtualMachine vm;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("graphs", ".bin");
+        vm = VMTester.getTestVM();
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testLoadedGraphsMatchWrittenGraphs() throws IOException {
+        ExecutionGraph branching = vm.execute(BRANCHING);
+        ExecutionGraph staticInit = vm.execute(STATIC_INIT);
+        ExecutionGraphWriter writer = new ExecutionGraphWriter(file);
+        writer.write(branching);
+        writer.write(staticInit);
+        writer.close();
+
+        ExecutionGraphReader reader = new ExecutionGraphReader(file);
+        try {
+            assertEquals(2, reader.getMethodDescriptors().size());
+            assertGraphsEqual(branching, reader.read(vm, BRANCHING));
+            ExecutionGraph loaded = reader.read(vm, STATIC_INIT);
+            assertGraphsEqual(staticInit, loaded);
+            assertEquals(staticInit.getTerminatingRegisterConsensus(MethodState.ReturnRegister),
+                            loaded.getTerminatingRegisterConsensus(MethodState.ReturnRegister));
+            assertEquals("Uhhh, about 11, sir.", loaded.getTerminatingFieldConsensus(STATIC_FIELD));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testLoadedGraphsKeepExecutedSideEffectLevels() throws IOException {
+        ExecutionGraph invoke = vm.execute(INVOKE);
+        SideEffect.Level expected = invoke.getTemplateNode(0).getOp().sideEffectLevel();
+        // A fresh invoke op is strong until it's executed
+        assertEquals(SideEffect.Level.NONE, expected);
+        ExecutionGraphWriter writer = new ExecutionGraphWriter(file);
+        writer.write(invoke);
+        writer.close();
+
+        ExecutionGraphReader reader = new ExecutionGraphReader(file);
+        try {
+            ExecutionGraph loaded = reader.read(VMTester.getTestVM(), INVOKE);
+            assertGraphsEqual(invoke, loaded);
+            assertEquals(expected, loaded.getTemplateNode(0).getOp().sideEffectLevel());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testGraphsWrittenBeforeCloseCanBeLoaded() throws IOException {
+        ExecutionGraph branching = vm.execute(BRANCHING);
+        ExecutionGraphWriter writer = new ExecutionGraphWriter(file);
+        writer.write(branching);
+
+        ExecutionGraphReader reader = new ExecutionGraphReader(file);
+        try {
+            assertTrue(reader.contains(BRANCHING));
+            assertFalse(reader.contains(STATIC_INIT));
+            assertNull(reader.read(vm, STATIC_INIT));
+            ExecutionGraph loaded = reader.read(vm, BRANCHING);
+            assertNotNull(loaded);
+            assertGraphsEqual(branching, loaded);
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    @Test
+    public void testCorruptRecordsThrowIOException() throws IOException {
+        ExecutionGraphWriter writer = new ExecutionGraphWriter(file);
+        writer.write(vm.execute(BRANCHING));
+        writer.close();
+
+        // A varint which never ends, and a string length past the end of the record
+        byte[] malformedVarint = new byte[11];
+        Arrays.fill(malformedVarint, (byte) 0xFF);
+        byte[] hugeLength = new byte[] { 0, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07 };
+        for (byte[] corruption : new byte[][] { malformedVarint, hugeLength }) {
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                // Start of the first record's payload
+                output.seek(ExecutionGraphFile.HEADER_SIZE + 4);
+                output.write(corruption);
+            } finally {
+                output.close();
+            }
+
+            ExecutionGraphReader reader = new ExecutionGraphReader(file);
+            try {
+                reader.read(vm, BRANCHING);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().startsWith("Corrupt graph"));
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,75 @@
+package org.cf.smalivm.symbol;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestSymbolTable {
+
+    private SymbolTable table;
+
+    @Before
+    public void buildTable() {
+        table = new SymbolTable();
+    }
+
+    @Test
+    public void testMethodIsInternedOnce() {
+        MethodSymbol first = table.getMethod("Lsome/Class;->method(IJ)V");
+        MethodSymbol second = table.getMethod("Lsome/Class;", "method(IJ)V");
+
+        assertSame(first, second);
+        assertSame(first, table.getMethod(first.getId()));
+        assertEquals(1, table.getMethodCount());
+    }
+
+    @Test
+    public void testMethodPartsAreParsed() {
+        MethodSymbol method = table.getMethod("Lsome/Class;->method(I[JLjava/lang/String;)Ljava/lang/Object;");
+
+        assertSame(table.getType("Lsome/Class;"), method.getDefiningClass());
+        assertEquals("method", method.getName());
+        assertEquals("method(I[JLjava/lang/String;)Ljava/lang/Object;", method.getSignature());
+        assertEquals(Arrays.asList("I", "[J", "Ljava/lang/String;"), method.getParameterTypes());
+        assertEquals("Ljava/lang/Object;", method.getReturnType());
+        assertEquals(3, method.getParameterSize());
+    }
+
+    @Test
+    public void testWideParametersUseTwoRegisters() {
+        MethodSymbol method = table.getMethod("Lsome/Class;->method(JD)V");
+
+        assertEquals(4, method.getParameterSize());
+        assertTrue(method.returnsVoid());
+    }
+
+    @Test
+    public void testFieldPartsAreParsed() {
+        FieldSymbol field = table.getField("Lsome/Class;->someField:[I");
+
+        assertSame(field, table.getField("Lsome/Class;", "someField:[I"));
+        assertSame(table.getType("Lsome/Class;"), field.getDefiningClass());
+        assertEquals("someField", field.getName());
+        assertEquals("someField:[I", field.getNameAndType());
+        assertEquals("[I", field.getType());
+    }
+
+    @Test
+    public void testArrayTypeHasBaseName() {
+        TypeSymbol type = table.getType("[[Ljava/lang/String;");
+
+        assertTrue(type.isArray());
+        assertEquals("Ljava/lang/String;", type.getBaseName());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedMethodDescriptorThrowsException() {
+        table.getMethod("Lsome/Class;->method");
+    }
+
+}
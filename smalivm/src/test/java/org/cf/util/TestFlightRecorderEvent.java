@@ -0,0 +1,28 @@
+package org.cf.util;
+
+import static org.junit.Assert.assertFalse;
+
+import org.junit.Test;
+
+public class TestFlightRecorderEvent {
+
+    @Test
+    public void testEventsAreDisabledWhenNotRecording() {
+        FlightRecorderEvent.Type type = FlightRecorderEvent.define("org.cf.util.TestEvent", "Test Event",
+                        new String[] { "name", "count" }, new Class<?>[] { String.class, int.class });
+        FlightRecorderEvent event = type.begin();
+
+        assertFalse(event.isEnabled());
+        // Nothing to commit to, and shouldn't throw
+        event.commit("name", 1);
+    }
+
+    @Test
+    public void testUnsupportedFieldTypeGivesDisabledType() {
+        FlightRecorderEvent.Type type = FlightRecorderEvent.define("org.cf.util.BadTestEvent", "Bad Test Event",
+                        new String[] { "value" }, new Class<?>[] { Object.class });
+
+        assertFalse(type.begin().isEnabled());
+    }
+
+}